@@ -98,6 +98,10 @@ public final class SdcFrame {
     // optional string sessionId = 4;
     boolean hasSessionId();
     String getSessionId();
+    
+    // optional .sdc_frame.FrameInfo.Compression compression = 5 [default = NONE];
+    boolean hasCompression();
+    com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression getCompression();
   }
   public static final class FrameInfo extends
       com.google.protobuf.GeneratedMessage
@@ -211,6 +215,75 @@ public final class SdcFrame {
       // @@protoc_insertion_point(enum_scope:sdc_frame.FrameInfo.Type)
     }
     
+    public enum Compression
+        implements com.google.protobuf.ProtocolMessageEnum {
+      NONE(0, 0),
+      DEFLATE(1, 1),
+      ;
+      
+      public static final int NONE_VALUE = 0;
+      public static final int DEFLATE_VALUE = 1;
+      
+      
+      public final int getNumber() { return value; }
+      
+      public static Compression valueOf(int value) {
+        switch (value) {
+          case 0: return NONE;
+          case 1: return DEFLATE;
+          default: return null;
+        }
+      }
+      
+      public static com.google.protobuf.Internal.EnumLiteMap<Compression>
+          internalGetValueMap() {
+        return internalValueMap;
+      }
+      private static com.google.protobuf.Internal.EnumLiteMap<Compression>
+          internalValueMap =
+            new com.google.protobuf.Internal.EnumLiteMap<Compression>() {
+              public Compression findValueByNumber(int number) {
+                return Compression.valueOf(number);
+              }
+            };
+      
+      public final com.google.protobuf.Descriptors.EnumValueDescriptor
+          getValueDescriptor() {
+        return getDescriptor().getValues().get(index);
+      }
+      public final com.google.protobuf.Descriptors.EnumDescriptor
+          getDescriptorForType() {
+        return getDescriptor();
+      }
+      public static final com.google.protobuf.Descriptors.EnumDescriptor
+          getDescriptor() {
+        return com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.getDescriptor().getEnumTypes().get(1);
+      }
+      
+      private static final Compression[] VALUES = {
+        NONE, DEFLATE, 
+      };
+      
+      public static Compression valueOf(
+          com.google.protobuf.Descriptors.EnumValueDescriptor desc) {
+        if (desc.getType() != getDescriptor()) {
+          throw new java.lang.IllegalArgumentException(
+            "EnumValueDescriptor is not for this type.");
+        }
+        return VALUES[desc.getIndex()];
+      }
+      
+      private final int index;
+      private final int value;
+      
+      private Compression(int index, int value) {
+        this.index = index;
+        this.value = value;
+      }
+      
+      // @@protoc_insertion_point(enum_scope:sdc_frame.FrameInfo.Compression)
+    }
+    
     private int bitField0_;
     // optional int64 sequence = 1;
     public static final int SEQUENCE_FIELD_NUMBER = 1;
@@ -274,11 +347,22 @@ public final class SdcFrame {
       }
     }
     
+    // optional .sdc_frame.FrameInfo.Compression compression = 5 [default = NONE];
+    public static final int COMPRESSION_FIELD_NUMBER = 5;
+    private com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression compression_;
+    public boolean hasCompression() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    public com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression getCompression() {
+      return compression_;
+    }
+    
     private void initFields() {
       sequence_ = 0L;
       type_ = com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Type.SOCKET_DATA;
       payload_ = com.google.protobuf.ByteString.EMPTY;
       sessionId_ = "";
+      compression_ = com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression.NONE;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -304,6 +388,9 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000008) == 0x00000008)) {
         output.writeBytes(4, getSessionIdBytes());
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeEnum(5, compression_.getNumber());
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -329,6 +416,10 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(4, getSessionIdBytes());
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeEnumSize(5, compression_.getNumber());
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -461,6 +552,8 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000004);
         sessionId_ = "";
         bitField0_ = (bitField0_ & ~0x00000008);
+        compression_ = com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression.NONE;
+        bitField0_ = (bitField0_ & ~0x00000010);
         return this;
       }
       
@@ -515,6 +608,10 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000008;
         }
         result.sessionId_ = sessionId_;
+        if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.compression_ = compression_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -543,6 +640,9 @@ public final class SdcFrame {
         if (other.hasSessionId()) {
           setSessionId(other.getSessionId());
         }
+        if (other.hasCompression()) {
+          setCompression(other.getCompression());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -600,6 +700,17 @@ public final class SdcFrame {
               sessionId_ = input.readBytes();
               break;
             }
+            case 40: {
+              int rawValue = input.readEnum();
+              com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression value = com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression.valueOf(rawValue);
+              if (value == null) {
+                unknownFields.mergeVarintField(5, rawValue);
+              } else {
+                bitField0_ |= 0x00000010;
+                compression_ = value;
+              }
+              break;
+            }
           }
         }
       }
@@ -711,6 +822,30 @@ public final class SdcFrame {
         onChanged();
       }
       
+      // optional .sdc_frame.FrameInfo.Compression compression = 5 [default = NONE];
+      private com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression compression_ = com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression.NONE;
+      public boolean hasCompression() {
+        return ((bitField0_ & 0x00000010) == 0x00000010);
+      }
+      public com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression getCompression() {
+        return compression_;
+      }
+      public Builder setCompression(com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        bitField0_ |= 0x00000010;
+        compression_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearCompression() {
+        bitField0_ = (bitField0_ & ~0x00000010);
+        compression_ = com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression.NONE;
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.FrameInfo)
     }
     
@@ -736,6 +871,10 @@ public final class SdcFrame {
     // optional bytes segment = 3;
     boolean hasSegment();
     com.google.protobuf.ByteString getSegment();
+    
+    // optional int64 windowUpdate = 4;
+    boolean hasWindowUpdate();
+    long getWindowUpdate();
   }
   public static final class SocketDataInfo extends
       com.google.protobuf.GeneratedMessage
@@ -868,10 +1007,21 @@ public final class SdcFrame {
       return segment_;
     }
     
+    // optional int64 windowUpdate = 4;
+    public static final int WINDOWUPDATE_FIELD_NUMBER = 4;
+    private long windowUpdate_;
+    public boolean hasWindowUpdate() {
+      return ((bitField0_ & 0x00000008) == 0x00000008);
+    }
+    public long getWindowUpdate() {
+      return windowUpdate_;
+    }
+    
     private void initFields() {
       connectionId_ = 0L;
       state_ = com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo.State.START;
       segment_ = com.google.protobuf.ByteString.EMPTY;
+      windowUpdate_ = 0L;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -902,6 +1052,9 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000004) == 0x00000004)) {
         output.writeBytes(3, segment_);
       }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        output.writeInt64(4, windowUpdate_);
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -923,6 +1076,10 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(3, segment_);
       }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(4, windowUpdate_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -1053,6 +1210,8 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000002);
         segment_ = com.google.protobuf.ByteString.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000004);
+        windowUpdate_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000008);
         return this;
       }
       
@@ -1103,6 +1262,10 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000004;
         }
         result.segment_ = segment_;
+        if (((from_bitField0_ & 0x00000008) == 0x00000008)) {
+          to_bitField0_ |= 0x00000008;
+        }
+        result.windowUpdate_ = windowUpdate_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -1128,6 +1291,9 @@ public final class SdcFrame {
         if (other.hasSegment()) {
           setSegment(other.getSegment());
         }
+        if (other.hasWindowUpdate()) {
+          setWindowUpdate(other.getWindowUpdate());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -1188,6 +1354,11 @@ public final class SdcFrame {
               segment_ = input.readBytes();
               break;
             }
+            case 32: {
+              bitField0_ |= 0x00000008;
+              windowUpdate_ = input.readInt64();
+              break;
+            }
           }
         }
       }
@@ -1263,6 +1434,27 @@ public final class SdcFrame {
         return this;
       }
       
+      // optional int64 windowUpdate = 4;
+      private long windowUpdate_ ;
+      public boolean hasWindowUpdate() {
+        return ((bitField0_ & 0x00000008) == 0x00000008);
+      }
+      public long getWindowUpdate() {
+        return windowUpdate_;
+      }
+      public Builder setWindowUpdate(long value) {
+        bitField0_ |= 0x00000008;
+        windowUpdate_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearWindowUpdate() {
+        bitField0_ = (bitField0_ & ~0x00000008);
+        windowUpdate_ = 0L;
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.SocketDataInfo)
     }
     
@@ -1296,6 +1488,11 @@ public final class SdcFrame {
     // optional string statusMessage = 6;
     boolean hasStatusMessage();
     String getStatusMessage();
+    
+    // repeated .sdc_frame.FrameInfo.Compression compression = 7;
+    java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression> getCompressionList();
+    int getCompressionCount();
+    com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression getCompression(int index);
   }
   public static final class AuthorizationInfo extends
       com.google.protobuf.GeneratedMessage
@@ -1583,12 +1780,26 @@ public final class SdcFrame {
       }
     }
     
+    // repeated .sdc_frame.FrameInfo.Compression compression = 7;
+    public static final int COMPRESSION_FIELD_NUMBER = 7;
+    private java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression> compression_;
+    public java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression> getCompressionList() {
+      return compression_;
+    }
+    public int getCompressionCount() {
+      return compression_.size();
+    }
+    public com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression getCompression(int index) {
+      return compression_.get(index);
+    }
+    
     private void initFields() {
       email_ = "";
       authType_ = com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo.AuthType.PASSWORD;
       password_ = "";
       result_ = com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo.ResultCode.OK;
       statusMessage_ = "";
+      compression_ = java.util.Collections.emptyList();
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -1617,6 +1828,9 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000010) == 0x00000010)) {
         output.writeBytes(6, getStatusMessageBytes());
       }
+      for (int i = 0; i < compression_.size(); i++) {
+        output.writeEnum(7, compression_.get(i).getNumber());
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -1646,6 +1860,15 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(6, getStatusMessageBytes());
       }
+      {
+        int dataSize = 0;
+        for (int i = 0; i < compression_.size(); i++) {
+          dataSize += com.google.protobuf.CodedOutputStream
+            .computeEnumSizeNoTag(compression_.get(i).getNumber());
+        }
+        size += dataSize;
+        size += 1 * compression_.size();
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -1780,6 +2003,8 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000008);
         statusMessage_ = "";
         bitField0_ = (bitField0_ & ~0x00000010);
+        compression_ = java.util.Collections.emptyList();
+        bitField0_ = (bitField0_ & ~0x00000020);
         return this;
       }
       
@@ -1838,6 +2063,11 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000010;
         }
         result.statusMessage_ = statusMessage_;
+        if (((bitField0_ & 0x00000020) == 0x00000020)) {
+          compression_ = java.util.Collections.unmodifiableList(compression_);
+          bitField0_ = (bitField0_ & ~0x00000020);
+        }
+        result.compression_ = compression_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -1869,6 +2099,16 @@ public final class SdcFrame {
         if (other.hasStatusMessage()) {
           setStatusMessage(other.getStatusMessage());
         }
+        if (!other.compression_.isEmpty()) {
+          if (compression_.isEmpty()) {
+            compression_ = other.compression_;
+            bitField0_ = (bitField0_ & ~0x00000020);
+          } else {
+            ensureCompressionIsMutable();
+            compression_.addAll(other.compression_);
+          }
+          onChanged();
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -1937,6 +2177,31 @@ public final class SdcFrame {
               statusMessage_ = input.readBytes();
               break;
             }
+            case 56: {
+              int rawValue = input.readEnum();
+              com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression value = com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression.valueOf(rawValue);
+              if (value == null) {
+                unknownFields.mergeVarintField(7, rawValue);
+              } else {
+                addCompression(value);
+              }
+              break;
+            }
+            case 58: {
+              int length = input.readRawVarint32();
+              int oldLimit = input.pushLimit(length);
+              while(input.getBytesUntilLimit() > 0) {
+                int rawValue = input.readEnum();
+                com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression value = com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression.valueOf(rawValue);
+                if (value == null) {
+                  unknownFields.mergeVarintField(7, rawValue);
+                } else {
+                  addCompression(value);
+                }
+              }
+              input.popLimit(oldLimit);
+              break;
+            }
           }
         }
       }
@@ -2099,6 +2364,57 @@ public final class SdcFrame {
         onChanged();
       }
       
+      // repeated .sdc_frame.FrameInfo.Compression compression = 7;
+      private java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression> compression_ =
+        java.util.Collections.emptyList();
+      private void ensureCompressionIsMutable() {
+        if (!((bitField0_ & 0x00000020) == 0x00000020)) {
+          compression_ = new java.util.ArrayList<com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression>(compression_);
+          bitField0_ |= 0x00000020;
+        }
+      }
+      public java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression> getCompressionList() {
+        return java.util.Collections.unmodifiableList(compression_);
+      }
+      public int getCompressionCount() {
+        return compression_.size();
+      }
+      public com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression getCompression(int index) {
+        return compression_.get(index);
+      }
+      public Builder setCompression(
+          int index, com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        ensureCompressionIsMutable();
+        compression_.set(index, value);
+        onChanged();
+        return this;
+      }
+      public Builder addCompression(com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        ensureCompressionIsMutable();
+        compression_.add(value);
+        onChanged();
+        return this;
+      }
+      public Builder addAllCompression(
+          java.lang.Iterable<? extends com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Compression> values) {
+        ensureCompressionIsMutable();
+        super.addAll(values, compression_);
+        onChanged();
+        return this;
+      }
+      public Builder clearCompression() {
+        compression_ = java.util.Collections.emptyList();
+        bitField0_ = (bitField0_ & ~0x00000020);
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.AuthorizationInfo)
     }
     
@@ -3392,6 +3708,10 @@ public final class SdcFrame {
     // optional bytes keyBytes = 8;
     boolean hasKeyBytes();
     com.google.protobuf.ByteString getKeyBytes();
+    
+    // optional int32 flowControlWindow = 9;
+    boolean hasFlowControlWindow();
+    int getFlowControlWindow();
   }
   public static final class ServerSuppliedConf extends
       com.google.protobuf.GeneratedMessage
@@ -3516,12 +3836,23 @@ public final class SdcFrame {
       return keyBytes_;
     }
     
+    // optional int32 flowControlWindow = 9;
+    public static final int FLOWCONTROLWINDOW_FIELD_NUMBER = 9;
+    private int flowControlWindow_;
+    public boolean hasFlowControlWindow() {
+      return ((bitField0_ & 0x00000020) == 0x00000020);
+    }
+    public int getFlowControlWindow() {
+      return flowControlWindow_;
+    }
+    
     private void initFields() {
       healthCheckTimeout_ = 0;
       healthCheckWakeUpInterval_ = 0;
       sessionId_ = "";
       keyAlgo_ = "";
       keyBytes_ = com.google.protobuf.ByteString.EMPTY;
+      flowControlWindow_ = 0;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -3550,6 +3881,9 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000010) == 0x00000010)) {
         output.writeBytes(8, keyBytes_);
       }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        output.writeInt32(9, flowControlWindow_);
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -3579,6 +3913,10 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(8, keyBytes_);
       }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(9, flowControlWindow_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -3713,6 +4051,8 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000008);
         keyBytes_ = com.google.protobuf.ByteString.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000010);
+        flowControlWindow_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000020);
         return this;
       }
       
@@ -3771,6 +4111,10 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000010;
         }
         result.keyBytes_ = keyBytes_;
+        if (((from_bitField0_ & 0x00000020) == 0x00000020)) {
+          to_bitField0_ |= 0x00000020;
+        }
+        result.flowControlWindow_ = flowControlWindow_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -3802,6 +4146,9 @@ public final class SdcFrame {
         if (other.hasKeyBytes()) {
           setKeyBytes(other.getKeyBytes());
         }
+        if (other.hasFlowControlWindow()) {
+          setFlowControlWindow(other.getFlowControlWindow());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -3858,6 +4205,11 @@ public final class SdcFrame {
               keyBytes_ = input.readBytes();
               break;
             }
+            case 72: {
+              bitField0_ |= 0x00000020;
+              flowControlWindow_ = input.readInt32();
+              break;
+            }
           }
         }
       }
@@ -4002,6 +4354,27 @@ public final class SdcFrame {
         return this;
       }
       
+      // optional int32 flowControlWindow = 9;
+      private int flowControlWindow_ ;
+      public boolean hasFlowControlWindow() {
+        return ((bitField0_ & 0x00000020) == 0x00000020);
+      }
+      public int getFlowControlWindow() {
+        return flowControlWindow_;
+      }
+      public Builder setFlowControlWindow(int value) {
+        bitField0_ |= 0x00000020;
+        flowControlWindow_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearFlowControlWindow() {
+        bitField0_ = (bitField0_ & ~0x00000020);
+        flowControlWindow_ = 0;
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.ServerSuppliedConf)
     }
     
@@ -5134,6 +5507,18 @@ public final class SdcFrame {
     // optional bytes contents = 5;
     boolean hasContents();
     com.google.protobuf.ByteString getContents();
+    
+    // optional bool streamed = 6;
+    boolean hasStreamed();
+    boolean getStreamed();
+    
+    // optional int32 chunkSequence = 7;
+    boolean hasChunkSequence();
+    int getChunkSequence();
+    
+    // optional bool lastChunk = 8;
+    boolean hasLastChunk();
+    boolean getLastChunk();
   }
   public static final class FetchRequest extends
       com.google.protobuf.GeneratedMessage
@@ -5291,12 +5676,45 @@ public final class SdcFrame {
       return contents_;
     }
     
+    // optional bool streamed = 6;
+    public static final int STREAMED_FIELD_NUMBER = 6;
+    private boolean streamed_;
+    public boolean hasStreamed() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    public boolean getStreamed() {
+      return streamed_;
+    }
+    
+    // optional int32 chunkSequence = 7;
+    public static final int CHUNKSEQUENCE_FIELD_NUMBER = 7;
+    private int chunkSequence_;
+    public boolean hasChunkSequence() {
+      return ((bitField0_ & 0x00000020) == 0x00000020);
+    }
+    public int getChunkSequence() {
+      return chunkSequence_;
+    }
+    
+    // optional bool lastChunk = 8;
+    public static final int LASTCHUNK_FIELD_NUMBER = 8;
+    private boolean lastChunk_;
+    public boolean hasLastChunk() {
+      return ((bitField0_ & 0x00000040) == 0x00000040);
+    }
+    public boolean getLastChunk() {
+      return lastChunk_;
+    }
+    
     private void initFields() {
       id_ = "";
       resource_ = "";
       strategy_ = "";
       headers_ = java.util.Collections.emptyList();
       contents_ = com.google.protobuf.ByteString.EMPTY;
+      streamed_ = false;
+      chunkSequence_ = 0;
+      lastChunk_ = false;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -5339,6 +5757,15 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000008) == 0x00000008)) {
         output.writeBytes(5, contents_);
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeBool(6, streamed_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        output.writeInt32(7, chunkSequence_);
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        output.writeBool(8, lastChunk_);
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -5368,6 +5795,18 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(5, contents_);
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(6, streamed_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(7, chunkSequence_);
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(8, lastChunk_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -5507,6 +5946,12 @@ public final class SdcFrame {
         }
         contents_ = com.google.protobuf.ByteString.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000010);
+        streamed_ = false;
+        bitField0_ = (bitField0_ & ~0x00000020);
+        chunkSequence_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000040);
+        lastChunk_ = false;
+        bitField0_ = (bitField0_ & ~0x00000080);
         return this;
       }
       
@@ -5570,6 +6015,18 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000008;
         }
         result.contents_ = contents_;
+        if (((from_bitField0_ & 0x00000020) == 0x00000020)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.streamed_ = streamed_;
+        if (((from_bitField0_ & 0x00000040) == 0x00000040)) {
+          to_bitField0_ |= 0x00000020;
+        }
+        result.chunkSequence_ = chunkSequence_;
+        if (((from_bitField0_ & 0x00000080) == 0x00000080)) {
+          to_bitField0_ |= 0x00000040;
+        }
+        result.lastChunk_ = lastChunk_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -5624,6 +6081,15 @@ public final class SdcFrame {
         if (other.hasContents()) {
           setContents(other.getContents());
         }
+        if (other.hasStreamed()) {
+          setStreamed(other.getStreamed());
+        }
+        if (other.hasChunkSequence()) {
+          setChunkSequence(other.getChunkSequence());
+        }
+        if (other.hasLastChunk()) {
+          setLastChunk(other.getLastChunk());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -5695,6 +6161,21 @@ public final class SdcFrame {
               contents_ = input.readBytes();
               break;
             }
+            case 48: {
+              bitField0_ |= 0x00000020;
+              streamed_ = input.readBool();
+              break;
+            }
+            case 56: {
+              bitField0_ |= 0x00000040;
+              chunkSequence_ = input.readInt32();
+              break;
+            }
+            case 64: {
+              bitField0_ |= 0x00000080;
+              lastChunk_ = input.readBool();
+              break;
+            }
           }
         }
       }
@@ -6019,6 +6500,69 @@ public final class SdcFrame {
         return this;
       }
       
+      // optional bool streamed = 6;
+      private boolean streamed_ ;
+      public boolean hasStreamed() {
+        return ((bitField0_ & 0x00000020) == 0x00000020);
+      }
+      public boolean getStreamed() {
+        return streamed_;
+      }
+      public Builder setStreamed(boolean value) {
+        bitField0_ |= 0x00000020;
+        streamed_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearStreamed() {
+        bitField0_ = (bitField0_ & ~0x00000020);
+        streamed_ = false;
+        onChanged();
+        return this;
+      }
+      
+      // optional int32 chunkSequence = 7;
+      private int chunkSequence_ ;
+      public boolean hasChunkSequence() {
+        return ((bitField0_ & 0x00000040) == 0x00000040);
+      }
+      public int getChunkSequence() {
+        return chunkSequence_;
+      }
+      public Builder setChunkSequence(int value) {
+        bitField0_ |= 0x00000040;
+        chunkSequence_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearChunkSequence() {
+        bitField0_ = (bitField0_ & ~0x00000040);
+        chunkSequence_ = 0;
+        onChanged();
+        return this;
+      }
+      
+      // optional bool lastChunk = 8;
+      private boolean lastChunk_ ;
+      public boolean hasLastChunk() {
+        return ((bitField0_ & 0x00000080) == 0x00000080);
+      }
+      public boolean getLastChunk() {
+        return lastChunk_;
+      }
+      public Builder setLastChunk(boolean value) {
+        bitField0_ |= 0x00000080;
+        lastChunk_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearLastChunk() {
+        bitField0_ = (bitField0_ & ~0x00000080);
+        lastChunk_ = false;
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.FetchRequest)
     }
     
@@ -6058,6 +6602,18 @@ public final class SdcFrame {
     // optional int64 latency = 5;
     boolean hasLatency();
     long getLatency();
+    
+    // optional bool streamed = 6;
+    boolean hasStreamed();
+    boolean getStreamed();
+    
+    // optional int32 chunkSequence = 7;
+    boolean hasChunkSequence();
+    int getChunkSequence();
+    
+    // optional bool lastChunk = 8;
+    boolean hasLastChunk();
+    boolean getLastChunk();
   }
   public static final class FetchReply extends
       com.google.protobuf.GeneratedMessage
@@ -6171,12 +6727,45 @@ public final class SdcFrame {
       return latency_;
     }
     
+    // optional bool streamed = 6;
+    public static final int STREAMED_FIELD_NUMBER = 6;
+    private boolean streamed_;
+    public boolean hasStreamed() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    public boolean getStreamed() {
+      return streamed_;
+    }
+    
+    // optional int32 chunkSequence = 7;
+    public static final int CHUNKSEQUENCE_FIELD_NUMBER = 7;
+    private int chunkSequence_;
+    public boolean hasChunkSequence() {
+      return ((bitField0_ & 0x00000020) == 0x00000020);
+    }
+    public int getChunkSequence() {
+      return chunkSequence_;
+    }
+    
+    // optional bool lastChunk = 8;
+    public static final int LASTCHUNK_FIELD_NUMBER = 8;
+    private boolean lastChunk_;
+    public boolean hasLastChunk() {
+      return ((bitField0_ & 0x00000040) == 0x00000040);
+    }
+    public boolean getLastChunk() {
+      return lastChunk_;
+    }
+    
     private void initFields() {
       id_ = "";
       status_ = 0;
       headers_ = java.util.Collections.emptyList();
       contents_ = com.google.protobuf.ByteString.EMPTY;
       latency_ = 0L;
+      streamed_ = false;
+      chunkSequence_ = 0;
+      lastChunk_ = false;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -6219,6 +6808,15 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000008) == 0x00000008)) {
         output.writeInt64(5, latency_);
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeBool(6, streamed_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        output.writeInt32(7, chunkSequence_);
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        output.writeBool(8, lastChunk_);
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -6248,6 +6846,18 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeInt64Size(5, latency_);
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(6, streamed_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(7, chunkSequence_);
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(8, lastChunk_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -6387,6 +6997,12 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000008);
         latency_ = 0L;
         bitField0_ = (bitField0_ & ~0x00000010);
+        streamed_ = false;
+        bitField0_ = (bitField0_ & ~0x00000020);
+        chunkSequence_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000040);
+        lastChunk_ = false;
+        bitField0_ = (bitField0_ & ~0x00000080);
         return this;
       }
       
@@ -6450,6 +7066,18 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000008;
         }
         result.latency_ = latency_;
+        if (((from_bitField0_ & 0x00000020) == 0x00000020)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.streamed_ = streamed_;
+        if (((from_bitField0_ & 0x00000040) == 0x00000040)) {
+          to_bitField0_ |= 0x00000020;
+        }
+        result.chunkSequence_ = chunkSequence_;
+        if (((from_bitField0_ & 0x00000080) == 0x00000080)) {
+          to_bitField0_ |= 0x00000040;
+        }
+        result.lastChunk_ = lastChunk_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -6504,6 +7132,15 @@ public final class SdcFrame {
         if (other.hasLatency()) {
           setLatency(other.getLatency());
         }
+        if (other.hasStreamed()) {
+          setStreamed(other.getStreamed());
+        }
+        if (other.hasChunkSequence()) {
+          setChunkSequence(other.getChunkSequence());
+        }
+        if (other.hasLastChunk()) {
+          setLastChunk(other.getLastChunk());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -6575,6 +7212,21 @@ public final class SdcFrame {
               latency_ = input.readInt64();
               break;
             }
+            case 48: {
+              bitField0_ |= 0x00000020;
+              streamed_ = input.readBool();
+              break;
+            }
+            case 56: {
+              bitField0_ |= 0x00000040;
+              chunkSequence_ = input.readInt32();
+              break;
+            }
+            case 64: {
+              bitField0_ |= 0x00000080;
+              lastChunk_ = input.readBool();
+              break;
+            }
           }
         }
       }
@@ -6869,6 +7521,69 @@ public final class SdcFrame {
         return this;
       }
       
+      // optional bool streamed = 6;
+      private boolean streamed_ ;
+      public boolean hasStreamed() {
+        return ((bitField0_ & 0x00000020) == 0x00000020);
+      }
+      public boolean getStreamed() {
+        return streamed_;
+      }
+      public Builder setStreamed(boolean value) {
+        bitField0_ |= 0x00000020;
+        streamed_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearStreamed() {
+        bitField0_ = (bitField0_ & ~0x00000020);
+        streamed_ = false;
+        onChanged();
+        return this;
+      }
+      
+      // optional int32 chunkSequence = 7;
+      private int chunkSequence_ ;
+      public boolean hasChunkSequence() {
+        return ((bitField0_ & 0x00000040) == 0x00000040);
+      }
+      public int getChunkSequence() {
+        return chunkSequence_;
+      }
+      public Builder setChunkSequence(int value) {
+        bitField0_ |= 0x00000040;
+        chunkSequence_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearChunkSequence() {
+        bitField0_ = (bitField0_ & ~0x00000040);
+        chunkSequence_ = 0;
+        onChanged();
+        return this;
+      }
+      
+      // optional bool lastChunk = 8;
+      private boolean lastChunk_ ;
+      public boolean hasLastChunk() {
+        return ((bitField0_ & 0x00000080) == 0x00000080);
+      }
+      public boolean getLastChunk() {
+        return lastChunk_;
+      }
+      public Builder setLastChunk(boolean value) {
+        bitField0_ |= 0x00000080;
+        lastChunk_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearLastChunk() {
+        bitField0_ = (bitField0_ & ~0x00000080);
+        lastChunk_ = false;
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.FetchReply)
     }
     
@@ -8895,6 +9610,10 @@ public final class SdcFrame {
     // optional bool close = 4;
     boolean hasClose();
     boolean getClose();
+    
+    // optional int64 windowUpdate = 5;
+    boolean hasWindowUpdate();
+    long getWindowUpdate();
   }
   public static final class SocketSessionData extends
       com.google.protobuf.GeneratedMessage
@@ -8965,11 +9684,22 @@ public final class SdcFrame {
       return close_;
     }
     
+    // optional int64 windowUpdate = 5;
+    public static final int WINDOWUPDATE_FIELD_NUMBER = 5;
+    private long windowUpdate_;
+    public boolean hasWindowUpdate() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    public long getWindowUpdate() {
+      return windowUpdate_;
+    }
+    
     private void initFields() {
       socketHandle_ = com.google.protobuf.ByteString.EMPTY;
       data_ = com.google.protobuf.ByteString.EMPTY;
       streamOffset_ = 0L;
       close_ = false;
+      windowUpdate_ = 0L;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -8999,6 +9729,9 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000008) == 0x00000008)) {
         output.writeBool(4, close_);
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeInt64(5, windowUpdate_);
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -9024,6 +9757,10 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBoolSize(4, close_);
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(5, windowUpdate_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -9156,6 +9893,8 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000004);
         close_ = false;
         bitField0_ = (bitField0_ & ~0x00000008);
+        windowUpdate_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000010);
         return this;
       }
       
@@ -9210,6 +9949,10 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000008;
         }
         result.close_ = close_;
+        if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.windowUpdate_ = windowUpdate_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -9238,6 +9981,9 @@ public final class SdcFrame {
         if (other.hasClose()) {
           setClose(other.getClose());
         }
+        if (other.hasWindowUpdate()) {
+          setWindowUpdate(other.getWindowUpdate());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -9293,6 +10039,11 @@ public final class SdcFrame {
               close_ = input.readBool();
               break;
             }
+            case 40: {
+              bitField0_ |= 0x00000010;
+              windowUpdate_ = input.readInt64();
+              break;
+            }
           }
         }
       }
@@ -9389,6 +10140,27 @@ public final class SdcFrame {
         return this;
       }
       
+      // optional int64 windowUpdate = 5;
+      private long windowUpdate_ ;
+      public boolean hasWindowUpdate() {
+        return ((bitField0_ & 0x00000010) == 0x00000010);
+      }
+      public long getWindowUpdate() {
+        return windowUpdate_;
+      }
+      public Builder setWindowUpdate(long value) {
+        bitField0_ |= 0x00000010;
+        windowUpdate_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearWindowUpdate() {
+        bitField0_ = (bitField0_ & ~0x00000010);
+        windowUpdate_ = 0L;
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.SocketSessionData)
     }
     
@@ -9433,6 +10205,15 @@ public final class SdcFrame {
     // required string resourcesXml = 6;
     boolean hasResourcesXml();
     String getResourcesXml();
+    
+    // optional int32 flowControlWindow = 7;
+    boolean hasFlowControlWindow();
+    int getFlowControlWindow();
+    
+    // repeated string keyAlgo = 8;
+    java.util.List<String> getKeyAlgoList();
+    int getKeyAlgoCount();
+    String getKeyAlgo(int index);
   }
   public static final class RegistrationRequestV4 extends
       com.google.protobuf.GeneratedMessage
@@ -9582,6 +10363,30 @@ public final class SdcFrame {
       }
     }
     
+    // optional int32 flowControlWindow = 7;
+    public static final int FLOWCONTROLWINDOW_FIELD_NUMBER = 7;
+    private int flowControlWindow_;
+    public boolean hasFlowControlWindow() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    public int getFlowControlWindow() {
+      return flowControlWindow_;
+    }
+    
+    // repeated string keyAlgo = 8;
+    public static final int KEYALGO_FIELD_NUMBER = 8;
+    private com.google.protobuf.LazyStringList keyAlgo_;
+    public java.util.List<String>
+        getKeyAlgoList() {
+      return keyAlgo_;
+    }
+    public int getKeyAlgoCount() {
+      return keyAlgo_.size();
+    }
+    public String getKeyAlgo(int index) {
+      return keyAlgo_.get(index);
+    }
+    
     private void initFields() {
       agentId_ = "";
       socksServerPort_ = 0;
@@ -9589,6 +10394,8 @@ public final class SdcFrame {
       healthCheckGadgetUser_ = com.google.protobuf.LazyStringArrayList.EMPTY;
       resourceKey_ = java.util.Collections.emptyList();
       resourcesXml_ = "";
+      flowControlWindow_ = 0;
+      keyAlgo_ = com.google.protobuf.LazyStringArrayList.EMPTY;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -9642,6 +10449,12 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000008) == 0x00000008)) {
         output.writeBytes(6, getResourcesXmlBytes());
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeInt32(7, flowControlWindow_);
+      }
+      for (int i = 0; i < keyAlgo_.size(); i++) {
+        output.writeBytes(8, keyAlgo_.getByteString(i));
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -9680,6 +10493,19 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(6, getResourcesXmlBytes());
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(7, flowControlWindow_);
+      }
+      {
+        int dataSize = 0;
+        for (int i = 0; i < keyAlgo_.size(); i++) {
+          dataSize += com.google.protobuf.CodedOutputStream
+            .computeBytesSizeNoTag(keyAlgo_.getByteString(i));
+        }
+        size += dataSize;
+        size += 1 * getKeyAlgoList().size();
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -9821,6 +10647,10 @@ public final class SdcFrame {
         }
         resourcesXml_ = "";
         bitField0_ = (bitField0_ & ~0x00000020);
+        flowControlWindow_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000040);
+        keyAlgo_ = com.google.protobuf.LazyStringArrayList.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00000080);
         return this;
       }
       
@@ -9890,6 +10720,16 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000008;
         }
         result.resourcesXml_ = resourcesXml_;
+        if (((from_bitField0_ & 0x00000040) == 0x00000040)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.flowControlWindow_ = flowControlWindow_;
+        if (((bitField0_ & 0x00000080) == 0x00000080)) {
+          keyAlgo_ = new com.google.protobuf.UnmodifiableLazyStringList(
+              keyAlgo_);
+          bitField0_ = (bitField0_ & ~0x00000080);
+        }
+        result.keyAlgo_ = keyAlgo_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -9954,6 +10794,19 @@ public final class SdcFrame {
         if (other.hasResourcesXml()) {
           setResourcesXml(other.getResourcesXml());
         }
+        if (other.hasFlowControlWindow()) {
+          setFlowControlWindow(other.getFlowControlWindow());
+        }
+        if (!other.keyAlgo_.isEmpty()) {
+          if (keyAlgo_.isEmpty()) {
+            keyAlgo_ = other.keyAlgo_;
+            bitField0_ = (bitField0_ & ~0x00000080);
+          } else {
+            ensureKeyAlgoIsMutable();
+            keyAlgo_.addAll(other.keyAlgo_);
+          }
+          onChanged();
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -10038,6 +10891,16 @@ public final class SdcFrame {
               resourcesXml_ = input.readBytes();
               break;
             }
+            case 56: {
+              bitField0_ |= 0x00000040;
+              flowControlWindow_ = input.readInt32();
+              break;
+            }
+            case 66: {
+              ensureKeyAlgoIsMutable();
+              keyAlgo_.add(input.readBytes());
+              break;
+            }
           }
         }
       }
@@ -10400,6 +11263,83 @@ public final class SdcFrame {
         onChanged();
       }
       
+      // optional int32 flowControlWindow = 7;
+      private int flowControlWindow_ ;
+      public boolean hasFlowControlWindow() {
+        return ((bitField0_ & 0x00000040) == 0x00000040);
+      }
+      public int getFlowControlWindow() {
+        return flowControlWindow_;
+      }
+      public Builder setFlowControlWindow(int value) {
+        bitField0_ |= 0x00000040;
+        flowControlWindow_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearFlowControlWindow() {
+        bitField0_ = (bitField0_ & ~0x00000040);
+        flowControlWindow_ = 0;
+        onChanged();
+        return this;
+      }
+      
+      // repeated string keyAlgo = 8;
+      private com.google.protobuf.LazyStringList keyAlgo_ = com.google.protobuf.LazyStringArrayList.EMPTY;
+      private void ensureKeyAlgoIsMutable() {
+        if (!((bitField0_ & 0x00000080) == 0x00000080)) {
+          keyAlgo_ = new com.google.protobuf.LazyStringArrayList(keyAlgo_);
+          bitField0_ |= 0x00000080;
+         }
+      }
+      public java.util.List<String>
+          getKeyAlgoList() {
+        return java.util.Collections.unmodifiableList(keyAlgo_);
+      }
+      public int getKeyAlgoCount() {
+        return keyAlgo_.size();
+      }
+      public String getKeyAlgo(int index) {
+        return keyAlgo_.get(index);
+      }
+      public Builder setKeyAlgo(
+          int index, String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  ensureKeyAlgoIsMutable();
+        keyAlgo_.set(index, value);
+        onChanged();
+        return this;
+      }
+      public Builder addKeyAlgo(String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  ensureKeyAlgoIsMutable();
+        keyAlgo_.add(value);
+        onChanged();
+        return this;
+      }
+      public Builder addAllKeyAlgo(
+          java.lang.Iterable<String> values) {
+        ensureKeyAlgoIsMutable();
+        super.addAll(values, keyAlgo_);
+        onChanged();
+        return this;
+      }
+      public Builder clearKeyAlgo() {
+        keyAlgo_ = com.google.protobuf.LazyStringArrayList.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00000080);
+        onChanged();
+        return this;
+      }
+      void addKeyAlgo(com.google.protobuf.ByteString value) {
+        ensureKeyAlgoIsMutable();
+        keyAlgo_.add(value);
+        onChanged();
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.RegistrationRequestV4)
     }
     
@@ -11160,75 +12100,85 @@ public final class SdcFrame {
   static {
     java.lang.String[] descriptorData = {
       "\n:src/java/com/google/dataconnector/prot" +
-      "ocol/sdc_frame.proto\022\tsdc_frame\"\366\001\n\tFram" +
+      "ocol/sdc_frame.proto\022\tsdc_frame\"\331\002\n\tFram" +
       "eInfo\022\020\n\010sequence\030\001 \001(\003\022\'\n\004type\030\002 \001(\0162\031." +
       "sdc_frame.FrameInfo.Type\022\017\n\007payload\030\003 \001(" +
-      "\014\022\021\n\tsessionId\030\004 \001(\t\"\211\001\n\004Type\022\017\n\013SOCKET_" +
-      "DATA\020\000\022\020\n\014REGISTRATION\020\001\022\020\n\014HEALTH_CHECK" +
-      "\020\002\022\021\n\rAUTHORIZATION\020\003\022\021\n\rFETCH_REQUEST\020\004" +
-      "\022\022\n\016SOCKET_SESSION\020\005\022\022\n\016SHUTDOWN_QUEUE\020\006" +
-      "\"\224\001\n\016SocketDataInfo\022\024\n\014connectionId\030\001 \002(" +
-      "\003\022.\n\005state\030\002 \002(\0162\037.sdc_frame.SocketDataI",
-      "nfo.State\022\017\n\007segment\030\003 \001(\014\"+\n\005State\022\t\n\005S" +
-      "TART\020\000\022\014\n\010CONTINUE\020\001\022\t\n\005CLOSE\020\002\"\300\002\n\021Auth" +
-      "orizationInfo\022\r\n\005email\030\001 \001(\t\0227\n\010authType" +
-      "\030\002 \001(\0162%.sdc_frame.AuthorizationInfo.Aut" +
-      "hType\022\020\n\010password\030\003 \001(\t\0227\n\006result\030\005 \001(\0162" +
-      "\'.sdc_frame.AuthorizationInfo.ResultCode" +
-      "\022\025\n\rstatusMessage\030\006 \001(\t\"g\n\nResultCode\022\006\n" +
-      "\002OK\020\001\022\021\n\rACCESS_DENIED\020\002\022,\n(ACCESS_DENIE" +
-      "D_CAPTCHA_REQUIRED_TO_UNLOCK\020\003\022\020\n\014SERVER" +
-      "_ERROR\020\004\"\030\n\010AuthType\022\014\n\010PASSWORD\020\001\"4\n\013Re",
-      "sourceKey\022\n\n\002ip\030\001 \002(\t\022\014\n\004port\030\002 \002(\005\022\013\n\003k" +
-      "ey\030\003 \002(\003\"\313\001\n\020RegistrationInfo\022\013\n\003xml\030\001 \001" +
-      "(\t\022\025\n\rstatusMessage\030\002 \001(\t\0226\n\006result\030\003 \001(" +
-      "\0162&.sdc_frame.RegistrationInfo.ResultCod" +
-      "e\0229\n\022serverSuppliedConf\030\004 \001(\0132\035.sdc_fram" +
-      "e.ServerSuppliedConf\" \n\nResultCode\022\006\n\002OK" +
-      "\020\001\022\n\n\006FAILED\020\002\"\211\001\n\022ServerSuppliedConf\022\032\n" +
-      "\022healthCheckTimeout\030\004 \001(\005\022!\n\031healthCheck" +
-      "WakeUpInterval\030\005 \001(\005\022\021\n\tsessionId\030\006 \001(\t\022" +
-      "\017\n\007keyAlgo\030\007 \001(\t\022\020\n\010keyBytes\030\010 \001(\014\"\313\001\n\017H",
-      "ealthCheckInfo\022\021\n\ttimeStamp\030\001 \001(\003\0221\n\006sou" +
-      "rce\030\002 \001(\0162!.sdc_frame.HealthCheckInfo.So" +
-      "urce\022-\n\004type\030\003 \001(\0162\037.sdc_frame.HealthChe" +
-      "ckInfo.Type\" \n\006Source\022\n\n\006CLIENT\020\001\022\n\n\006SER" +
-      "VER\020\002\"!\n\004Type\022\013\n\007REQUEST\020\001\022\014\n\010RESPONSE\020\002" +
-      "\"+\n\rMessageHeader\022\013\n\003key\030\001 \002(\t\022\r\n\005value\030" +
-      "\002 \002(\t\"{\n\014FetchRequest\022\n\n\002id\030\001 \002(\t\022\020\n\010res" +
-      "ource\030\002 \002(\t\022\020\n\010strategy\030\003 \001(\t\022)\n\007headers" +
-      "\030\004 \003(\0132\030.sdc_frame.MessageHeader\022\020\n\010cont" +
-      "ents\030\005 \001(\014\"v\n\nFetchReply\022\n\n\002id\030\001 \002(\t\022\016\n\006",
-      "status\030\002 \002(\005\022)\n\007headers\030\003 \003(\0132\030.sdc_fram" +
-      "e.MessageHeader\022\020\n\010contents\030\004 \001(\014\022\017\n\007lat" +
-      "ency\030\005 \001(\003\"\264\001\n\024SocketSessionRequest\022*\n\004v" +
-      "erb\030\001 \002(\0162\034.sdc_frame.SocketSessionVerb\022" +
-      "\024\n\014socketHandle\030\002 \002(\014\022\020\n\010hostname\030\003 \002(\t\022" +
-      "\014\n\004port\030\004 \001(\005\022)\n\007headers\030\005 \003(\0132\030.sdc_fra" +
-      "me.MessageHeader\022\017\n\007timeout\030\006 \001(\003\"\253\002\n\022So" +
-      "cketSessionReply\022*\n\004verb\030\001 \002(\0162\034.sdc_fra" +
-      "me.SocketSessionVerb\022\024\n\014socketHandle\030\002 \002" +
-      "(\014\0224\n\006status\030\003 \002(\0162$.sdc_frame.SocketSes",
-      "sionReply.Status\022\020\n\010hostname\030\004 \002(\t\022\014\n\004po" +
-      "rt\030\005 \001(\005\022)\n\007headers\030\006 \003(\0132\030.sdc_frame.Me" +
-      "ssageHeader\022\017\n\007latency\030\007 \001(\003\"A\n\006Status\022\006" +
-      "\n\002OK\020\001\022\t\n\005ERROR\020\002\022\020\n\014UNKNOWN_HOST\020\003\022\022\n\016C" +
-      "ANNOT_CONNECT\020\004\"\\\n\021SocketSessionData\022\024\n\014" +
-      "socketHandle\030\001 \002(\014\022\014\n\004data\030\002 \001(\014\022\024\n\014stre" +
-      "amOffset\030\003 \001(\003\022\r\n\005close\030\004 \001(\010\"\274\001\n\025Regist" +
-      "rationRequestV4\022\017\n\007agentId\030\001 \002(\t\022\027\n\017sock" +
-      "sServerPort\030\002 \002(\005\022\027\n\017healthCheckPort\030\003 \002" +
-      "(\005\022\035\n\025healthCheckGadgetUser\030\004 \003(\t\022+\n\013res",
-      "ourceKey\030\005 \003(\0132\026.sdc_frame.ResourceKey\022\024" +
-      "\n\014resourcesXml\030\006 \002(\t\"\347\001\n\026RegistrationRes" +
-      "ponseV4\022\025\n\rstatusMessage\030\001 \001(\t\022<\n\006result" +
-      "\030\002 \002(\0162,.sdc_frame.RegistrationResponseV" +
-      "4.ResultCode\0229\n\022serverSuppliedConf\030\003 \001(\013" +
-      "2\035.sdc_frame.ServerSuppliedConf\"=\n\nResul" +
-      "tCode\022\006\n\002OK\020\001\022\025\n\021ERRORS_IN_REQUEST\020\002\022\020\n\014" +
-      "SERVER_ERROR\020\003*7\n\021SocketSessionVerb\022\n\n\006C" +
-      "REATE\020\001\022\013\n\007CONNECT\020\002\022\t\n\005CLOSE\020\003B)\n\'com.g" +
-      "oogle.dataconnector.protocol.proto"
+      "\014\022\021\n\tsessionId\030\004 \001(\t\022;\n\013compression\030\005 \001(" +
+      "\0162 .sdc_frame.FrameInfo.Compression:\004NON" +
+      "E\"\211\001\n\004Type\022\017\n\013SOCKET_DATA\020\000\022\020\n\014REGISTRAT" +
+      "ION\020\001\022\020\n\014HEALTH_CHECK\020\002\022\021\n\rAUTHORIZATION" +
+      "\020\003\022\021\n\rFETCH_REQUEST\020\004\022\022\n\016SOCKET_SESSION\020" +
+      "\005\022\022\n\016SHUTDOWN_QUEUE\020\006\"$\n\013Compression\022\010\n\004",
+      "NONE\020\000\022\013\n\007DEFLATE\020\001\"\252\001\n\016SocketDataInfo\022\024" +
+      "\n\014connectionId\030\001 \002(\003\022.\n\005state\030\002 \002(\0162\037.sd" +
+      "c_frame.SocketDataInfo.State\022\017\n\007segment\030" +
+      "\003 \001(\014\022\024\n\014windowUpdate\030\004 \001(\003\"+\n\005State\022\t\n\005" +
+      "START\020\000\022\014\n\010CONTINUE\020\001\022\t\n\005CLOSE\020\002\"\367\002\n\021Aut" +
+      "horizationInfo\022\r\n\005email\030\001 \001(\t\0227\n\010authTyp" +
+      "e\030\002 \001(\0162%.sdc_frame.AuthorizationInfo.Au" +
+      "thType\022\020\n\010password\030\003 \001(\t\0227\n\006result\030\005 \001(\016" +
+      "2\'.sdc_frame.AuthorizationInfo.ResultCod" +
+      "e\022\025\n\rstatusMessage\030\006 \001(\t\0225\n\013compression\030",
+      "\007 \003(\0162 .sdc_frame.FrameInfo.Compression\"" +
+      "g\n\nResultCode\022\006\n\002OK\020\001\022\021\n\rACCESS_DENIED\020\002" +
+      "\022,\n(ACCESS_DENIED_CAPTCHA_REQUIRED_TO_UN" +
+      "LOCK\020\003\022\020\n\014SERVER_ERROR\020\004\"\030\n\010AuthType\022\014\n\010" +
+      "PASSWORD\020\001\"4\n\013ResourceKey\022\n\n\002ip\030\001 \002(\t\022\014\n" +
+      "\004port\030\002 \002(\005\022\013\n\003key\030\003 \002(\003\"\313\001\n\020Registratio" +
+      "nInfo\022\013\n\003xml\030\001 \001(\t\022\025\n\rstatusMessage\030\002 \001(" +
+      "\t\0226\n\006result\030\003 \001(\0162&.sdc_frame.Registrati" +
+      "onInfo.ResultCode\0229\n\022serverSuppliedConf\030" +
+      "\004 \001(\0132\035.sdc_frame.ServerSuppliedConf\" \n\n",
+      "ResultCode\022\006\n\002OK\020\001\022\n\n\006FAILED\020\002\"\244\001\n\022Serve" +
+      "rSuppliedConf\022\032\n\022healthCheckTimeout\030\004 \001(" +
+      "\005\022!\n\031healthCheckWakeUpInterval\030\005 \001(\005\022\021\n\t" +
+      "sessionId\030\006 \001(\t\022\017\n\007keyAlgo\030\007 \001(\t\022\020\n\010keyB" +
+      "ytes\030\010 \001(\014\022\031\n\021flowControlWindow\030\t \001(\005\"\313\001" +
+      "\n\017HealthCheckInfo\022\021\n\ttimeStamp\030\001 \001(\003\0221\n\006" +
+      "source\030\002 \001(\0162!.sdc_frame.HealthCheckInfo" +
+      ".Source\022-\n\004type\030\003 \001(\0162\037.sdc_frame.Health" +
+      "CheckInfo.Type\" \n\006Source\022\n\n\006CLIENT\020\001\022\n\n\006" +
+      "SERVER\020\002\"!\n\004Type\022\013\n\007REQUEST\020\001\022\014\n\010RESPONS",
+      "E\020\002\"+\n\rMessageHeader\022\013\n\003key\030\001 \002(\t\022\r\n\005val" +
+      "ue\030\002 \002(\t\"\267\001\n\014FetchRequest\022\n\n\002id\030\001 \002(\t\022\020\n" +
+      "\010resource\030\002 \002(\t\022\020\n\010strategy\030\003 \001(\t\022)\n\007hea" +
+      "ders\030\004 \003(\0132\030.sdc_frame.MessageHeader\022\020\n\010" +
+      "contents\030\005 \001(\014\022\020\n\010streamed\030\006 \001(\010\022\025\n\rchun" +
+      "kSequence\030\007 \001(\005\022\021\n\tlastChunk\030\010 \001(\010\"\262\001\n\nF" +
+      "etchReply\022\n\n\002id\030\001 \002(\t\022\016\n\006status\030\002 \002(\005\022)\n" +
+      "\007headers\030\003 \003(\0132\030.sdc_frame.MessageHeader" +
+      "\022\020\n\010contents\030\004 \001(\014\022\017\n\007latency\030\005 \001(\003\022\020\n\010s" +
+      "treamed\030\006 \001(\010\022\025\n\rchunkSequence\030\007 \001(\005\022\021\n\t",
+      "lastChunk\030\010 \001(\010\"\264\001\n\024SocketSessionRequest" +
+      "\022*\n\004verb\030\001 \002(\0162\034.sdc_frame.SocketSession" +
+      "Verb\022\024\n\014socketHandle\030\002 \002(\014\022\020\n\010hostname\030\003" +
+      " \002(\t\022\014\n\004port\030\004 \001(\005\022)\n\007headers\030\005 \003(\0132\030.sd" +
+      "c_frame.MessageHeader\022\017\n\007timeout\030\006 \001(\003\"\253" +
+      "\002\n\022SocketSessionReply\022*\n\004verb\030\001 \002(\0162\034.sd" +
+      "c_frame.SocketSessionVerb\022\024\n\014socketHandl" +
+      "e\030\002 \002(\014\0224\n\006status\030\003 \002(\0162$.sdc_frame.Sock" +
+      "etSessionReply.Status\022\020\n\010hostname\030\004 \002(\t\022" +
+      "\014\n\004port\030\005 \001(\005\022)\n\007headers\030\006 \003(\0132\030.sdc_fra",
+      "me.MessageHeader\022\017\n\007latency\030\007 \001(\003\"A\n\006Sta" +
+      "tus\022\006\n\002OK\020\001\022\t\n\005ERROR\020\002\022\020\n\014UNKNOWN_HOST\020\003" +
+      "\022\022\n\016CANNOT_CONNECT\020\004\"r\n\021SocketSessionDat" +
+      "a\022\024\n\014socketHandle\030\001 \002(\014\022\014\n\004data\030\002 \001(\014\022\024\n" +
+      "\014streamOffset\030\003 \001(\003\022\r\n\005close\030\004 \001(\010\022\024\n\014wi" +
+      "ndowUpdate\030\005 \001(\003\"\350\001\n\025RegistrationRequest" +
+      "V4\022\017\n\007agentId\030\001 \002(\t\022\027\n\017socksServerPort\030\002" +
+      " \002(\005\022\027\n\017healthCheckPort\030\003 \002(\005\022\035\n\025healthC" +
+      "heckGadgetUser\030\004 \003(\t\022+\n\013resourceKey\030\005 \003(" +
+      "\0132\026.sdc_frame.ResourceKey\022\024\n\014resourcesXm",
+      "l\030\006 \002(\t\022\031\n\021flowControlWindow\030\007 \001(\005\022\017\n\007ke" +
+      "yAlgo\030\010 \003(\t\"\347\001\n\026RegistrationResponseV4\022\025" +
+      "\n\rstatusMessage\030\001 \001(\t\022<\n\006result\030\002 \002(\0162,." +
+      "sdc_frame.RegistrationResponseV4.ResultC" +
+      "ode\0229\n\022serverSuppliedConf\030\003 \001(\0132\035.sdc_fr" +
+      "ame.ServerSuppliedConf\"=\n\nResultCode\022\006\n\002" +
+      "OK\020\001\022\025\n\021ERRORS_IN_REQUEST\020\002\022\020\n\014SERVER_ER" +
+      "ROR\020\003*7\n\021SocketSessionVerb\022\n\n\006CREATE\020\001\022\013" +
+      "\n\007CONNECT\020\002\022\t\n\005CLOSE\020\003B)\n\'com.google.dat" +
+      "aconnector.protocol.proto"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
       new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
@@ -11240,7 +12190,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_FrameInfo_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_FrameInfo_descriptor,
-              new java.lang.String[] { "Sequence", "Type", "Payload", "SessionId", },
+              new java.lang.String[] { "Sequence", "Type", "Payload", "SessionId", "Compression", },
               com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.class,
               com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Builder.class);
           internal_static_sdc_frame_SocketDataInfo_descriptor =
@@ -11248,7 +12198,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_SocketDataInfo_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_SocketDataInfo_descriptor,
-              new java.lang.String[] { "ConnectionId", "State", "Segment", },
+              new java.lang.String[] { "ConnectionId", "State", "Segment", "WindowUpdate", },
               com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo.class,
               com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo.Builder.class);
           internal_static_sdc_frame_AuthorizationInfo_descriptor =
@@ -11256,7 +12206,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_AuthorizationInfo_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_AuthorizationInfo_descriptor,
-              new java.lang.String[] { "Email", "AuthType", "Password", "Result", "StatusMessage", },
+              new java.lang.String[] { "Email", "AuthType", "Password", "Result", "StatusMessage", "Compression", },
               com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo.class,
               com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo.Builder.class);
           internal_static_sdc_frame_ResourceKey_descriptor =
@@ -11280,7 +12230,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_ServerSuppliedConf_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_ServerSuppliedConf_descriptor,
-              new java.lang.String[] { "HealthCheckTimeout", "HealthCheckWakeUpInterval", "SessionId", "KeyAlgo", "KeyBytes", },
+              new java.lang.String[] { "HealthCheckTimeout", "HealthCheckWakeUpInterval", "SessionId", "KeyAlgo", "KeyBytes", "FlowControlWindow", },
               com.google.dataconnector.protocol.proto.SdcFrame.ServerSuppliedConf.class,
               com.google.dataconnector.protocol.proto.SdcFrame.ServerSuppliedConf.Builder.class);
           internal_static_sdc_frame_HealthCheckInfo_descriptor =
@@ -11304,7 +12254,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_FetchRequest_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_FetchRequest_descriptor,
-              new java.lang.String[] { "Id", "Resource", "Strategy", "Headers", "Contents", },
+              new java.lang.String[] { "Id", "Resource", "Strategy", "Headers", "Contents", "Streamed", "ChunkSequence", "LastChunk", },
               com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest.class,
               com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest.Builder.class);
           internal_static_sdc_frame_FetchReply_descriptor =
@@ -11312,7 +12262,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_FetchReply_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_FetchReply_descriptor,
-              new java.lang.String[] { "Id", "Status", "Headers", "Contents", "Latency", },
+              new java.lang.String[] { "Id", "Status", "Headers", "Contents", "Latency", "Streamed", "ChunkSequence", "LastChunk", },
               com.google.dataconnector.protocol.proto.SdcFrame.FetchReply.class,
               com.google.dataconnector.protocol.proto.SdcFrame.FetchReply.Builder.class);
           internal_static_sdc_frame_SocketSessionRequest_descriptor =
@@ -11336,7 +12286,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_SocketSessionData_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_SocketSessionData_descriptor,
-              new java.lang.String[] { "SocketHandle", "Data", "StreamOffset", "Close", },
+              new java.lang.String[] { "SocketHandle", "Data", "StreamOffset", "Close", "WindowUpdate", },
               com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData.class,
               com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData.Builder.class);
           internal_static_sdc_frame_RegistrationRequestV4_descriptor =
@@ -11344,7 +12294,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_RegistrationRequestV4_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_RegistrationRequestV4_descriptor,
-              new java.lang.String[] { "AgentId", "SocksServerPort", "HealthCheckPort", "HealthCheckGadgetUser", "ResourceKey", "ResourcesXml", },
+              new java.lang.String[] { "AgentId", "SocksServerPort", "HealthCheckPort", "HealthCheckGadgetUser", "ResourceKey", "ResourcesXml", "FlowControlWindow", "KeyAlgo", },
               com.google.dataconnector.protocol.proto.SdcFrame.RegistrationRequestV4.class,
               com.google.dataconnector.protocol.proto.SdcFrame.RegistrationRequestV4.Builder.class);
           internal_static_sdc_frame_RegistrationResponseV4_descriptor =
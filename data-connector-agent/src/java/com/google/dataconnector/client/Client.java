@@ -17,7 +17,6 @@
 package com.google.dataconnector.client;
 
 import com.google.dataconnector.util.ClientGuiceModule;
-import com.google.dataconnector.util.ConnectionException;
 import com.google.dataconnector.util.FileUtil;
 import com.google.dataconnector.util.LocalConf;
 import com.google.dataconnector.util.LocalConfException;
@@ -28,6 +27,7 @@ import com.google.feedserver.util.ConfigurationBeanException;
 import com.google.gdata.util.common.util.Base64;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.Provider;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -41,7 +41,8 @@ import java.util.Properties;
  * Secure Data Connector:
  *
  * 1) The "secure data connection" to the server which provides the transport from the server
- * side back to the client.  see {@link SdcConnection}
+ * side back to the client.  see {@link SdcConnection}.  More than one may be kept open, see
+ * {@link TunnelStripe}.
  * 2) The Socks 5 proxy which provides the network firewall to incoming network connections through
  * the secure data transport. see {@link JsocksStarter}
  * 3) The HTTP(S) proxy which provides the http firewall filtering for incoming http requests.
@@ -54,11 +55,12 @@ public class Client {
   private static final Logger LOG = Logger.getLogger(Client.class);
 
   // Constants
+  private static final long INITIAL_BACKOFF_TIME = 250; // milliseconds
   private static final long MAX_BACKOFF_TIME = 5 * 60 * 1000; // 5 minutes
 
   /* Dependencies */
   private final LocalConf localConf;
-  private final SdcConnection secureDataConnection;
+  private final Provider<SdcConnection> connectionProvider;
   private final JsocksStarter jsocksStarter;
   private final ShutdownManager shutdownManager;
 
@@ -70,11 +72,10 @@ public class Client {
    * Creates a new client from the populated client configuration object.
    */
   @Inject
-  public Client(final LocalConf localConf, final SdcConnection secureDataConnection,
-      final JsocksStarter jsocksStarter,
-      final ShutdownManager shutdownManager) {
+  public Client(final LocalConf localConf, final Provider<SdcConnection> connectionProvider,
+      final JsocksStarter jsocksStarter, final ShutdownManager shutdownManager) {
     this.localConf = localConf;
-    this.secureDataConnection = secureDataConnection;
+    this.connectionProvider = connectionProvider;
     this.jsocksStarter = jsocksStarter;
     this.shutdownManager = shutdownManager; 
   }
@@ -108,6 +109,7 @@ public class Client {
     }
 
     // Connect
+    boolean connected = false;
     try {
       // If the password file is specified, then read its contents and override
       // the password property with the contents read.  At this point the file
@@ -118,21 +120,24 @@ public class Client {
       }
       // start jsocks thread
       jsocksStarter.startJsocksProxy();
-      // start main processing thread - to initiate connection/registration with the SDC server
-      secureDataConnection.connect();
+      // open any further tunnel connections; these come and go on their own.
+      for (int i = 1; i < localConf.getTunnelConnections(); i++) {
+        new TunnelStripe(i, connectionProvider, shutdownManager).start();
+      }
+      // keep the first connection/registration with the SDC server on this thread.  Losing it
+      // releases only what it carried; everything else is stopped once the agent stops.
+      connected = new TunnelStripe(0, connectionProvider, shutdownManager)
+          .keepConnected(localConf.getStartOnce());
     } catch (IOException e ) {
       LOG.fatal("Cannot read password file.", e);
-    } catch (ConnectionException e) {
-      LOG.fatal("Connection failed.", e);
     } finally {
       shutdownManager.shutdownAll();
     }
 
     // Check whether connection was successful or not.
-    if (secureDataConnection.hasConnectedSuccessfully()) {
+    if (connected) {
       unsuccessfulAttempts = 0;
     } else if (localConf.getStartOnce()) {
-      LOG.info("Configured only to start once. Quitting!");
       unsuccessfulAttempts = -1; // Sentinel value meaning we should quit.
     } else { // Failed connection
       unsuccessfulAttempts++;
@@ -151,10 +156,13 @@ public class Client {
 
     final Injector injector = ClientGuiceModule.getInjector();
     final ShutdownManager shutdownManager = injector.getInstance(ShutdownManager.class);
-    // Add shutdown hook to call shutdown if control c or OS SIGTERM is received.
+    final ConnectionDrainer connectionDrainer = injector.getInstance(ConnectionDrainer.class);
+    // Add shutdown hook to call shutdown if control c or OS SIGTERM is received.  What is in
+    // flight on the tunnel connections gets the drain time to finish first.
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
+        connectionDrainer.drainAndClose();
         shutdownManager.shutdownAll();
       }
     });
@@ -164,8 +172,7 @@ public class Client {
       try {
         // Only try to back-off if we have unsuccessful connections.
         if (unsuccessfulAttempts > 0) {
-          long backOffTime = (long) Math.min(
-              MAX_BACKOFF_TIME, Math.pow(2, unsuccessfulAttempts) * 1000L);
+          long backOffTime = getBackOffTime(unsuccessfulAttempts);
           try {
             // Sleep for the amount of time needed.
             Thread.sleep(backOffTime);
@@ -187,6 +194,18 @@ public class Client {
     }
   }
 
+  /**
+   * Returns how long to wait before connecting again, doubling with each unsuccessful attempt.
+   * A connection that was up reconnects at once, and the first retry after that waits only
+   * briefly, so a network blip costs little more than the blip itself.
+   *
+   * @param attempts the number of unsuccessful attempts so far.
+   * @return the wait in milliseconds.
+   */
+  static long getBackOffTime(final long attempts) {
+    return (long) Math.min(MAX_BACKOFF_TIME, Math.pow(2, attempts - 1) * INITIAL_BACKOFF_TIME);
+  }
+
   /**
    * Returns a base set of logging properties so we can log fatal errors before config parsing is
    * done.
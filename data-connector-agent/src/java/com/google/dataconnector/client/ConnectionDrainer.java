@@ -0,0 +1,85 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.LocalConf;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of the agent's open tunnel connections so that when the agent stops, such as in a
+ * rolling restart, the requests and socket sessions in flight on them get up to the drain time
+ * to finish before the connections are closed.
+ */
+@Singleton
+public class ConnectionDrainer {
+
+  private static final Logger LOG = Logger.getLogger(ConnectionDrainer.class);
+
+  // Injected dependencies
+  private final LocalConf localConf;
+  private final ClockUtil clock;
+
+  // Local fields
+  private final List<SdcConnection> connections = new CopyOnWriteArrayList<SdcConnection>();
+
+  @Inject
+  public ConnectionDrainer(final LocalConf localConf, final ClockUtil clock) {
+    this.localConf = localConf;
+    this.clock = clock;
+  }
+
+  /**
+   * @param connection a connection that is now dispatching.
+   */
+  void add(final SdcConnection connection) {
+    connections.add(connection);
+  }
+
+  /**
+   * @param connection a connection that is closed.
+   */
+  void remove(final SdcConnection connection) {
+    connections.remove(connection);
+  }
+
+  /**
+   * Waits for what is in flight on every connection to finish, all within one drain time, and
+   * then closes them.  Logs how long each phase took.
+   */
+  public void drainAndClose() {
+    final long start = clock.currentTimeMillis();
+    final long deadline = start + localConf.getDrainSeconds() * 1000L;
+    boolean idle = true;
+    for (final SdcConnection connection : connections) {
+      idle &= connection.drain(deadline);
+    }
+    final long drained = clock.currentTimeMillis();
+    for (final SdcConnection connection : connections) {
+      connection.shutdown();
+    }
+    LOG.info(String.format("Stopped %d tunnel connections: drain %dms%s, close %dms.",
+        connections.size(), drained - start, idle ? "" : " (deadline passed)",
+        clock.currentTimeMillis() - drained));
+  }
+}
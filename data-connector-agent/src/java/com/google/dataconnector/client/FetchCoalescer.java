@@ -0,0 +1,126 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.client.fetchrequest.HttpFetchStrategy;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets identical GET requests arriving while one of them is being fetched share its reply, so a
+ * popular gadget loading for many viewers at once sends the server one request instead of
+ * dozens.  Requests are identical if they have the same strategy, resource and headers, in the
+ * same order, so replies are only shared between requests carrying the same credentials.
+ * <p>
+ * The first request, the leader, is fetched as usual.  Later ones {@link #join} it and are
+ * handed back by {@link #finish} once the leader's reply is ready, to be sent a copy with their
+ * own id.
+ */
+public class FetchCoalescer {
+
+  // Local fields
+  private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+  /**
+   * @param request the request.
+   * @return the key identical requests share, or null if the request may not share a fetch,
+   *     such as one with a body or a method other than GET or HEAD.
+   */
+  public String getKey(final FetchRequest request) {
+    final String method = HttpFetchStrategy.getMethodName(request);
+    if ((method != null && !"GET".equals(method) && !"HEAD".equals(method)) ||
+        request.getStreamed() || request.hasContents()) {
+      return null;
+    }
+    final StringBuilder key = new StringBuilder();
+    key.append(request.getStrategy()).append('\n').append(request.getResource());
+    for (final MessageHeader h : request.getHeadersList()) {
+      key.append('\n').append(h.getKey()).append(':').append(h.getValue());
+    }
+    return key.toString();
+  }
+
+  /**
+   * Joins the fetch in flight for the key, or starts one.
+   *
+   * @param key the request's key.
+   * @param request the request.
+   * @return true if the request joined a fetch in flight, false if it leads a new one and must
+   *     be fetched.
+   */
+  public boolean join(final String key, final FetchRequest request) {
+    final Flight flight = new Flight();
+    while (true) {
+      final Flight existing = flights.putIfAbsent(key, flight);
+      if (existing == null) {
+        return false;
+      }
+      if (existing.join(request)) {
+        return true;
+      }
+      // Finished while we looked at it.
+      flights.remove(key, existing);
+    }
+  }
+
+  /**
+   * Ends the fetch in flight for the key.  Requests for the key from now on start a new one.
+   *
+   * @param key the leader's key.
+   * @return the requests that joined the fetch.
+   */
+  public List<FetchRequest> finish(final String key) {
+    final Flight flight = flights.remove(key);
+    if (flight == null) {
+      return Collections.emptyList();
+    }
+    return flight.finish();
+  }
+
+  /**
+   * @return the number of fetches in flight.
+   */
+  int size() {
+    return flights.size();
+  }
+
+  /**
+   * The requests waiting for one fetch.
+   */
+  private static class Flight {
+    private final List<FetchRequest> followers = new ArrayList<FetchRequest>();
+    private boolean finished = false;
+
+    synchronized boolean join(final FetchRequest request) {
+      if (finished) {
+        return false;
+      }
+      followers.add(request);
+      return true;
+    }
+
+    synchronized List<FetchRequest> finish() {
+      finished = true;
+      return followers;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.common.base.Preconditions;
+import com.google.dataconnector.client.FetchRequestHandler.StatusCode;
+import com.google.dataconnector.protocol.FlowControlWindow;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Sends a fetch reply body to the cloud as it is written instead of buffering all of it.  The
+ * first write sends the status and headers the strategy has filled in so far, marked as
+ * streamed.  Body bytes follow in sequenced chunk replies of at most {@link #CHUNK_SIZE} bytes,
+ * each encrypted and framed on its own, so bodies are not limited by the maximum frame size.
+ * {@link #finish(FetchReply.Builder)} sends the last chunk.
+ * <p>
+ * Memory per request is bounded by a {@link FlowControlWindow} of {@link #WINDOW} body bytes.
+ * Each chunk takes credit before it is queued and returns it once the frame sender has taken the
+ * chunk off the send queue, so a resource faster than the tunnel blocks its writer rather than
+ * filling the shared queue.
+ */
+public class FetchReplyStream extends OutputStream {
+
+  static final int CHUNK_SIZE = 64 * 1024;
+  static final int WINDOW = 4 * CHUNK_SIZE;
+
+  // Runtime dependencies
+  private final FetchRequestHandler fetchRequestHandler;
+  private final FetchReply.Builder replyBuilder;
+
+  // Local fields
+  private final byte[] chunk;
+  private final FlowControlWindow window;
+  private int count = 0;
+  private int chunkSequence = 0;
+  private boolean started = false;
+  private boolean finished = false;
+
+  /**
+   * @param fetchRequestHandler sends the encrypted replies.
+   * @param replyBuilder the reply the strategy fills in the status and headers of.
+   */
+  FetchReplyStream(final FetchRequestHandler fetchRequestHandler,
+      final FetchReply.Builder replyBuilder) {
+    this(fetchRequestHandler, replyBuilder, CHUNK_SIZE, WINDOW);
+  }
+
+  FetchReplyStream(final FetchRequestHandler fetchRequestHandler,
+      final FetchReply.Builder replyBuilder, final int chunkSize, final int window) {
+    Preconditions.checkArgument(chunkSize > 0);
+    Preconditions.checkArgument(window >= chunkSize, "window must hold a chunk");
+    this.fetchRequestHandler = fetchRequestHandler;
+    this.replyBuilder = replyBuilder;
+    this.chunk = new byte[chunkSize];
+    this.window = new FlowControlWindow(window);
+  }
+
+  /**
+   * @return true once the streamed reply header has been sent.
+   */
+  public boolean isStarted() {
+    return started;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(final byte[] b, int off, int len) throws IOException {
+    if (finished) {
+      throw new IOException("Reply already finished");
+    }
+    start();
+    while (len > 0) {
+      final int n = Math.min(len, chunk.length - count);
+      System.arraycopy(b, off, chunk, count, n);
+      count += n;
+      off += n;
+      len -= n;
+      if (count == chunk.length) {
+        sendChunk(newChunk());
+      }
+    }
+  }
+
+  /**
+   * Sends whatever is buffered as a chunk right away rather than waiting for a full one.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (started && !finished && count > 0) {
+      sendChunk(newChunk());
+    }
+  }
+
+  /**
+   * Sends the last chunk with any buffered bytes.  Fields set in the trailer, such as the latency,
+   * go out with it; a status other than the one in the header tells the cloud the body was cut
+   * short.  Nothing further can be written.  The last chunk does not wait for credit, so it can
+   * always end the body; it adds at most one chunk to the window.
+   *
+   * @param trailer the fields for the last chunk.
+   * @return the last chunk sent.
+   */
+  public FetchReply finish(final FetchReply.Builder trailer) {
+    Preconditions.checkState(!finished);
+    start();
+    final FetchReply.Builder lastChunk = newChunk().mergeFrom(trailer.buildPartial())
+        .setLastChunk(true);
+    finished = true;
+    final FetchReply reply = lastChunk.build();
+    fetchRequestHandler.sendReply(reply);
+    return reply;
+  }
+
+  /**
+   * Sends the reply header on first use.
+   */
+  private void start() {
+    if (started) {
+      return;
+    }
+    started = true;
+    if (!replyBuilder.hasStatus()) {
+      replyBuilder.setStatus(StatusCode.OK.getValue());
+    }
+    fetchRequestHandler.sendReply(replyBuilder.clone()
+        .clearContents()
+        .setStreamed(true)
+        .build());
+  }
+
+  private FetchReply.Builder newChunk() {
+    final FetchReply.Builder builder = FetchReply.newBuilder()
+        .setId(replyBuilder.getId())
+        .setStatus(replyBuilder.getStatus())
+        .setChunkSequence(chunkSequence++);
+    if (count > 0) {
+      builder.setContents(ByteString.copyFrom(chunk, 0, count));
+      count = 0;
+    }
+    return builder;
+  }
+
+  /**
+   * Sends a body chunk once the window has credit for it.  The credit comes back when the frame
+   * sender takes the chunk off the send queue.
+   */
+  private void sendChunk(final FetchReply.Builder builder) throws IOException {
+    final FetchReply reply = builder.build();
+    final int size = reply.getContents().size();
+    int acquired = 0;
+    try {
+      while (acquired < size) {
+        final int credit = window.acquire(size - acquired);
+        if (credit == 0) {
+          throw new IOException("Reply window closed");
+        }
+        acquired += credit;
+      }
+    } catch (InterruptedException e) {
+      window.giveBack(acquired);
+      throw new InterruptedIOException("Interrupted waiting to send reply chunk");
+    }
+    fetchRequestHandler.sendReply(reply, new Runnable() {
+      @Override
+      public void run() {
+        window.grant(size);
+      }
+    });
+  }
+
+  /**
+   * Copies the input to the output, flushing whenever the input has nothing more ready so that
+   * a slow resource still reaches the cloud as it arrives.
+   *
+   * @param in the resource body.
+   * @param out where to copy it.
+   * @return the number of bytes copied.
+   * @throws IOException if reading or writing fails.
+   */
+  public static long copy(final InputStream in, final OutputStream out) throws IOException {
+    final byte[] buffer = new byte[8192];
+    long total = 0;
+    int bytesRead;
+    while ((bytesRead = in.read(buffer)) != -1) {
+      out.write(buffer, 0, bytesRead);
+      total += bytesRead;
+      if (in.available() == 0) {
+        out.flush();
+      }
+    }
+    return total;
+  }
+}
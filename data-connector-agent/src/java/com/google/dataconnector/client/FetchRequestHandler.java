@@ -17,15 +17,22 @@
 package com.google.dataconnector.client;
 
 import java.io.CharArrayWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Iterator;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.log4j.Logger;
 
 import com.google.common.base.Preconditions;
+import com.google.dataconnector.client.fetchrequest.AsyncHttpStrategy;
+import com.google.dataconnector.client.fetchrequest.FetchResponseCache;
 import com.google.dataconnector.client.fetchrequest.HttpFetchStrategy;
 import com.google.dataconnector.client.fetchrequest.URLConnectionStrategy;
 import com.google.dataconnector.protocol.Dispatchable;
@@ -57,6 +64,15 @@ public class FetchRequestHandler implements Dispatchable {
   public static final String DEBUG_HEADER = 
     "x-sdc-agent-request-report-exception-stacktrace";
 
+  /**
+   * Special header in the FetchRequest asking for the reply body to be streamed in chunks as it
+   * arrives.  See {@link FetchReplyStream}.
+   */
+  public static final String STREAM_REPLY_HEADER = "x-sdc-agent-stream-reply";
+
+  // How often abandoned uploads are looked for as parts arrive.
+  static final long UPLOAD_SWEEP_INTERVAL_MILLIS = 1000;
+
   /**
    * Status code from processing the agent request.
    */
@@ -71,6 +87,10 @@ public class FetchRequestHandler implements Dispatchable {
     private StatusCode(int c) {
       value = c;
     }
+
+    public int getValue() {
+      return value;
+    }
   }
 
   /**
@@ -89,6 +109,69 @@ public class FetchRequestHandler implements Dispatchable {
     throws StrategyException;
   }
 
+  /**
+   * A strategy that can also write the reply body out as it arrives.
+   */
+  public interface StreamingStrategy extends Strategy {
+
+    /**
+     * Given the request, fill in the status and headers of the reply provided and then write
+     * the body to the stream.  The reply is sent as soon as the body is first written, so later
+     * changes to it are lost.
+     *
+     * @param request The request.
+     * @param replyBuilder The reply to fill in.
+     * @param body Where to write the reply body.
+     * @throws StrategyException Any exception during processing.
+     */
+    public void process(FetchRequest request, FetchReply.Builder replyBuilder, OutputStream body)
+    throws StrategyException;
+  }
+
+  /**
+   * A strategy that can send an upload spread over several requests as the request body.
+   */
+  public interface UploadStrategy extends Strategy {
+
+    /**
+     * Called before processing with the upload to send instead of the request contents.
+     *
+     * @param upload The upload, read as its parts arrive.
+     */
+    public void setUpload(InputStream upload);
+  }
+
+  /**
+   * A strategy that fetches without holding a thread while waiting for the resource.
+   */
+  public interface AsyncStrategy extends Strategy {
+
+    /**
+     * Starts processing the request and returns.  The callback is told the outcome later,
+     * possibly on another thread.
+     *
+     * @param request The request.
+     * @param callback Receives the reply or the failure.
+     */
+    public void start(FetchRequest request, FetchCallback callback);
+  }
+
+  /**
+   * Receives the outcome of an {@link AsyncStrategy}.
+   */
+  public interface FetchCallback {
+
+    /**
+     * @param replyBuilder The reply, filled in as by {@link Strategy#process}.
+     */
+    public void completed(FetchReply.Builder replyBuilder);
+
+    /**
+     * @param e Why processing failed.
+     */
+    public void failed(StrategyException e);
+  }
+
   private static Logger LOG = Logger.getLogger(FetchRequestHandler.class);
 
   // Injected Dependencies.
@@ -96,10 +179,22 @@ public class FetchRequestHandler implements Dispatchable {
   private final ThreadPoolExecutor threadPoolExecutor;
   private final Injector injector;
   private final ClockUtil clock;
+  private final FetchResponseCache responseCache;
 
   // Runtime Dependencies.
   private FrameSender frameSender;
 
+  // Local fields.
+  private final ConcurrentHashMap<String, FetchRequestUpload> uploads =
+      new ConcurrentHashMap<String, FetchRequestUpload>();
+  private volatile long lastUploadSweepMillis = 0;
+  private final FetchCoalescer coalescer = new FetchCoalescer();
+  // The session the cloud uses on this handler's connection; replies use its key.
+  private volatile String sessionId;
+  // Ids of the requests not yet fully replied to.
+  private final ConcurrentHashMap<String, Boolean> inFlight =
+      new ConcurrentHashMap<String, Boolean>();
+
   /**
    * Constructor with dependency on thread pool for asynchronous fetch and
    * sending of replies.
@@ -107,20 +202,30 @@ public class FetchRequestHandler implements Dispatchable {
    * @param km The session key manager.
    * @param threadPoolExecutor The thread pool.
    * @param injector The injector.
+   * @param clock The clock.
+   * @param responseCache The cache of replies.
    */
   @Inject
   public FetchRequestHandler(SdcKeysManager km, ThreadPoolExecutor threadPoolExecutor,
-      Injector injector, ClockUtil clock) {
+      Injector injector, ClockUtil clock, FetchResponseCache responseCache) {
     this.sdcKeysManager = km;
     this.threadPoolExecutor = threadPoolExecutor;
     this.injector = injector;
     this.clock = clock;
+    this.responseCache = responseCache;
   }
 
   public final void setFrameSender(FrameSender frameSender) {
     this.frameSender = frameSender;
   }
 
+  /**
+   * @return the number of requests not yet fully replied to.
+   */
+  public int getRequestsInFlight() {
+    return inFlight.size();
+  }
+
   /**
    * Handles the request coming from the cloud.  In this case, fetch data from
    * the requested resource in the {@link FetchRequest}.
@@ -137,7 +242,7 @@ public class FetchRequestHandler implements Dispatchable {
 
     FetchRequest request; 
     try {
-      request = sdcKeysManager.getSessionEncryption().getFrom(frameInfo,
+      request = sdcKeysManager.getSessionEncryption(frameInfo.getSessionId()).getFrom(frameInfo,
           new SessionEncryption.Parse<FetchRequest>() {
         public FetchRequest parse(ByteString s) throws InvalidProtocolBufferException {
           return FetchRequest.parseFrom(s);
@@ -150,6 +255,16 @@ public class FetchRequestHandler implements Dispatchable {
     if (request == null) {
       return;
     }
+    sessionId = frameInfo.getSessionId();
+    if (request.getChunkSequence() > 0) {
+      // More of a streamed upload.  It may overtake the request that started it.
+      getUpload(request.getId()).addChunk(request.getChunkSequence(), request.getContents(),
+          request.getLastChunk());
+      return;
+    }
+    // Tracked until its last reply goes out, so the connection can be drained.
+    inFlight.put(request.getId(), Boolean.TRUE);
+
     // Now we have the request.  Check the request:
     FetchReply.Builder replyBuilder = FetchReply.newBuilder().setId(request.getId());
     try {
@@ -166,14 +281,53 @@ public class FetchRequestHandler implements Dispatchable {
       throw new FramingException(e);
     }
 
+    // Answer from the cache if we can, or else share the fetch of an identical request in
+    // flight.  Streamed uploads and replies are neither cached nor shared.
+    boolean buffered = !request.getStreamed() && !containsStreamReplyHeader(request);
+    FetchResponseCache.Lookup cacheLookup = null;
+    FetchRequest fetchRequest = request;
+    String flightKey = null;
+    if (buffered) {
+      cacheLookup = responseCache.lookup(request);
+      if (cacheLookup.getHit() != null) {
+        sendReply(cacheLookup.getHit());
+        return;
+      }
+      fetchRequest = cacheLookup.getRequest();
+      flightKey = coalescer.getKey(request);
+      if (flightKey != null && coalescer.join(flightKey, request)) {
+        LOG.info(request.getId() + ": Sharing the fetch of an identical request.");
+        return;
+      }
+    }
+
     // Now execute work asynchronously.
     try {
       StrategyType strategyType = StrategyType.match(request.getStrategy());
       Strategy strategy = injector.getInstance(strategyType.strategyClz);
-      ResourceFetcher fetcher = new ResourceFetcher(request, strategy);
+      if (request.getStreamed()) {
+        if (!(strategy instanceof UploadStrategy)) {
+          LOG.warn(request.getId() + ": Strategy does not support streamed uploads.");
+          sendReply(replyBuilder.setStatus(StatusCode.BAD_REQUEST.value).build());
+          return;
+        }
+        FetchRequestUpload upload = getUpload(request.getId());
+        upload.addChunk(0, request.getContents(), request.getLastChunk());
+        ((UploadStrategy) strategy).setUpload(upload);
+      }
+      if (strategy instanceof AsyncStrategy) {
+        ((AsyncStrategy) strategy).start(fetchRequest,
+            new AsyncReplySender(request, cacheLookup, flightKey));
+        return;
+      }
+      ResourceFetcher fetcher =
+          new ResourceFetcher(fetchRequest, strategy, cacheLookup, flightKey);
       threadPoolExecutor.submit(fetcher);
     } catch (Exception e) {
       LOG.warn(request.getId() + ": Agent error: " + request, e);
+      removeUpload(request.getId());
+      finishFlight(flightKey, null);
+      inFlight.remove(request.getId());
       throw new FramingException(e);
     }
   }
@@ -186,7 +340,9 @@ public class FetchRequestHandler implements Dispatchable {
 
     URL_CONNECTION("URLConnection", URLConnectionStrategy.class),
 
-    HTTP_CLIENT("HttpClient", HttpFetchStrategy.class);
+    HTTP_CLIENT("HttpClient", HttpFetchStrategy.class),
+
+    ASYNC_HTTP("AsyncHttp", AsyncHttpStrategy.class);
 
     private String scheme;
     private Class<? extends Strategy> strategyClz;
@@ -221,14 +377,20 @@ public class FetchRequestHandler implements Dispatchable {
 
     private final FetchRequest request;
     private final Strategy strategy;
+    private final FetchResponseCache.Lookup cacheLookup;
+    private final String flightKey;
     private FetchReply reply;
 
     /**
-     * Constructs an instance to fetch the specified resource URL.
+     * Constructs an instance to fetch the specified resource URL.  The reply updates the cache
+     * if there is a lookup and goes to the requests sharing the fetch if there is a flight key.
      */
-    ResourceFetcher(FetchRequest request, Strategy strategy) {
+    ResourceFetcher(FetchRequest request, Strategy strategy,
+        FetchResponseCache.Lookup cacheLookup, String flightKey) {
       this.request = request;
       this.strategy = strategy;
+      this.cacheLookup = cacheLookup;
+      this.flightKey = flightKey;
     }
 
     /**
@@ -236,10 +398,28 @@ public class FetchRequestHandler implements Dispatchable {
      */
     @Override
     public FetchReply call() {
+      try {
+        if (strategy instanceof StreamingStrategy && containsStreamReplyHeader(request)) {
+          return stream((StreamingStrategy) strategy);
+        }
+        return fetch();
+      } finally {
+        if (request.getStreamed()) {
+          removeUpload(request.getId());
+        }
+        finishFlight(flightKey, reply);
+        // Agent errors are not replied to.
+        inFlight.remove(request.getId());
+      }
+    }
+
+    /**
+     * Fetches the resource sending back the whole body in one reply.
+     */
+    private FetchReply fetch() {
       // Initialize the reply, etc.
       StatusCode statusCode = StatusCode.OK;
       FetchReply.Builder replyBuilder = FetchReply.newBuilder();
-      FetchReply reply = null;
 
       replyBuilder.setId(request.getId());
 
@@ -253,6 +433,9 @@ public class FetchRequestHandler implements Dispatchable {
         if (!replyBuilder.hasStatus()) {
           replyBuilder.setStatus(statusCode.value);
         }
+        if (cacheLookup != null) {
+          replyBuilder = responseCache.update(cacheLookup, replyBuilder);
+        }
 
         reply = replyBuilder.build();
         sendReply(reply);
@@ -262,6 +445,7 @@ public class FetchRequestHandler implements Dispatchable {
         exception = e;
         replyBuilder.setStatus(StatusCode.STRATEGY_EXCEPTION.value);
         logExceptionInReply(request, replyBuilder, e);
+        reply = replyBuilder.build();
         sendReply(reply);
       } catch (Exception e) {
         exception = e;
@@ -272,6 +456,41 @@ public class FetchRequestHandler implements Dispatchable {
       return replyBuilder.build();
     }
 
+    /**
+     * Fetches the resource sending the body back in chunks as it arrives.
+     */
+    private FetchReply stream(StreamingStrategy streamingStrategy) {
+      FetchReply.Builder replyBuilder = FetchReply.newBuilder().setId(request.getId());
+      FetchReplyStream body = new FetchReplyStream(FetchRequestHandler.this, replyBuilder);
+      FetchReply.Builder trailer = FetchReply.newBuilder();
+
+      Exception exception = null;
+      try {
+        long start = clock.currentTimeMillis();
+        streamingStrategy.process(request, replyBuilder, body);
+        return body.finish(trailer.setLatency(clock.currentTimeMillis() - start));
+      } catch (StrategyException e) {
+        exception = e;
+        trailer.setStatus(StatusCode.STRATEGY_EXCEPTION.value);
+      } catch (Exception e) {
+        exception = e;
+        trailer.setStatus(StatusCode.AGENT_ERROR.value);
+      }
+      LOG.warn(request.getId() + ": Exception while fetching " + request, exception);
+      logExceptionInReply(request, trailer, exception);
+      if (body.isStarted()) {
+        // End the partly sent body with the error.
+        return body.finish(trailer);
+      }
+      FetchReply reply = replyBuilder.mergeFrom(trailer.buildPartial()).build();
+      if (exception instanceof StrategyException) {
+        // Nothing sent yet, so the error goes back as a plain reply.  As with buffered replies,
+        // agent errors are not sent.
+        sendReply(reply);
+      }
+      return reply;
+    }
+
     @Override
     public String toString() {
       return String.format("ResourceFetcher(request=%s,reply=%s)",
@@ -279,6 +498,159 @@ public class FetchRequestHandler implements Dispatchable {
     }
   }
 
+  /**
+   * Sends the reply once an {@link AsyncStrategy} is done.  The strategy may call back on an
+   * I/O thread it shares with other fetches, so the reply is built, cached and sent on the
+   * thread pool where a full send queue only holds up this fetch.
+   */
+  class AsyncReplySender implements FetchCallback {
+
+    private final FetchRequest request;
+    private final FetchResponseCache.Lookup cacheLookup;
+    private final String flightKey;
+    private final long start;
+
+    AsyncReplySender(FetchRequest request, FetchResponseCache.Lookup cacheLookup,
+        String flightKey) {
+      this.request = request;
+      this.cacheLookup = cacheLookup;
+      this.flightKey = flightKey;
+      this.start = clock.currentTimeMillis();
+    }
+
+    @Override
+    public void completed(final FetchReply.Builder replyBuilder) {
+      final long latency = clock.currentTimeMillis() - start;
+      send(new Runnable() {
+        @Override
+        public void run() {
+          FetchReply.Builder completedReply = replyBuilder;
+          completedReply.setId(request.getId());
+          completedReply.setLatency(latency);
+          if (!completedReply.hasStatus()) {
+            completedReply.setStatus(StatusCode.OK.value);
+          }
+          if (cacheLookup != null) {
+            completedReply = responseCache.update(cacheLookup, completedReply);
+          }
+          sendAndFinish(completedReply.build());
+        }
+      });
+    }
+
+    @Override
+    public void failed(final StrategyException e) {
+      final long latency = clock.currentTimeMillis() - start;
+      send(new Runnable() {
+        @Override
+        public void run() {
+          LOG.warn(request.getId() + ": Exception while fetching " + request, e);
+          FetchReply.Builder replyBuilder = FetchReply.newBuilder()
+              .setId(request.getId())
+              .setStatus(StatusCode.STRATEGY_EXCEPTION.value)
+              .setLatency(latency);
+          logExceptionInReply(request, replyBuilder, e);
+          sendAndFinish(replyBuilder.build());
+        }
+      });
+    }
+
+    /**
+     * Runs the task on the thread pool, dropping the reply if the pool is full.
+     */
+    private void send(Runnable task) {
+      try {
+        threadPoolExecutor.execute(task);
+      } catch (RejectedExecutionException e) {
+        LOG.warn(request.getId() + ": No thread to send the reply, not replying.", e);
+        abandon();
+      }
+    }
+
+    private void sendAndFinish(FetchReply reply) {
+      try {
+        sendReply(reply);
+      } catch (RuntimeException e) {
+        LOG.warn(request.getId() + ": Agent error sending reply.", e);
+        abandon();
+        return;
+      }
+      finishFlight(flightKey, reply);
+    }
+
+    /**
+     * Gives up on the request and any requests sharing its fetch.
+     */
+    private void abandon() {
+      finishFlight(flightKey, null);
+      inFlight.remove(request.getId());
+    }
+  }
+
+  /**
+   * Finds or starts the upload with the given id.  As every part comes through here, it also
+   * drops, at most once a sweep interval, any uploads whose first part never arrived or that
+   * failed.
+   *
+   * @param id The request id.
+   * @return The upload.
+   */
+  FetchRequestUpload getUpload(String id) {
+    long now = clock.currentTimeMillis();
+    if (now - lastUploadSweepMillis >= UPLOAD_SWEEP_INTERVAL_MILLIS) {
+      lastUploadSweepMillis = now;
+      for (Iterator<FetchRequestUpload> i = uploads.values().iterator(); i.hasNext();) {
+        FetchRequestUpload abandoned = i.next();
+        if (abandoned.isAbandoned(now)) {
+          abandoned.close();
+          i.remove();
+        }
+      }
+    }
+    FetchRequestUpload upload = uploads.get(id);
+    if (upload == null) {
+      upload = new FetchRequestUpload(now);
+      FetchRequestUpload existing = uploads.putIfAbsent(id, upload);
+      if (existing != null) {
+        upload = existing;
+      }
+    }
+    return upload;
+  }
+
+  /**
+   * Ends the upload with the given id, dropping any parts not read.
+   *
+   * @param id The request id.
+   */
+  void removeUpload(String id) {
+    FetchRequestUpload upload = uploads.remove(id);
+    if (upload != null) {
+      upload.close();
+    }
+  }
+
+  /**
+   * Ends a shared fetch, sending each request that joined it a copy of the reply with its own
+   * id.
+   *
+   * @param flightKey The key of the fetch, or null if it was not shared.
+   * @param reply The reply sent for the fetch, or null if none was sent.
+   */
+  void finishFlight(String flightKey, FetchReply reply) {
+    if (flightKey == null) {
+      return;
+    }
+    for (FetchRequest follower : coalescer.finish(flightKey)) {
+      if (reply == null) {
+        LOG.warn(follower.getId() + ": Shared fetch failed, not replying.");
+        inFlight.remove(follower.getId());
+        continue;
+      }
+      sendReply(reply.toBuilder().setId(follower.getId()).build());
+    }
+  }
+
   /**
    * If the request contains a special header for logging exception, send the
    * stacktrace back as a reply header.
@@ -305,23 +677,65 @@ public class FetchRequestHandler implements Dispatchable {
    * @param reply The reply.
    */
   void sendReply(FetchReply reply) {
+    sendReply(reply, null);
+  }
+
+  /**
+   * Asynchronously sends the reply to the cloud, running the callback once the reply has left
+   * the send queue or right away if it is not sent.
+   * @param reply The reply.
+   * @param taken The callback, or null.
+   */
+  void sendReply(FetchReply reply, Runnable taken) {
     Preconditions.checkNotNull(frameSender);
+    if (reply.getLastChunk() || (!reply.getStreamed() && !reply.hasChunkSequence())) {
+      inFlight.remove(reply.getId());
+    }
     // Encrypt the reply.
     // Session encryption: decrypt the message from the cloud:
     if (!this.sdcKeysManager.hasSessionEncryption()) {
       LOG.warn("Cannot encrypt message for fetch protocol: no session encryption. Not sent.");
+      if (taken != null) {
+        taken.run();
+      }
       return;
     }
     LOG.info(reply.getId() + ": Sending reply status=" + reply.getStatus() +
         ", latency=" + reply.getLatency());
     LOG.debug("Sending reply =" + reply);
 
-    FrameInfo frame = this.sdcKeysManager.getSessionEncryption().toFrameInfo(
-        FrameInfo.Type.FETCH_REQUEST, reply);
+    FrameInfo frame = this.sdcKeysManager.getSessionEncryption(sessionId).toFrameInfo(
+        FrameInfo.Type.FETCH_REQUEST, reply, isCompressible(reply));
 
     if (frame != null) {
-      frameSender.sendFrame(frame);
+      // Each streamed reply takes its turn in the send queue on its own.
+      frameSender.sendFrame(frame, "fetch:" + reply.getId(), taken);
+    } else if (taken != null) {
+      taken.run();
+    }
+  }
+
+  /**
+   * Returns false if the reply body is already compressed, going by its headers, so no time is
+   * spent compressing it again for the tunnel.
+   * @param reply The reply.
+   * @return True if the reply may compress.
+   */
+  static boolean isCompressible(FetchReply reply) {
+    for (MessageHeader h : reply.getHeadersList()) {
+      String value = h.getValue().trim().toLowerCase();
+      if ("content-encoding".equalsIgnoreCase(h.getKey()) && value.length() > 0 &&
+          !"identity".equals(value)) {
+        return false;
+      }
+      if ("content-type".equalsIgnoreCase(h.getKey()) &&
+          ((value.startsWith("image/") && !value.startsWith("image/svg")) ||
+           value.startsWith("audio/") || value.startsWith("video/") ||
+           value.matches("application/(zip|gzip|x-gzip|x-compress|x-7z-compressed|pdf).*"))) {
+        return false;
+      }
     }
+    return true;
   }
 
   /**
@@ -349,6 +763,15 @@ public class FetchRequestHandler implements Dispatchable {
     return headerMatchesValue(request, DEBUG_HEADER, "true");
   }
 
+  /**
+   * Returns true if the request asks for a streamed reply.
+   * @param request The request.
+   * @return True if request has the stream reply header.
+   */
+  boolean containsStreamReplyHeader(FetchRequest request) {
+    return headerMatchesValue(request, STREAM_REPLY_HEADER, "true");
+  }
+
   /**
    * Given the header key, returns true if the value exists and matches the 
    * string provided.
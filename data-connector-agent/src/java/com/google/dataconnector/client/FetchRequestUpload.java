@@ -0,0 +1,216 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.protobuf.ByteString;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The contents of a streamed upload, read by the strategy while later parts are still arriving
+ * from the cloud.  Parts are added by sequence number, possibly out of order since fetch
+ * requests are dispatched in parallel, and read back in order straight from the decrypted
+ * {@link ByteString}s without copying them again.  Parts the strategy has not read yet are
+ * bounded; an upload that buffers more fails rather than holding the cloud's data in memory.
+ */
+public class FetchRequestUpload extends InputStream {
+
+  private static final Logger LOG = Logger.getLogger(FetchRequestUpload.class);
+
+  static final long CHUNK_TIMEOUT_MILLIS = 60 * 1000;
+
+  // Most bytes of parts held waiting for the strategy to read them.
+  static final int MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+
+  // Local fields
+  private final Lock lock = new ReentrantLock();
+  private final Condition chunkAdded = lock.newCondition();
+  private final Map<Integer, ByteString> pending = new HashMap<Integer, ByteString>();
+  private final long chunkTimeoutMillis;
+  private final int maxBufferedBytes;
+  private final long createdMillis;
+  private int bufferedBytes = 0;
+  private int nextSequence = 0;
+  private int lastSequence = -1;
+  private boolean started = false;
+  private boolean closed = false;
+  private String closedReason = "Upload closed";
+  private InputStream current;
+
+  public FetchRequestUpload(final long createdMillis) {
+    this(createdMillis, CHUNK_TIMEOUT_MILLIS, MAX_BUFFERED_BYTES);
+  }
+
+  FetchRequestUpload(final long createdMillis, final long chunkTimeoutMillis) {
+    this(createdMillis, chunkTimeoutMillis, MAX_BUFFERED_BYTES);
+  }
+
+  // visible for testing.
+  FetchRequestUpload(final long createdMillis, final long chunkTimeoutMillis,
+      final int maxBufferedBytes) {
+    this.createdMillis = createdMillis;
+    this.chunkTimeoutMillis = chunkTimeoutMillis;
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  /**
+   * Adds a part of the upload.  Parts for a closed upload are dropped.  A part that takes the
+   * unread parts over the limit fails the upload.
+   *
+   * @param sequence the part's position in the upload, starting at 0.
+   * @param contents the bytes.
+   * @param last true if this is the final part.
+   */
+  public void addChunk(final int sequence, final ByteString contents, final boolean last) {
+    lock.lock();
+    try {
+      if (closed || sequence < nextSequence) {
+        return;
+      }
+      if (sequence == 0) {
+        started = true;
+      }
+      final ByteString replaced = pending.put(sequence, contents);
+      bufferedBytes += contents.size() - (replaced == null ? 0 : replaced.size());
+      if (bufferedBytes > maxBufferedBytes) {
+        LOG.warn("Upload buffered more than " + maxBufferedBytes + " bytes, failing it.");
+        fail("Upload buffered more than " + maxBufferedBytes + " bytes");
+        return;
+      }
+      if (last) {
+        lastSequence = sequence;
+      }
+      chunkAdded.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param nowMillis the current time.
+   * @return true if the first part never arrived in time, such as when the request carrying it
+   *     was rejected, or the upload is closed.
+   */
+  public boolean isAbandoned(final long nowMillis) {
+    lock.lock();
+    try {
+      return closed || (!started && nowMillis - createdMillis > chunkTimeoutMillis);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] b = new byte[1];
+    final int n = read(b, 0, 1);
+    return (n == -1) ? -1 : (b[0] & 0xff);
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (true) {
+      if (current != null) {
+        final int n = current.read(b, off, len);
+        if (n != -1) {
+          return n;
+        }
+        current = null;
+      }
+      final ByteString next = takeNext();
+      if (next == null) {
+        return -1;
+      }
+      current = next.newInput();
+    }
+  }
+
+  /**
+   * Waits for the next part in sequence.
+   *
+   * @return the part or null at the end of the upload.
+   * @throws IOException if the upload was closed or the next part did not arrive in time.
+   */
+  private ByteString takeNext() throws IOException {
+    lock.lock();
+    try {
+      long remainingNanos = TimeUnit.MILLISECONDS.toNanos(chunkTimeoutMillis);
+      while (true) {
+        if (closed) {
+          throw new IOException(closedReason);
+        }
+        if (lastSequence >= 0 && nextSequence > lastSequence) {
+          return null;
+        }
+        final ByteString next = pending.remove(nextSequence);
+        if (next != null) {
+          nextSequence++;
+          bufferedBytes -= next.size();
+          return next;
+        }
+        if (remainingNanos <= 0) {
+          throw new IOException("Timed out waiting for upload part " + nextSequence);
+        }
+        try {
+          remainingNanos = chunkAdded.awaitNanos(remainingNanos);
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for upload part " + nextSequence);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops any parts not yet read.  Readers waiting for more fail.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      fail(closedReason);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes the upload, failing readers with the given reason.  Called holding the lock.
+   */
+  private void fail(final String reason) {
+    if (!closed) {
+      closed = true;
+      closedReason = reason;
+    }
+    pending.clear();
+    bufferedBytes = 0;
+    chunkAdded.signalAll();
+  }
+}
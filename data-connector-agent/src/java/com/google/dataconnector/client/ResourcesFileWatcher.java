@@ -18,6 +18,7 @@
 package com.google.dataconnector.client;
 
 import com.google.common.base.Preconditions;
+import com.google.dataconnector.client.fetchrequest.FetchResponseCache;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.registration.v4.Registration;
 import com.google.dataconnector.util.FileUtil;
@@ -40,7 +41,8 @@ import java.security.NoSuchAlgorithmException;
 /**
  * <p>A watcher thread that keeps track of the resource rules message digest.</p>
  *
- * <p>If the value changes, the client re-registers with the server.</p>
+ * <p>If the value changes, the client re-registers with the server and the response cache reads
+ * its cacheable rules again.</p>
  *
  * @author mtp@google.com (Matt T. Proud)
  */
@@ -52,6 +54,7 @@ public class ResourcesFileWatcher extends Thread implements Stoppable {
   private final Registration registration;
   private final FileUtil fileUtil;
   private final SystemUtil systemUtil;
+  private final FetchResponseCache responseCache;
 
   // Runtime dependencies.
   private FrameSender frameSender;
@@ -66,14 +69,18 @@ public class ResourcesFileWatcher extends Thread implements Stoppable {
    * process, if required
    * @param fileUtil
    * @param systemUtil
+   * @param shutdownManager
+   * @param responseCache the cache of fetch replies, told when the rules change
    */
   @Inject
   public ResourcesFileWatcher(final LocalConf localConf, final Registration registration,
-      final FileUtil fileUtil, final SystemUtil systemUtil, final ShutdownManager shutdownManager) {
+      final FileUtil fileUtil, final SystemUtil systemUtil, final ShutdownManager shutdownManager,
+      final FetchResponseCache responseCache) {
     this.localConf = localConf;
     this.registration = registration;
     this.fileUtil = fileUtil;
     this.systemUtil = systemUtil;
+    this.responseCache = responseCache;
 
     try {
       this.md5Digest = MessageDigest.getInstance("MD5");
@@ -132,7 +139,8 @@ public class ResourcesFileWatcher extends Thread implements Stoppable {
 
           // Upload the new registration.
           registration.sendRegistrationInfo(frameSender);
-          
+          responseCache.reloadRules();
+
           return currentDigest;
         } catch (RegistrationException e) {
           LOG.error("Could not register new resources with server; will retry.", e);
@@ -17,34 +17,46 @@
 package com.google.dataconnector.client;
 
 import com.google.dataconnector.client.HealthCheckHandler.FailCallback;
+import com.google.dataconnector.protocol.FrameCompressor;
 import com.google.dataconnector.protocol.FrameReceiver;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.FramingException;
+import com.google.dataconnector.protocol.NioFrameTransport;
 import com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.registration.v4.Registration;
+import com.google.dataconnector.util.ClockUtil;
 import com.google.dataconnector.util.ConnectionException;
 import com.google.dataconnector.util.LocalConf;
 import com.google.dataconnector.util.SSLSocketFactoryInit;
+import com.google.dataconnector.util.SdcKeysManager;
 import com.google.dataconnector.util.ShutdownManager;
 import com.google.dataconnector.util.Stoppable;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.security.Principal;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
-import javax.security.cert.X509Certificate;
+import javax.security.auth.x500.X500Principal;
 
 /**
  * Implements a Secure Data Connector client.  Connects to Secure Data Connector Server, authorizes,
@@ -60,11 +72,24 @@ public class SdcConnection implements FailCallback, Stoppable {
 
   public static final Integer DEFAULT_SOCKS_PORT = 1080;
 
-  // TODO(rayc) Add in 256 cipher support if policy jars allow.
-  private static final String[] SECURE_CIPHER_SUITE = {
+  // Most preferred first: forward secret AEAD suites for TLSv1.3 and TLSv1.2.  The last is only
+  // for servers that offer nothing better.  Suites the JVM lacks are left out.
+  static final String[] SECURE_CIPHER_SUITES = {
+    "TLS_AES_128_GCM_SHA256",
+    "TLS_AES_256_GCM_SHA384",
+    "TLS_CHACHA20_POLY1305_SHA256",
+    "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+    "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+    "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+    "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+    "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+    "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
     "TLS_RSA_WITH_AES_128_CBC_SHA"
   };
 
+  // How often a draining connection checks whether it is idle.
+  private static final long DRAIN_POLL_MILLIS = 100;
+
   public static final String INITIAL_HANDSHAKE_MSG = "v5.1 " +
      SdcConnection.class.getPackage().getImplementationVersion() + "\n";
 
@@ -73,6 +98,7 @@ public class SdcConnection implements FailCallback, Stoppable {
   private final SSLSocketFactoryInit sslSocketFactoryInit;
   private final FrameReceiver frameReceiver;
   private final FrameSender frameSender;
+  private final NioFrameTransport nioFrameTransport;
   private final Registration registration;
   private final SocksDataHandler socksDataHandler;
   private final HealthCheckHandler healthCheckHandler;
@@ -80,9 +106,35 @@ public class SdcConnection implements FailCallback, Stoppable {
   private final ResourcesFileWatcher resourcesFileWatcher;
   private final ShutdownManager shutdownManager;
   private final SocketSessionRequestHandler socketSessionRequestHandler;
+  private final SdcKeysManager sdcKeysManager;
+  private final Provider<SdcConnection> connectionProvider;
+  private final ConnectionDrainer connectionDrainer;
+  private final ClockUtil clock;
   
   // Fields
   private SSLSocket socket;
+  private FrameCompressor compressor; // null unless negotiated by authorize().
+  // Set once the agent or the caller closes this connection; it is then not handed over.
+  private volatile boolean closing = false;
+  // Whether frames are being dispatched; guarded by this for the handover.
+  private boolean dispatching = false;
+  // The connection taking over from this one after its health check failed, if any.
+  private SdcConnection replacement;
+  // The connection now carrying the tunnel that connect() was called for.
+  private volatile SdcConnection active = this;
+  // Counted down once frames are dispatched or the connection failed.
+  private final CountDownLatch connected = new CountDownLatch(1);
+  // Counted down once the connection stops dispatching.
+  private final CountDownLatch tunnelDone = new CountDownLatch(1);
+  // Registered with the shutdown manager: closes this connection but not its replacement, which
+  // registers on its own.
+  private final Stoppable tunnelStopper = new Stoppable() {
+    @Override
+    public void shutdown() {
+      closing = true;
+      closeTunnel();
+    }
+  };
 
  /**
   *  Sets up a Secure Data connection to a Secure Link server with the supplied configuration.
@@ -91,6 +143,7 @@ public class SdcConnection implements FailCallback, Stoppable {
   * @param sslSocketFactoryInit
   * @param frameReceiver
   * @param frameSender
+  * @param nioFrameTransport
   * @param registration
   * @param socksDataHandler
   * @param healthCheckHandler
@@ -98,23 +151,33 @@ public class SdcConnection implements FailCallback, Stoppable {
   * @param socketSessionRequestHandler,
   * @param resourcesFileWatcher
   * @param shutdownManager
+  * @param sdcKeysManager
+  * @param connectionProvider provides the connection that takes over when the health check fails.
+  * @param connectionDrainer drains open connections when the agent stops.
+  * @param clock
   */
   @Inject
   public SdcConnection(final LocalConf localConf,
       final SSLSocketFactoryInit sslSocketFactoryInit,
       final FrameReceiver frameReceiver,
       final FrameSender frameSender,
+      final NioFrameTransport nioFrameTransport,
       final Registration registration,
       final SocksDataHandler socksDataHandler,
       final HealthCheckHandler healthCheckHandler,
       final FetchRequestHandler agentRequestHandler,
       final SocketSessionRequestHandler socketSessionRequestHandler,
       final ResourcesFileWatcher resourcesFileWatcher,
-      final ShutdownManager shutdownManager) {
+      final ShutdownManager shutdownManager,
+      final SdcKeysManager sdcKeysManager,
+      final Provider<SdcConnection> connectionProvider,
+      final ConnectionDrainer connectionDrainer,
+      final ClockUtil clock) {
     this.localConf = localConf;
     this.sslSocketFactoryInit = sslSocketFactoryInit;
     this.frameReceiver = frameReceiver;
     this.frameSender = frameSender;
+    this.nioFrameTransport = nioFrameTransport;
     this.registration = registration;
     this.socksDataHandler = socksDataHandler;
     this.healthCheckHandler = healthCheckHandler;
@@ -122,6 +185,10 @@ public class SdcConnection implements FailCallback, Stoppable {
     this.socketSessionRequestHandler = socketSessionRequestHandler;
     this.resourcesFileWatcher = resourcesFileWatcher;
     this.shutdownManager = shutdownManager;
+    this.sdcKeysManager = sdcKeysManager;
+    this.connectionProvider = connectionProvider;
+    this.connectionDrainer = connectionDrainer;
+    this.clock = clock;
   }
 
   /**
@@ -129,40 +196,52 @@ public class SdcConnection implements FailCallback, Stoppable {
    * is run in inetd mode (sshd -i) and its stdin and stdout are connected
    * to the established socket.
    *
+   * <p>
+   * Returns once the tunnel is lost.  If the health check fails and a new connection takes
+   * over, see {@link #handleFailure()}, this keeps blocking until the last connection to take
+   * over is lost.
+   *
    * @throws ConnectionException if and error occurs with authorization or registration.
    */
   public void connect() throws ConnectionException {
+    try {
+      connectTunnel();
+    } catch (ConnectionException e) {
+      if (getReplacement() == null) {
+        throw e;
+      }
+      LOG.warn("Connection failed while handing over.", e);
+    }
+    SdcConnection current = this;
+    SdcConnection next;
+    while ((next = current.getReplacement()) != null) {
+      active = next;
+      try {
+        next.tunnelDone.await();
+      } catch (InterruptedException e) {
+        shutdown();
+        break;
+      }
+      current = next;
+    }
+  }
+
+  /**
+   * Connects, authorizes, registers and dispatches frames until this connection is lost.
+   */
+  private void connectTunnel() throws ConnectionException {
     LOG.info("Connecting to SDC server");
 
     try {
       // Set runtime dependency.
       // TODO(rayc) figure out a cooler way to do this.
       registration.setHealthCheckHandler(healthCheckHandler);
-      
-      // Setup SSL connection and verify.
-      LOG.debug("setting up SSLSocket with customized SSLSocketFacory");
-      final SSLSocketFactory sslSocketFactory = sslSocketFactoryInit
-          .getSslSocketFactory(localConf);
-      socket = (SSLSocket) sslSocketFactory.createSocket();
-      socket.setEnabledCipherSuites(SECURE_CIPHER_SUITE);
-      // wait for 30 sec to connect. is that too long?
-      socket.connect(new InetSocketAddress(localConf.getSdcServerHost(),
-          localConf.getSdcServerPort()), 30 *1000);
-
-      if (!localConf.getAllowUnverifiedCertificates()) {
-        verifySubjectInCertificate(socket.getSession());
-      }
-
-      // send a message to initiate handshake with tunnelserver
-      LOG.info("Sending initial handshake msg: " + INITIAL_HANDSHAKE_MSG);
-      final byte[] handshake = INITIAL_HANDSHAKE_MSG.getBytes();
-      socket.getOutputStream().write(handshake);
-      socket.getOutputStream().flush();
 
-      // setup frame IO
-      frameReceiver.setInputStream(socket.getInputStream());
-      frameSender.setOutputStream(socket.getOutputStream());
-      frameSender.start();
+      if (localConf.getUseNioTransport()) {
+        connectNio();
+      } else {
+        connectSocket();
+      }
 
       LOG.info("Attemping login");
 
@@ -171,6 +250,10 @@ public class SdcConnection implements FailCallback, Stoppable {
       }
       LOG.info("Successful login");
 
+      // Compress payloads from now on if the server agreed to.  The session key this connection
+      // registers for is given the same compressor.
+      frameSender.setCompressor(compressor);
+
       // send registration info to the SDC server
       registration.sendRegistrationInfo(frameSender);
 
@@ -205,20 +288,145 @@ public class SdcConnection implements FailCallback, Stoppable {
       resourcesFileWatcher.start();
 
       // Add to shutdown manager so it gets gracefully shutdown.
-      shutdownManager.addStoppable(this);
-      frameReceiver.startDispatching();
+      shutdownManager.addStoppable(tunnelStopper);
+      synchronized (this) {
+        dispatching = true;
+      }
+      connectionDrainer.add(this);
+      connected.countDown();
+      if (localConf.getUseNioTransport()) {
+        nioFrameTransport.startDispatching();
+      } else {
+        frameReceiver.startDispatching();
+      }
     } catch (IOException e) {
       throw new ConnectionException(e);
     } catch (FramingException e) {
       throw new ConnectionException(e);
+    } finally {
+      synchronized (this) {
+        dispatching = false;
+      }
+      connected.countDown();
+      tunnelDone.countDown();
     }
   }
-  
+
+  private synchronized SdcConnection getReplacement() {
+    return replacement;
+  }
+
+  /**
+   * Connects a blocking {@link SSLSocket} and runs the frame sender thread on it.
+   */
+  private void connectSocket() throws IOException, ConnectionException {
+    // Setup SSL connection and verify.
+    LOG.debug("setting up SSLSocket with customized SSLSocketFacory");
+    final SSLSocketFactory sslSocketFactory = sslSocketFactoryInit
+        .getSslSocketFactory(localConf);
+    socket = (SSLSocket) sslSocketFactory.createSocket();
+    socket.setEnabledCipherSuites(getCipherSuites(socket.getSupportedCipherSuites()));
+    // wait for 30 sec to connect. is that too long?
+    socket.connect(new InetSocketAddress(localConf.getSdcServerHost(),
+        localConf.getSdcServerPort()), 30 *1000);
+
+    if (!localConf.getAllowUnverifiedCertificates()) {
+      verifySubjectInCertificate(socket.getSession());
+    }
+
+    // send a message to initiate handshake with tunnelserver
+    LOG.info("Sending initial handshake msg: " + INITIAL_HANDSHAKE_MSG);
+    final byte[] handshake = INITIAL_HANDSHAKE_MSG.getBytes();
+    socket.getOutputStream().write(handshake);
+    socket.getOutputStream().flush();
+
+    // setup frame IO
+    frameReceiver.setInputStream(socket.getInputStream());
+    frameSender.setOutputStream(socket.getOutputStream());
+    frameSender.setBatchMaxBytes(localConf.getFrameBatchMaxBytes());
+    frameSender.setBatchLingerMicros(localConf.getFrameBatchLingerMicros());
+    frameSender.start();
+  }
+
+  /**
+   * Connects the non-blocking {@link NioFrameTransport}.  Frames queued on the frame sender are
+   * written by the event loop so the frame sender thread is not started.
+   */
+  private void connectNio() throws IOException, ConnectionException {
+    LOG.debug("setting up non-blocking tunnel connection");
+    final SSLContext sslContext = sslSocketFactoryInit.getSslContext(localConf);
+    if (sslContext == null) {
+      throw new ConnectionException("SSL setup failed");
+    }
+    nioFrameTransport.setFrameReceiver(frameReceiver);
+    nioFrameTransport.setFrameSender(frameSender);
+    final SSLSession session = nioFrameTransport.connect(sslContext,
+        new InetSocketAddress(localConf.getSdcServerHost(), localConf.getSdcServerPort()),
+        getCipherSuites(sslContext.getSupportedSSLParameters().getCipherSuites()), 30 * 1000);
+
+    if (!localConf.getAllowUnverifiedCertificates()) {
+      verifySubjectInCertificate(session);
+    }
+
+    // send a message to initiate handshake with tunnelserver
+    LOG.info("Sending initial handshake msg: " + INITIAL_HANDSHAKE_MSG);
+    nioFrameTransport.write(INITIAL_HANDSHAKE_MSG.getBytes());
+    nioFrameTransport.start();
+  }
+
+  /**
+   * Picks the suites to offer the server.
+   *
+   * @param supported the suites the SSL implementation supports.
+   * @return the supported {@link #SECURE_CIPHER_SUITES}, most preferred first.
+   */
+  static String[] getCipherSuites(final String[] supported) {
+    final List<String> supportedList = Arrays.asList(supported);
+    final List<String> cipherSuites = new ArrayList<String>();
+    for (final String cipherSuite : SECURE_CIPHER_SUITES) {
+      if (supportedList.contains(cipherSuite)) {
+        cipherSuites.add(cipherSuite);
+      }
+    }
+    return cipherSuites.toArray(new String[cipherSuites.size()]);
+  }
+
+  /**
+   * Reads one frame synchronously from whichever transport is in use.
+   */
+  private FrameInfo readOneFrame() throws FramingException {
+    if (localConf.getUseNioTransport()) {
+      return nioFrameTransport.readOneFrame();
+    }
+    return frameReceiver.readOneFrame();
+  }
+
   /** 
-   * Kills active SDC connection and cleans up resources.
+   * Kills active SDC connection and cleans up resources, along with any connection taking
+   * over from it.
    */
   @Override
   public void shutdown() {
+    closing = true;
+    closeTunnel();
+    final SdcConnection next = getReplacement();
+    if (next != null) {
+      next.shutdown();
+    }
+  }
+
+  /**
+   * Closes this connection's transport, which makes dispatching return.
+   */
+  private void closeTunnel() {
+    if (localConf.getUseNioTransport()) {
+      // causes startDispatching() to return.
+      nioFrameTransport.shutdown();
+      return;
+    }
+    if (socket == null) {
+      return;
+    }
     try {
       // should cause frame receiver to exit its loop as the read call will throw an IOException.
       socket.close();
@@ -228,23 +436,56 @@ public class SdcConnection implements FailCallback, Stoppable {
   }
 
   /**
-   * Creates authorization request and sends to server and awaits response.
+   * Closes this connection and stops everything it started, so it can be replaced while other
+   * tunnel connections keep running.  The socket sessions opened over it are closed, and its
+   * session and resource keys forgotten, as the server cannot reach them through any other
+   * connection.  The connection that took over from this one, if any, is released as well.
+   */
+  public void release() {
+    releaseTunnel();
+    final SdcConnection current = active;
+    if (current != this) {
+      current.releaseTunnel();
+    }
+  }
+
+  private void releaseTunnel() {
+    connectionDrainer.remove(this);
+    shutdownManager.shutdown(tunnelStopper);
+    shutdownManager.shutdown(frameSender);
+    shutdownManager.shutdown(healthCheckHandler);
+    shutdownManager.shutdown(resourcesFileWatcher);
+    if (frameReceiver.getPartitionedDispatcher() != null) {
+      shutdownManager.shutdown(frameReceiver.getPartitionedDispatcher());
+    }
+    socketSessionRequestHandler.closeSessions();
+    sdcKeysManager.removeSessionKey(registration.getSessionId());
+    sdcKeysManager.removeSecretKeys(frameSender);
+  }
+
+  /**
+   * Creates authorization request and sends to server and awaits response.  The request offers
+   * payload compression, which is used if the server picks it in the response.
    *
    * @returns true if successfully logged on or false otherwise.
    */
   boolean authorize() {
+    compressor = null;
     try {
       // Authenticate
-      final AuthorizationInfo authInfoRequest = AuthorizationInfo.newBuilder()
+      final AuthorizationInfo.Builder authInfoRequestBuilder = AuthorizationInfo.newBuilder()
           .setEmail(localConf.getUser() + "@" + localConf.getDomain())
-          .setPassword(localConf.getPassword())
-          .build();
+          .setPassword(localConf.getPassword());
+      if (localConf.getFrameCompression()) {
+        authInfoRequestBuilder.addCompression(FrameInfo.Compression.DEFLATE);
+      }
+      final AuthorizationInfo authInfoRequest = authInfoRequestBuilder.build();
       final FrameInfo authReqRawFrame = FrameInfo.newBuilder()
           .setPayload(authInfoRequest.toByteString())
           .setType(FrameInfo.Type.AUTHORIZATION)
           .build();
       frameSender.sendFrame(authReqRawFrame);
-      final FrameInfo authRespRawFrame = frameReceiver.readOneFrame();
+      final FrameInfo authRespRawFrame = readOneFrame();
       final AuthorizationInfo authInfoResponse = AuthorizationInfo.parseFrom(
           authRespRawFrame.getPayload());
       if (authInfoResponse.getResult() != AuthorizationInfo.ResultCode.OK) {
@@ -252,6 +493,13 @@ public class SdcConnection implements FailCallback, Stoppable {
         LOG.error("Auth Error Message: " + authInfoResponse.getStatusMessage().toString());
         return false;
       }
+      if (localConf.getFrameCompression() && authInfoResponse.getCompressionCount() > 0 &&
+          authInfoResponse.getCompression(0) == FrameInfo.Compression.DEFLATE) {
+        LOG.info("Compressing frame payloads of " + localConf.getFrameCompressionMinBytes() +
+            " bytes or more.");
+        compressor = new FrameCompressor(FrameInfo.Compression.DEFLATE,
+            localConf.getFrameCompressionMinBytes());
+      }
       return true;
     } catch (FramingException e) {
       LOG.warn("Frame error", e);
@@ -273,14 +521,18 @@ public class SdcConnection implements FailCallback, Stoppable {
   void verifySubjectInCertificate(final SSLSession session)
       throws ConnectionException {
 
-    // Get Principal from session.
-    final X509Certificate cert;
+    // Get Principal from session.  The javax.security.cert chain is not available for TLS 1.3
+    // sessions.
+    final Certificate cert;
     try {
-      cert = session.getPeerCertificateChain()[0];
+      cert = session.getPeerCertificates()[0];
     } catch (SSLPeerUnverifiedException e) {
       throw new ConnectionException(e);
     }
-    Principal principal = cert.getSubjectDN();
+    if (!(cert instanceof X509Certificate)) {
+      throw new ConnectionException("Server certificate is not X.509: " + cert.getType());
+    }
+    final X500Principal principal = ((X509Certificate) cert).getSubjectX500Principal();
 
     // Compare CNs between actual host and the one we thought we connected to.
     final Rdn expectedCn;
@@ -315,16 +567,132 @@ public class SdcConnection implements FailCallback, Stoppable {
 
   /**
    * Closes underlying socket for this SDC connection.  Which shuts down the SDC agent.
+   * <p>
+   * When a drain time is configured, a new connection is opened first and this one is closed
+   * once the requests and socket sessions in flight on it are done, or the drain time is up.
+   * The server picks which connection carries new requests; until this one is closed, replies
+   * to what it already carries still go out over it.
    */
   @Override
   public void handleFailure() {
-    LOG.error("Closing SDC connection due to health check failure.");
-    // Will cause connect() to unblock.
-    this.shutdown();
+    if (localConf.getDrainSeconds() <= 0 || closing) {
+      LOG.error("Closing SDC connection due to health check failure.");
+      // Will cause connect() to unblock.
+      this.shutdown();
+      return;
+    }
+    LOG.error("Replacing SDC connection due to health check failure.");
+    final Thread handover = new Thread(getClass().getName() + "-handover") {
+      @Override
+      public void run() {
+        handover();
+      }
+    };
+    handover.setDaemon(true);
+    handover.start();
+  }
+
+  /**
+   * Opens a connection to take over from this one, drains this one and closes it.  Logs how
+   * long each phase took.
+   */
+  private void handover() {
+    final long start = clock.currentTimeMillis();
+    final long deadline = start + localConf.getDrainSeconds() * 1000L;
+    final SdcConnection next = connectionProvider.get();
+    synchronized (this) {
+      if (!dispatching || closing) {
+        // Lost or closed meanwhile; connect() returns on its own.
+        return;
+      }
+      replacement = next;
+    }
+    final Thread connector = new Thread(getClass().getName() + "-replacement") {
+      @Override
+      public void run() {
+        try {
+          next.connectTunnel();
+        } catch (ConnectionException e) {
+          LOG.warn("Replacement connection failed.", e);
+        } catch (RuntimeException e) {
+          LOG.error("Replacement connection died.", e);
+        }
+      }
+    };
+    connector.setDaemon(true);
+    connector.start();
+    boolean replaced;
+    try {
+      replaced = next.connected.await(Math.max(0, deadline - clock.currentTimeMillis()),
+          TimeUnit.MILLISECONDS) && next.isDispatching();
+    } catch (InterruptedException e) {
+      replaced = false;
+    }
+    if (!replaced) {
+      synchronized (this) {
+        replacement = null;
+      }
+      next.shutdown();
+      next.releaseTunnel();
+    }
+    final long connectedAt = clock.currentTimeMillis();
+
+    final boolean idle = drain(deadline);
+    final long drainedAt = clock.currentTimeMillis();
+    releaseTunnel();
+    LOG.info(String.format("Handed over SDC connection: %s %dms, drain %dms%s, close %dms.",
+        replaced ? "replace" : "replace failed after", connectedAt - start,
+        drainedAt - connectedAt, idle ? "" : " (deadline passed)",
+        clock.currentTimeMillis() - drainedAt));
+  }
+
+  private synchronized boolean isDispatching() {
+    return dispatching;
+  }
+
+  /**
+   * @return true if no requests, socket sessions or socks connections are in flight on this
+   *     connection and all its frames have been written.
+   */
+  boolean isIdle() {
+    return agentRequestHandler.getRequestsInFlight() == 0 &&
+        socketSessionRequestHandler.getSessionCount() == 0 &&
+        socksDataHandler.getConnectionCount() == 0 && !frameSender.hasQueuedFrames();
+  }
+
+  /**
+   * Waits for this connection to go idle.
+   *
+   * @param deadline the time to give up at, in the clock's milliseconds.
+   * @return true if it went idle, false if the deadline passed, it was closed or the wait was
+   *     interrupted.
+   */
+  boolean drain(final long deadline) {
+    while (!isIdle()) {
+      if (closing || clock.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      try {
+        Thread.sleep(DRAIN_POLL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
   }
   
+  /**
+   * @return the payload compressor negotiated by the last authorization, or null if none.
+   */
+  FrameCompressor getCompressor() {
+    return compressor;
+  }
+
   public boolean hasConnectedSuccessfully() {
-    return healthCheckHandler.hasHadAtleastOneSuccessfulHealthCheck();
+    final SdcConnection current = active;
+    return healthCheckHandler.hasHadAtleastOneSuccessfulHealthCheck() ||
+        (current != this && current.hasConnectedSuccessfully());
   }
   
 }
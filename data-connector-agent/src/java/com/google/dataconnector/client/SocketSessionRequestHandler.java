@@ -25,6 +25,7 @@ import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionVerb;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply.Status;
 import com.google.dataconnector.util.ClockUtil;
 import com.google.dataconnector.util.SdcKeysManager;
@@ -39,6 +40,12 @@ import org.apache.log4j.Logger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 
 /**
@@ -56,10 +63,16 @@ public class SocketSessionRequestHandler implements Dispatchable {
   private final SocketSessionManager sessionManager;
   private final Injector injector;
   private final ClockUtil clock;
+  private final ThreadPoolExecutor threadPoolExecutor;
 
   // Runtime Dependencies.
   private FrameSender frameSender;
   private Sink<SocketSessionData> tunnel;
+  // The session the cloud uses on this handler's connection; replies use its key.
+  private volatile String sessionId;
+  // Requests waiting for the one before them on the same session to be handled, by handle.
+  private final Map<ByteString, LinkedList<SessionRequest>> pendingRequests =
+      new HashMap<ByteString, LinkedList<SessionRequest>>();
   
   /**
    * A data sink of type T.  It's some interface that is able to receive the
@@ -67,29 +80,53 @@ public class SocketSessionRequestHandler implements Dispatchable {
    * @param <T> The transformed data type created from data from InputStream.
    */
   public interface Sink<T> {
-    public boolean receive(T data);
+    /**
+     * Takes the data without blocking, as it is called from an event loop.
+     * @param data The data.
+     * @param onSpace If the data is refused, run once it may be offered again.  It may also run
+     *     when there was room all along, so it must only try again.
+     * @return False if the tunnel is backed up and the data was not taken.
+     */
+    public boolean receive(T data, Runnable onSpace);
   }
   
   @Inject
   public SocketSessionRequestHandler(SdcKeysManager km, SocketSessionManager manager,
-      Injector injector, ClockUtil clock) {
+      Injector injector, ClockUtil clock, ThreadPoolExecutor threadPoolExecutor) {
     this.sdcKeysManager = km;
     this.sessionManager = manager;
     this.injector = injector;
     this.clock = clock;
+    this.threadPoolExecutor = threadPoolExecutor;
   }
 
   public final void setFrameSender(FrameSender frameSender) {
     this.frameSender = frameSender;
     this.tunnel = new Sink<SocketSessionData>() {
       @Override
-      public boolean receive(SocketSessionData message) {
-        return sendToCloud(message);
+      public boolean receive(SocketSessionData message, Runnable onSpace) {
+        return sendToCloud(message, onSpace);
       }
     };
   }
 
 
+  /**
+   * Closes the sessions opened through this handler, as their tunnel connection is gone.
+   */
+  public void closeSessions() {
+    if (tunnel != null) {
+      sessionManager.closeSessions(tunnel);
+    }
+  }
+
+  /**
+   * @return the number of sessions opened through this handler and not yet closed.
+   */
+  public int getSessionCount() {
+    return tunnel == null ? 0 : sessionManager.countSessions(tunnel);
+  }
+
   @Override
   public void dispatch(FrameInfo frameInfo) throws FramingException {
     // Session encryption: decrypt the message from the cloud:
@@ -97,12 +134,13 @@ public class SocketSessionRequestHandler implements Dispatchable {
       LOG.warn("Cannot decrypt message for fetch protocol: no session encryption.");
       return;
     }
-
+    final SessionEncryption encryption =
+        sdcKeysManager.getSessionEncryption(frameInfo.getSessionId());
 
     try {
 
       SocketSessionData dataFromTunnel = 
-        sdcKeysManager.getSessionEncryption().getFrom(frameInfo,
+        encryption.getFrom(frameInfo,
           new SessionEncryption.Parse<SocketSessionData>() {
           public SocketSessionData parse(ByteString s) throws InvalidProtocolBufferException {
             return SocketSessionData.parseFrom(s);
@@ -113,6 +151,7 @@ public class SocketSessionRequestHandler implements Dispatchable {
         LOG.warn("Cannot decrypt data from tunnel.  Dropping request.");
         return;
       }
+      sessionId = encryption.getSessionId();
       
       // This is the case where data is coming from the cloud.  This should
       // happen more frequently than the requests for connection / close.
@@ -124,13 +163,18 @@ public class SocketSessionRequestHandler implements Dispatchable {
       SocketSessionReply.Builder replyBuilder = null;
       try {
         request = 
-          sdcKeysManager.getSessionEncryption().getFrom(frameInfo,
+          encryption.getFrom(frameInfo,
               new SessionEncryption.Parse<SocketSessionRequest>() {
               public SocketSessionRequest parse(ByteString s) 
                 throws InvalidProtocolBufferException {
                 return SocketSessionRequest.parseFrom(s);
               }
           });
+        if (request == null) {
+          LOG.warn("Cannot decrypt request from tunnel.  Dropping request.");
+          return;
+        }
+        sessionId = encryption.getSessionId();
 
         replyBuilder = SocketSessionReply.newBuilder()
           .setSocketHandle(request.getSocketHandle())
@@ -139,11 +183,7 @@ public class SocketSessionRequestHandler implements Dispatchable {
           .setPort(request.getPort());
 
         long start = this.clock.currentTimeMillis();
-        handleSocketSessionRequest(request, replyBuilder);
-        replyBuilder.setLatency(this.clock.currentTimeMillis() - start);
-        SocketSessionReply reply = replyBuilder.build();
-        sendToCloud(reply);
-        this.sessionManager.notifySent(reply.getSocketHandle(), reply);
+        handleInOrder(new SessionRequest(request, replyBuilder, start));
       } catch (InvalidProtocolBufferException e2) {
         LOG.warn("Unknown message type: " + frameInfo.getType() +
             ":" + frameInfo);
@@ -153,6 +193,112 @@ public class SocketSessionRequestHandler implements Dispatchable {
     }
   }
   
+  /**
+   * Handles the request on the thread pool, as CREATE and CONNECT block on DNS and on connecting,
+   * so one unreachable host does not hold up frames for every other session and fetch.  The
+   * requests of a session are handled one at a time in the order they arrived, so a CLOSE never
+   * overtakes the CONNECT before it.
+   */
+  private void handleInOrder(final SessionRequest sessionRequest) {
+    final ByteString handle = sessionRequest.request.getSocketHandle();
+    synchronized (pendingRequests) {
+      LinkedList<SessionRequest> queue = pendingRequests.get(handle);
+      if (queue != null) {
+        // The session's handler thread picks it up.
+        queue.add(sessionRequest);
+        return;
+      }
+      queue = new LinkedList<SessionRequest>();
+      queue.add(sessionRequest);
+      pendingRequests.put(handle, queue);
+    }
+    try {
+      threadPoolExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          handlePending(handle);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      final List<SessionRequest> rejected;
+      synchronized (pendingRequests) {
+        rejected = pendingRequests.remove(handle);
+      }
+      for (final SessionRequest pending : rejected) {
+        pending.reject();
+      }
+    }
+  }
+
+  /**
+   * Handles the session's queued requests until there are none left.
+   */
+  private void handlePending(final ByteString handle) {
+    while (true) {
+      final SessionRequest next;
+      synchronized (pendingRequests) {
+        final LinkedList<SessionRequest> queue = pendingRequests.get(handle);
+        if (queue.isEmpty()) {
+          pendingRequests.remove(handle);
+          return;
+        }
+        next = queue.removeFirst();
+      }
+      try {
+        next.run();
+      } catch (RuntimeException e) {
+        LOG.error(handle.toStringUtf8() + ": " + next.request.getVerb() + " failed.", e);
+      }
+    }
+  }
+
+  /**
+   * Sends the reply, timed from when its request was dispatched.
+   */
+  private void sendReply(SocketSessionReply.Builder replyBuilder, long start) {
+    replyBuilder.setLatency(this.clock.currentTimeMillis() - start);
+    SocketSessionReply reply = replyBuilder.build();
+    sendToCloud(reply);
+    this.sessionManager.notifySent(reply.getSocketHandle(), reply);
+  }
+
+  /**
+   * A request waiting to be handled, with its reply.
+   */
+  private class SessionRequest implements Runnable {
+    private final SocketSessionRequest request;
+    private final SocketSessionReply.Builder replyBuilder;
+    private final long start;
+
+    SessionRequest(SocketSessionRequest request, SocketSessionReply.Builder replyBuilder,
+        long start) {
+      this.request = request;
+      this.replyBuilder = replyBuilder;
+      this.start = start;
+    }
+
+    @Override
+    public void run() {
+      handleSocketSessionRequest(request, replyBuilder);
+      sendReply(replyBuilder, start);
+    }
+
+    /**
+     * Answers the request when there is no thread to handle it.  A CLOSE does not block, so it
+     * is still handled rather than leaving the session open.
+     */
+    void reject() {
+      if (request.getVerb() == SocketSessionVerb.CLOSE) {
+        run();
+        return;
+      }
+      LOG.warn(request.getSocketHandle().toStringUtf8() + ": Out of threads for " +
+          request.getVerb());
+      replyBuilder.setStatus(Status.ERROR);
+      sendReply(replyBuilder, start);
+    }
+  }
+
   protected void handleSocketSessionRequest(SocketSessionRequest request,
       SocketSessionReply.Builder replyBuilder) {
     LOG.debug(String.format("SocketSessionRequest handle=%s,verb=%s", 
@@ -170,7 +316,7 @@ public class SocketSessionRequestHandler implements Dispatchable {
           // Now create the session:
           boolean success = this.sessionManager.createSession(
               this.tunnel,
-              request.getSocketHandle(), endpoint);
+              request.getSocketHandle(), endpoint, frameSender.getFlowControlWindow());
           if (success) {
             replyBuilder.setStatus(Status.OK);
           } else {
@@ -199,10 +345,16 @@ public class SocketSessionRequestHandler implements Dispatchable {
   }
   
   protected void handleSocketSessionData(SocketSessionData data) {
+    if (data.hasWindowUpdate()) {
+      this.sessionManager.grant(data.getSocketHandle(), data.getWindowUpdate());
+      if (!data.hasData()) {
+        return;
+      }
+    }
     LOG.debug("WRITE " + data.getData().size() + " bytes, data = [" +
         new String(data.getData().toByteArray()) + "]");
     this.sessionManager.write(data.getSocketHandle(), data.getData().toByteArray(),
-        data.getStreamOffset());
+        data.hasStreamOffset() ? data.getStreamOffset() : -1);
   }
   
   private InetSocketAddress resolve(ByteString handle, String hostname, int port) {
@@ -233,22 +385,42 @@ public class SocketSessionRequestHandler implements Dispatchable {
         ", latency=" + reply.getLatency());
     LOG.debug("Sending reply =" + reply);
     
-    FrameInfo frame = this.sdcKeysManager.getSessionEncryption().toFrameInfo(
+    FrameInfo frame = this.sdcKeysManager.getSessionEncryption(sessionId).toFrameInfo(
         FrameInfo.Type.SOCKET_SESSION, reply);
-
-    frameSender.sendFrame(FrameInfo.Type.SOCKET_SESSION, reply.toByteString());
+    if (frame == null) {
+      return false;
+    }
+    frameSender.sendFrame(frame, streamKey(reply.getSocketHandle()), null);
     return true;
   }
   
   /**
-   * Asynchronously sends data to the cloud.
+   * Asynchronously sends data to the cloud without waiting for room in the send queue.
    * @param data The data.
+   * @param onSpace Run once the send queue drains if the data is refused.
+   * @return False if the send queue is full and the data was not taken.  Data that cannot be
+   *     encrypted is dropped, as trying again would not help.
    */
-  boolean sendToCloud(SocketSessionData data) {
+  boolean sendToCloud(SocketSessionData data, Runnable onSpace) {
     Preconditions.checkNotNull(frameSender);
+    if (!this.sdcKeysManager.hasSessionEncryption()) {
+      LOG.warn("Cannot encrypt data for socket session: no session encryption. Not sent.");
+      return true;
+    }
     LOG.debug("DATA: handle=" + data.getSocketHandle().toStringUtf8() +
         ", offset=" + data.getStreamOffset() + ", data=" + data.getData().toStringUtf8());
-    frameSender.sendFrame(FrameInfo.Type.SOCKET_SESSION, data.toByteString());
-    return true;
+    FrameInfo frame = this.sdcKeysManager.getSessionEncryption(sessionId).toFrameInfo(
+        FrameInfo.Type.SOCKET_SESSION, data);
+    if (frame == null) {
+      return true;
+    }
+    return frameSender.offerFrame(frame, streamKey(data.getSocketHandle()), onSpace);
+  }
+
+  /**
+   * @return the send queue stream of a session, as its encrypted frames cannot be looked into.
+   */
+  private static String streamKey(ByteString handle) {
+    return "session:" + handle.toStringUtf8();
   }
 }
@@ -18,9 +18,12 @@ package com.google.dataconnector.client;
 
 import com.google.dataconnector.protocol.ConnectorStateCallback;
 import com.google.dataconnector.protocol.Dispatchable;
+import com.google.dataconnector.protocol.EventLoopGroup;
+import com.google.dataconnector.protocol.FlowControlWindow;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.FramingException;
 import com.google.dataconnector.protocol.InputStreamConnector;
+import com.google.dataconnector.protocol.NioSocketConnector;
 import com.google.dataconnector.protocol.OutputStreamConnector;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
@@ -39,6 +42,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -50,6 +54,11 @@ import javax.net.SocketFactory;
 /**
  * Handler for all incoming socket connections from the cloud.  Listens for new
  * {@link SocketDataInfo} frames and handles plumbing connections to the local socks server.
+ * Connections are serviced by {@link NioSocketConnector}s on the shared event loop threads or,
+ * if {@link LocalConf#getUseNioSocks()} is off, by a pair of connector threads each.  Incoming
+ * segments are never waited on: a connection whose output queue is full, or whose otherside
+ * overruns its flow control window, is closed rather than stalling the frame receiver for every
+ * other connection.
  *
  * @author rayc@google.com (Ray Colline)
  */
@@ -63,12 +72,16 @@ public class SocksDataHandler implements Dispatchable {
   private final InetAddress localHostAddress;
   private final ThreadPoolExecutor threadPoolExecutor;
   private final Injector injector;
+  private final EventLoopGroup eventLoopGroup;
 
   // Runtime dependencies
   private FrameSender frameSender;
 
   // Local fields
   private final ConcurrentMap<Long, BlockingQueue<SocketDataInfo>> outputQueueMap;
+  private final ConcurrentMap<Long, FlowControlWindow> sendWindowMap;
+  private final ConcurrentMap<Long, FlowControlWindow> receiveWindowMap;
+  private final ConcurrentMap<Long, NioSocketConnector> nioConnectorMap;
 
   public interface ConnectionStateUpdatable {
      public void removeConnection(final long connectionId);
@@ -77,14 +90,19 @@ public class SocksDataHandler implements Dispatchable {
   @Inject
   public SocksDataHandler(final LocalConf localConf, final SocketFactory socketFactory,
       final @Named("localhost") InetAddress localHostAddress,
-      final ThreadPoolExecutor threadPoolExecutor, final Injector injector) {
+      final ThreadPoolExecutor threadPoolExecutor, final Injector injector,
+      final EventLoopGroup eventLoopGroup) {
 
     outputQueueMap = new ConcurrentHashMap<Long, BlockingQueue<SocketDataInfo>>();
+    sendWindowMap = new ConcurrentHashMap<Long, FlowControlWindow>();
+    receiveWindowMap = new ConcurrentHashMap<Long, FlowControlWindow>();
+    nioConnectorMap = new ConcurrentHashMap<Long, NioSocketConnector>();
     this.localConf = localConf;
     this.socketFactory = socketFactory;
     this.localHostAddress = localHostAddress;
     this.threadPoolExecutor = threadPoolExecutor;
     this.injector = injector;
+    this.eventLoopGroup = eventLoopGroup;
   }
 
   /**
@@ -105,38 +123,21 @@ public class SocksDataHandler implements Dispatchable {
       // Handle incoming start request.
       if (socketDataInfo.getState() == SocketDataInfo.State.START) {
         LOG.info("Starting new connection. ID " + connectionId);
-        final Socket socket = socketFactory.createSocket();
-        socket.connect(new InetSocketAddress(localHostAddress, localConf.getSocksServerPort()));
-
-        final ConnectionRemover connectionRemoverCallback = new ConnectionRemover();
-
-        // TODO(rayc) Create a pool of connectors instead of making a new instance each time.
-        final InputStreamConnector inputStreamConnector =
-            injector.getInstance(InputStreamConnector.class);
-        inputStreamConnector.setConnectionId(connectionId);
-        inputStreamConnector.setInputStream(socket.getInputStream());
-        inputStreamConnector.setFrameSender(frameSender);
-        inputStreamConnector.setConnectorStateCallback(connectionRemoverCallback);
-        inputStreamConnector.setName("Inputconnector-" + connectionId);
-
-        // TODO(rayc) Create a pool of connectors instead of making a new instance each time.
-        final OutputStreamConnector outputStreamConnector =
-            injector.getInstance(OutputStreamConnector.class);
-        outputStreamConnector.setConnectionId(connectionId);
-        outputStreamConnector.setOutputStream(socket.getOutputStream());
-        outputStreamConnector.setConnectorStateCallback(connectionRemoverCallback);
-        outputStreamConnector.setName("Outputconnector-" + connectionId);
-        outputQueueMap.put(connectionId, outputStreamConnector.getQueue());
-
-        // Start threads
-        threadPoolExecutor.execute(inputStreamConnector);
-        threadPoolExecutor.execute(outputStreamConnector);
-        LOG.debug("active thread count = " + Thread.activeCount());
+        if (localConf.getUseNioSocks()) {
+          startNioConnector(connectionId);
+        } else {
+          startStreamConnectors(connectionId);
+        }
       // Deal with continuing connections or close connections.
       } else if (socketDataInfo.getState() == SocketDataInfo.State.CONTINUE ||
           socketDataInfo.getState() == SocketDataInfo.State.CLOSE) {
-        if (outputQueueMap.containsKey(socketDataInfo.getConnectionId())) {
-          outputQueueMap.get(connectionId).put(socketDataInfo);
+        final BlockingQueue<SocketDataInfo> outputQueue = outputQueueMap.get(connectionId);
+        if (outputQueue != null) {
+          queueSegment(connectionId, outputQueue, socketDataInfo);
+          final NioSocketConnector nioSocketConnector = nioConnectorMap.get(connectionId);
+          if (nioSocketConnector != null) {
+            nioSocketConnector.wakeup();
+          }
         }
       // Unknown states.
       } else {
@@ -149,12 +150,127 @@ public class SocksDataHandler implements Dispatchable {
       // TODO(rayc) Later on do something more intelligent such as reject this request not kill
       // the tunnel.
       throw new FramingException(e);
-    } catch (InterruptedException e) {
-      throw new FramingException(e);
-    } catch (RejectedExecutionException e){
-      LOG.warn("Out of threads, waiting for some to free up.  Total active " +
+    }
+  }
+
+  /**
+   * Plumbs a connection to the socks server serviced by the shared event loop threads.
+   */
+  private void startNioConnector(final long connectionId) throws IOException {
+    final SocketChannel socketChannel = SocketChannel.open();
+    try {
+      socketChannel.connect(new InetSocketAddress(localHostAddress,
+          localConf.getSocksServerPort()));
+    } catch (IOException e) {
+      socketChannel.close();
+      throw e;
+    }
+
+    final NioSocketConnector nioSocketConnector = injector.getInstance(NioSocketConnector.class);
+    nioSocketConnector.setConnectionId(connectionId);
+    nioSocketConnector.setSocketChannel(socketChannel);
+    nioSocketConnector.setFrameSender(frameSender);
+    nioSocketConnector.setConnectorStateCallback(new ConnectionRemover());
+    outputQueueMap.put(connectionId, nioSocketConnector.getQueue());
+    nioConnectorMap.put(connectionId, nioSocketConnector);
+
+    // Flow control is only used if it was negotiated at this connection's registration.
+    final FlowControlWindow sendWindow = frameSender.newFlowControlWindow();
+    if (sendWindow != null) {
+      final FlowControlWindow receiveWindow = frameSender.newFlowControlWindow();
+      nioSocketConnector.setWindows(sendWindow, receiveWindow);
+      sendWindowMap.put(connectionId, sendWindow);
+      receiveWindowMap.put(connectionId, receiveWindow);
+    }
+    nioSocketConnector.start(eventLoopGroup.next());
+  }
+
+  /**
+   * Plumbs a connection to the socks server serviced by a reader and a writer thread.  If the
+   * thread pool is exhausted only this connection is refused; the tunnel carries on.
+   */
+  private void startStreamConnectors(final long connectionId) throws IOException {
+    final Socket socket = socketFactory.createSocket();
+    socket.connect(new InetSocketAddress(localHostAddress, localConf.getSocksServerPort()));
+
+    final ConnectionRemover connectionRemoverCallback = new ConnectionRemover();
+
+    // TODO(rayc) Create a pool of connectors instead of making a new instance each time.
+    final InputStreamConnector inputStreamConnector =
+        injector.getInstance(InputStreamConnector.class);
+    inputStreamConnector.setConnectionId(connectionId);
+    inputStreamConnector.setInputStream(socket.getInputStream());
+    inputStreamConnector.setFrameSender(frameSender);
+    inputStreamConnector.setConnectorStateCallback(connectionRemoverCallback);
+    inputStreamConnector.setName("Inputconnector-" + connectionId);
+
+    // TODO(rayc) Create a pool of connectors instead of making a new instance each time.
+    final OutputStreamConnector outputStreamConnector =
+        injector.getInstance(OutputStreamConnector.class);
+    outputStreamConnector.setConnectionId(connectionId);
+    outputStreamConnector.setOutputStream(socket.getOutputStream());
+    outputStreamConnector.setConnectorStateCallback(connectionRemoverCallback);
+    outputStreamConnector.setName("Outputconnector-" + connectionId);
+    outputQueueMap.put(connectionId, outputStreamConnector.getQueue());
+
+    // Flow control is only used if it was negotiated at this connection's registration.
+    final FlowControlWindow sendWindow = frameSender.newFlowControlWindow();
+    if (sendWindow != null) {
+      final FlowControlWindow receiveWindow = frameSender.newFlowControlWindow();
+      inputStreamConnector.setSendWindow(sendWindow);
+      outputStreamConnector.setReceiveWindow(receiveWindow, frameSender);
+      sendWindowMap.put(connectionId, sendWindow);
+      receiveWindowMap.put(connectionId, receiveWindow);
+    }
+
+    // Start threads
+    boolean inputStarted = false;
+    try {
+      threadPoolExecutor.execute(inputStreamConnector);
+      inputStarted = true;
+      threadPoolExecutor.execute(outputStreamConnector);
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Out of threads, refusing connection " + connectionId + ".  Total active " +
           threadPoolExecutor.getActiveCount() + " queue Map entries" + outputQueueMap.size());
-      throw new FramingException("Out of threads!");
+      connectionRemoverCallback.close(connectionId);
+      // Closing the socket makes a running input thread send the CLOSE for us.
+      socket.close();
+      if (!inputStarted) {
+        frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(SocketDataInfo.State.CLOSE)
+            .build().toByteString());
+      }
+      return;
+    }
+    LOG.debug("active thread count = " + Thread.activeCount());
+  }
+
+  /**
+   * Applies any window update and hands the segment to the connection's output thread without
+   * blocking.
+   */
+  private void queueSegment(final long connectionId,
+      final BlockingQueue<SocketDataInfo> outputQueue, final SocketDataInfo socketDataInfo) {
+    if (socketDataInfo.hasWindowUpdate()) {
+      final FlowControlWindow sendWindow = sendWindowMap.get(connectionId);
+      if (sendWindow != null) {
+        sendWindow.grant(socketDataInfo.getWindowUpdate());
+      }
+      // A bare window update carries nothing for the output thread.
+      if (socketDataInfo.getState() == SocketDataInfo.State.CONTINUE &&
+          !socketDataInfo.hasSegment()) {
+        return;
+      }
+    }
+
+    final FlowControlWindow receiveWindow = receiveWindowMap.get(connectionId);
+    if (receiveWindow != null && !receiveWindow.reserve(socketDataInfo.getSegment().size())) {
+      LOG.warn("Connection " + connectionId + " overran its flow control window, closing.");
+      new ConnectionRemover().close(connectionId);
+    } else if (!outputQueue.offer(socketDataInfo)) {
+      LOG.warn("Output queue full for connection " + connectionId + ", closing.");
+      new ConnectionRemover().close(connectionId);
     }
   }
 
@@ -162,6 +278,14 @@ public class SocksDataHandler implements Dispatchable {
     this.frameSender = frameSender;
   }
 
+  /**
+   * @return the number of connections to the socks server opened through this handler and not
+   *     yet closed.
+   */
+  public int getConnectionCount() {
+    return outputQueueMap.size();
+  }
+
   /**
    * Provides callback for InputStreamConnector and OutputStreamConnector for when connection state
    * changes on input or output streams.
@@ -178,12 +302,27 @@ public class SocksDataHandler implements Dispatchable {
       // We never know if the input or output side will detect closure first.
       // We defensively call from both sides.  In the event we are called twice we check to see
       // if we have already cleaned up.
-      if (outputQueueMap.containsKey(connectionId)) {
-        // We tell the output thread to give up by placing a final CLOSE SocketData.
-        outputQueueMap.get(connectionId).add(SocketDataInfo.newBuilder()
+      final BlockingQueue<SocketDataInfo> outputQueue = outputQueueMap.remove(connectionId);
+      if (outputQueue != null) {
+        // We tell the output thread to give up by placing a final CLOSE SocketData.  If the
+        // queue is full the connection is being torn down anyway, so drop what is buffered.
+        final SocketDataInfo closeSocketDataInfo = SocketDataInfo.newBuilder()
             .setState(SocketDataInfo.State.CLOSE)
-            .setConnectionId(connectionId).build());
-        outputQueueMap.remove(connectionId);
+            .setConnectionId(connectionId).build();
+        if (!outputQueue.offer(closeSocketDataInfo)) {
+          outputQueue.clear();
+          outputQueue.offer(closeSocketDataInfo);
+        }
+      }
+      receiveWindowMap.remove(connectionId);
+      final FlowControlWindow sendWindow = sendWindowMap.remove(connectionId);
+      if (sendWindow != null) {
+        // Lets the input thread stop waiting for credit that will never come.
+        sendWindow.close();
+      }
+      final NioSocketConnector nioSocketConnector = nioConnectorMap.remove(connectionId);
+      if (nioSocketConnector != null) {
+        nioSocketConnector.wakeup();
       }
     }
   }
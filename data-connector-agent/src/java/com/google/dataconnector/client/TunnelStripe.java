@@ -0,0 +1,128 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.util.ConnectionException;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.dataconnector.util.Stoppable;
+import com.google.inject.Provider;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps one tunnel connection to the server open, reconnecting with back off whenever it is
+ * lost.  The {@link Client} keeps the first connection on its own thread, see
+ * {@link #keepConnected(boolean)}, and starts a thread for each further one.  Each connection
+ * authorizes and registers on its own and has its own frame sequence, and the server answers
+ * requests on the connection it sent them on, so a stalled or lost connection only holds up or
+ * fails what it was carrying.
+ */
+class TunnelStripe extends Thread implements Stoppable {
+
+  private static final Logger LOG = Logger.getLogger(TunnelStripe.class);
+
+  // Dependencies
+  private final Provider<SdcConnection> connectionProvider;
+
+  // Local fields
+  private volatile boolean stopped = false;
+  private volatile SdcConnection connection;
+  private volatile Thread runner;
+
+  /**
+   * @param index the number of this connection, for logging.
+   * @param connectionProvider provides a new connection for each attempt.
+   * @param shutdownManager stops this when the agent shuts down.
+   */
+  TunnelStripe(final int index, final Provider<SdcConnection> connectionProvider,
+      final ShutdownManager shutdownManager) {
+    this.connectionProvider = connectionProvider;
+    setName(getClass().getName() + "-" + index);
+    setDaemon(true);
+    shutdownManager.addStoppable(this);
+  }
+
+  @Override
+  public void run() {
+    keepConnected(false);
+  }
+
+  /**
+   * Connects and reconnects on the calling thread until stopped.
+   *
+   * @param startOnce whether to give up, rather than back off and retry, when an attempt to
+   * connect fails.
+   * @return true if the last connection made was up.
+   */
+  boolean keepConnected(final boolean startOnce) {
+    runner = Thread.currentThread();
+    long unsuccessfulAttempts = 0;
+    boolean connectedSuccessfully = false;
+    while (!stopped) {
+      if (unsuccessfulAttempts > 0) {
+        final long backOffTime = Client.getBackOffTime(unsuccessfulAttempts);
+        LOG.info(getName() + ": Reconnecting in " + backOffTime + " milliseconds.");
+        try {
+          Thread.sleep(backOffTime);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      final SdcConnection current = connectionProvider.get();
+      connection = current;
+      try {
+        if (!stopped) {
+          current.connect();
+        }
+      } catch (ConnectionException e) {
+        LOG.warn(getName() + ": Connection failed.", e);
+      } catch (RuntimeException e) { // Keep the agent's other connections up.
+        LOG.error(getName() + ": Connection died.", e);
+      } finally {
+        // Only what this connection carried is lost.
+        current.release();
+      }
+      connectedSuccessfully = current.hasConnectedSuccessfully();
+      if (connectedSuccessfully) {
+        unsuccessfulAttempts = 0;
+      } else if (startOnce) {
+        LOG.info(getName() + ": Configured only to start once. Quitting!");
+        break;
+      } else {
+        unsuccessfulAttempts++;
+      }
+    }
+    LOG.info(getName() + ": Stopped.");
+    return connectedSuccessfully;
+  }
+
+  /**
+   * Closes the connection and stops reconnecting.
+   */
+  @Override
+  public void shutdown() {
+    stopped = true;
+    final Thread thread = runner;
+    if (thread != null && thread != Thread.currentThread()) {
+      thread.interrupt();
+    }
+    final SdcConnection current = connection;
+    if (current != null) {
+      current.shutdown();
+    }
+  }
+}
@@ -0,0 +1,420 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.fetchrequest;
+
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.dataconnector.util.Stoppable;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.nio.DefaultClientIOEventDispatch;
+import org.apache.http.impl.nio.SSLClientIOEventDispatch;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.SSLIOSession;
+import org.apache.http.impl.nio.reactor.SSLIOSessionHandler;
+import org.apache.http.nio.NHttpClientHandler;
+import org.apache.http.nio.NHttpConnection;
+import org.apache.http.nio.protocol.BufferingHttpClientHandler;
+import org.apache.http.nio.protocol.HttpRequestExecutionHandler;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestExpectContinue;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.RequestUserAgent;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Non-blocking HTTP client for {@link AsyncHttpStrategy}.  Requests are written and responses
+ * read by a few HttpCore NIO reactor threads, one reactor for plain and one for SSL connections,
+ * so in-flight fetches do not hold a thread each.  Each request gets its own connection, which
+ * is closed once the response has been read.  Responses are buffered and handed to the caller's
+ * {@link ResponseCallback} on a reactor thread.
+ * <p>
+ * SSL server certificates are checked against the request's host name the same way
+ * {@link HttpFetchStrategy} checks them.
+ * <p>
+ * The reactors are started on first use with {@link LocalConf#getAsyncHttpThreads()} threads.
+ */
+@Singleton
+public class AsyncHttpClient implements Stoppable {
+
+  private static final Logger LOG = Logger.getLogger(AsyncHttpClient.class);
+
+  static final int CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+  static final int SOCKET_TIMEOUT_MILLIS = 120 * 1000;
+  static final int SOCKET_BUFFER_SIZE = 8 * 1024;
+
+  private static final String EXCHANGE = "sdc.exchange";
+
+  /**
+   * Receives the outcome of a request.  Exactly one method is called, on a reactor thread, so
+   * it should hand anything slow to another thread.
+   */
+  public interface ResponseCallback {
+
+    /**
+     * @param response the response with its entity buffered.
+     */
+    public void completed(HttpResponse response);
+
+    /**
+     * @param e why the request failed.
+     */
+    public void failed(Exception e);
+  }
+
+  // Injected dependencies
+  private final LocalConf localConf;
+  private final ShutdownManager shutdownManager;
+
+  // Local fields
+  private final SSLContext sslContext;
+  private ConnectingIOReactor plainReactor;
+  private ConnectingIOReactor sslReactor;
+
+  @Inject
+  public AsyncHttpClient(final LocalConf localConf, final ShutdownManager shutdownManager) {
+    this(localConf, shutdownManager, null);
+  }
+
+  /**
+   * @param sslContext the context for SSL connections, or null for the JVM default.
+   */
+  // visible for testing.
+  AsyncHttpClient(final LocalConf localConf, final ShutdownManager shutdownManager,
+      final SSLContext sslContext) {
+    this.localConf = localConf;
+    this.shutdownManager = shutdownManager;
+    this.sslContext = sslContext;
+  }
+
+  /**
+   * Starts sending the request.  Returns without waiting for the connection.
+   *
+   * @param target the server, with "https" as scheme name for SSL.
+   * @param request the request, with the path as its URI.
+   * @param callback receives the response.
+   */
+  public void execute(final HttpHost target, final HttpRequest request,
+      final ResponseCallback callback) {
+    final Exchange exchange = new Exchange(target, request, callback);
+    final ConnectingIOReactor reactor;
+    try {
+      reactor = getReactor("https".equalsIgnoreCase(target.getSchemeName()));
+    } catch (IOException e) {
+      exchange.failed(e);
+      return;
+    }
+    reactor.connect(new InetSocketAddress(target.getHostName(), target.getPort()), null,
+        exchange, exchange).setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+  }
+
+  private synchronized ConnectingIOReactor getReactor(final boolean ssl) throws IOException {
+    if (plainReactor == null) {
+      final HttpParams params = new BasicHttpParams();
+      HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MILLIS);
+      HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MILLIS);
+      HttpConnectionParams.setTcpNoDelay(params, true);
+      HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+
+      final BasicHttpProcessor httpProcessor = new BasicHttpProcessor();
+      httpProcessor.addInterceptor(new RequestContent());
+      httpProcessor.addInterceptor(new RequestTargetHost());
+      httpProcessor.addInterceptor(new RequestConnControl());
+      httpProcessor.addInterceptor(new RequestUserAgent());
+      httpProcessor.addInterceptor(new RequestExpectContinue());
+      final BufferingHttpClientHandler handler = new BufferingHttpClientHandler(httpProcessor,
+          new ExchangeHandler(), new DefaultConnectionReuseStrategy(), params);
+
+      SSLContext context = sslContext;
+      if (context == null) {
+        try {
+          context = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+          throw new IOException("No SSL support: " + e.getMessage());
+        }
+      }
+      final int threads = Math.max(1, localConf.getAsyncHttpThreads());
+      plainReactor = start("AsyncHttp-plain",
+          new DefaultConnectingIOReactor(threads, new DaemonThreadFactory("AsyncHttp-plain-"),
+              params),
+          new DefaultClientIOEventDispatch(handler, params));
+      sslReactor = start("AsyncHttp-ssl",
+          new DefaultConnectingIOReactor(threads, new DaemonThreadFactory("AsyncHttp-ssl-"),
+              params),
+          new HostVerifyingIOEventDispatch(handler, context, params));
+      shutdownManager.addStoppable(this);
+      LOG.info("Started non-blocking HTTP client with " + threads + " threads per reactor.");
+    }
+    return ssl ? sslReactor : plainReactor;
+  }
+
+  private ConnectingIOReactor start(final String name, final ConnectingIOReactor reactor,
+      final IOEventDispatch dispatch) {
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          reactor.execute(dispatch);
+        } catch (IOException e) {
+          LOG.warn(name + ": Reactor stopped.", e);
+        } finally {
+          stopped(reactor);
+        }
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+    return reactor;
+  }
+
+  /**
+   * Drops both reactors if one of them stopped on its own, so the next request starts over.
+   */
+  private synchronized void stopped(final ConnectingIOReactor reactor) {
+    if (reactor == plainReactor || reactor == sslReactor) {
+      shutdown();
+    }
+  }
+
+  /**
+   * Stops the reactors, closing all connections.  The next request starts new ones.
+   */
+  @Override
+  public synchronized void shutdown() {
+    if (plainReactor == null) {
+      return;
+    }
+    try {
+      plainReactor.shutdown();
+      sslReactor.shutdown();
+    } catch (IOException e) {
+      LOG.warn("Error stopping non-blocking HTTP client", e);
+    }
+    plainReactor = null;
+    sslReactor = null;
+  }
+
+  /**
+   * Names the reactor's I/O threads and keeps them from holding up exit.
+   */
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(final String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  /**
+   * Gives each SSL connection a {@link HostVerifier} for the host of the request it carries.
+   */
+  private static class HostVerifyingIOEventDispatch extends SSLClientIOEventDispatch {
+
+    HostVerifyingIOEventDispatch(final NHttpClientHandler handler, final SSLContext sslContext,
+        final HttpParams params) {
+      super(handler, sslContext, params);
+    }
+
+    @Override
+    protected SSLIOSession createSSLIOSession(final IOSession session,
+        final SSLContext sslContext, final SSLIOSessionHandler sslHandler) {
+      final Exchange exchange = (Exchange) session.getAttribute(IOSession.ATTACHMENT_KEY);
+      return super.createSSLIOSession(session, sslContext,
+          new HostVerifier(exchange.target.getHostName()));
+    }
+  }
+
+  /**
+   * Turns on the engine's HTTPS endpoint identification and, once the handshake is done,
+   * checks the server certificate against the host with the verifier {@link HttpFetchStrategy}
+   * uses.  A mismatch fails the connection before the request is sent.
+   */
+  static class HostVerifier implements SSLIOSessionHandler {
+    private final String host;
+
+    HostVerifier(final String host) {
+      this.host = host;
+    }
+
+    @Override
+    public void initalize(final SSLEngine sslEngine, final HttpParams params) {
+      final SSLParameters sslParameters = sslEngine.getSSLParameters();
+      sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+      sslEngine.setSSLParameters(sslParameters);
+    }
+
+    @Override
+    public void verify(final SocketAddress remoteAddress, final SSLSession session)
+        throws SSLException {
+      final Certificate[] certificates = session.getPeerCertificates();
+      if (certificates.length == 0 || !(certificates[0] instanceof X509Certificate)) {
+        throw new SSLPeerUnverifiedException("No X.509 certificate from " + host);
+      }
+      SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER.verify(host,
+          (X509Certificate) certificates[0]);
+    }
+  }
+
+  /**
+   * One request and its outcome.  Also hears about connection failures.
+   */
+  private static class Exchange implements SessionRequestCallback {
+    final HttpHost target;
+    final HttpRequest request;
+    final ResponseCallback callback;
+    final AtomicBoolean done = new AtomicBoolean(false);
+    boolean submitted = false; // only touched on the connection's reactor thread.
+
+    Exchange(final HttpHost target, final HttpRequest request, final ResponseCallback callback) {
+      this.target = target;
+      this.request = request;
+      this.callback = callback;
+    }
+
+    void completed(final HttpResponse response) {
+      if (done.compareAndSet(false, true)) {
+        try {
+          callback.completed(response);
+        } catch (RuntimeException e) {
+          // Must not reach the reactor, which would stop and drop every other connection.
+          LOG.warn("Response callback for " + target + " failed", e);
+        }
+      }
+    }
+
+    void failed(final Exception e) {
+      if (done.compareAndSet(false, true)) {
+        try {
+          callback.failed(e);
+        } catch (RuntimeException callbackException) {
+          LOG.warn("Failure callback for " + target + " failed", callbackException);
+        }
+      }
+    }
+
+    @Override
+    public void completed(final SessionRequest sessionRequest) {
+      // The handler takes over from here.
+    }
+
+    @Override
+    public void failed(final SessionRequest sessionRequest) {
+      failed(sessionRequest.getException() != null ? sessionRequest.getException() :
+          new IOException("Connect to " + target + " failed"));
+    }
+
+    @Override
+    public void timeout(final SessionRequest sessionRequest) {
+      failed(new IOException("Connect to " + target + " timed out"));
+    }
+
+    @Override
+    public void cancelled(final SessionRequest sessionRequest) {
+      failed(new IOException("Connect to " + target + " cancelled"));
+    }
+  }
+
+  /**
+   * Sends each connection's single request and reports its response.
+   */
+  private static class ExchangeHandler implements HttpRequestExecutionHandler {
+
+    @Override
+    public void initalizeContext(final HttpContext context, final Object attachment) {
+      final Exchange exchange = (Exchange) attachment;
+      context.setAttribute(EXCHANGE, exchange);
+      context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, exchange.target);
+    }
+
+    @Override
+    public HttpRequest submitRequest(final HttpContext context) {
+      final Exchange exchange = (Exchange) context.getAttribute(EXCHANGE);
+      if (exchange == null || exchange.submitted) {
+        return null;
+      }
+      exchange.submitted = true;
+      return exchange.request;
+    }
+
+    @Override
+    public void handleResponse(final HttpResponse response, final HttpContext context)
+        throws IOException {
+      final Exchange exchange = (Exchange) context.getAttribute(EXCHANGE);
+      try {
+        exchange.completed(response);
+      } finally {
+        final NHttpConnection connection =
+            (NHttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if (connection != null) {
+          connection.close();
+        }
+      }
+    }
+
+    @Override
+    public void finalizeContext(final HttpContext context) {
+      final Exchange exchange = (Exchange) context.getAttribute(EXCHANGE);
+      if (exchange != null) {
+        exchange.failed(new IOException("Connection to " + exchange.target +
+            " closed before a response"));
+      }
+    }
+  }
+}
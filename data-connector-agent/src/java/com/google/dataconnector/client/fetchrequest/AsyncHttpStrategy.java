@@ -0,0 +1,190 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.fetchrequest;
+
+import com.google.dataconnector.client.FetchRequestHandler.AsyncStrategy;
+import com.google.dataconnector.client.FetchRequestHandler.FetchCallback;
+import com.google.dataconnector.client.StrategyException;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.inject.Inject;
+import com.google.protobuf.ByteString;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches with the non-blocking {@link AsyncHttpClient}.  The request is handed to the client's
+ * reactor threads and the reply is built in the completion callback, so a slow server does not
+ * hold a pool thread for the duration of the fetch.  Selected by the "AsyncHttp" strategy name.
+ */
+public class AsyncHttpStrategy implements AsyncStrategy {
+
+  private static final Logger LOG = Logger.getLogger(AsyncHttpStrategy.class);
+
+  // Injected dependencies.
+  private final AsyncHttpClient asyncHttpClient;
+
+  @Inject
+  public AsyncHttpStrategy(AsyncHttpClient asyncHttpClient) {
+    this.asyncHttpClient = asyncHttpClient;
+  }
+
+  /**
+   * Starts the fetch and returns.  The callback gets the reply on a reactor thread, so it
+   * should not block.
+   *
+   * @param request The request.
+   * @param callback Receives the reply or the failure.
+   */
+  @Override
+  public void start(final FetchRequest request, final FetchCallback callback) {
+    final HttpHost target;
+    final HttpRequest httpRequest;
+    try {
+      URL url = new URL(request.getResource());
+      int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+      target = new HttpHost(url.getHost(), port, url.getProtocol());
+      httpRequest = getRequest(request, url);
+    } catch (MalformedURLException e) {
+      callback.failed(new StrategyException(request.getId() + ": bad url.", e));
+      return;
+    }
+
+    asyncHttpClient.execute(target, httpRequest, new AsyncHttpClient.ResponseCallback() {
+      @Override
+      public void completed(HttpResponse response) {
+        FetchReply.Builder replyBuilder = FetchReply.newBuilder();
+        try {
+          fillReply(response, replyBuilder);
+        } catch (IOException e) {
+          callback.failed(new StrategyException(request.getId() + " while copying content:", e));
+          return;
+        }
+        LOG.info(request.getId() + ": Got response from resource:" + response.getStatusLine());
+        callback.completed(replyBuilder);
+      }
+
+      @Override
+      public void failed(Exception e) {
+        callback.failed(new StrategyException(request.getId() + ": while executing HTTP " +
+            httpRequest.getRequestLine().getMethod() + ": ", e));
+      }
+    });
+  }
+
+  /**
+   * Fetches and waits for the reply, for callers that need the result on this thread.
+   *
+   * @param request The request.
+   * @param replyBuilder The reply to fill in.
+   */
+  @Override
+  public void process(FetchRequest request, final FetchReply.Builder replyBuilder)
+      throws StrategyException {
+    final CountDownLatch done = new CountDownLatch(1);
+    final StrategyException[] failure = new StrategyException[1];
+    start(request, new FetchCallback() {
+      @Override
+      public void completed(FetchReply.Builder completedReply) {
+        replyBuilder.mergeFrom(completedReply.buildPartial());
+        done.countDown();
+      }
+
+      @Override
+      public void failed(StrategyException e) {
+        failure[0] = e;
+        done.countDown();
+      }
+    });
+    try {
+      if (!done.await(AsyncHttpClient.CONNECT_TIMEOUT_MILLIS +
+          AsyncHttpClient.SOCKET_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        throw new StrategyException(request.getId() + ": timed out.");
+      }
+    } catch (InterruptedException e) {
+      throw new StrategyException(request.getId() + ": interrupted.", e);
+    }
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+  }
+
+  /**
+   * Builds the request for the resource path, with the method and headers of the inbound
+   * request.
+   */
+  HttpRequest getRequest(FetchRequest request, URL url) {
+    String method = HttpFetchStrategy.getMethodName(request);
+    if (method == null) {
+      method = "GET";
+    }
+    String uri = url.getFile().length() > 0 ? url.getFile() : "/";
+    LOG.info(request.getId() + ": method=" + method + ", resource=" + request.getResource() +
+        ((request.hasContents()) ? ", payload_size=" + request.getContents().size() : ""));
+
+    HttpRequest httpRequest;
+    if (request.hasContents() && ("POST".equals(method) || "PUT".equals(method))) {
+      BasicHttpEntityEnclosingRequest entityRequest =
+          new BasicHttpEntityEnclosingRequest(method, uri);
+      entityRequest.setEntity(new ByteStringEntity(request.getContents()));
+      httpRequest = entityRequest;
+    } else {
+      httpRequest = new BasicHttpRequest(method, uri);
+    }
+    for (MessageHeader h : request.getHeadersList()) {
+      if ("x-sdc-agent-cookie".equalsIgnoreCase(h.getKey())) {
+        continue;
+      }
+      httpRequest.addHeader(h.getKey(), h.getValue());
+    }
+    return httpRequest;
+  }
+
+  /**
+   * Copies the status, headers and body of the response to the reply.
+   */
+  static void fillReply(HttpResponse response, FetchReply.Builder replyBuilder)
+      throws IOException {
+    replyBuilder.setStatus(response.getStatusLine().getStatusCode());
+    for (Header h : response.getAllHeaders()) {
+      replyBuilder.addHeaders(MessageHeader.newBuilder()
+          .setKey(h.getName()).setValue(h.getValue()).build());
+    }
+    HttpEntity entity = response.getEntity();
+    if (entity != null) {
+      byte[] contents = EntityUtils.toByteArray(entity);
+      if (contents.length > 0) {
+        replyBuilder.setContents(ByteString.copyFrom(contents));
+      }
+    }
+  }
+}
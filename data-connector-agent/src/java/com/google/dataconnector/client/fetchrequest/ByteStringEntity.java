@@ -0,0 +1,75 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.fetchrequest;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A request entity that sends the bytes of a {@link ByteString} as is, rather than copying them
+ * into an array first as {@link org.apache.http.entity.ByteArrayEntity} would need.  Repeatable,
+ * so the client can retry the request.
+ */
+public class ByteStringEntity extends AbstractHttpEntity {
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private final ByteString contents;
+
+  public ByteStringEntity(final ByteString contents) {
+    Preconditions.checkNotNull(contents);
+    this.contents = contents;
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return contents.size();
+  }
+
+  @Override
+  public InputStream getContent() {
+    return contents.newInput();
+  }
+
+  @Override
+  public void writeTo(final OutputStream out) throws IOException {
+    Preconditions.checkNotNull(out);
+    final InputStream in = contents.newInput();
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    int bytesRead;
+    while ((bytesRead = in.read(buffer)) != -1) {
+      out.write(buffer, 0, bytesRead);
+    }
+    out.flush();
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+}
@@ -0,0 +1,956 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.fetchrequest;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.dataconnector.registration.v4.ResourceRuleParser;
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.FileUtil;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.Pair;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the replies to GET fetch requests for resources whose rule in the resource rules file
+ * has {@code <cacheable>true</cacheable>}, so gadgets repeatedly fetching the same intranet page
+ * do not each pay a round trip to the server.  The agent acts as a shared HTTP cache:
+ * <ul>
+ * <li>Replies are keyed by method, resource and the request headers named by their
+ * {@code Vary} header.</li>
+ * <li>Fresh replies, as given by {@code Cache-Control} max-age or s-maxage, {@code Expires} or
+ * a heuristic based on {@code Last-Modified}, are answered from the cache.  Stale replies are
+ * revalidated with {@code If-None-Match} and {@code If-Modified-Since}, and a 304 from the
+ * server answers with the cached body.</li>
+ * <li>Replies marked no-store or private, setting cookies or to requests with credentials or
+ * cookies not marked public are not stored.</li>
+ * </ul>
+ * The cache holds up to {@link LocalConf#getResponseCacheBytes()} bytes of replies in memory,
+ * evicting the least recently used.  If {@link LocalConf#getResponseCacheDir()} is set evicted
+ * replies move there, up to {@link LocalConf#getResponseCacheDiskBytes()} bytes, and back to
+ * memory when used again.
+ * <p>
+ * Resources are spread over {@link #STRIPES} stripes, each locked on its own and holding its
+ * share of both budgets, so fetches for different resources do not wait on each other.  Files
+ * are read and written without holding a lock.  The cacheable rules are read on first use and
+ * again by {@link #reloadRules()} when the rules file changes.
+ * <p>
+ * Replies from the cache carry the {@link #CACHE_STATUS_HEADER} header.  Hit and miss counts are
+ * logged periodically and available from the getters.
+ */
+@Singleton
+public class FetchResponseCache {
+
+  private static final Logger LOG = Logger.getLogger(FetchResponseCache.class);
+
+  /**
+   * Reply header telling the cloud a reply came from the cache, with value {@link #HIT} or
+   * {@link #REVALIDATED}.
+   */
+  public static final String CACHE_STATUS_HEADER = "x-sdc-agent-cache";
+  public static final String HIT = "HIT";
+  public static final String REVALIDATED = "REVALIDATED";
+
+  /** Most freshness given to a reply with only a Last-Modified date. */
+  static final long MAX_HEURISTIC_MILLIS = 24 * 60 * 60 * 1000L;
+
+  /** Number of stripes.  No reply may take up more than one stripe's share of the cache. */
+  static final int STRIPES = 8;
+  private static final int MAX_VARY_KEYS = 10000;
+  private static final int LOG_STATS_EVERY = 1000;
+  private static final String DISK_SUFFIX = ".sdccache";
+
+  private static final Set<Integer> CACHEABLE_STATUS =
+      ImmutableSet.of(200, 203, 300, 301, 404, 410);
+  private static final Set<String> BYPASS_REQUEST_HEADERS = ImmutableSet.of("range",
+      "if-match", "if-none-match", "if-modified-since", "if-unmodified-since", "if-range");
+  private static final Set<String> CREDENTIAL_HEADERS =
+      ImmutableSet.of("authorization", "proxy-authorization", "cookie");
+  private static final Set<String> KEEP_ON_REVALIDATE_HEADERS =
+      ImmutableSet.of("content-length", "transfer-encoding");
+
+  // Injected dependencies
+  private final LocalConf localConf;
+  private final ResourceRuleParser resourceRuleParser;
+  private final FileUtil fileUtil;
+  private final ClockUtil clock;
+
+  // Local fields
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final Object rulesLock = new Object();
+  private volatile List<Pair<String, Boolean>> cacheableRules;
+  private File diskDir;
+  private final AtomicLong fileCount = new AtomicLong();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong revalidatedCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  @Inject
+  public FetchResponseCache(final LocalConf localConf, final ResourceRuleParser resourceRuleParser,
+      final FileUtil fileUtil, final ClockUtil clock) {
+    this.localConf = localConf;
+    this.resourceRuleParser = resourceRuleParser;
+    this.fileUtil = fileUtil;
+    this.clock = clock;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Looks the request up in the cache.
+   *
+   * @param request the request from the cloud.
+   * @return the cached reply if fresh, otherwise the request to send, which asks the server to
+   *     revalidate a stale reply.
+   */
+  public Lookup lookup(final FetchRequest request) {
+    if (!isEnabled() || !"GET".equals(getMethod(request)) || isBypassed(request) ||
+        !isCacheable(request.getResource())) {
+      return new Lookup(request, request, null, null, null);
+    }
+    final String primaryKey = "GET " + request.getResource();
+    final Stripe stripe = getStripe(primaryKey);
+    final String key = getVariantKey(primaryKey, stripe.getVaryNames(primaryKey), request);
+    final CacheEntry entry = stripe.get(key);
+    final long now = clock.currentTimeMillis();
+    if (entry != null && now < entry.freshUntilMillis && !isRevalidationRequested(request)) {
+      hitCount.incrementAndGet();
+      logStats();
+      final FetchReply hit = entry.reply.toBuilder()
+          .setId(request.getId())
+          .setLatency(0)
+          .addHeaders(MessageHeader.newBuilder().setKey(CACHE_STATUS_HEADER).setValue(HIT))
+          .build();
+      return new Lookup(request, request, hit, primaryKey, null);
+    }
+    missCount.incrementAndGet();
+    logStats();
+    if (entry == null || !entry.hasValidators()) {
+      return new Lookup(request, request, null, primaryKey, null);
+    }
+    final FetchRequest.Builder conditional = request.toBuilder();
+    final String etag = getHeader(entry.reply.getHeadersList(), "ETag");
+    if (etag != null) {
+      conditional.addHeaders(MessageHeader.newBuilder().setKey("If-None-Match").setValue(etag));
+    }
+    final String lastModified = getHeader(entry.reply.getHeadersList(), "Last-Modified");
+    if (lastModified != null) {
+      conditional.addHeaders(MessageHeader.newBuilder()
+          .setKey("If-Modified-Since").setValue(lastModified));
+    }
+    return new Lookup(request, conditional.build(), null, primaryKey, entry);
+  }
+
+  /**
+   * Stores the reply to a request that missed the cache.
+   *
+   * @param lookup what {@link #lookup} returned for the request.
+   * @param replyBuilder the reply from the server.
+   * @return the reply to send, which is the cached reply if the server found it still valid.
+   */
+  public FetchReply.Builder update(final Lookup lookup, final FetchReply.Builder replyBuilder) {
+    if (lookup.primaryKey == null || !replyBuilder.hasStatus()) {
+      return replyBuilder;
+    }
+    final long now = clock.currentTimeMillis();
+    final Stripe stripe = getStripe(lookup.primaryKey);
+    if (lookup.stale != null && replyBuilder.getStatus() == 304) {
+      revalidatedCount.incrementAndGet();
+      final FetchReply refreshed = mergeHeaders(lookup.stale.reply, replyBuilder.getHeadersList());
+      store(stripe, lookup, refreshed, now);
+      return refreshed.toBuilder()
+          .setId(replyBuilder.getId())
+          .setLatency(replyBuilder.getLatency())
+          .addHeaders(MessageHeader.newBuilder()
+              .setKey(CACHE_STATUS_HEADER).setValue(REVALIDATED));
+    }
+    final FetchReply reply = replyBuilder.clone().setLatency(0).buildPartial();
+    if (isStorable(lookup.request, reply, now)) {
+      store(stripe, lookup, reply, now);
+    } else if (reply.getStatus() < 500) {
+      stripe.remove(getVariantKey(lookup.primaryKey, stripe.getVaryNames(lookup.primaryKey),
+          lookup.request));
+    }
+    return replyBuilder;
+  }
+
+  /**
+   * Reads the cacheable rules from the resource rules file again and empties the cache.
+   */
+  public void reloadRules() {
+    final List<Pair<String, Boolean>> rules = readCacheableRules();
+    synchronized (rulesLock) {
+      cacheableRules = rules;
+    }
+    for (final Stripe stripe : stripes) {
+      stripe.clear();
+    }
+  }
+
+  /**
+   * Cache statistics.
+   *
+   * @return the number of requests answered from the cache without asking the server.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Cache statistics.
+   *
+   * @return the number of cacheable requests sent to the server, including revalidations.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Cache statistics.
+   *
+   * @return the number of stale replies the server found still valid.
+   */
+  public long getRevalidatedCount() {
+    return revalidatedCount.get();
+  }
+
+  /**
+   * Cache statistics.
+   *
+   * @return the number of replies evicted from memory.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Cache statistics.
+   *
+   * @return the bytes of replies held in memory.
+   */
+  public long getMemoryBytes() {
+    long bytes = 0;
+    for (final Stripe stripe : stripes) {
+      bytes += stripe.getMemoryBytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * Cache statistics.
+   *
+   * @return the bytes of replies held on disk.
+   */
+  public long getDiskBytes() {
+    long bytes = 0;
+    for (final Stripe stripe : stripes) {
+      bytes += stripe.getDiskBytes();
+    }
+    return bytes;
+  }
+
+  private boolean isEnabled() {
+    final Integer bytes = localConf.getResponseCacheBytes();
+    return bytes != null && bytes > 0;
+  }
+
+  private void logStats() {
+    final long hits = hitCount.get();
+    final long misses = missCount.get();
+    if ((hits + misses) % LOG_STATS_EVERY == 0) {
+      LOG.info("Response cache: hits=" + hits + ", misses=" + misses + ", revalidated=" +
+          revalidatedCount.get() + ", evictions=" + evictionCount.get() + ", memoryBytes=" +
+          getMemoryBytes() + ", diskBytes=" + getDiskBytes());
+    }
+  }
+
+  private Stripe getStripe(final String primaryKey) {
+    return stripes[(primaryKey.hashCode() & Integer.MAX_VALUE) % STRIPES];
+  }
+
+  /**
+   * @return true if a cacheable rule covers the resource.
+   */
+  private boolean isCacheable(final String resource) {
+    List<Pair<String, Boolean>> rules = cacheableRules;
+    if (rules == null) {
+      synchronized (rulesLock) {
+        if (cacheableRules == null) {
+          cacheableRules = readCacheableRules();
+        }
+        rules = cacheableRules;
+      }
+    }
+    for (final Pair<String, Boolean> rule : rules) {
+      if (matches(rule.first().trim(), rule.second(), resource)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private List<Pair<String, Boolean>> readCacheableRules() {
+    final String rulesFile = localConf.getRulesFile();
+    if (rulesFile == null) {
+      return Collections.emptyList();
+    }
+    try {
+      final List<Pair<String, Boolean>> rules = resourceRuleParser.parseCacheableResources(
+          rulesFile, localConf.getAgentId());
+      LOG.info("Caching replies for " + rules.size() + " resource rules.");
+      return rules;
+    } catch (Exception e) {
+      LOG.warn("Could not read cacheable resources from " + rulesFile, e);
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * @param ruleUrl the rule's url.
+   * @param exact true to match the whole url, otherwise the scheme, host and port.
+   * @param resource the requested resource.
+   * @return true if the rule covers the resource.
+   */
+  static boolean matches(final String ruleUrl, final boolean exact, final String resource) {
+    if (exact) {
+      return ruleUrl.equals(resource);
+    }
+    try {
+      final URL rule = new URL(ruleUrl);
+      final URL url = new URL(resource);
+      return rule.getProtocol().equalsIgnoreCase(url.getProtocol()) &&
+          rule.getHost().equalsIgnoreCase(url.getHost()) &&
+          getPort(rule) == getPort(url);
+    } catch (MalformedURLException e) {
+      return false;
+    }
+  }
+
+  private static int getPort(final URL url) {
+    return (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+  }
+
+  private static String getMethod(final FetchRequest request) {
+    final String method = HttpFetchStrategy.getMethodName(request);
+    return (method == null) ? "GET" : method;
+  }
+
+  /**
+   * @return true if the request must go to the server and its reply not be stored, such as a
+   *     range or a conditional request of the cloud's own.
+   */
+  private static boolean isBypassed(final FetchRequest request) {
+    for (final MessageHeader h : request.getHeadersList()) {
+      if (BYPASS_REQUEST_HEADERS.contains(h.getKey().toLowerCase())) {
+        return true;
+      }
+    }
+    return getCacheControl(request.getHeadersList()).containsKey("no-store");
+  }
+
+  /**
+   * @return true if the request asks for the reply to be checked with the server.
+   */
+  private static boolean isRevalidationRequested(final FetchRequest request) {
+    final Map<String, String> cacheControl = getCacheControl(request.getHeadersList());
+    return cacheControl.containsKey("no-cache") || "0".equals(cacheControl.get("max-age")) ||
+        "no-cache".equalsIgnoreCase(getHeader(request.getHeadersList(), "Pragma"));
+  }
+
+  /**
+   * @return true if the request carries the user's credentials or cookies, whose reply may be
+   *     meant for that user only.
+   */
+  private static boolean hasCredentials(final FetchRequest request) {
+    for (final MessageHeader h : request.getHeadersList()) {
+      if (CREDENTIAL_HEADERS.contains(h.getKey().toLowerCase())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if a shared cache may store the reply.
+   */
+  private boolean isStorable(final FetchRequest request, final FetchReply reply, final long now) {
+    if (!CACHEABLE_STATUS.contains(reply.getStatus()) || reply.getStreamed()) {
+      return false;
+    }
+    final List<MessageHeader> headers = reply.getHeadersList();
+    final Map<String, String> cacheControl = getCacheControl(headers);
+    if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private") ||
+        getHeader(headers, "Set-Cookie") != null || getVaryNames(reply).contains("*")) {
+      return false;
+    }
+    if (hasCredentials(request) &&
+        !cacheControl.containsKey("public") && !cacheControl.containsKey("s-maxage") &&
+        !cacheControl.containsKey("must-revalidate")) {
+      return false;
+    }
+    if (reply.getSerializedSize() > localConf.getResponseCacheBytes() / STRIPES) {
+      return false;
+    }
+    final CacheEntry entry = new CacheEntry(reply, getFreshUntilMillis(reply, now));
+    return entry.freshUntilMillis > now || entry.hasValidators();
+  }
+
+  /**
+   * Works out until when the reply is fresh, from its Cache-Control, Expires, Date,
+   * Last-Modified and Age headers.
+   *
+   * @param reply the reply.
+   * @param now the time the reply was received.
+   * @return the time the reply becomes stale.
+   */
+  static long getFreshUntilMillis(final FetchReply reply, final long now) {
+    final List<MessageHeader> headers = reply.getHeadersList();
+    final Map<String, String> cacheControl = getCacheControl(headers);
+    if (cacheControl.containsKey("no-cache")) {
+      return now;
+    }
+    Long lifetimeMillis = getSecondsAsMillis(cacheControl.get("s-maxage"));
+    if (lifetimeMillis == null) {
+      lifetimeMillis = getSecondsAsMillis(cacheControl.get("max-age"));
+    }
+    if (lifetimeMillis == null) {
+      final Long date = getDate(headers, "Date");
+      final long dateMillis = (date != null) ? date : now;
+      if (getHeader(headers, "Expires") != null) {
+        // An invalid date means already expired.
+        final Long expires = getDate(headers, "Expires");
+        lifetimeMillis = (expires != null) ? expires - dateMillis : 0;
+      } else {
+        final Long lastModified = getDate(headers, "Last-Modified");
+        lifetimeMillis = (lastModified != null) ?
+            Math.min(MAX_HEURISTIC_MILLIS, Math.max(0, (dateMillis - lastModified) / 10)) : 0;
+      }
+    }
+    final Long ageMillis = getSecondsAsMillis(getHeader(headers, "Age"));
+    return now + lifetimeMillis - ((ageMillis != null) ? ageMillis : 0);
+  }
+
+  /**
+   * @return the stored reply with the headers of a 304 reply in place of its own.
+   */
+  private static FetchReply mergeHeaders(final FetchReply stored,
+      final List<MessageHeader> notModifiedHeaders) {
+    final Map<String, List<MessageHeader>> updated = new HashMap<String, List<MessageHeader>>();
+    for (final MessageHeader h : notModifiedHeaders) {
+      final String name = h.getKey().toLowerCase();
+      if (KEEP_ON_REVALIDATE_HEADERS.contains(name)) {
+        continue;
+      }
+      if (!updated.containsKey(name)) {
+        updated.put(name, new ArrayList<MessageHeader>());
+      }
+      updated.get(name).add(h);
+    }
+    final FetchReply.Builder merged = stored.toBuilder().clearHeaders();
+    for (final MessageHeader h : stored.getHeadersList()) {
+      if (!updated.containsKey(h.getKey().toLowerCase())) {
+        merged.addHeaders(h);
+      }
+    }
+    for (final List<MessageHeader> headers : updated.values()) {
+      merged.addAllHeaders(headers);
+    }
+    return merged.build();
+  }
+
+  private void store(final Stripe stripe, final Lookup lookup, final FetchReply reply,
+      final long now) {
+    final List<String> names = getVaryNames(reply);
+    stripe.put(lookup.primaryKey, names, getVariantKey(lookup.primaryKey, names, lookup.request),
+        new CacheEntry(reply, getFreshUntilMillis(reply, now)));
+  }
+
+  private static String getVariantKey(final String primaryKey, final List<String> names,
+      final FetchRequest request) {
+    if (names == null || names.isEmpty()) {
+      return primaryKey;
+    }
+    final StringBuilder key = new StringBuilder(primaryKey);
+    for (final String name : names) {
+      key.append('\n').append(name).append(':');
+      for (final MessageHeader h : request.getHeadersList()) {
+        if (name.equalsIgnoreCase(h.getKey())) {
+          key.append(h.getValue()).append(',');
+        }
+      }
+    }
+    return key.toString();
+  }
+
+  private static List<String> getVaryNames(final FetchReply reply) {
+    final List<String> names = new ArrayList<String>();
+    for (final MessageHeader h : reply.getHeadersList()) {
+      if ("Vary".equalsIgnoreCase(h.getKey())) {
+        for (final String name : h.getValue().split(",")) {
+          if (name.trim().length() > 0) {
+            names.add(name.trim().toLowerCase());
+          }
+        }
+      }
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  private static String getHeader(final List<MessageHeader> headers, final String name) {
+    for (final MessageHeader h : headers) {
+      if (name.equalsIgnoreCase(h.getKey())) {
+        return h.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static Long getDate(final List<MessageHeader> headers, final String name) {
+    final String value = getHeader(headers, name);
+    if (value == null) {
+      return null;
+    }
+    try {
+      return DateUtils.parseDate(value).getTime();
+    } catch (DateParseException e) {
+      return null;
+    }
+  }
+
+  private static Long getSecondsAsMillis(final String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value.trim())) * 1000L;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the Cache-Control directives, lower cased, with their values if any.
+   */
+  private static Map<String, String> getCacheControl(final List<MessageHeader> headers) {
+    final Map<String, String> directives = new HashMap<String, String>();
+    for (final MessageHeader h : headers) {
+      if (!"Cache-Control".equalsIgnoreCase(h.getKey())) {
+        continue;
+      }
+      for (final String directive : h.getValue().split(",")) {
+        final int equals = directive.indexOf('=');
+        if (equals < 0) {
+          directives.put(directive.trim().toLowerCase(), null);
+        } else {
+          directives.put(directive.substring(0, equals).trim().toLowerCase(),
+              directive.substring(equals + 1).trim().replace("\"", ""));
+        }
+      }
+    }
+    return directives;
+  }
+
+  /**
+   * @return the directory of the disk tier, emptied of replies left by an earlier run, or null
+   *     if the cache is in memory only.
+   */
+  private synchronized File getDiskDir() {
+    final String dirName = localConf.getResponseCacheDir();
+    if (dirName == null) {
+      return null;
+    }
+    if (diskDir == null || !diskDir.getPath().equals(dirName)) {
+      diskDir = fileUtil.openFile(dirName);
+      if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+        LOG.warn("Could not create response cache directory " + dirName);
+      }
+      final File[] leftovers = diskDir.listFiles();
+      if (leftovers != null) {
+        for (final File file : leftovers) {
+          if (file.getName().endsWith(DISK_SUFFIX)) {
+            file.delete();
+          }
+        }
+      }
+    }
+    return diskDir;
+  }
+
+  /**
+   * @return true if the reply was written to the file.
+   */
+  private static boolean write(final File file, final CacheEntry entry) {
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file)));
+      try {
+        out.writeLong(entry.freshUntilMillis);
+        entry.reply.writeTo(out);
+      } finally {
+        out.close();
+      }
+      return true;
+    } catch (IOException e) {
+      LOG.warn("Could not write cached reply to " + file, e);
+      file.delete();
+      return false;
+    }
+  }
+
+  /**
+   * Reads a reply back and deletes its file.
+   *
+   * @return the reply or null if it could not be read.
+   */
+  private static CacheEntry read(final File file) {
+    try {
+      final DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        final long freshUntilMillis = in.readLong();
+        return new CacheEntry(FetchReply.parseFrom(in), freshUntilMillis);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Could not read cached reply from " + file, e);
+      return null;
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * The replies of one share of the resources.  Its maps are only used holding its lock, and its
+   * files are only read, written and deleted without holding it, by a {@link DiskWork}.
+   */
+  private class Stripe {
+    private final LinkedHashMap<String, CacheEntry> memory =
+        new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    /** Replies evicted from memory whose files are still being written. */
+    private final Map<String, CacheEntry> spilling = new HashMap<String, CacheEntry>();
+    private final LinkedHashMap<String, DiskEntry> disk =
+        new LinkedHashMap<String, DiskEntry>(16, 0.75f, true);
+    private final Map<String, List<String>> varyNames =
+        new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(final Map.Entry<String, List<String>> eldest) {
+            return size() > MAX_VARY_KEYS / STRIPES;
+          }
+        };
+    private long memoryBytes = 0;
+    private long diskBytes = 0;
+
+    synchronized List<String> getVaryNames(final String primaryKey) {
+      return varyNames.get(primaryKey);
+    }
+
+    synchronized long getMemoryBytes() {
+      return memoryBytes;
+    }
+
+    synchronized long getDiskBytes() {
+      return diskBytes;
+    }
+
+    /**
+     * @return the reply stored under the key, taken back to memory if it was evicted, or null.
+     */
+    CacheEntry get(final String key) {
+      final DiskWork work = new DiskWork(this);
+      CacheEntry entry;
+      final DiskEntry onDisk;
+      synchronized (this) {
+        entry = memory.get(key);
+        if (entry == null) {
+          entry = spilling.remove(key);
+          if (entry != null) {
+            add(key, entry, work);
+          }
+        }
+        onDisk = (entry == null) ? takeFromDisk(key) : null;
+      }
+      if (onDisk != null) {
+        entry = read(onDisk.file);
+        if (entry != null) {
+          synchronized (this) {
+            // Unless it was replaced while being read.
+            if (!memory.containsKey(key) && !spilling.containsKey(key) &&
+                !disk.containsKey(key)) {
+              add(key, entry, work);
+            }
+          }
+        }
+      }
+      work.run();
+      return entry;
+    }
+
+    void put(final String primaryKey, final List<String> names, final String key,
+        final CacheEntry entry) {
+      final DiskWork work = new DiskWork(this);
+      synchronized (this) {
+        if (names.isEmpty()) {
+          varyNames.remove(primaryKey);
+        } else {
+          varyNames.put(primaryKey, names);
+        }
+        add(key, entry, work);
+      }
+      work.run();
+    }
+
+    void remove(final String key) {
+      final DiskWork work = new DiskWork(this);
+      synchronized (this) {
+        discard(key, work);
+      }
+      work.run();
+    }
+
+    void clear() {
+      final DiskWork work = new DiskWork(this);
+      synchronized (this) {
+        memory.clear();
+        memoryBytes = 0;
+        spilling.clear();
+        varyNames.clear();
+        for (final DiskEntry onDisk : disk.values()) {
+          work.delete(onDisk.file);
+        }
+        disk.clear();
+        diskBytes = 0;
+      }
+      work.run();
+    }
+
+    /**
+     * Records a reply's file once written, evicting the least recently used files to make room.
+     *
+     * @return false if the reply was used or replaced while being written.
+     */
+    synchronized boolean spilled(final String key, final CacheEntry entry, final File file,
+        final DiskWork work) {
+      if (spilling.get(key) != entry) {
+        return false;
+      }
+      spilling.remove(key);
+      disk.put(key, new DiskEntry(file, entry.size));
+      diskBytes += entry.size;
+      final long maxBytes = localConf.getResponseCacheDiskBytes() / STRIPES;
+      for (Iterator<Map.Entry<String, DiskEntry>> i = disk.entrySet().iterator();
+          diskBytes > maxBytes && i.hasNext();) {
+        final DiskEntry eldest = i.next().getValue();
+        i.remove();
+        diskBytes -= eldest.size;
+        work.delete(eldest.file);
+      }
+      return true;
+    }
+
+    synchronized void spillFailed(final String key, final CacheEntry entry) {
+      if (spilling.get(key) == entry) {
+        spilling.remove(key);
+      }
+    }
+
+    /**
+     * Holding the lock, puts the reply in memory, evicting the least recently used replies to
+     * the disk tier, if there is one, to make room.
+     */
+    private void add(final String key, final CacheEntry entry, final DiskWork work) {
+      discard(key, work);
+      memory.put(key, entry);
+      memoryBytes += entry.size;
+      final long maxBytes = localConf.getResponseCacheBytes() / STRIPES;
+      final boolean hasDisk = localConf.getResponseCacheDir() != null;
+      for (Iterator<Map.Entry<String, CacheEntry>> i = memory.entrySet().iterator();
+          memoryBytes > maxBytes && i.hasNext();) {
+        final Map.Entry<String, CacheEntry> eldest = i.next();
+        i.remove();
+        memoryBytes -= eldest.getValue().size;
+        evictionCount.incrementAndGet();
+        if (hasDisk &&
+            eldest.getValue().size <= localConf.getResponseCacheDiskBytes() / STRIPES) {
+          spilling.put(eldest.getKey(), eldest.getValue());
+          work.spill(eldest.getKey(), eldest.getValue());
+        }
+      }
+    }
+
+    /**
+     * Holding the lock, drops whatever is stored under the key.
+     */
+    private void discard(final String key, final DiskWork work) {
+      final CacheEntry removed = memory.remove(key);
+      if (removed != null) {
+        memoryBytes -= removed.size;
+      }
+      spilling.remove(key);
+      final DiskEntry onDisk = takeFromDisk(key);
+      if (onDisk != null) {
+        work.delete(onDisk.file);
+      }
+    }
+
+    private DiskEntry takeFromDisk(final String key) {
+      final DiskEntry onDisk = disk.remove(key);
+      if (onDisk != null) {
+        diskBytes -= onDisk.size;
+      }
+      return onDisk;
+    }
+  }
+
+  /**
+   * The file writes and deletes a stripe decided on holding its lock, run after releasing it.
+   */
+  private class DiskWork {
+    private final Stripe stripe;
+    private final List<Pair<String, CacheEntry>> spills =
+        new ArrayList<Pair<String, CacheEntry>>();
+    private final List<File> deletes = new ArrayList<File>();
+
+    DiskWork(final Stripe stripe) {
+      this.stripe = stripe;
+    }
+
+    void spill(final String key, final CacheEntry entry) {
+      spills.add(Pair.of(key, entry));
+    }
+
+    void delete(final File file) {
+      deletes.add(file);
+    }
+
+    void run() {
+      for (final Pair<String, CacheEntry> spill : spills) {
+        final File dir = getDiskDir();
+        final File file = (dir == null) ? null :
+            new File(dir, String.format("%016x%s", fileCount.incrementAndGet(), DISK_SUFFIX));
+        if (file == null || !write(file, spill.second())) {
+          stripe.spillFailed(spill.first(), spill.second());
+        } else if (!stripe.spilled(spill.first(), spill.second(), file, this)) {
+          deletes.add(file);
+        }
+      }
+      for (final File file : deletes) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * The outcome of {@link #lookup}.
+   */
+  public static class Lookup {
+    private final FetchRequest request;
+    private final FetchRequest requestToSend;
+    private final FetchReply hit;
+    private final String primaryKey;
+    private final CacheEntry stale;
+
+    private Lookup(final FetchRequest request, final FetchRequest requestToSend,
+        final FetchReply hit, final String primaryKey, final CacheEntry stale) {
+      this.request = request;
+      this.requestToSend = requestToSend;
+      this.hit = hit;
+      this.primaryKey = primaryKey;
+      this.stale = stale;
+    }
+
+    /**
+     * @return the cached reply to send, or null if the request must go to the server.
+     */
+    public FetchReply getHit() {
+      return hit;
+    }
+
+    /**
+     * @return the request to send to the server, with conditional headers added if a stale
+     *     reply is being revalidated.
+     */
+    public FetchRequest getRequest() {
+      return requestToSend;
+    }
+  }
+
+  /**
+   * A cached reply.
+   */
+  private static class CacheEntry {
+    final FetchReply reply;
+    final long freshUntilMillis;
+    final long size;
+
+    CacheEntry(final FetchReply reply, final long freshUntilMillis) {
+      this.reply = reply;
+      this.freshUntilMillis = freshUntilMillis;
+      this.size = reply.getSerializedSize();
+    }
+
+    boolean hasValidators() {
+      return getHeader(reply.getHeadersList(), "ETag") != null ||
+          getHeader(reply.getHeadersList(), "Last-Modified") != null;
+    }
+  }
+
+  /**
+   * A reply evicted to the disk tier.
+   */
+  private static class DiskEntry {
+    final File file;
+    final long size;
+
+    DiskEntry(final File file, final long size) {
+      this.file = file;
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.fetchrequest;
+
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.dataconnector.util.Stoppable;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.RequestAddCookies;
+import org.apache.http.client.protocol.ResponseProcessCookies;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link DefaultHttpClient} shared by all {@link HttpFetchStrategy} instances.  Connections
+ * to intranet servers are pooled by a {@link ThreadSafeClientConnManager} and kept alive between
+ * fetches, so repeated requests to the same host skip the TCP and TLS handshakes.  The pool is
+ * bounded in total and per route by {@link LocalConf#getHttpMaxConnections()} and
+ * {@link LocalConf#getHttpMaxConnectionsPerRoute()}.  A daemon thread closes connections idle
+ * for longer than {@link LocalConf#getHttpIdleConnectionSeconds()}.  A fetch waits at most
+ * {@link #CONNECTION_REQUEST_TIMEOUT_MILLIS} for a connection when the pool is full.  Cookie
+ * handling is turned off since the client is shared between users.
+ * <p>
+ * The client is created on first use since the configuration is only populated after injection.
+ */
+@Singleton
+public class HttpClientPool implements Stoppable {
+
+  private static final Logger LOG = Logger.getLogger(HttpClientPool.class);
+
+  static final long CONNECTION_REQUEST_TIMEOUT_MILLIS = 30 * 1000;
+
+  // Injected dependencies
+  private final LocalConf localConf;
+  private final ShutdownManager shutdownManager;
+
+  // Local fields
+  private DefaultHttpClient httpClient;
+  private ThreadSafeClientConnManager connectionManager;
+  private IdleConnectionEvictor idleConnectionEvictor;
+
+  @Inject
+  public HttpClientPool(final LocalConf localConf, final ShutdownManager shutdownManager) {
+    this.localConf = localConf;
+    this.shutdownManager = shutdownManager;
+  }
+
+  /**
+   * @return the shared client, created on first call.
+   */
+  public synchronized DefaultHttpClient getHttpClient() {
+    if (httpClient == null) {
+      final HttpParams params = new BasicHttpParams();
+      ConnManagerParams.setMaxTotalConnections(params, localConf.getHttpMaxConnections());
+      ConnManagerParams.setMaxConnectionsPerRoute(params,
+          new ConnPerRouteBean(localConf.getHttpMaxConnectionsPerRoute()));
+      // A fetch fails rather than waiting forever for a connection from a full pool.
+      ConnManagerParams.setTimeout(params, CONNECTION_REQUEST_TIMEOUT_MILLIS);
+
+      final SchemeRegistry schemeRegistry = new SchemeRegistry();
+      schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+      schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+      connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+      httpClient = new DefaultHttpClient(connectionManager, params);
+      httpClient.setKeepAliveStrategy(new IdleLimitedKeepAliveStrategy(
+          getIdleConnectionMillis()));
+      // The client is shared by every user's fetches, so one reply's cookies must never be
+      // sent with another fetch.  Cookies the cloud passes along are copied as plain headers.
+      httpClient.removeRequestInterceptorByClass(RequestAddCookies.class);
+      httpClient.removeResponseInterceptorByClass(ResponseProcessCookies.class);
+
+      if (isKeepAlive()) {
+        idleConnectionEvictor = new IdleConnectionEvictor(connectionManager);
+        idleConnectionEvictor.start();
+      }
+      shutdownManager.addStoppable(this);
+      LOG.info("Pooling up to " + localConf.getHttpMaxConnections() + " HTTP connections, " +
+          localConf.getHttpMaxConnectionsPerRoute() + " per route.");
+    }
+    return httpClient;
+  }
+
+  /**
+   * @return true if connections are kept open between fetches.
+   */
+  public boolean isKeepAlive() {
+    return getIdleConnectionMillis() > 0;
+  }
+
+  private long getIdleConnectionMillis() {
+    final Integer seconds = localConf.getHttpIdleConnectionSeconds();
+    return (seconds == null || seconds < 0) ? 0 : seconds * 1000L;
+  }
+
+  /**
+   * Pool statistics.
+   *
+   * @return the number of connections open, leased or idle.
+   */
+  public synchronized int getConnectionsInPool() {
+    return (connectionManager == null) ? 0 : connectionManager.getConnectionsInPool();
+  }
+
+  /**
+   * Pool statistics.
+   *
+   * @param route the host and port.
+   * @return the number of connections open to the route, leased or idle.
+   */
+  public synchronized int getConnectionsInPool(final HttpRoute route) {
+    return (connectionManager == null) ? 0 : connectionManager.getConnectionsInPool(route);
+  }
+
+  /**
+   * Closes all pooled connections.  The next fetch starts a new pool.
+   */
+  @Override
+  public synchronized void shutdown() {
+    if (httpClient == null) {
+      return;
+    }
+    if (idleConnectionEvictor != null) {
+      idleConnectionEvictor.interrupt();
+      idleConnectionEvictor = null;
+    }
+    connectionManager.shutdown();
+    connectionManager = null;
+    httpClient = null;
+  }
+
+  /**
+   * Honors the server's keep-alive timeout but never keeps a connection longer than our own
+   * idle limit.
+   */
+  static class IdleLimitedKeepAliveStrategy extends DefaultConnectionKeepAliveStrategy {
+    private final long idleConnectionMillis;
+
+    IdleLimitedKeepAliveStrategy(final long idleConnectionMillis) {
+      this.idleConnectionMillis = idleConnectionMillis;
+    }
+
+    @Override
+    public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+      final long serverMillis = super.getKeepAliveDuration(response, context);
+      if (serverMillis < 0 || serverMillis > idleConnectionMillis) {
+        return idleConnectionMillis;
+      }
+      return serverMillis;
+    }
+  }
+
+  /**
+   * Periodically closes expired and idle connections so servers closing their end do not leave
+   * us with stale sockets.
+   */
+  private class IdleConnectionEvictor extends Thread {
+    private final ThreadSafeClientConnManager evictedConnectionManager;
+
+    IdleConnectionEvictor(final ThreadSafeClientConnManager evictedConnectionManager) {
+      this.evictedConnectionManager = evictedConnectionManager;
+      setName("HttpClientPool-evictor");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      final long idleConnectionMillis = getIdleConnectionMillis();
+      try {
+        while (true) {
+          Thread.sleep(Math.max(1000L, idleConnectionMillis / 2));
+          evictedConnectionManager.closeExpiredConnections();
+          evictedConnectionManager.closeIdleConnections(idleConnectionMillis,
+              TimeUnit.MILLISECONDS);
+          LOG.debug("Pooled HTTP connections: " +
+              evictedConnectionManager.getConnectionsInPool());
+        }
+      } catch (InterruptedException e) {
+        LOG.debug(getName() + ": Stopped.");
+      }
+    }
+  }
+}
@@ -18,9 +18,12 @@ package com.google.dataconnector.client.fetchrequest;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.HttpDelete;
@@ -29,13 +32,14 @@ import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.message.BasicHeader;
 import org.apache.log4j.Logger;
 
+import com.google.dataconnector.client.FetchReplyStream;
 import com.google.dataconnector.client.StrategyException;
-import com.google.dataconnector.client.FetchRequestHandler.Strategy;
+import com.google.dataconnector.client.FetchRequestHandler.StreamingStrategy;
+import com.google.dataconnector.client.FetchRequestHandler.UploadStrategy;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
 import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
@@ -45,53 +49,66 @@ import com.google.protobuf.ByteString;
 /**
 TODO(dchung): javadoc.
  */
-public class HttpFetchStrategy implements Strategy {
+public class HttpFetchStrategy implements StreamingStrategy, UploadStrategy {
 
   private static Logger LOG = Logger.getLogger(HttpFetchStrategy.class);
 
-  // Local fields.
-  private final DefaultHttpClient httpClient = new DefaultHttpClient();
+  // Injected dependencies.
+  private final HttpClientPool httpClientPool;
+
+  // Runtime dependencies.
+  private InputStream upload;
 
   @Inject
-  public HttpFetchStrategy() {
-    // Default constructor.
+  public HttpFetchStrategy(HttpClientPool httpClientPool) {
+    this.httpClientPool = httpClientPool;
+  }
+
+  @Override
+  public void setUpload(InputStream upload) {
+    this.upload = upload;
   }
 
   /**
    * Executes an HTTP GET/POST and return the response.
    * @param request The request.
+   * @param httpMethod The HTTP request built from it.
    * @return The HTTP response.
    * @throws StrategyException
    */
-  HttpResponse getHttpResponse(FetchRequest request) throws StrategyException {
-    HttpRequestBase httpMethod = null;
+  HttpResponse getHttpResponse(FetchRequest request, HttpRequestBase httpMethod)
+      throws StrategyException {
     try {
-      httpMethod = getMethod(request);
-      if (httpMethod != null) {
-        copyHeaders(request, httpMethod);
-        return httpClient.execute(httpMethod);
-      } else {
-        throw new StrategyException(request.getId() + ": Unknown method.");
-      }
+      copyHeaders(request, httpMethod);
+      return httpClientPool.getHttpClient().execute(httpMethod);
     } catch (IOException e) {
-      String method = (httpMethod != null) ? httpMethod.getMethod() : "Unknown";
+      // Make sure the pooled connection is not reused.
+      httpMethod.abort();
       throw new StrategyException(request.getId() + ": while executing HTTP " +
-                                  method + ": ", e);
+                                  httpMethod.getMethod() + ": ", e);
     }
   }
 
   /**
-   * Based on the inbound request type header, determine the correct http
-   * method to use.  If a method cannot be determined (or not specified),
-   * HTTP GET is attempted.
+   * @return the http method named by the inbound request type header or null if none.
    */
-  HttpRequestBase getMethod(FetchRequest request) {
+  public static String getMethodName(FetchRequest request) {
     String method = null;
     for (MessageHeader h : request.getHeadersList()) {
       if ("x-sdc-http-method".equalsIgnoreCase(h.getKey())) {
         method = h.getValue().toUpperCase();
       }
     }
+    return method;
+  }
+
+  /**
+   * Based on the inbound request type header, determine the correct http
+   * method to use.  If a method cannot be determined (or not specified),
+   * HTTP GET is attempted.
+   */
+  HttpRequestBase getMethod(FetchRequest request) {
+    String method = getMethodName(request);
 
     LOG.info(request.getId() + ": method=" + method + ", resource=" + request.getResource() +
              ((request.hasContents()) ? ", payload_size=" + request.getContents().size() : ""));
@@ -105,20 +122,10 @@ public class HttpFetchStrategy implements Strategy {
       return new HttpGet(request.getResource());
     }
     if ("POST".equals(method)) {
-      HttpPost httpPost = new HttpPost(request.getResource());
-      if (request.hasContents()) {
-        LOG.debug(request.getId() + ": Content = " + new String(request.getContents().toByteArray()));
-        httpPost.setEntity(new ByteArrayEntity(request.getContents().toByteArray()));
-      }
-      return httpPost;
+      return setEntity(request, new HttpPost(request.getResource()));
     }
     if ("PUT".equals(method)) {
-      HttpPut httpPut = new HttpPut(request.getResource());
-      if (request.hasContents()) {
-        LOG.debug(request.getId() + ": Content = " + new String(request.getContents().toByteArray()));
-        httpPut.setEntity(new ByteArrayEntity(request.getContents().toByteArray()));
-      }
-      return httpPut;
+      return setEntity(request, new HttpPut(request.getResource()));
     }
     if ("DELETE".equals(method)) {
       return new HttpDelete(request.getResource());
@@ -130,6 +137,24 @@ public class HttpFetchStrategy implements Strategy {
     return null;
   }
 
+  /**
+   * Sets the request body to the streamed upload if there is one or else to the request
+   * contents.  Neither is copied.
+   */
+  HttpRequestBase setEntity(FetchRequest request, HttpEntityEnclosingRequestBase httpMethod) {
+    if (upload != null) {
+      InputStreamEntity entity = new InputStreamEntity(upload, -1);
+      entity.setChunked(true);
+      httpMethod.setEntity(entity);
+    } else if (request.hasContents()) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(request.getId() + ": Content = " + request.getContents().toStringUtf8());
+      }
+      httpMethod.setEntity(new ByteStringEntity(request.getContents()));
+    }
+    return httpMethod;
+  }
+
   /**
    * Copies the headers from the inbound request proto to the actual http request.
    */
@@ -143,8 +168,10 @@ public class HttpFetchStrategy implements Strategy {
         LOG.debug(request.getId() + ":  Header = " + h.getKey() + ", " + h.getValue());
         httpRequest.addHeader(httpHeader);
       }
-      // Tell the server to close down for keep-alive connections.
-      httpRequest.addHeader(new BasicHeader("Connection", "close"));
+      if (!httpClientPool.isKeepAlive()) {
+        // Tell the server to close down for keep-alive connections.
+        httpRequest.addHeader(new BasicHeader("Connection", "close"));
+      }
   }
 
   /**
@@ -157,31 +184,60 @@ public class HttpFetchStrategy implements Strategy {
   @Override
   public void process(FetchRequest request, FetchReply.Builder replyBuilder) 
   throws StrategyException {
-    HttpResponse response = getHttpResponse(request);
-
-    StatusLine statusLine = response.getStatusLine();
-    int statusCode = statusLine.getStatusCode();
-    replyBuilder.setStatus(statusCode);
-
-    HttpEntity entity = response.getEntity();
-    if (entity != null) {
-      try {
-        ByteArrayOutputStream buff = new ByteArrayOutputStream();
-        entity.writeTo(buff);
-        buff.flush();
-        buff.close();
-        if (buff.size() > 0) {
-          replyBuilder.setContents(ByteString.copyFrom(buff.toByteArray()));
+    ByteArrayOutputStream buff = new ByteArrayOutputStream();
+    process(request, replyBuilder, buff);
+    if (buff.size() > 0) {
+      replyBuilder.setContents(ByteString.copyFrom(buff.toByteArray()));
+    }
+  }
+
+  /**
+   * Processes the request, filling in the status and headers of the reply and
+   * then copying the response body to the stream as it arrives.
+   * 
+   * @param request The request.
+   * @param replyBuilder The reply to fill in.
+   * @param body Where to write the response body.
+   */
+  @Override
+  public void process(FetchRequest request, FetchReply.Builder replyBuilder, OutputStream body)
+  throws StrategyException {
+    HttpRequestBase httpMethod = getMethod(request);
+    if (httpMethod == null) {
+      throw new StrategyException(request.getId() + ": Unknown method.");
+    }
+    HttpResponse response = getHttpResponse(request, httpMethod);
+
+    boolean consumed = false;
+    try {
+      StatusLine statusLine = response.getStatusLine();
+      int statusCode = statusLine.getStatusCode();
+      replyBuilder.setStatus(statusCode);
+
+      // Copy the headers
+      for (Header h : response.getAllHeaders()) {
+        replyBuilder.addHeaders(MessageHeader.newBuilder()
+            .setKey(h.getName()).setValue(h.getValue()).build());
+      }
+      LOG.info(request.getId() + ": Got response from resource:" + statusLine);
+
+      HttpEntity entity = response.getEntity();
+      if (entity != null) {
+        try {
+          long total = FetchReplyStream.copy(entity.getContent(), body);
+          entity.consumeContent();
+          LOG.debug(request.getId() + ": Copied " + total + " bytes of content.");
+        } catch (IOException e) {
+          throw new StrategyException(request.getId() + " while copying content:", e);
         }
-      } catch (IOException e) {
-        throw new StrategyException(request.getId() + " while copying content:", e);
+      }
+      consumed = true;
+    } finally {
+      if (!consumed) {
+        // The body was not read to the end, so the pooled connection cannot be reused.
+        // Aborting closes it and returns it to the pool.
+        httpMethod.abort();
       }
     }
-    // Copy the headers
-    for (Header h : response.getAllHeaders()) {
-      replyBuilder.addHeaders(MessageHeader.newBuilder()
-          .setKey(h.getName()).setValue(h.getValue()).build());
-    }
-    LOG.info(request.getId() + ": Got response from resource:" + statusLine);
   }
 }
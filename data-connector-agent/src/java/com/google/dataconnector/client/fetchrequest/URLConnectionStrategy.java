@@ -18,14 +18,17 @@ package com.google.dataconnector.client.fetchrequest;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 
 import org.apache.log4j.Logger;
 
+import com.google.dataconnector.client.FetchReplyStream;
 import com.google.dataconnector.client.StrategyException;
-import com.google.dataconnector.client.FetchRequestHandler.Strategy;
+import com.google.dataconnector.client.FetchRequestHandler.StreamingStrategy;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
 import com.google.protobuf.ByteString;
@@ -37,7 +40,7 @@ import com.google.protobuf.ByteString;
  * @author dchung
  *
  */
-public class URLConnectionStrategy implements Strategy {
+public class URLConnectionStrategy implements StreamingStrategy {
 
 	private static Logger LOG = Logger.getLogger(URLConnectionStrategy.class);
 
@@ -55,6 +58,26 @@ public class URLConnectionStrategy implements Strategy {
 	@Override
 	public void process(FetchRequest request, FetchReply.Builder replyBuilder) 
 		throws StrategyException {
+		// Copy the result to reply buffer.
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		process(request, replyBuilder, contents);
+		// finally set the content in the reply, if we have data
+		if (contents.size() > 0) {
+			replyBuilder.setContents(ByteString.copyFrom(contents.toByteArray()));
+		}
+	}
+
+	/**
+	 * Processes the request, copying the bytes from the URLConnection to the
+	 * stream as they arrive.
+	 * 
+	 * @param request The request.
+	 * @param reply The reply to fill in.
+	 * @param body Where to write the bytes read.
+	 */
+	@Override
+	public void process(FetchRequest request, FetchReply.Builder replyBuilder,
+			OutputStream body) throws StrategyException {
 		
 		try {
 			// Perform the actual fetch here.
@@ -62,22 +85,15 @@ public class URLConnectionStrategy implements Strategy {
 			
 			// Connect to resource.
 			URLConnection conn = resource.openConnection();
+			InputStream in = conn.getInputStream();
+			replyBuilder.setStatus(0);
 			
-			// Copy the result to reply buffer.
-			ByteArrayOutputStream contents = new ByteArrayOutputStream();
-			byte[] buffer = new byte[2048];
-			int bytesRead = 0;
-			int totalRead = 0;
-			while ((bytesRead = conn.getInputStream().read(buffer)) > 0) {
-				contents.write(buffer, 0, bytesRead);
-				totalRead += bytesRead;
-			}
-			LOG.info("Read resource " + resource + ", bytes=" + totalRead);
-			// finally set the content in the reply, if we have data
-			if (totalRead > 0) {
-				replyBuilder.setContents(ByteString.copyFrom(contents.toByteArray()));
+			try {
+				long totalRead = FetchReplyStream.copy(in, body);
+				LOG.info("Read resource " + resource + ", bytes=" + totalRead);
+			} finally {
+				in.close();
 			}
-			replyBuilder.setStatus(0);
 			
 		} catch (MalformedURLException e) {
 			throw new StrategyException(request.getId() + ": bad url.", e);
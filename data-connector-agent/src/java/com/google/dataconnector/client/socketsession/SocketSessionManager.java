@@ -17,10 +17,15 @@
 package com.google.dataconnector.client.socketsession;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Maps;
 import com.google.dataconnector.client.SocketSessionRequestHandler.Sink;
+import com.google.dataconnector.protocol.ChannelHandler;
+import com.google.dataconnector.protocol.EventLoop;
+import com.google.dataconnector.protocol.EventLoopGroup;
+import com.google.dataconnector.protocol.FlowControl;
+import com.google.dataconnector.protocol.FlowControlWindow;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
+import com.google.dataconnector.util.BufferPool;
 import com.google.dataconnector.util.ClockUtil;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -29,14 +34,18 @@ import com.google.protobuf.ByteString;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.Map;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Manages all the inflight socket sessions for this agent.
@@ -48,42 +57,105 @@ public class SocketSessionManager {
   public static int DEFAULT_CONNECT_TIMEOUT = 60000;
   
   private static Logger logger = Logger.getLogger(SocketSessionManager.class);
+
+  // Queued after the data to write when the cloud closes a session.
+  private static final byte[] CLOSE_MARKER = new byte[0];
+  
+  static final int READ_SIZE = 64 * 1024;
+
+  // Most data from the cloud held per session waiting for data ahead of it in the stream.
+  static final int MAX_REORDER_BYTES = 4 * 1024 * 1024;
   
   // Injected Dependencies.
-  protected final ThreadPoolExecutor threadPoolExecutor;
   private final ClockUtil clock;
-  private final Map<ByteString, Session> sessions = Maps.newHashMap();
+  private final EventLoopGroup eventLoopGroup;
+  private final BufferPool bufferPool;
+
+  // Local fields
+  private final ConcurrentHashMap<ByteString, Session> sessions =
+      new ConcurrentHashMap<ByteString, Session>();
   
   @Inject
-  public SocketSessionManager(ThreadPoolExecutor threadPoolExecutor, ClockUtil clock) {
-    this.threadPoolExecutor = threadPoolExecutor;
+  public SocketSessionManager(ClockUtil clock, EventLoopGroup eventLoopGroup,
+      BufferPool bufferPool) {
     this.clock = clock;
+    this.eventLoopGroup = eventLoopGroup;
+    this.bufferPool = bufferPool;
   }
 
   enum SessionState {
     EXCEPTION,
     CREATED,
+    CONNECTING,
     OPEN,
     CLOSED;
   }
   
   /**
-   * Class that encapsulates the states of a socket session.
+   * Class that encapsulates the states of a socket session.  Frames for a session arrive on the
+   * dispatch thread while its socket is serviced by an {@link EventLoop}, so the state only
+   * changes through atomic transitions and no lock is held while the socket blocks.  Data from
+   * the cloud is queued and written by the event loop, so a slow endpoint never holds up frames
+   * for other sessions, and an idle session costs neither a thread nor a read buffer.  Messages
+   * for the cloud are offered to the tunnel without blocking the event loop; one that is refused
+   * is held and reading stops until the tunnel's send queue has drained.
    */
-  public class Session {
-    private SessionState state;
+  public class Session implements ChannelHandler {
+    private final AtomicReference<SessionState> state =
+        new AtomicReference<SessionState>(SessionState.CREATED);
     private final ByteString handle;
     private final InetSocketAddress endpoint;
     private final AtomicLong bytesReceived = new AtomicLong(0);
+    // The cloud's side of the stream, the counterpart of bytesReceived.
+    private final StreamReassembler reassembler = new StreamReassembler(MAX_REORDER_BYTES);
     private final Sink<SocketSessionData> receiver;
-    private Socket socket;
-    private final AtomicBoolean connectReplySent = new AtomicBoolean(false);
+    private volatile SocketChannel channel;
+    private volatile EventLoop eventLoop;
+    // Data waiting to be written, ending with CLOSE_MARKER once the cloud closes the session.
+    private final ConcurrentLinkedQueue<byte[]> pendingWrites =
+        new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicBoolean closeSent = new AtomicBoolean(false);
+    // Messages for the cloud refused by the tunnel, in order.  Guarded by itself.
+    private final LinkedList<SocketSessionData> unsent = new LinkedList<SocketSessionData>();
+    // Run by the tunnel once it has room for the unsent messages.
+    private final Runnable resumeSending = new Runnable() {
+      @Override
+      public void run() {
+        EventLoop loop = eventLoop;
+        if (loop == null || !loop.execute(retrySending)) {
+          logger.warn(Session.this + ": Event loop gone, dropping unsent messages.");
+          synchronized (unsent) {
+            unsent.clear();
+          }
+        }
+      }
+    };
+    private final Runnable retrySending = new Runnable() {
+      @Override
+      public void run() {
+        sendUnsent();
+        if (key != null && key.isValid()) {
+          updateInterest();
+        }
+      }
+    };
+    // Null unless flow control was negotiated by the connection the session was created on.
+    private final FlowControlWindow sendWindow;
+    private final FlowControlWindow receiveWindow;
+    // Only touched on the event loop.
+    private SelectionKey key;
+    private ByteBuffer writing;
+    private int writingSize;
+    private boolean inputDone = false;
+    private long readingSince;
     
-    Session(Sink<SocketSessionData> cloud, ByteString handle, InetSocketAddress endpoint) {
+    Session(Sink<SocketSessionData> cloud, ByteString handle, InetSocketAddress endpoint,
+        int flowControlWindow) {
       this.handle = handle;
       this.endpoint = endpoint;
-      this.state = SessionState.CREATED;
       this.receiver = cloud;
+      this.sendWindow = FlowControl.newWindow(flowControlWindow);
+      this.receiveWindow = FlowControl.newWindow(flowControlWindow);
     }
     
     @Override
@@ -92,138 +164,387 @@ public class SocketSessionManager {
           endpoint.getHostName(), endpoint.getPort());
     }
 
-    private Thread inputForwarder = new Thread() {
-      byte[] buffer = new byte[1024 * 64];
-      @Override
-      public void run() {
-        long start = SocketSessionManager.this.clock.currentTimeMillis();
-        
-        try {
-          // Wait till connect reply is sent.
-          while (!connectReplySent.get()) {
-            Thread.sleep(50L);
-          }
-          logger.debug("Starting listener for input stream.");
-          InputStream input = Session.this.socket.getInputStream();
-          for (int read = 0; ; read = input.read(buffer)) {
-            if (read > 0) {
-              long offset = bytesReceived.getAndAdd(read);
-              ByteString data = ByteString.copyFrom(buffer, 0, read);
-              
-              SocketSessionData m = SocketSessionData.newBuilder()
-                .setSocketHandle(handle)
-                .setData(data)
-                .setStreamOffset(offset).build();
-              
-              receiver.receive(m);
-              logger.debug( Session.this + ": [" + offset + "] received " + read + " bytes");
-            }
-          }
-        } catch (SocketException e) {
-          logger.warn(this + ": Socket closed.", e);
-          synchronized (Session.this) {
-            Session.this.state = SessionState.CLOSED;
-          }
-        } catch (Exception e) {
-          logger.warn(this + ": Exception while reading input.", e);
-          synchronized (Session.this) {
-            Session.this.state = SessionState.EXCEPTION;
-          }
-        } finally {
-          // Send a CLOSE back up the cloud to confirm.
-          long offset = bytesReceived.getAndAdd(0);
-          // Closing down.  Need to tell the cloud about it.
-          SocketSessionData m = SocketSessionData.newBuilder()
-          .setSocketHandle(handle)
-          .setClose(true)
-          .setStreamOffset(offset).build();
-          receiver.receive(m);
-          logger.debug( Session.this + ": [" + offset + "] sent CLOSE.");
-        }
-        logger.debug( Session.this + ": Stoped reading input after " + 
-            (SocketSessionManager.this.clock.currentTimeMillis() - start) + " msec.");
-      }
-    };
-    
     /**
      * Connects the socket.  Returns true iff connect succeeds.
      * @return True if connected.
      */
-    synchronized boolean connect() {
-      if (this.state != SessionState.CREATED) {
-        logger.warn(this + ": Invalid state when connect = " + this.state);
+    boolean connect() {
+      if (!state.compareAndSet(SessionState.CREATED, SessionState.CONNECTING)) {
+        logger.warn(this + ": Invalid state when connect = " + state.get());
         return false;
       }
       try {
-        this.socket = new Socket();
-        this.socket.connect(endpoint, DEFAULT_CONNECT_TIMEOUT);
-        // Also submit a listener to the queue for execution
-        inputForwarder.start();
-        this.state = SessionState.OPEN;
+        SocketChannel connecting = SocketChannel.open();
+        this.channel = connecting;
+        connecting.socket().connect(endpoint, DEFAULT_CONNECT_TIMEOUT);
+        if (!state.compareAndSet(SessionState.CONNECTING, SessionState.OPEN)) {
+          // Closed while connecting.
+          closeQuietly();
+          return false;
+        }
         return true;
       } catch (IOException e) {
         logger.warn(this + ": Exception on connect.", e);
-        this.state = SessionState.EXCEPTION;
+        state.compareAndSet(SessionState.CONNECTING, SessionState.EXCEPTION);
+        closeQuietly();
       } catch (Exception e) {
         logger.warn(this + ": Exception on connect.", e);
-        this.state = SessionState.EXCEPTION;
+        state.compareAndSet(SessionState.CONNECTING, SessionState.EXCEPTION);
+        closeQuietly();
       }
       return false;
     }
     
     /**
-     * Writes the data to the output stream of the socket.
+     * Queues the data to be written to the socket by the event loop, in stream order.
      * @param data The data to write.
-     * @return True if written.
+     * @param streamOffset The offset of the data in the stream from the cloud, or -1 if it
+     *     follows whatever came before.
+     * @return True if queued or held until the data before it arrives.
      */
-    synchronized boolean write(byte[] data, long streamOffset) {
-      if (this.state != SessionState.OPEN) {
-        logger.warn(this + ": Invalid state when write = " + this.state);
+    boolean write(byte[] data, long streamOffset) {
+      SessionState current = state.get();
+      if (current != SessionState.OPEN) {
+        logger.warn(this + ": Invalid state when write = " + current);
         return false;
       }
+      List<byte[]> writable = new ArrayList<byte[]>(1);
+      // Order is decided and the data queued under one lock so writers racing with each other
+      // still queue in stream order.
+      synchronized (reassembler) {
+        int accepted = reassembler.offer(streamOffset, data, writable);
+        if (accepted < 0) {
+          logger.warn(this + ": More than " + MAX_REORDER_BYTES + " bytes out of order.");
+          fail(new IOException("Reorder buffer overrun"));
+          return false;
+        }
+        if (accepted < data.length) {
+          logger.debug(this + ": Dropped " + (data.length - accepted) + " bytes already seen.");
+        }
+        if (receiveWindow != null && !receiveWindow.reserve(accepted)) {
+          logger.warn(this + ": Cloud overran flow control window.");
+          fail(new IOException("Flow control window overrun"));
+          return false;
+        }
+        pendingWrites.addAll(writable);
+      }
+      if (!writable.isEmpty()) {
+        wakeup();
+      }
+      return true;
+    }
+
+    /**
+     * Asks the event loop to look at the session again after data has been queued or send
+     * credit granted.  Safe to call from any thread.
+     */
+    private void wakeup() {
+      EventLoop loop = eventLoop;
+      if (loop == null) {
+        return;
+      }
+      loop.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (key != null && key.isValid()) {
+            try {
+              flush();
+              updateInterest();
+            } catch (IOException e) {
+              logger.warn(Session.this + ": Exception on write.", e);
+              closeChannel(e);
+            }
+          }
+        }
+      });
+    }
+
+    @Override
+    public void registered(SelectionKey key) {
+      this.key = key;
+      readingSince = SocketSessionManager.this.clock.currentTimeMillis();
+      logger.debug(this + ": Reading input.");
+      // Data may have been queued before registration completed.
       try {
-        logger.debug( this + ": Writing " + data.length + " bytes: " + 
-            new String(data));
-        
-        socket.getOutputStream().write(data);
-        return true;
+        flush();
+        updateInterest();
       } catch (IOException e) {
         logger.warn(this + ": Exception on write.", e);
-        this.state = SessionState.EXCEPTION;
+        closeChannel(e);
+      }
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+      if (key.isWritable()) {
+        flush();
+      }
+      if (key.isValid() && key.isReadable()) {
+        read();
+      }
+      if (key.isValid()) {
+        updateInterest();
+      }
+    }
+
+    @Override
+    public void closed(IOException cause) {
+      onClosed(cause);
+    }
+
+    /**
+     * Reads whatever is available, within the send credit, into a pooled buffer and sends it.
+     */
+    private void read() throws IOException {
+      int allowed = READ_SIZE;
+      if (sendWindow != null) {
+        // Never read more than the cloud has granted credit for.
+        allowed = sendWindow.tryAcquire(allowed);
+        if (allowed == 0) {
+          return;
+        }
+      }
+      ByteBuffer buffer = bufferPool.acquire(allowed);
+      try {
+        int read = channel.read(buffer);
+        if (sendWindow != null) {
+          sendWindow.giveBack(allowed - Math.max(read, 0));
+        }
+        if (read == -1) {
+          inputDone = true;
+          sendClose();
+          return;
+        }
+        if (read > 0) {
+          buffer.flip();
+          long offset = bytesReceived.getAndAdd(read);
+          SocketSessionData m = SocketSessionData.newBuilder()
+            .setSocketHandle(handle)
+            .setData(ByteString.copyFrom(buffer))
+            .setStreamOffset(offset).build();
+          send(m);
+          logger.debug( Session.this + ": [" + offset + "] received " + read + " bytes");
+        }
+      } finally {
+        bufferPool.release(buffer);
+      }
+    }
+
+    /**
+     * Writes queued data until the queue is empty or the socket will take no more.
+     */
+    private void flush() throws IOException {
+      while (true) {
+        if (writing == null) {
+          byte[] data = pendingWrites.poll();
+          if (data == null) {
+            return;
+          }
+          if (data == CLOSE_MARKER) {
+            closeChannel(null);
+            return;
+          }
+          logger.debug( this + ": Writing " + data.length + " bytes: " + 
+              new String(data));
+          writing = ByteBuffer.wrap(data);
+          writingSize = data.length;
+        }
+        channel.write(writing);
+        if (writing.hasRemaining()) {
+          return;
+        }
+        writing = null;
+        if (receiveWindow != null) {
+          long update = receiveWindow.consumed(writingSize);
+          if (update > 0) {
+            send(SocketSessionData.newBuilder()
+                .setSocketHandle(handle)
+                .setWindowUpdate(update).build());
+          }
+        }
+      }
+    }
+
+    /**
+     * Offers the message to the cloud, holding it behind any refused before it.
+     */
+    private void send(SocketSessionData m) {
+      synchronized (unsent) {
+        if (!unsent.isEmpty() || !receiver.receive(m, resumeSending)) {
+          unsent.add(m);
+        }
       }
-      return false;
     }
 
     /**
-     * Closes the connection of this session.
+     * Offers the held messages again, in order, until one is refused.
+     */
+    private void sendUnsent() {
+      synchronized (unsent) {
+        while (!unsent.isEmpty()) {
+          if (!receiver.receive(unsent.getFirst(), resumeSending)) {
+            return;
+          }
+          unsent.removeFirst();
+        }
+      }
+    }
+
+    private boolean hasUnsent() {
+      synchronized (unsent) {
+        return !unsent.isEmpty();
+      }
+    }
+
+    /**
+     * Reads while there is credit and input left and the tunnel takes what is read; writes while
+     * there is data pending.
+     */
+    private void updateInterest() {
+      if (!key.isValid()) {
+        return;
+      }
+      int interestOps = 0;
+      if (!inputDone && (sendWindow == null || sendWindow.getCredit() > 0) && !hasUnsent()) {
+        interestOps |= SelectionKey.OP_READ;
+      }
+      if (writing != null || !pendingWrites.isEmpty()) {
+        interestOps |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(interestOps);
+    }
+
+    /**
+     * Closes the connection of this session once the data queued ahead of the close is written.
      * @return True if close succeeded.
      */
-    synchronized boolean close() {
-      if (socket != null) {
-        try {
-          // TODO:  Need to flush buffers and close off 
-          // the input and output streams
-          logger.debug( this + ": Closing socket.");
-          socket.close();
-          this.state = SessionState.CLOSED;
-          return true;
-        } catch (IOException e) {
-          logger.warn(this + ": Exception on close.", e);
-          this.state = SessionState.EXCEPTION;
-        } finally {
-          logger.debug( "Removing session " + handle.toStringUtf8());
-          SocketSessionManager.this.sessions.remove(this.handle);
+    boolean close() {
+      SessionState previous = state.getAndSet(SessionState.CLOSED);
+      if (sendWindow != null) {
+        sendWindow.close();
+      }
+      logger.debug( "Removing session " + handle.toStringUtf8());
+      SocketSessionManager.this.sessions.remove(this.handle, this);
+      if (previous == SessionState.CLOSED || channel == null) {
+        return false;
+      }
+      if (previous == SessionState.OPEN && eventLoop != null) {
+        pendingWrites.add(CLOSE_MARKER);
+        wakeup();
+      } else {
+        // Nothing was written; also ends a connect in progress.
+        logger.debug( this + ": Closing socket.");
+        closeQuietly();
+      }
+      return true;
+    }
+
+    /**
+     * Closes the socket from the event loop.
+     */
+    private void closeChannel(IOException cause) {
+      logger.debug( this + ": Closing socket.");
+      if (key != null) {
+        key.cancel();
+      }
+      closeQuietly();
+      onClosed(cause);
+    }
+
+    private void onClosed(IOException cause) {
+      if (cause != null) {
+        state.compareAndSet(SessionState.OPEN, SessionState.EXCEPTION);
+      }
+      if (sendWindow != null) {
+        sendWindow.close();
+      }
+      pendingWrites.clear();
+      sendClose();
+    }
+
+    /**
+     * Gives up on the session after an error.
+     */
+    private void fail(final IOException cause) {
+      state.set(SessionState.EXCEPTION);
+      EventLoop loop = eventLoop;
+      final boolean queued = loop != null && loop.execute(new Runnable() {
+        @Override
+        public void run() {
+          closeChannel(cause);
         }
+      });
+      if (!queued) {
+        closeQuietly();
+        onClosed(cause);
       }
-      return false;
     }
-    
+
+    /**
+     * Tells the cloud no more data will come from the socket.
+     */
+    private void sendClose() {
+      if (!closeSent.compareAndSet(false, true)) {
+        return;
+      }
+      long offset = bytesReceived.get();
+      SocketSessionData m = SocketSessionData.newBuilder()
+        .setSocketHandle(handle)
+        .setClose(true)
+        .setStreamOffset(offset).build();
+      send(m);
+      logger.debug( this + ": [" + offset + "] sent CLOSE.");
+      if (readingSince > 0) {
+        logger.debug( this + ": Stopped reading input after " + 
+            (SocketSessionManager.this.clock.currentTimeMillis() - readingSince) + " msec.");
+      }
+    }
+
+    private void closeQuietly() {
+      SocketChannel current = channel;
+      if (current == null) {
+        return;
+      }
+      try {
+        current.close();
+      } catch (IOException e) {
+        logger.debug(this + ": Exception on close.", e);
+      }
+    }
+
+    /**
+     * Adds credit granted by the cloud for sending more data.
+     * @param bytes The window update.
+     */
+    void grant(long bytes) {
+      if (sendWindow != null) {
+        sendWindow.grant(bytes);
+        wakeup();
+      }
+    }
+
     void notifyCreateReplySent(SocketSessionReply reply) {
       
     }
+
+    /**
+     * Starts servicing the socket once the cloud has been told the connect succeeded, so no
+     * data is sent ahead of the reply.
+     */
     void notifyConnectReplySent(SocketSessionReply reply) {
+      if (reply.getStatus() != SocketSessionReply.Status.OK ||
+          state.get() != SessionState.OPEN) {
+        return;
+      }
       logger.debug( "Connect reply SENT. OK to READ INPUTSTREAM.");
-      this.connectReplySent.set(true);
+      try {
+        EventLoop loop = eventLoopGroup.next();
+        eventLoop = loop;
+        loop.register(channel, SelectionKey.OP_READ, this);
+      } catch (IOException e) {
+        logger.warn(this + ": No event loop for session.", e);
+        fail(e);
+      }
     }
     void notifyCloseReplySent(SocketSessionReply reply) {
       
@@ -231,13 +552,10 @@ public class SocketSessionManager {
   }
   
   public boolean createSession(Sink<SocketSessionData> receiver,
-      ByteString handle, InetSocketAddress endpoint) {
+      ByteString handle, InetSocketAddress endpoint, int flowControlWindow) {
     Preconditions.checkArgument(!endpoint.isUnresolved());
-    synchronized (sessions) {
-      if (!sessions.containsKey(handle)) {
-        Session session = new Session(receiver, handle, endpoint);
-        sessions.put(handle, session);
-      }
+    if (!sessions.containsKey(handle)) {
+      sessions.putIfAbsent(handle, new Session(receiver, handle, endpoint, flowControlWindow));
     }
     return true;
   }
@@ -263,6 +581,35 @@ public class SocketSessionManager {
     return false;
   }
   
+  /**
+   * Closes every session whose data goes to the given receiver, such as when the tunnel
+   * connection it sends on is lost.  Sessions on other connections are not touched.
+   * @param receiver The receiver the sessions were created with.
+   */
+  public void closeSessions(Sink<SocketSessionData> receiver) {
+    for (Session session : sessions.values()) {
+      if (session.receiver == receiver) {
+        logger.info(session + ": Closing, its tunnel connection is gone.");
+        session.close();
+      }
+    }
+  }
+
+  /**
+   * Counts the sessions whose data goes to the given receiver.
+   * @param receiver The receiver the sessions were created with.
+   * @return The number of sessions not yet closed by the cloud.
+   */
+  public int countSessions(Sink<SocketSessionData> receiver) {
+    int count = 0;
+    for (Session session : sessions.values()) {
+      if (session.receiver == receiver) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   public void notifySent(ByteString handle, SocketSessionReply reply) {
     Session session = sessions.get(handle);
     if (session != null) {
@@ -289,4 +636,16 @@ public class SocketSessionManager {
     }
     return false;
   }
+
+  /**
+   * Adds send credit for the session identified by the handle.
+   * @param handle The socket handle.
+   * @param bytes The window update from the cloud.
+   */
+  public void grant(ByteString handle, long bytes) {
+    Session session = sessions.get(handle);
+    if (session != null) {
+      session.grant(bytes);
+    }
+  }
 }
@@ -0,0 +1,136 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.socketsession;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Puts the data the cloud sends for a session back in stream order using the stream offset of
+ * each segment, so segments dispatched out of order are still written in order.  Segments ahead
+ * of the next offset are held until the gap before them is filled; bytes already seen, whether
+ * resent whole or overlapping, are dropped.  Held segments never overlap, and their total size
+ * is bounded.
+ * <p>
+ * Not thread safe; the session serializes calls.
+ */
+class StreamReassembler {
+
+  private final int maxBufferedBytes;
+
+  // Local fields
+  private final TreeMap<Long, byte[]> held = new TreeMap<Long, byte[]>();
+  private long nextOffset = 0;
+  private int bufferedBytes = 0;
+
+  /**
+   * @param maxBufferedBytes the most bytes held waiting for a gap to fill.
+   */
+  StreamReassembler(final int maxBufferedBytes) {
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  /**
+   * Adds a segment.
+   *
+   * @param offset the stream offset of the segment's first byte, or -1 to append it.
+   * @param data the segment.
+   * @param writable segments now in order are added to this, to be written in order.
+   * @return the number of bytes not seen before, or -1 if holding the segment would exceed the
+   *     limit.
+   */
+  int offer(long offset, byte[] data, final List<byte[]> writable) {
+    if (offset < 0) {
+      offset = nextOffset;
+    }
+    long end = offset + data.length;
+    if (end <= nextOffset) {
+      return 0;
+    }
+    if (offset < nextOffset) {
+      data = Arrays.copyOfRange(data, (int) (nextOffset - offset), data.length);
+      offset = nextOffset;
+    }
+
+    // Trim against held segments so they never overlap.
+    final Map.Entry<Long, byte[]> before = held.floorEntry(offset);
+    if (before != null) {
+      final long beforeEnd = before.getKey() + before.getValue().length;
+      if (beforeEnd >= end) {
+        return 0;
+      }
+      if (beforeEnd > offset) {
+        data = Arrays.copyOfRange(data, (int) (beforeEnd - offset), data.length);
+        offset = beforeEnd;
+      }
+    }
+    int accepted = data.length;
+    final Iterator<Map.Entry<Long, byte[]>> after =
+        held.subMap(offset, false, end, false).entrySet().iterator();
+    while (after.hasNext()) {
+      final Map.Entry<Long, byte[]> entry = after.next();
+      final long entryEnd = entry.getKey() + entry.getValue().length;
+      if (entryEnd > end) {
+        // Keep the held segment and only take what comes before it.
+        accepted -= (int) (end - entry.getKey());
+        end = entry.getKey();
+        data = Arrays.copyOf(data, (int) (end - offset));
+        break;
+      }
+      // Superseded by this segment.
+      accepted -= entry.getValue().length;
+      bufferedBytes -= entry.getValue().length;
+      after.remove();
+    }
+
+    if (offset != nextOffset) {
+      if (bufferedBytes + data.length > maxBufferedBytes) {
+        return -1;
+      }
+      held.put(offset, data);
+      bufferedBytes += data.length;
+      return accepted;
+    }
+    writable.add(data);
+    nextOffset = end;
+    Map.Entry<Long, byte[]> first;
+    while ((first = held.firstEntry()) != null && first.getKey() == nextOffset) {
+      held.remove(first.getKey());
+      bufferedBytes -= first.getValue().length;
+      writable.add(first.getValue());
+      nextOffset += first.getValue().length;
+    }
+    return accepted;
+  }
+
+  /**
+   * @return the offset of the next byte to write; every byte before it has been passed on.
+   */
+  long getNextOffset() {
+    return nextOffset;
+  }
+
+  /**
+   * @return the number of bytes held waiting for a gap to fill.
+   */
+  int getBufferedBytes() {
+    return bufferedBytes;
+  }
+}
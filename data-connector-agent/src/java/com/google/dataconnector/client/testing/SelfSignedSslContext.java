@@ -0,0 +1,91 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.testing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Used for testing, builds an SSL context around a freshly generated self-signed certificate.
+ * The context both presents the certificate and trusts it, so it serves as either end of a
+ * loopback connection.  The key is made with the JDK's keytool.  Only use for testing!
+ */
+public class SelfSignedSslContext {
+
+  private static final String PASSWORD = "woodstock";
+
+  private SelfSignedSslContext() {
+  }
+
+  /**
+   * @param host the host name the certificate is issued to.
+   * @return a context holding the certificate as its key and its only trusted certificate.
+   */
+  public static SSLContext create(final String host) throws IOException,
+      GeneralSecurityException {
+    final File keyStoreFile = File.createTempFile("sdc-test", ".keystore");
+    keyStoreFile.delete();
+    try {
+      final String keytool = System.getProperty("java.home") + File.separator + "bin" +
+          File.separator + "keytool";
+      final Process process = new ProcessBuilder(keytool, "-genkeypair",
+          "-keystore", keyStoreFile.getPath(), "-storetype", "JKS",
+          "-storepass", PASSWORD, "-keypass", PASSWORD, "-alias", "test",
+          "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+          "-dname", "CN=" + host, "-ext", "san=dns:" + host)
+          .redirectErrorStream(true).start();
+      final InputStream output = process.getInputStream();
+      while (output.read() != -1) {
+        // keytool blocks if its output is not drained.
+      }
+      if (process.waitFor() != 0) {
+        throw new IOException("keytool failed for " + host);
+      }
+
+      final KeyStore keyStore = KeyStore.getInstance("JKS");
+      final FileInputStream in = new FileInputStream(keyStoreFile);
+      try {
+        keyStore.load(in, PASSWORD.toCharArray());
+      } finally {
+        in.close();
+      }
+      final KeyManagerFactory keyManagerFactory =
+          KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keyManagerFactory.init(keyStore, PASSWORD.toCharArray());
+      final TrustManagerFactory trustManagerFactory =
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(keyStore);
+
+      final SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(keyManagerFactory.getKeyManagers(),
+          trustManagerFactory.getTrustManagers(), null);
+      return sslContext;
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted running keytool");
+    } finally {
+      keyStoreFile.delete();
+    }
+  }
+}
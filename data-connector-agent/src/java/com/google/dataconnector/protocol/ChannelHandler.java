@@ -0,0 +1,52 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Callback interface for channels registered with an {@link EventLoop}.  All methods are called
+ * from the event loop thread, so implementations must never block.
+ */
+public interface ChannelHandler {
+
+  /**
+   * Called once the channel has been registered with the event loop's selector.
+   *
+   * @param key the selection key for the channel.
+   */
+  public void registered(SelectionKey key);
+
+  /**
+   * Called when the channel is ready for one or more of its interest operations.  Throwing an
+   * {@link IOException} closes the channel and fires {@link #closed(IOException)}.
+   *
+   * @param key the selection key for the channel.
+   * @throws IOException if any IO errors occur while servicing the channel.
+   */
+  public void ready(SelectionKey key) throws IOException;
+
+  /**
+   * Called when the channel has been closed by the event loop, either because of an error or
+   * because the event loop is shutting down.  A channel registered with a loop that has already
+   * shut down is closed at once, and this is called from the registering thread instead.
+   *
+   * @param cause the error that caused the close or null if the event loop was shut down.
+   */
+  public void closed(IOException cause);
+}
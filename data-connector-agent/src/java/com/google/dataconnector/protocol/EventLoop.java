@@ -0,0 +1,212 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.util.Stoppable;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread that services any number of non-blocking channels.  Channels are
+ * registered with a {@link ChannelHandler} which is called back from this thread whenever the
+ * channel is ready.  Other threads hand work to the loop with {@link #execute(Runnable)}, which
+ * is the only safe way to touch a registered channel's selection key from outside the loop.
+ * Once the loop has shut down it refuses new work, and channels registered with it are closed.
+ */
+public class EventLoop extends Thread implements Stoppable {
+
+  private static final Logger LOG = Logger.getLogger(EventLoop.class);
+
+  // Local fields
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  // Written holding the tasks lock, so no task is queued once it is false.
+  private volatile boolean running = true;
+
+  /**
+   * Creates the event loop and opens its selector.  The loop does not run until started.
+   *
+   * @param name the thread name.
+   * @throws IOException if the selector cannot be opened.
+   */
+  public EventLoop(final String name) throws IOException {
+    this.selector = Selector.open();
+    this.setName(name);
+    this.setDaemon(true);
+  }
+
+  /**
+   * Queues a task to run on the event loop thread and wakes the selector up.
+   *
+   * @param task the task to run.
+   * @return false if the loop has shut down, in which case the task never runs.  The channels
+   *     the loop served have been closed by then.
+   */
+  public boolean execute(final Runnable task) {
+    synchronized (tasks) {
+      if (!running) {
+        return false;
+      }
+      tasks.add(task);
+      selector.wakeup();
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the calling thread is this event loop.
+   */
+  public boolean inEventLoop() {
+    return Thread.currentThread() == this;
+  }
+
+  /**
+   * Switches the channel to non-blocking mode and registers it with this loop.  Registration
+   * happens asynchronously on the loop thread and is reported through
+   * {@link ChannelHandler#registered(SelectionKey)}.  If the loop has shut down the channel is
+   * closed instead and {@link ChannelHandler#closed(IOException)} called on this thread.
+   *
+   * @param channel the channel to register.
+   * @param interestOps the initial interest set.
+   * @param handler the handler to call back for this channel.
+   */
+  public void register(final SelectableChannel channel, final int interestOps,
+      final ChannelHandler handler) {
+    final boolean queued = execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          channel.configureBlocking(false);
+          handler.registered(channel.register(selector, interestOps, handler));
+        } catch (ClosedChannelException e) {
+          handler.closed(e);
+        } catch (IOException e) {
+          handler.closed(e);
+        }
+      }
+    });
+    if (!queued) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.debug("Channel close failed.", e);
+      }
+      handler.closed(new IOException(getName() + " is shut down."));
+    }
+  }
+
+  /**
+   * Selects and dispatches ready channels until shut down.  Any channels still registered when
+   * the loop exits are closed and their handlers notified.
+   */
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        runTasks();
+        selector.select();
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          final ChannelHandler handler = (ChannelHandler) key.attachment();
+          try {
+            if (key.isValid()) {
+              handler.ready(key);
+            }
+          } catch (IOException e) {
+            LOG.debug(getName() + ": IO error on channel, closing.", e);
+            close(key, e);
+          } catch (RuntimeException e) {
+            // A broken handler must not take the other channels on this loop down with it.
+            LOG.warn(getName() + ": Handler error, closing channel.", e);
+            close(key, new IOException(e.toString()));
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn(getName() + ": Selector failed, event loop exiting.", e);
+    } finally {
+      synchronized (tasks) {
+        running = false;
+      }
+      // Tasks queued before the loop stopped still run, so channels they register are closed
+      // below like the others.
+      runTasks();
+      for (final SelectionKey key : selector.keys()) {
+        close(key, null);
+      }
+      synchronized (tasks) {
+        try {
+          selector.close();
+        } catch (IOException e) {
+          LOG.debug("Selector close failed.", e);
+        }
+      }
+      LOG.info(getName() + ": Event loop stopped.");
+    }
+  }
+
+  /**
+   * Runs all tasks queued by {@link #execute(Runnable)}.
+   */
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        LOG.warn(getName() + ": Task failed.", e);
+      }
+    }
+  }
+
+  /**
+   * Cancels the key, closes its channel and notifies the handler.
+   */
+  private void close(final SelectionKey key, final IOException cause) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      LOG.debug("Channel close failed.", e);
+    }
+    ((ChannelHandler) key.attachment()).closed(cause);
+  }
+
+  /**
+   * Stops the loop.  Registered channels are closed by the loop thread on its way out.
+   */
+  @Override
+  public void shutdown() {
+    synchronized (tasks) {
+      running = false;
+      if (selector.isOpen()) {
+        selector.wakeup();
+      }
+    }
+  }
+}
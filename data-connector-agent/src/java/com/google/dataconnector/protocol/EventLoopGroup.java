@@ -0,0 +1,100 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.dataconnector.util.Stoppable;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The small fixed set of {@link EventLoop} threads shared by all non-blocking channels in the
+ * agent.  Loops are started lazily on first use, sized by {@link LocalConf#getEventLoopThreads()},
+ * and handed out round robin.  Shutting the group down stops every loop; the next call to
+ * {@link #next()} starts a fresh set so the group survives agent reconnects.
+ */
+@Singleton
+public class EventLoopGroup implements Stoppable {
+
+  private static final Logger LOG = Logger.getLogger(EventLoopGroup.class);
+
+  // Injected dependencies
+  private final LocalConf localConf;
+  private final ShutdownManager shutdownManager;
+
+  // Local fields
+  private List<EventLoop> eventLoops;
+  private int nextIndex = 0;
+
+  @Inject
+  public EventLoopGroup(final LocalConf localConf, final ShutdownManager shutdownManager) {
+    this.localConf = localConf;
+    this.shutdownManager = shutdownManager;
+  }
+
+  /**
+   * Returns the next event loop, starting the group if needed.
+   *
+   * @return a running event loop.
+   * @throws IOException if a selector cannot be opened.
+   */
+  public synchronized EventLoop next() throws IOException {
+    if (eventLoops == null) {
+      start();
+    }
+    nextIndex = (nextIndex + 1) % eventLoops.size();
+    return eventLoops.get(nextIndex);
+  }
+
+  /**
+   * Starts the configured number of event loops and registers the group for shutdown.
+   */
+  private void start() throws IOException {
+    final int threads = Math.max(1, localConf.getEventLoopThreads());
+    final List<EventLoop> loops = new ArrayList<EventLoop>(threads);
+    for (int i = 0; i < threads; i++) {
+      loops.add(new EventLoop("EventLoop-" + i));
+    }
+    for (final EventLoop eventLoop : loops) {
+      eventLoop.start();
+    }
+    eventLoops = loops;
+    shutdownManager.addStoppable(this);
+    LOG.info("Started " + threads + " event loop threads.");
+  }
+
+  /**
+   * Stops all event loops.
+   */
+  @Override
+  public synchronized void shutdown() {
+    if (eventLoops == null) {
+      return;
+    }
+    for (final EventLoop eventLoop : eventLoops) {
+      eventLoop.shutdown();
+    }
+    eventLoops = null;
+  }
+}
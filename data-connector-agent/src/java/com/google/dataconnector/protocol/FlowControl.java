@@ -0,0 +1,67 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.util.LocalConf;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Negotiates the per stream flow control window at registration.  The agent offers the window
+ * from {@link LocalConf#getFlowControlWindow()} and the server answers with the window it will
+ * honor; flow control is only used once the server has agreed to it, so older servers keep
+ * working unchanged.  Each tunnel connection registers on its own, so the window agreed to is
+ * kept by the connection's {@link FrameSender}.
+ */
+@Singleton
+public class FlowControl {
+
+  // Injected dependencies
+  private final LocalConf localConf;
+
+  @Inject
+  public FlowControl(final LocalConf localConf) {
+    this.localConf = localConf;
+  }
+
+  /**
+   * @return the window to offer the server, or 0 if flow control is disabled locally.
+   */
+  public int getRequestedWindow() {
+    final Integer requested = localConf.getFlowControlWindow();
+    return (requested == null || requested < 0) ? 0 : requested;
+  }
+
+  /**
+   * Agrees on a window with the one the server answered with.  The smaller of the two offers
+   * wins.
+   *
+   * @param serverWindow the server supplied window, 0 if the server does not do flow control.
+   * @return the negotiated window in bytes, 0 if flow control is not to be used.
+   */
+  public int negotiate(final int serverWindow) {
+    return (serverWindow <= 0) ? 0 : Math.min(serverWindow, getRequestedWindow());
+  }
+
+  /**
+   * @param window a negotiated window in bytes, 0 if flow control is not in use.
+   * @return a new window for one direction of a stream or null if flow control is not in use.
+   */
+  public static FlowControlWindow newWindow(final int window) {
+    return window > 0 ? new FlowControlWindow(window) : null;
+  }
+}
@@ -0,0 +1,199 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Credit counter for one direction of a flow controlled stream.  Each side of a stream starts
+ * with {@code window} bytes of credit and may not send more data than it holds credit for.
+ * <p>
+ * The sending side calls {@link #acquire(int)} before sending and {@link #grant(long)} when the
+ * peer returns credit.  The receiving side mirrors the sender's credit, calling
+ * {@link #reserve(int)} as data arrives and {@link #consumed(int)} once that data has been
+ * written out; the latter returns the credit to hand back to the peer in batches of half a
+ * window so that updates do not cost a frame per segment.
+ * <p>
+ * Waiting is done on a {@link ReentrantLock} rather than a monitor so that blocked senders on
+ * virtual threads do not pin their carrier thread.
+ */
+public class FlowControlWindow {
+
+  // Local fields
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition hasCredit = lock.newCondition();
+  private final int window;
+  private long credit;
+  private long unacknowledged = 0;
+  private boolean closed = false;
+
+  /**
+   * @param window the initial credit in bytes.
+   */
+  public FlowControlWindow(final int window) {
+    Preconditions.checkArgument(window > 0, "window must be positive");
+    this.window = window;
+    this.credit = window;
+  }
+
+  /**
+   * Waits until there is credit and takes up to max bytes of it.
+   *
+   * @param max the most bytes the caller wants to send.
+   * @return the number of bytes the caller may send or 0 if the window has been closed.
+   * @throws InterruptedException if interrupted while waiting for credit.
+   */
+  public int acquire(final int max) throws InterruptedException {
+    lock.lock();
+    try {
+      while (credit <= 0 && !closed) {
+        hasCredit.await();
+      }
+      if (closed) {
+        return 0;
+      }
+      final int acquired = (int) Math.min(max, credit);
+      credit -= acquired;
+      return acquired;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes up to max bytes of credit without waiting, for senders that cannot block.
+   *
+   * @param max the most bytes the caller wants to send.
+   * @return the number of bytes the caller may send, 0 if there is no credit or the window has
+   * been closed.
+   */
+  public int tryAcquire(final int max) {
+    lock.lock();
+    try {
+      if (closed || credit <= 0) {
+        return 0;
+      }
+      final int acquired = (int) Math.min(max, credit);
+      credit -= acquired;
+      return acquired;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns credit the sender took with {@link #acquire(int)} but did not use.
+   *
+   * @param unused the number of bytes not sent.
+   */
+  public void giveBack(final int unused) {
+    lock.lock();
+    try {
+      credit += unused;
+      hasCredit.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds credit granted by the peer.
+   *
+   * @param bytes the window update received.
+   */
+  public void grant(final long bytes) {
+    if (bytes <= 0) {
+      return;
+    }
+    lock.lock();
+    try {
+      credit += bytes;
+      hasCredit.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Accounts for data received from the peer.
+   *
+   * @param bytes the number of bytes received.
+   * @return false if the peer sent more than it had credit for.
+   */
+  public boolean reserve(final int bytes) {
+    lock.lock();
+    try {
+      if (bytes > credit) {
+        return false;
+      }
+      credit -= bytes;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Accounts for received data that has been written out and so no longer occupies the window.
+   *
+   * @param bytes the number of bytes written.
+   * @return the window update to send to the peer, or 0 if none is due yet.
+   */
+  public long consumed(final int bytes) {
+    lock.lock();
+    try {
+      unacknowledged += bytes;
+      if (unacknowledged < window / 2) {
+        return 0;
+      }
+      final long update = unacknowledged;
+      unacknowledged = 0;
+      credit += update;
+      return update;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wakes up any sender waiting on credit.  All later {@link #acquire(int)} calls return 0.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      hasCredit.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the credit currently available.
+   */
+  public long getCredit() {
+    lock.lock();
+    try {
+      return credit;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
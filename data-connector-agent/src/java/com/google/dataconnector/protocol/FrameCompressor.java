@@ -0,0 +1,372 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses frame payloads with the compression negotiated with the server at authorization.
+ * Payloads smaller than the configured minimum are sent as is, as are payloads that do not
+ * shrink by at least an eighth, such as already compressed images or TLS records, so the
+ * receiver never pays to inflate them.  Deflating gives up as soon as the output passes that
+ * size, which bounds the time spent on incompressible data.
+ * <p>
+ * Frames with a session id carry encrypted payloads, which do not compress, so for those the
+ * {@link com.google.dataconnector.util.SessionEncryption} compresses the message before
+ * encrypting it.  Other frames are compressed whole by the {@link FrameSender}.  Receiving,
+ * frames are inflated by {@link FrameDecoder} or after decryption, whatever was negotiated.
+ */
+public class FrameCompressor {
+
+  /** Largest payload we inflate, so a bad frame cannot make us allocate without bound. */
+  static final int MAX_INFLATED_SIZE = 16 * FrameReceiver.MAX_FRAME_SIZE;
+
+  private static final int INFLATE_BUFFER_SIZE = 8 * 1024;
+  private static final int DEFLATE_BUFFER_SIZE = 8 * 1024;
+  private static final int HEAD_INPUT_BUFFER_SIZE = 512;
+
+  // Deflaters and inflaters are not thread safe and frames are compressed on many threads.
+  private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.BEST_SPEED);
+    }
+  };
+  private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater();
+    }
+  };
+
+  private final FrameInfo.Compression compression;
+  private final int minBytes;
+
+  /**
+   * @param compression the negotiated compression.
+   * @param minBytes payloads smaller than this are not compressed.
+   */
+  public FrameCompressor(final FrameInfo.Compression compression, final int minBytes) {
+    this.compression = compression;
+    this.minBytes = minBytes;
+  }
+
+  public FrameInfo.Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Compresses the payload.
+   *
+   * @param payload the payload.
+   * @return the compressed payload or null if it should be sent as is.
+   */
+  public ByteString compress(final ByteString payload) {
+    if (compression != FrameInfo.Compression.DEFLATE || payload.size() < minBytes) {
+      return null;
+    }
+    final DeflatingStream stream = new DeflatingStream(payload.size());
+    return stream.deflate(payload.toByteArray(), 0, payload.size()) ? stream.finish() : null;
+  }
+
+  /**
+   * Compresses a message as it is serialized, without first serializing it whole.
+   *
+   * @param message the message.
+   * @return the compressed message or null if it should be sent as is.
+   */
+  public ByteString compress(final MessageLite message) {
+    final int size = message.getSerializedSize();
+    if (compression != FrameInfo.Compression.DEFLATE || size < minBytes) {
+      return null;
+    }
+    final DeflatingStream stream = new DeflatingStream(size);
+    try {
+      message.writeTo(stream);
+    } catch (IOException e) {
+      // Did not shrink enough.
+      return null;
+    }
+    return stream.finish();
+  }
+
+  /**
+   * Compresses a message as it is serialized into another stream, such as an encryptor, so the
+   * compressed message is not held whole either.  Gives up as soon as more than an eighth less
+   * than the message has been written.
+   *
+   * @param message the message.
+   * @param out the stream to write the compressed message to.
+   * @return false if the message should be sent as is, in which case what was written to out
+   *     must be discarded.
+   * @throws IOException if writing to out fails.
+   */
+  public boolean compress(final MessageLite message, final OutputStream out) throws IOException {
+    final int size = message.getSerializedSize();
+    if (compression != FrameInfo.Compression.DEFLATE || size < minBytes) {
+      return false;
+    }
+    final ForwardingDeflater stream = new ForwardingDeflater(out, size - size / 8);
+    try {
+      message.writeTo(stream);
+      stream.finish();
+      return true;
+    } catch (OutputTooLargeException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Compresses the payload of a frame without a session id.
+   *
+   * @param frameInfo the frame.
+   * @return the frame with its payload compressed, or the frame itself if it should be sent as
+   *     is.
+   */
+  public FrameInfo compress(final FrameInfo frameInfo) {
+    if (frameInfo.hasSessionId() || !frameInfo.hasPayload() ||
+        frameInfo.getCompression() != FrameInfo.Compression.NONE ||
+        frameInfo.getType() == FrameInfo.Type.AUTHORIZATION) {
+      return frameInfo;
+    }
+    final ByteString compressed = compress(frameInfo.getPayload());
+    if (compressed == null) {
+      return frameInfo;
+    }
+    return frameInfo.toBuilder().setPayload(compressed).setCompression(compression).build();
+  }
+
+  /**
+   * Inflates a payload.
+   *
+   * @param payloadCompression how the payload was compressed.
+   * @param payload the compressed payload.
+   * @return the payload.
+   * @throws FramingException if the payload cannot be inflated.
+   */
+  public static ByteString decompress(final FrameInfo.Compression payloadCompression,
+      final ByteString payload) throws FramingException {
+    if (payloadCompression == FrameInfo.Compression.NONE) {
+      return payload;
+    }
+    final Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(payload.toByteArray());
+    final ByteArrayOutputStream output = new ByteArrayOutputStream(
+        Math.min(MAX_INFLATED_SIZE, 4 * payload.size()));
+    final byte[] buffer = new byte[INFLATE_BUFFER_SIZE];
+    try {
+      while (!inflater.finished()) {
+        final int length = inflater.inflate(buffer);
+        if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new FramingException("Truncated compressed payload");
+        }
+        output.write(buffer, 0, length);
+        if (output.size() > MAX_INFLATED_SIZE) {
+          throw new FramingException("Compressed payload inflates past " + MAX_INFLATED_SIZE);
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new FramingException(e);
+    }
+    return ByteString.copyFrom(output.toByteArray());
+  }
+
+  /**
+   * Inflates only the start of a payload, to look at its leading fields.  The payload is fed to
+   * the inflater a slice at a time, so only as much of it is copied as the head needs.
+   *
+   * @param payloadCompression how the payload was compressed.
+   * @param payload the compressed payload.
+   * @param maxBytes the most bytes to inflate.
+   * @return up to maxBytes of the payload, fewer if it is shorter or cannot be inflated, or the
+   *     payload itself if not compressed.
+   */
+  public static ByteString decompressHead(final FrameInfo.Compression payloadCompression,
+      final ByteString payload, final int maxBytes) {
+    if (payloadCompression == FrameInfo.Compression.NONE) {
+      return payload;
+    }
+    final Inflater inflater = INFLATER.get();
+    inflater.reset();
+    final byte[] input = new byte[Math.min(payload.size(), HEAD_INPUT_BUFFER_SIZE)];
+    int consumed = 0;
+    final byte[] head = new byte[maxBytes];
+    int length = 0;
+    try {
+      while (length < maxBytes && !inflater.finished()) {
+        if (inflater.needsInput()) {
+          if (consumed == payload.size()) {
+            break;
+          }
+          final int slice = Math.min(input.length, payload.size() - consumed);
+          payload.copyTo(input, consumed, 0, slice);
+          consumed += slice;
+          inflater.setInput(input, 0, slice);
+        }
+        final int inflated = inflater.inflate(head, length, maxBytes - length);
+        if (inflated == 0 && !inflater.needsInput()) {
+          break;
+        }
+        length += inflated;
+      }
+    } catch (DataFormatException e) {
+      // Return what was inflated.
+    }
+    return ByteString.copyFrom(head, 0, length);
+  }
+
+  /**
+   * Inflates the payload of a frame without a session id.
+   *
+   * @param frameInfo the received frame.
+   * @return the frame with its payload inflated, or the frame itself if not compressed.
+   * @throws FramingException if the payload cannot be inflated.
+   */
+  public static FrameInfo decompress(final FrameInfo frameInfo) throws FramingException {
+    if (frameInfo.getCompression() == FrameInfo.Compression.NONE || frameInfo.hasSessionId()) {
+      return frameInfo;
+    }
+    return frameInfo.toBuilder()
+        .setPayload(decompress(frameInfo.getCompression(), frameInfo.getPayload()))
+        .clearCompression()
+        .build();
+  }
+
+  /**
+   * Deflates what is written to it into a buffer an eighth smaller than the input, failing as
+   * soon as the output does not fit.
+   */
+  private static class DeflatingStream extends OutputStream {
+    private final Deflater deflater = DEFLATER.get();
+    private final byte[] output;
+    private int length = 0;
+
+    DeflatingStream(final int inputSize) {
+      output = new byte[inputSize - inputSize / 8];
+      deflater.reset();
+    }
+
+    /**
+     * @return false if the output does not fit.
+     */
+    boolean deflate(final byte[] b, final int off, final int len) {
+      deflater.setInput(b, off, len);
+      // Consume all the input before returning, as the caller may reuse its buffer.
+      while (!deflater.needsInput()) {
+        if (length == output.length) {
+          return false;
+        }
+        length += deflater.deflate(output, length, output.length - length);
+      }
+      return true;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      if (!deflate(b, off, len)) {
+        throw new IOException("Compressed output larger than " + output.length);
+      }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * @return the compressed bytes or null if they do not fit.
+     */
+    ByteString finish() {
+      deflater.finish();
+      while (!deflater.finished() && length < output.length) {
+        length += deflater.deflate(output, length, output.length - length);
+      }
+      if (!deflater.finished()) {
+        return null;
+      }
+      return ByteString.copyFrom(output, 0, length);
+    }
+  }
+
+  /**
+   * Thrown once more has been written than the compressed message may take.
+   */
+  private static class OutputTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    OutputTooLargeException(final int limit) {
+      super("Compressed output larger than " + limit);
+    }
+  }
+
+  /**
+   * Deflates what is written to it and passes the output on a buffer at a time, failing as soon
+   * as more than the limit has been passed on.
+   */
+  private static class ForwardingDeflater extends OutputStream {
+    private final Deflater deflater = DEFLATER.get();
+    private final byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+    private final OutputStream out;
+    private final int limit;
+    private int length = 0;
+
+    ForwardingDeflater(final OutputStream out, final int limit) {
+      this.out = out;
+      this.limit = limit;
+      deflater.reset();
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      deflater.setInput(b, off, len);
+      // Consume all the input before returning, as the caller may reuse its buffer.
+      while (!deflater.needsInput()) {
+        forward(deflater.deflate(buffer));
+      }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    void finish() throws IOException {
+      deflater.finish();
+      while (!deflater.finished()) {
+        forward(deflater.deflate(buffer));
+      }
+    }
+
+    private void forward(final int deflated) throws IOException {
+      length += deflated;
+      if (length > limit) {
+        throw new OutputTooLargeException(limit);
+      }
+      out.write(buffer, 0, deflated);
+    }
+  }
+}
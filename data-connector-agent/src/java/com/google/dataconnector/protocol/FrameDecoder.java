@@ -0,0 +1,149 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Incremental decoder for the SDC Frame protocol.  Where {@link FrameReceiver} pulls exactly the
+ * bytes it needs from a blocking stream, the decoder is handed whatever bytes a non-blocking read
+ * produced and returns frames as they become complete.  Wire format and error handling are the
+ * same as {@link FrameReceiver}.
+ */
+public class FrameDecoder {
+
+  private static final Logger LOG = Logger.getLogger(FrameDecoder.class);
+
+  // Runtime dependencies
+  private AtomicLong byteCounter = new AtomicLong(); // default counter
+
+  // Local fields
+  private long sequence = 0;
+  private int payloadLength = -1; // -1 while waiting for a header.
+
+  /**
+   * Decodes the next frame from the buffer.  The buffer must be in read mode.  If a complete
+   * frame is not yet available the bytes consumed so far are remembered and null is returned;
+   * call again once more data has been appended to the buffer.
+   *
+   * @param buffer the buffer holding received bytes.
+   * @return the next frame or null if more data is needed.
+   * @throws FramingException if the data violates the framing protocol.
+   */
+  public FrameInfo decode(final ByteBuffer buffer) throws FramingException {
+    if (payloadLength < 0) {
+      if (buffer.remaining() < FrameReceiver.HEADER_SIZE) {
+        return null;
+      }
+      payloadLength = readHeader(buffer);
+    }
+    if (buffer.remaining() < payloadLength) {
+      return null;
+    }
+
+    // Parse straight out of the backing array when there is one rather than copying the
+    // payload out first.
+    final CodedInputStream codedInputStream;
+    if (buffer.hasArray()) {
+      codedInputStream = CodedInputStream.newInstance(buffer.array(),
+          buffer.arrayOffset() + buffer.position(), payloadLength);
+    } else {
+      final byte[] payload = new byte[payloadLength];
+      buffer.duplicate().get(payload);
+      codedInputStream = CodedInputStream.newInstance(payload);
+    }
+    buffer.position(buffer.position() + payloadLength);
+    if (byteCounter != null) {
+      byteCounter.addAndGet(FrameReceiver.HEADER_SIZE + payloadLength);
+    }
+    payloadLength = -1;
+
+    final FrameInfo frameInfo = parse(codedInputStream);
+    LOG.debug("frame type recevd: " + frameInfo.getType());
+    return frameInfo;
+  }
+
+  /**
+   * Parses a {@link FrameInfo} from the entire coded input, inflating its payload if it was
+   * compressed and is not encrypted.
+   *
+   * @param codedInputStream input limited to exactly one payload.
+   * @return the parsed frame.
+   * @throws FramingException if the payload is not a valid {@link FrameInfo}.
+   */
+  static FrameInfo parse(final CodedInputStream codedInputStream) throws FramingException {
+    try {
+      return FrameCompressor.decompress(FrameInfo.parseFrom(codedInputStream));
+    } catch (InvalidProtocolBufferException e) {
+      throw new FramingException(e);
+    } catch (IOException e) {
+      throw new FramingException(e);
+    }
+  }
+
+  /**
+   * @return the number of payload bytes the decoder is waiting on or -1 if it is waiting for
+   * a header.
+   */
+  public int getPendingPayloadLength() {
+    return payloadLength;
+  }
+
+  /**
+   * Reads and verifies a frame header, advancing the expected sequence number.
+   *
+   * @param buffer a buffer with at least {@link FrameReceiver#HEADER_SIZE} bytes remaining.
+   * @return the payload length from the header.
+   * @throws FramingException if the header is invalid.
+   */
+  int readHeader(final ByteBuffer buffer) throws FramingException {
+    if (buffer.get() != FrameReceiver.FRAME_START) {
+      throw new FramingException("Unexpected frame start read");
+    }
+    for (int i = 0; i < FrameReceiver.MAGIC.length; i++) {
+      if (buffer.get() != FrameReceiver.MAGIC[i]) {
+        throw new FramingException("Unexpected frame magic read");
+      }
+    }
+
+    final long readSequence = buffer.getLong();
+    if (readSequence == sequence) {
+      sequence++;
+    } else {
+      throw new FramingException("Unexpected sequence number. Expected: " + sequence +
+          " got:" + readSequence);
+    }
+
+    final int length = buffer.getInt();
+    if (length < 0 || length > FrameReceiver.MAX_FRAME_SIZE) {
+      throw new FramingException("Payload length invalid.");
+    }
+    return length;
+  }
+
+  public void setByteCounter(final AtomicLong byteCounter) {
+    this.byteCounter = byteCounter;
+  }
+}
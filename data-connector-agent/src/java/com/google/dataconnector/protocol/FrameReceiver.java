@@ -18,14 +18,16 @@ package com.google.dataconnector.protocol;
 
 import com.google.common.base.Preconditions;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.dataconnector.util.BufferPool;
+import com.google.inject.Inject;
+import com.google.protobuf.CodedInputStream;
 
 import org.apache.log4j.Logger;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -50,22 +52,49 @@ public class FrameReceiver {
   static final int HEADER_SIZE = 1 + MAGIC.length + SEQUENCE_LEN + PAYLOAD_LEN;
   static final int MAX_FRAME_SIZE = 1024 * 1024; // 1MB
 
+  // Injected dependencies
+  private final BufferPool bufferPool;
+  private final PartitionedDispatcher partitionedDispatcher;
+
   // Local fields
   private boolean dispatching;
-  private long sequence = 0;
   private ConcurrentMap<FrameInfo.Type, Dispatchable> dispatchMap =
       new ConcurrentHashMap<FrameInfo.Type, Dispatchable>();
-  private DataInputStream dataInputStream; // used for byte to primitives conversion.
+  private final FrameDecoder frameDecoder = new FrameDecoder(); // header checks and sequence.
+  private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
 
   // Runtime dependencies
   private InputStream inputStream;
   private AtomicLong byteCounter = new AtomicLong(); // default counter
 
+  public FrameReceiver() {
+    this(new BufferPool(), null);
+  }
+
+  /**
+   * @param bufferPool pool for payload buffers.
+   * @param partitionedDispatcher the dispatch stage or null to dispatch on the reading thread.
+   */
+  @Inject
+  public FrameReceiver(final BufferPool bufferPool,
+      final PartitionedDispatcher partitionedDispatcher) {
+    this.bufferPool = bufferPool;
+    this.partitionedDispatcher = partitionedDispatcher;
+  }
+
+  /**
+   * @return the dispatch stage, or null if frames are dispatched on the reading thread.
+   */
+  public PartitionedDispatcher getPartitionedDispatcher() {
+    return partitionedDispatcher;
+  }
+
   /**
    * Reads frames and dispatches them to handlers.  This method does not return and is expected to
-   * be used as the listener reading socket input data for frames to dispatch.  Any frame dispatched
-   * here will be in the main server loop.  If your {@link Dispatchable} does not fork a new thread
-   * and hangs, the entire server will hang.
+   * be used as the listener reading socket input data for frames to dispatch.  Frames are handed
+   * to the {@link PartitionedDispatcher}, if there is one, so a slow {@link Dispatchable} only
+   * holds up its own stream; otherwise a {@link Dispatchable} that does not fork a new thread and
+   * hangs will hang the entire server.
    *
    * @throws FramingException if any framing errors occur.
    */
@@ -92,7 +121,8 @@ public class FrameReceiver {
 
 
   /**
-   * Reads one frame and returns.
+   * Reads one frame and returns.  The header is read into a reused buffer and the payload into
+   * a pooled buffer which {@link FrameInfo} is parsed from in place.
    *
    * @return a single Frame.
    * @throws FramingException if any Framing protocol errors occur.
@@ -102,60 +132,29 @@ public class FrameReceiver {
     Preconditions.checkNotNull(inputStream, "Must specify inputStream before calling readFrame.");
 
     try {
-      // Read start byte.
-      final int startIndicator = inputStream.read();
-      LOG.debug("Start byte: " + startIndicator);
-      if ((byte) startIndicator != FRAME_START) {
-        throw new FramingException("Unexpected frame start read");
-      }
-
-      // Read and check magic.
-      final byte[] magic = new byte[MAGIC.length];
-      readBytes(magic, MAGIC.length);
-      final String magicString = new String(magic);
-      LOG.debug("Magic: " + magicString);
-      if (!new String(magic).equals(new String(MAGIC))) {
-        throw new FramingException("Unexpected frame magic read");
-      }
-      Arrays.equals(magic, MAGIC);
-
-      // Read sequence, verify and increment.
-      final long readSequence = dataInputStream.readLong();
-      LOG.debug("sequence: " + readSequence);
-      if (readSequence == sequence) {
-        sequence++;
-      } else {
-        throw new FramingException("Unexpected sequence number. Expected: " + sequence +
-            " got:" + readSequence);
-      }
-
-      // Read and verify payload length.
-      final int payloadLength = dataInputStream.readInt();
+      // Read and verify header, this checks and increments the sequence.
+      readBytes(header.array(), HEADER_SIZE);
+      header.clear();
+      final int payloadLength = frameDecoder.readHeader(header);
       LOG.debug("payload length: " + payloadLength);
-      if (payloadLength < 0 || payloadLength > MAX_FRAME_SIZE) {
-        throw new FramingException("Payload length invalid.");
-      }
 
       // Read in the payload
-      final byte[] payload = new byte[payloadLength];
-      int bytesRead = 0;
-      do {
-        bytesRead += inputStream.read(payload, bytesRead, payloadLength - bytesRead);
-      } while (bytesRead < payloadLength);
-      // Update the byte counter with header size and payload length if its specified.
-      if (byteCounter != null) {
-        byteCounter.addAndGet(HEADER_SIZE + payloadLength);
-      }
-
-      LOG.debug("payload: " + payload);
-      // Parse the payload into a FrameInfo and return it.
+      final ByteBuffer payload = bufferPool.acquire(payloadLength);
       try {
-        final FrameInfo frameInfo = FrameInfo.parseFrom(payload);
-        LOG.debug("frame:\n" + frameInfo.toString());
+        readBytes(payload.array(), payloadLength);
+        // Update the byte counter with header size and payload length if its specified.
+        if (byteCounter != null) {
+          byteCounter.addAndGet(HEADER_SIZE + payloadLength);
+        }
+
+        // Parse the payload into a FrameInfo and return it.
+        final FrameInfo frameInfo = FrameDecoder.parse(CodedInputStream.newInstance(
+            payload.array(), payload.arrayOffset(), payloadLength));
         LOG.debug("frame type recevd: " + frameInfo.getType());
-        return  frameInfo;
-      } catch (InvalidProtocolBufferException e) {
-        throw new FramingException(e);
+        return frameInfo;
+      } finally {
+        // The parsed frame holds its own copy of the payload bytes.
+        bufferPool.release(payload);
       }
     } catch (IOException e) {
       throw new FramingException("IO Exception on tunnelsocket", e);
@@ -169,30 +168,58 @@ public class FrameReceiver {
    *
    * @param buffer the buffer to read into.
    * @param amountToRead the amount of bytes to read.
-   * @throws IOException if any read errors occur.
+   * @throws IOException if any read errors occur or the stream ends early.
    */
   private void readBytes(final byte[] buffer, final int amountToRead) throws IOException {
     int bytesRead = 0;
-    do {
-      bytesRead += inputStream.read(buffer, bytesRead, amountToRead - bytesRead);
-    } while (bytesRead < amountToRead);
+    while (bytesRead < amountToRead) {
+      final int count = inputStream.read(buffer, bytesRead, amountToRead - bytesRead);
+      if (count < 0) {
+        throw new EOFException("Tunnel stream closed");
+      }
+      bytesRead += count;
+    }
   }
 
   /**
-   * For the given frame find its handler and dispatch the frame there.  This method runs in the
-   * same thread as the frame reader.  If your dispatch blocks or goes slow, the entire server
-   * will slow down.
+   * For the given frame find its handler and dispatch the frame there, through the
+   * {@link PartitionedDispatcher} if there is one.  Without it this method runs in the same
+   * thread as the frame reader and a dispatch that blocks or goes slow slows the entire server.
    *
    * @param frameInfo the incoming frame.
    * @throws FramingException if any errors occur while processing the frame.
    */
   void dispatch(final FrameInfo frameInfo) throws FramingException {
 
-    if (dispatchMap.containsKey(frameInfo.getType())) {
-      dispatchMap.get(frameInfo.getType()).dispatch(frameInfo);
+    final Dispatchable dispatchable = dispatchMap.get(frameInfo.getType());
+    if (dispatchable == null) {
+      LOG.info("Unknown frame received: " + frameInfo);
+    } else if (partitionedDispatcher != null) {
+      partitionedDispatcher.dispatch(dispatchable, frameInfo);
     } else {
+      dispatchable.dispatch(frameInfo);
+    }
+  }
+
+  /**
+   * Like {@link #dispatch(FrameInfo)} but never waits for a backed up dispatch thread, for
+   * readers on an event loop.
+   *
+   * @param frameInfo the frame.
+   * @param onSpace run once a refused frame may be offered again.
+   * @return false if the frame was refused.
+   * @throws FramingException if any Framing protocol errors occur.
+   */
+  boolean offer(final FrameInfo frameInfo, final Runnable onSpace) throws FramingException {
+    final Dispatchable dispatchable = dispatchMap.get(frameInfo.getType());
+    if (dispatchable == null) {
       LOG.info("Unknown frame received: " + frameInfo);
+      return true;
+    } else if (partitionedDispatcher != null) {
+      return partitionedDispatcher.offer(dispatchable, frameInfo, onSpace);
     }
+    dispatchable.dispatch(frameInfo);
+    return true;
   }
 
   public void registerDispatcher(final FrameInfo.Type type, final Dispatchable dispatchable) {
@@ -201,7 +228,6 @@ public class FrameReceiver {
 
   public void setInputStream(final InputStream inputStream) {
     this.inputStream = inputStream;
-    dataInputStream = new DataInputStream(inputStream);
   }
 
   public void setByteCounter(final AtomicLong byteCounter) {
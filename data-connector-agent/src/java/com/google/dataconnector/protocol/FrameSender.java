@@ -22,21 +22,29 @@ import com.google.dataconnector.util.ShutdownManager;
 import com.google.dataconnector.util.Stoppable;
 import com.google.inject.Inject;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
 import org.apache.log4j.Logger;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Sender for SDC Frame protocol.  The SDC Frame protocol uses the {@link FrameInfo} protocol
  * buffer to encapsulate many different connections over the top of one stream.  The FrameSender
  * writes {@link FrameInfo} protos to the underlying output stream.  It is implemented as a
- * {@link Thread} which watches a queue.  {@link FrameSender#sendFrame(FrameInfo)} is designed
- * to be called from your thread.
+ * {@link Thread} which watches a queue and writes whatever frames have accumulated as one batch.
+ * {@link FrameSender#sendFrame(FrameInfo)} is designed to be called from your thread.
  *
  * @author rayc@google.com (Ray Colline)
  */
@@ -51,11 +59,23 @@ public class FrameSender extends Thread implements Stoppable {
   // Runtime dependencies
   private OutputStream outputStream;
   private AtomicLong byteCounter;
+  private SendQueueListener sendQueueListener;
+  private volatile FrameCompressor compressor;
+  // The per stream flow control window negotiated for this connection, 0 if not in use.
+  private volatile int flowControlWindow = 0;
 
   // Local fields.
-  private DataOutputStream dataOutputStream;
   private long sequence = 0;
-
+  private byte[] batchBuffer = new byte[0];
+  private int batchMaxBytes = 0; // one frame per write.
+  private long batchLingerMicros = 0;
+  // Callbacks for queued frames, keyed by the queued instance.  See sendFrame(FrameInfo, Runnable).
+  private final Map<FrameInfo, Runnable> takenCallbacks =
+      new IdentityHashMap<FrameInfo, Runnable>();
+  private final AtomicInteger takenCallbackCount = new AtomicInteger();
+  // Senders refused by offerFrame, waiting for the queue to drain.
+  private final ConcurrentLinkedQueue<Runnable> spaceWaiters =
+      new ConcurrentLinkedQueue<Runnable>();
 
   @Inject
   public FrameSender(final BlockingQueue<FrameInfo> sendQueue, ShutdownManager shutdownManager) {
@@ -77,19 +97,166 @@ public class FrameSender extends Thread implements Stoppable {
   }
 
   /**
-   * Sends an already constructed FrameInfo over the output stream.
+   * Sends an already constructed FrameInfo over the output stream.  The payload is compressed
+   * here, on the caller's thread, if compression was negotiated.
    *
    * @param frame the frame to send.
    */
   public void sendFrame(final FrameInfo frame) {
+    sendFrame(frame, null);
+  }
+
+  /**
+   * Sends an already constructed FrameInfo over the output stream and runs the callback once the
+   * frame has left the queue, either taken for writing or dropped because the sender was shut
+   * down.  Lets a sender bound how much of its data sits in the queue.
+   *
+   * @param frame the frame to send.
+   * @param taken run when the frame leaves the queue, on the thread taking it; may be null.
+   */
+  public void sendFrame(final FrameInfo frame, final Runnable taken) {
+    sendFrame(frame, null, taken);
+  }
+
+  /**
+   * Like {@link #sendFrame(FrameInfo, Runnable)} for a frame whose stream cannot be read from
+   * its payload, such as an encrypted one.  The {@link PrioritySendQueue} then shares bandwidth
+   * fairly between the streams; other queues ignore the key.
+   *
+   * @param frame the frame to send.
+   * @param streamKey the key of the stream the frame belongs to, or null if not known.
+   * @param taken run when the frame leaves the queue, on the thread taking it; may be null.
+   */
+  public void sendFrame(final FrameInfo frame, final String streamKey, final Runnable taken) {
     if (!frame.hasType()) {
       throw new RuntimeException("Frame missing type info");
     }
+    final FrameCompressor frameCompressor = compressor;
+    final FrameInfo queued = (frameCompressor != null) ? frameCompressor.compress(frame) : frame;
+    if (taken != null) {
+      synchronized (takenCallbacks) {
+        takenCallbacks.put(queued, taken);
+      }
+      takenCallbackCount.incrementAndGet();
+    }
     try {
-      sendQueue.put(frame);
+      if (streamKey != null && sendQueue instanceof PrioritySendQueue) {
+        ((PrioritySendQueue) sendQueue).put(queued, streamKey);
+      } else {
+        sendQueue.put(queued);
+      }
     } catch (InterruptedException e) {
+      if (taken != null) {
+        synchronized (takenCallbacks) {
+          takenCallbacks.remove(queued);
+        }
+        takenCallbackCount.decrementAndGet();
+      }
       throw new RuntimeException(e);
     }
+    if (sendQueueListener != null) {
+      sendQueueListener.frameQueued();
+    }
+  }
+
+  /**
+   * Queues the frame without waiting, for callers such as event loops that must never block.
+   * The payload is compressed as in {@link #sendFrame(FrameInfo)}.
+   *
+   * @param frame the frame to send.
+   * @param onSpace if the frame is refused, run once the queue is half empty, on the thread
+   *     taking frames.  It may also run when there was room all along, so it must only try again.
+   * @return false if the queue is full and the frame was not taken.
+   */
+  public boolean offerFrame(final FrameInfo frame, final Runnable onSpace) {
+    return offerFrame(frame, null, onSpace);
+  }
+
+  /**
+   * Like {@link #offerFrame(FrameInfo, Runnable)} for a frame whose stream cannot be read from
+   * its payload, see {@link #sendFrame(FrameInfo, String, Runnable)}.
+   *
+   * @param frame the frame to send.
+   * @param streamKey the key of the stream the frame belongs to, or null if not known.
+   * @param onSpace if the frame is refused, run once the queue is half empty.
+   * @return false if the queue is full and the frame was not taken.
+   */
+  public boolean offerFrame(final FrameInfo frame, final String streamKey,
+      final Runnable onSpace) {
+    if (!frame.hasType()) {
+      throw new RuntimeException("Frame missing type info");
+    }
+    final FrameCompressor frameCompressor = compressor;
+    final FrameInfo queued = (frameCompressor != null) ? frameCompressor.compress(frame) : frame;
+    if (!offerQueued(queued, streamKey)) {
+      spaceWaiters.add(onSpace);
+      // The queue may have drained before the waiter could be seen.
+      if (!offerQueued(queued, streamKey)) {
+        return false;
+      }
+    }
+    if (sendQueueListener != null) {
+      sendQueueListener.frameQueued();
+    }
+    return true;
+  }
+
+  private boolean offerQueued(final FrameInfo queued, final String streamKey) {
+    if (streamKey != null && sendQueue instanceof PrioritySendQueue) {
+      return ((PrioritySendQueue) sendQueue).offer(queued, streamKey);
+    }
+    return sendQueue.offer(queued);
+  }
+
+  /**
+   * @return true if frames are queued and not yet taken for writing.
+   */
+  public boolean hasQueuedFrames() {
+    return !sendQueue.isEmpty();
+  }
+
+  /**
+   * Removes the next queued frame without blocking.  Used by transports that drain the send
+   * queue themselves instead of running this thread.
+   *
+   * @return the next frame or null if the queue is empty.
+   */
+  FrameInfo pollFrame() {
+    return taken(sendQueue.poll());
+  }
+
+  /**
+   * Runs the callback registered for a frame just removed from the queue, if any.
+   *
+   * @param frameInfo the frame or null.
+   * @return the frame.
+   */
+  private FrameInfo taken(final FrameInfo frameInfo) {
+    if (frameInfo == null) {
+      return null;
+    }
+    if (!spaceWaiters.isEmpty() && sendQueue.remainingCapacity() >= sendQueue.size()) {
+      runSpaceWaiters();
+    }
+    if (takenCallbackCount.get() == 0) {
+      return frameInfo;
+    }
+    final Runnable callback;
+    synchronized (takenCallbacks) {
+      callback = takenCallbacks.remove(frameInfo);
+    }
+    if (callback != null) {
+      takenCallbackCount.decrementAndGet();
+      callback.run();
+    }
+    return frameInfo;
+  }
+
+  private void runSpaceWaiters() {
+    Runnable onSpace;
+    while ((onSpace = spaceWaiters.poll()) != null) {
+      onSpace.run();
+    }
   }
 
   /**
@@ -101,37 +268,99 @@ public class FrameSender extends Thread implements Stoppable {
    */
   // visible for testing.
   void writeOneFrame(final FrameInfo frameInfo) throws IOException {
+    writeFrames(Collections.singletonList(frameInfo));
+  }
+
+  /**
+   * Serializes frames into one contiguous buffer and puts it on the wire with a single write and
+   * flush, so a batch of small frames costs one TLS record rather than five per frame.
+   *
+   * @param frames the frames to send, already carrying their sequence numbers.
+   * @throws IOException if any IOerrors while writing.
+   */
+  // visible for testing.
+  void writeFrames(final List<FrameInfo> frames) throws IOException {
     Preconditions.checkNotNull(outputStream, "Must specify outputStream before writing frames.");
 
-    final byte[] frameInfoBytes = frameInfo.toByteArray();
-
-    // Add frame start.
-    outputStream.write(FrameReceiver.FRAME_START);
-    LOG.debug("Start byte: " + FrameReceiver.FRAME_START);
-    // Add magic.
-    outputStream.write(FrameReceiver.MAGIC);
-    LOG.debug("Magic: " + FrameReceiver.MAGIC);
-    // Add sequence number.
-    dataOutputStream.writeLong(sequence);
-    LOG.debug("sequence: " + sequence);
-    // Add length value
-    dataOutputStream.writeInt(frameInfoBytes.length);
-    LOG.debug("payload length: " + frameInfoBytes.length);
-    // Add frame info pb raw bytes.
-    outputStream.write(frameInfoBytes);
-    LOG.debug("payload: " + frameInfoBytes);
-    LOG.debug("frame:\n" + frameInfo.toString());
-    LOG.debug("sending frame type: " + frameInfo.getType());
+    int batchSize = 0;
+    for (final FrameInfo frameInfo : frames) {
+      batchSize += FrameReceiver.HEADER_SIZE + frameInfo.getSerializedSize();
+    }
+    if (batchBuffer.length < batchSize) {
+      batchBuffer = new byte[batchSize];
+    }
+
+    final CodedOutputStream codedOutputStream =
+        CodedOutputStream.newInstance(batchBuffer, 0, batchSize);
+    for (final FrameInfo frameInfo : frames) {
+      final int payloadLength = frameInfo.getSerializedSize();
+      // Add frame start and magic.
+      codedOutputStream.writeRawByte(FrameReceiver.FRAME_START);
+      codedOutputStream.writeRawBytes(FrameReceiver.MAGIC);
+      // Add sequence number and length value, both big endian.
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        codedOutputStream.writeRawByte((byte) (sequence >>> shift));
+      }
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        codedOutputStream.writeRawByte((byte) (payloadLength >>> shift));
+      }
+      // Add frame info pb raw bytes.
+      frameInfo.writeTo(codedOutputStream);
+      LOG.debug("sequence: " + sequence + " payload length: " + payloadLength);
+      LOG.debug("sending frame type: " + frameInfo.getType());
+      // Increment sequence number.
+      sequence++;
+    }
+    codedOutputStream.checkNoSpaceLeft();
+
+    outputStream.write(batchBuffer, 0, batchSize);
+    outputStream.flush();
     // Update bytes sent counter if one has been supplied.
     if (byteCounter != null) {
-      byteCounter.addAndGet(FrameReceiver.HEADER_SIZE + frameInfoBytes.length);
+      byteCounter.addAndGet(batchSize);
     }
-    // Increment sequence number.
-    sequence++;
   }
 
   /**
-   * Reads the send queue, assigns a sequence number and puts on the wire.
+   * Blocks for the next frame, then keeps taking frames until the queue is empty and the linger
+   * time has passed or the batch is full.  Sequence numbers are assigned here.
+   *
+   * @param batch the list to add frames to.
+   * @return false if a {@link FrameInfo.Type#SHUTDOWN_QUEUE} frame was seen.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  private boolean collectBatch(final List<FrameInfo> batch) throws InterruptedException {
+    final long lingerDeadline = System.nanoTime() + batchLingerMicros * 1000L;
+    int batchBytes = 0;
+    FrameInfo next = taken(sendQueue.take());
+    while (true) {
+      if (next.getType() == FrameInfo.Type.SHUTDOWN_QUEUE) {
+        return false;
+      }
+      final FrameInfo frameInfo = FrameInfo.newBuilder(next)
+          .setSequence(sequence + batch.size())
+          .build();
+      batch.add(frameInfo);
+      batchBytes += FrameReceiver.HEADER_SIZE + frameInfo.getSerializedSize();
+      if (batchBytes >= batchMaxBytes) {
+        return true;
+      }
+      next = taken(sendQueue.poll());
+      if (next == null) {
+        final long lingerNanos = lingerDeadline - System.nanoTime();
+        if (lingerNanos <= 0) {
+          return true;
+        }
+        next = taken(sendQueue.poll(lingerNanos, TimeUnit.NANOSECONDS));
+        if (next == null) {
+          return true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the send queue, assigns sequence numbers and puts batches of frames on the wire.
    */
   @Override
   public void run() {
@@ -142,15 +371,16 @@ public class FrameSender extends Thread implements Stoppable {
     // Setup thread info
     this.setName(this.getClass().getName());
     
+    final List<FrameInfo> batch = new ArrayList<FrameInfo>();
     try {
-      while (true) {
-        // Wait for a frame to become available.
-        final FrameInfo frameInfo = FrameInfo.newBuilder(sendQueue.take()).setSequence(sequence)
-            .build();
-        if (frameInfo.getType() == FrameInfo.Type.SHUTDOWN_QUEUE) {
-          break;
+      boolean running = true;
+      while (running) {
+        // Wait for frames to become available.
+        batch.clear();
+        running = collectBatch(batch);
+        if (!batch.isEmpty()) {
+          writeFrames(batch);
         }
-        writeOneFrame(frameInfo);
       }
     } catch (InterruptedException e) {
       LOG.info("Sending frames shutting down", e);
@@ -161,18 +391,88 @@ public class FrameSender extends Thread implements Stoppable {
 
   public void setOutputStream(OutputStream outputStream) {
     this.outputStream = outputStream;
-    dataOutputStream = new DataOutputStream(outputStream);
+  }
+
+  /**
+   * Sets the number of bytes at which a batch is written without waiting for more frames.  Zero
+   * writes every frame on its own.
+   */
+  public void setBatchMaxBytes(final int batchMaxBytes) {
+    this.batchMaxBytes = batchMaxBytes;
+  }
+
+  /**
+   * Sets how long to wait for more frames once the queue is empty before writing a batch.
+   */
+  public void setBatchLingerMicros(final long batchLingerMicros) {
+    this.batchLingerMicros = batchLingerMicros;
   }
 
   public void setByteCounter(AtomicLong byteCounter) {
     this.byteCounter = byteCounter;
   }
 
+  public void setSendQueueListener(final SendQueueListener sendQueueListener) {
+    this.sendQueueListener = sendQueueListener;
+  }
+
+  /**
+   * Sets the compressor for frame payloads, or null to send them as is.
+   */
+  public void setCompressor(final FrameCompressor compressor) {
+    this.compressor = compressor;
+  }
+
+  public FrameCompressor getCompressor() {
+    return compressor;
+  }
+
+  /**
+   * Sets the per stream flow control window the server agreed to for this connection, see
+   * {@link FlowControl#negotiate(int)}.
+   */
+  public void setFlowControlWindow(final int flowControlWindow) {
+    this.flowControlWindow = flowControlWindow;
+  }
+
+  /**
+   * @return the flow control window negotiated for this connection, 0 if not in use.
+   */
+  public int getFlowControlWindow() {
+    return flowControlWindow;
+  }
+
+  /**
+   * @return a new window for one direction of a stream on this connection or null if flow
+   * control is not in use.
+   */
+  public FlowControlWindow newFlowControlWindow() {
+    return FlowControl.newWindow(flowControlWindow);
+  }
+
   /** 
-   * Shuts down sending by interrupting thread.
+   * Shuts down sending by interrupting thread.  Callbacks of frames still queued are run, as
+   * those frames will not be sent, and so are senders waiting for space.
    */
   @Override
   public void shutdown() {
     this.interrupt();
+    final List<Runnable> callbacks;
+    synchronized (takenCallbacks) {
+      callbacks = new ArrayList<Runnable>(takenCallbacks.values());
+      takenCallbacks.clear();
+    }
+    takenCallbackCount.addAndGet(-callbacks.size());
+    for (final Runnable callback : callbacks) {
+      callback.run();
+    }
+    runSpaceWaiters();
+  }
+
+  /**
+   * Notified after a frame has been queued by {@link FrameSender#sendFrame(FrameInfo)}.
+   */
+  public interface SendQueueListener {
+    public void frameQueued();
   }
 }
@@ -29,7 +29,8 @@ import java.io.InputStream;
 /**
  * Reads bytes off the supplied {@link InputStream}, creates the SocketDataInfo and sends them
  * using the supplied {@link FrameSender}.  If it detects and inputstream close, it will fire
- * off a CLOSE SocketDataInfo informing the otherside.
+ * off a CLOSE SocketDataInfo informing the otherside.  If a {@link FlowControlWindow} is set, no
+ * more is read than the otherside has granted credit for.
  *
  * @author rayc@google.com (Ray Colline)
  */
@@ -41,6 +42,7 @@ public class InputStreamConnector extends Thread {
   private long connectionId;
   private FrameSender frameSender;
   private ConnectorStateCallback connectorStateCallback;
+  private FlowControlWindow sendWindow;
 
   /**
    * Reads bytes from the input stream and whatever is returned packages into a
@@ -55,8 +57,7 @@ public class InputStreamConnector extends Thread {
       try {
         final byte[] buffer = new byte[65536];
         while (true) {
-          int bytesRead;
-          bytesRead = inputStream.read(buffer);
+          final int bytesRead = readSegment(buffer);
           if (bytesRead == -1) {
             LOG.debug("Input stream " + connectionId + " closed.");
             // send closing frame
@@ -80,11 +81,35 @@ public class InputStreamConnector extends Thread {
             .setConnectionId(connectionId)
             .setState(SocketDataInfo.State.CLOSE)
             .build().toByteString());
+      } catch (InterruptedException e) {
+        LOG.debug("Interrupted while waiting for credit on connection " + connectionId);
+        frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(SocketDataInfo.State.CLOSE)
+            .build().toByteString());
       }
     connectorStateCallback.close(connectionId);
     LOG.debug("removed connectionId " + connectionId);
   }
 
+  /**
+   * Reads the next segment, waiting for credit first if the connection is flow controlled.
+   *
+   * @return the number of bytes read or -1 on end of stream or if the window has been closed.
+   */
+  private int readSegment(final byte[] buffer) throws IOException, InterruptedException {
+    if (sendWindow == null) {
+      return inputStream.read(buffer);
+    }
+    final int allowed = sendWindow.acquire(buffer.length);
+    if (allowed == 0) {
+      return -1;
+    }
+    final int bytesRead = inputStream.read(buffer, 0, allowed);
+    sendWindow.giveBack(allowed - Math.max(bytesRead, 0));
+    return bytesRead;
+  }
+
   public void setInputStream(final InputStream inputStream) {
     this.inputStream = inputStream;
   }
@@ -100,4 +125,8 @@ public class InputStreamConnector extends Thread {
   public void setConnectorStateCallback(final ConnectorStateCallback connectorStateCallback) {
     this.connectorStateCallback = connectorStateCallback;
   }
+
+  public void setSendWindow(final FlowControlWindow sendWindow) {
+    this.sendWindow = sendWindow;
+  }
 }
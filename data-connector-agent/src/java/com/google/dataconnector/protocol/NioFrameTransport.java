@@ -0,0 +1,647 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.common.base.Preconditions;
+import com.google.dataconnector.protocol.FrameSender.SendQueueListener;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.util.Stoppable;
+import com.google.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Non-blocking alternative to running a {@link FrameReceiver} on a socket input stream and a
+ * {@link FrameSender} thread on its output stream.  The tunnel is a {@link SocketChannel} wrapped
+ * with an {@link SSLEngine} and serviced by one {@link EventLoop} from the
+ * {@link EventLoopGroup}.  Frames queued with {@link FrameSender#sendFrame(FrameInfo)} are
+ * drained, framed and encrypted on the event loop; received frames are decoded on the same
+ * thread and handed to the {@link FrameReceiver} for dispatch to its registered
+ * {@link Dispatchable}s.
+ *
+ * <p>The wire format is unchanged: '*', "beefcake", an 8 byte sequence number, a 4 byte payload
+ * length and the {@link FrameInfo} bytes.
+ *
+ * <p>Usage mirrors the blocking path: {@link #connect}, {@link #write(byte[])} the handshake,
+ * {@link #start()}, {@link #readOneFrame()} for synchronous calls like authorization and then
+ * {@link #startDispatching()}.
+ *
+ * <p>{@link #shutdown()} closes gracefully: frames queued before it are written, then a TLS
+ * close_notify, and the connection is closed once the server closes its side.
+ */
+public class NioFrameTransport implements ChannelHandler, SendQueueListener, Stoppable {
+
+  private static final Logger LOG = Logger.getLogger(NioFrameTransport.class);
+
+  // How long shutdown waits for queued frames to be written and the server to close.
+  static final long SHUTDOWN_TIMEOUT_MILLIS = 5 * 1000;
+
+  private static final ByteBuffer[] EMPTY = { ByteBuffer.allocate(0) };
+
+  // Marks the pending frame queue as closed so a blocked readOneFrame() returns.
+  private static final FrameInfo CLOSED_MARKER = FrameInfo.newBuilder()
+      .setType(FrameInfo.Type.SHUTDOWN_QUEUE).build();
+
+  // Injected dependencies
+  private final EventLoopGroup eventLoopGroup;
+
+  // Runtime dependencies
+  private FrameReceiver frameReceiver;
+  private FrameSender frameSender;
+
+  // Local fields
+  private final FrameDecoder frameDecoder = new FrameDecoder();
+  private final Queue<ByteBuffer> rawWrites = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final BlockingQueue<FrameInfo> pendingFrames = new LinkedBlockingQueue<FrameInfo>();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  private final CountDownLatch closedLatch = new CountDownLatch(1);
+  private volatile boolean dispatching;
+  private volatile IOException closeCause;
+  // Set on the event loop once no more frames are to be sent.
+  private volatile boolean closing;
+
+  private SocketChannel channel;
+  private SSLEngine engine;
+  private volatile EventLoop eventLoop;
+  private SelectionKey key;
+  private ByteBuffer netIn;
+  private ByteBuffer netOut;
+  private ByteBuffer appIn;
+  private ByteBuffer[] pendingWrite;
+  private long sequence = 0;
+  // A frame refused by a backed up dispatch thread.  Reads are paused until it is taken.
+  private FrameInfo stalledFrame;
+  private final Runnable resumeReads = new Runnable() {
+    @Override
+    public void run() {
+      final boolean queued = eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          resume();
+        }
+      });
+      if (!queued) {
+        close(new IOException("Event loop shut down"));
+      }
+    }
+  };
+
+  @Inject
+  public NioFrameTransport(final EventLoopGroup eventLoopGroup) {
+    this.eventLoopGroup = eventLoopGroup;
+  }
+
+  /**
+   * Connects to the server and completes the TLS handshake.  This blocks the calling thread
+   * just like the blocking socket path does.
+   *
+   * @param sslContext the context to create the SSL engine from.
+   * @param address the server address.
+   * @param cipherSuites the cipher suites to enable.
+   * @param timeoutMillis the connect timeout.
+   * @return the negotiated SSL session, for peer verification.
+   * @throws IOException if the connection or handshake fails.
+   */
+  public SSLSession connect(final SSLContext sslContext, final InetSocketAddress address,
+      final String[] cipherSuites, final int timeoutMillis) throws IOException {
+    channel = SocketChannel.open();
+    channel.socket().setTcpNoDelay(true);
+    channel.socket().connect(address, timeoutMillis);
+
+    engine = sslContext.createSSLEngine(address.getHostName(), address.getPort());
+    engine.setUseClientMode(true);
+    engine.setEnabledCipherSuites(cipherSuites);
+
+    final SSLSession session = engine.getSession();
+    netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+    netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+    netOut.flip();
+    appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+
+    handshake();
+    return engine.getSession();
+  }
+
+  /**
+   * Queues raw bytes to be written ahead of any frames, such as the initial handshake message.
+   *
+   * @param data the bytes to write.
+   */
+  public void write(final byte[] data) {
+    rawWrites.add(ByteBuffer.wrap(data));
+    frameQueued();
+  }
+
+  /**
+   * Hands the connected channel to an event loop and starts draining the send queue.  Frames
+   * received before {@link #startDispatching()} are held for {@link #readOneFrame()}.
+   *
+   * @throws IOException if no event loop can be started.
+   */
+  public void start() throws IOException {
+    Preconditions.checkNotNull(channel, "Must connect before starting.");
+    Preconditions.checkNotNull(frameReceiver, "Must specify frameReceiver before starting.");
+    Preconditions.checkNotNull(frameSender, "Must specify frameSender before starting.");
+    eventLoop = eventLoopGroup.next();
+    frameSender.setSendQueueListener(this);
+    eventLoop.register(channel, SelectionKey.OP_READ, this);
+  }
+
+  /**
+   * Waits for the next received frame.  Use this for synchronous calls before dispatching has
+   * started.
+   *
+   * @return a single frame.
+   * @throws FramingException if the connection closes while waiting.
+   */
+  public FrameInfo readOneFrame() throws FramingException {
+    Preconditions.checkArgument(!dispatching,
+        "Cannot call readOneFrame.  Dispatching already started.");
+    try {
+      final FrameInfo frameInfo = pendingFrames.take();
+      if (frameInfo == CLOSED_MARKER) {
+        pendingFrames.add(CLOSED_MARKER);
+        throw new FramingException("Tunnel connection closed", closeCause);
+      }
+      return frameInfo;
+    } catch (InterruptedException e) {
+      throw new FramingException("Interrupted waiting for frame", e);
+    }
+  }
+
+  /**
+   * Switches to dispatching received frames on the event loop and blocks the caller until the
+   * connection closes, so it can stand in for {@link FrameReceiver#startDispatching()}.
+   *
+   * @throws FramingException always, once the connection has closed.
+   */
+  public void startDispatching() throws FramingException {
+    final boolean queued = eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          FrameInfo frameInfo;
+          while ((frameInfo = pendingFrames.poll()) != null) {
+            if (frameInfo != CLOSED_MARKER) {
+              frameReceiver.dispatch(frameInfo);
+            }
+          }
+          dispatching = true;
+        } catch (FramingException e) {
+          close(new IOException(e.toString()));
+        }
+      }
+    });
+    if (!queued) {
+      close(new IOException("Event loop shut down"));
+    }
+    try {
+      closedLatch.await();
+    } catch (InterruptedException e) {
+      throw new FramingException("Interrupted while dispatching", e);
+    }
+    throw new FramingException("Tunnel connection closed", closeCause);
+  }
+
+  @Override
+  public void registered(final SelectionKey key) {
+    this.key = key;
+    if (closed.get()) {
+      close(null);
+      return;
+    }
+    try {
+      // Anything left over from the handshake read is already in our buffers.
+      decodeFrames();
+      flush();
+    } catch (IOException e) {
+      close(e);
+    }
+  }
+
+  @Override
+  public void ready(final SelectionKey key) throws IOException {
+    if (key.isReadable()) {
+      read();
+    }
+    if (key.isValid() && key.isWritable()) {
+      flush();
+    }
+  }
+
+  @Override
+  public void closed(final IOException cause) {
+    close(cause);
+  }
+
+  /**
+   * Called by the {@link FrameSender} whenever a frame is queued.  Schedules a single flush on
+   * the event loop no matter how many frames arrive before it runs.
+   */
+  @Override
+  public void frameQueued() {
+    if (eventLoop == null || !flushScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    // Refused only once the loop has shut down, which closed the connection.
+    eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        flushScheduled.set(false);
+        if (key == null || closed.get()) {
+          return;
+        }
+        try {
+          flush();
+        } catch (IOException e) {
+          close(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Reads what is available from the channel, decrypts it and handles any complete frames.
+   */
+  private void read() throws IOException {
+    if (channel.read(netIn) < 0) {
+      throw new EOFException("Tunnel connection closed by server");
+    }
+    unwrap();
+  }
+
+  /**
+   * Stops sending once what is queued has been written.  Runs on the event loop.
+   */
+  private void startClosing() {
+    if (closed.get()) {
+      return;
+    }
+    closing = true;
+    try {
+      flush();
+    } catch (IOException e) {
+      close(e);
+    }
+  }
+
+  /**
+   * Decrypts what has been read and handles any complete frames, until reads are paused.
+   */
+  private void unwrap() throws IOException {
+    netIn.flip();
+    try {
+      while (netIn.hasRemaining() && stalledFrame == null) {
+        final SSLEngineResult result = engine.unwrap(netIn, appIn);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+          if (netIn.position() == 0 && netIn.limit() == netIn.capacity()) {
+            // A partial record fills the whole buffer; grow it keeping it in read mode.
+            final ByteBuffer larger = ByteBuffer.allocate(
+                netIn.capacity() + engine.getSession().getPacketBufferSize());
+            larger.put(netIn);
+            larger.flip();
+            netIn = larger;
+          }
+          break;
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+          // Make room by handing off complete frames, or grow for one large frame.
+          final int before = appIn.position();
+          decodeFrames();
+          if (appIn.position() == before && stalledFrame == null) {
+            appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+          }
+        } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+          throw new EOFException("TLS session closed by server");
+        }
+        handleHandshakeStatus(result.getHandshakeStatus());
+        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 &&
+            result.getStatus() == SSLEngineResult.Status.OK) {
+          break;
+        }
+      }
+    } finally {
+      netIn.compact();
+    }
+    decodeFrames();
+  }
+
+  /**
+   * Decodes all complete frames in the application buffer.  Before dispatching starts frames
+   * are held for {@link #readOneFrame()}, afterwards they are dispatched straight away.  The event
+   * loop serves other channels too, so when a dispatch thread is backed up reading this channel
+   * is paused rather than waiting for it.
+   */
+  private void decodeFrames() throws IOException {
+    appIn.flip();
+    try {
+      FrameInfo frameInfo;
+      while (stalledFrame == null && (frameInfo = frameDecoder.decode(appIn)) != null) {
+        if (!dispatching) {
+          pendingFrames.add(frameInfo);
+        } else if (!frameReceiver.offer(frameInfo, resumeReads)) {
+          LOG.debug("Dispatch backed up, pausing reads.");
+          stalledFrame = frameInfo;
+          setInterest(SelectionKey.OP_READ, false);
+        }
+      }
+    } catch (FramingException e) {
+      throw new IOException(e.toString());
+    } finally {
+      appIn.compact();
+    }
+  }
+
+  /**
+   * Offers the frame that paused reads again and, once it is taken, handles what was already
+   * read and resumes reading.  Runs on the event loop.
+   */
+  private void resume() {
+    if (stalledFrame == null || closed.get()) {
+      return;
+    }
+    try {
+      if (!frameReceiver.offer(stalledFrame, resumeReads)) {
+        return;
+      }
+      stalledFrame = null;
+      unwrap();
+      if (stalledFrame == null) {
+        LOG.debug("Dispatch caught up, resuming reads.");
+        setInterest(SelectionKey.OP_READ, true);
+      }
+    } catch (FramingException e) {
+      close(new IOException(e.toString()));
+    } catch (IOException e) {
+      close(e);
+    }
+  }
+
+  /**
+   * Writes queued data until either everything has been sent or the socket buffer is full, in
+   * which case write interest is set and we continue when the channel becomes writable.  When
+   * closing, everything queued is followed by a close_notify and the end of our stream.
+   */
+  private void flush() throws IOException {
+    while (true) {
+      if (netOut.hasRemaining()) {
+        channel.write(netOut);
+        if (netOut.hasRemaining()) {
+          setInterest(SelectionKey.OP_WRITE, true);
+          return;
+        }
+      }
+      if (engine.isOutboundDone()) {
+        // The close_notify is out; wait for the server to close its side.
+        setInterest(SelectionKey.OP_WRITE, false);
+        if (!channel.socket().isOutputShutdown()) {
+          channel.socket().shutdownOutput();
+        }
+        return;
+      }
+      if (pendingWrite == null || !hasRemaining(pendingWrite)) {
+        pendingWrite = nextWrite();
+      }
+      final ByteBuffer[] source;
+      if (pendingWrite != null) {
+        source = pendingWrite;
+      } else if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+        source = EMPTY;
+      } else if (closing) {
+        engine.closeOutbound();
+        source = EMPTY;
+      } else {
+        setInterest(SelectionKey.OP_WRITE, false);
+        return;
+      }
+      netOut.clear();
+      final SSLEngineResult result = engine.wrap(source, netOut);
+      netOut.flip();
+      if (result.getStatus() == SSLEngineResult.Status.CLOSED && !closing) {
+        throw new EOFException("TLS session closed");
+      }
+      handleHandshakeStatus(result.getHandshakeStatus());
+    }
+  }
+
+  /**
+   * Returns the next plain text buffers to encrypt: raw writes first, then framed
+   * {@link FrameInfo}s from the send queue.
+   *
+   * @return the buffers to send or null if there is nothing to send.
+   */
+  private ByteBuffer[] nextWrite() throws IOException {
+    final ByteBuffer raw = rawWrites.poll();
+    if (raw != null) {
+      return new ByteBuffer[] { raw };
+    }
+    final FrameInfo queued = frameSender.pollFrame();
+    if (queued == null) {
+      return null;
+    }
+    if (queued.getType() == FrameInfo.Type.SHUTDOWN_QUEUE) {
+      closing = true;
+      return null;
+    }
+    final FrameInfo frameInfo = FrameInfo.newBuilder(queued).setSequence(sequence).build();
+    final byte[] frameInfoBytes = frameInfo.toByteArray();
+    final ByteBuffer header = ByteBuffer.allocate(FrameReceiver.HEADER_SIZE);
+    header.put(FrameReceiver.FRAME_START);
+    header.put(FrameReceiver.MAGIC);
+    header.putLong(sequence);
+    header.putInt(frameInfoBytes.length);
+    header.flip();
+    LOG.debug("sending frame type: " + frameInfo.getType());
+    sequence++;
+    return new ByteBuffer[] { header, ByteBuffer.wrap(frameInfoBytes) };
+  }
+
+  /**
+   * Runs any delegated SSL tasks inline and schedules a flush if the engine needs to wrap.
+   * Only renegotiation gets here after the initial handshake, so running inline is fine.
+   */
+  private void handleHandshakeStatus(final SSLEngineResult.HandshakeStatus status) {
+    if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+      runDelegatedTasks();
+    } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+      setInterest(SelectionKey.OP_WRITE, true);
+    }
+  }
+
+  /**
+   * Performs the initial TLS handshake with the channel in blocking mode.
+   */
+  private void handshake() throws IOException {
+    engine.beginHandshake();
+    SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+    while (status != SSLEngineResult.HandshakeStatus.FINISHED &&
+        status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+      final SSLEngineResult result;
+      switch (status) {
+        case NEED_TASK:
+          runDelegatedTasks();
+          status = engine.getHandshakeStatus();
+          continue;
+        case NEED_WRAP:
+          netOut.clear();
+          result = engine.wrap(EMPTY, netOut);
+          netOut.flip();
+          while (netOut.hasRemaining()) {
+            channel.write(netOut);
+          }
+          break;
+        default:
+          netIn.flip();
+          result = engine.unwrap(netIn, appIn);
+          netIn.compact();
+          if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+            if (!netIn.hasRemaining()) {
+              netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+            }
+            if (channel.read(netIn) < 0) {
+              throw new EOFException("Tunnel connection closed during TLS handshake");
+            }
+          }
+          break;
+      }
+      if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+        throw new SSLException("TLS session closed during handshake");
+      }
+      status = result.getHandshakeStatus();
+    }
+  }
+
+  private void runDelegatedTasks() {
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null) {
+      task.run();
+    }
+  }
+
+  private void setInterest(final int op, final boolean enabled) {
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    final int ops = key.interestOps();
+    key.interestOps(enabled ? ops | op : ops & ~op);
+  }
+
+  private static boolean hasRemaining(final ByteBuffer[] buffers) {
+    for (final ByteBuffer buffer : buffers) {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns a larger copy of a buffer in write mode.
+   */
+  private static ByteBuffer grow(final ByteBuffer buffer, final int increment) {
+    final ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + increment);
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+
+  /**
+   * Closes the connection once, releasing any thread blocked in {@link #readOneFrame()} or
+   * {@link #startDispatching()}.
+   */
+  private void close(final IOException cause) {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    if (closing) {
+      // The server closing its side, or failing to, is how a graceful close ends.
+      LOG.debug("Tunnel connection closed", cause);
+    } else {
+      closeCause = cause;
+      if (cause != null) {
+        LOG.info("Tunnel connection closed", cause);
+      }
+    }
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      LOG.debug("Channel close failed.", e);
+    }
+    pendingFrames.add(CLOSED_MARKER);
+    closedLatch.countDown();
+  }
+
+  /**
+   * Closes the tunnel connection once the frames already queued have been written and the
+   * server has closed its side, waiting up to {@link #SHUTDOWN_TIMEOUT_MILLIS}.  Closes at once
+   * if the transport never started or this is called on its event loop.
+   */
+  @Override
+  public void shutdown() {
+    final EventLoop loop = eventLoop;
+    final boolean queued = loop != null && !loop.inEventLoop() && loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        startClosing();
+      }
+    });
+    if (queued) {
+      try {
+        if (!closedLatch.await(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          LOG.info("Tunnel connection did not close in time, closing it.");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    // Cancelling the key and closing the channel are safe from any thread.
+    close(null);
+  }
+
+  public void setFrameReceiver(final FrameReceiver frameReceiver) {
+    this.frameReceiver = frameReceiver;
+  }
+
+  public void setFrameSender(final FrameSender frameSender) {
+    this.frameSender = frameSender;
+  }
+}
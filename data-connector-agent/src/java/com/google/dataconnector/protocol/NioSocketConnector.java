@@ -0,0 +1,289 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.common.base.Preconditions;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.inject.Inject;
+import com.google.protobuf.ByteString;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Non-blocking replacement for an {@link InputStreamConnector} and {@link OutputStreamConnector}
+ * pair.  Both directions of one socket are serviced from an {@link EventLoop}, so any number of
+ * connections share the event loop threads instead of each taking two threads of their own.
+ * <p>
+ * Bytes read from the channel are sent as CONTINUE {@link SocketDataInfo} frames, and end of
+ * stream as a CLOSE frame.  Frames for the channel are handed over through the queue from
+ * {@link #getQueue()}, the same as for {@link OutputStreamConnector}, followed by a call to
+ * {@link #wakeup()}; a CLOSE frame closes the channel once everything ahead of it is written.
+ */
+public class NioSocketConnector implements ChannelHandler {
+
+  private static final Logger LOG = Logger.getLogger(NioSocketConnector.class);
+
+  static final int READ_BUFFER_SIZE = 65536;
+
+  // Runtime dependencies
+  private SocketChannel socketChannel;
+  private long connectionId;
+  private FrameSender frameSender;
+  private ConnectorStateCallback connectorStateCallback;
+  private FlowControlWindow sendWindow;
+  private FlowControlWindow receiveWindow;
+
+  // Local fields
+  private final BlockingQueue<SocketDataInfo> queue;
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+  private EventLoop eventLoop;
+  private SelectionKey key;
+  private ByteBuffer writing;
+  private int writingSize;
+  private boolean inputDone = false;
+  private boolean closed = false;
+
+  @Inject
+  public NioSocketConnector(final BlockingQueue<SocketDataInfo> queue) {
+    this.queue = queue;
+  }
+
+  /**
+   * Registers the channel with the event loop.  All runtime dependencies must be set first.
+   *
+   * @param eventLoop the loop that will service this connection.
+   */
+  public void start(final EventLoop eventLoop) {
+    Preconditions.checkNotNull(socketChannel, "must set socketChannel before calling start()");
+    Preconditions.checkNotNull(frameSender, "must set frameSender before calling start()");
+    Preconditions.checkNotNull(connectorStateCallback,
+        "must set connectorStateCallback before calling start()");
+    this.eventLoop = eventLoop;
+    eventLoop.register(socketChannel, SelectionKey.OP_READ, this);
+  }
+
+  /**
+   * Asks the event loop to look at the connection again after frames have been queued or send
+   * credit has been granted.  Safe to call from any thread.
+   */
+  public void wakeup() {
+    if (eventLoop == null) {
+      return;
+    }
+    eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (key != null && key.isValid()) {
+            flush();
+            updateInterest();
+          }
+        } catch (IOException e) {
+          LOG.debug("IO error on connection " + connectionId, e);
+          close(e);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void registered(final SelectionKey key) {
+    this.key = key;
+    LOG.debug("Registered connection " + connectionId);
+    // Frames may have been queued before registration completed.
+    wakeup();
+  }
+
+  @Override
+  public void ready(final SelectionKey key) throws IOException {
+    if (key.isWritable()) {
+      flush();
+    }
+    if (key.isValid() && key.isReadable()) {
+      read();
+    }
+    if (key.isValid()) {
+      updateInterest();
+    }
+  }
+
+  @Override
+  public void closed(final IOException cause) {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (!inputDone) {
+      // Let the otherside know the connection is done.
+      sendClose();
+    }
+    if (sendWindow != null) {
+      sendWindow.close();
+    }
+    connectorStateCallback.close(connectionId);
+    LOG.debug("Connection " + connectionId + " closed.");
+  }
+
+  /**
+   * Reads whatever is available, within the send credit, and sends it as one segment.
+   */
+  private void read() throws IOException {
+    int allowed = readBuffer.capacity();
+    if (sendWindow != null) {
+      allowed = sendWindow.tryAcquire(allowed);
+      if (allowed == 0) {
+        return;
+      }
+    }
+    readBuffer.clear();
+    readBuffer.limit(allowed);
+    final int bytesRead = socketChannel.read(readBuffer);
+    if (sendWindow != null) {
+      sendWindow.giveBack(allowed - Math.max(bytesRead, 0));
+    }
+    if (bytesRead == -1) {
+      LOG.debug("Input stream " + connectionId + " closed.");
+      inputDone = true;
+      sendClose();
+      // Remaining output is still written before the channel is closed.
+      connectorStateCallback.close(connectionId);
+      return;
+    }
+    if (bytesRead > 0) {
+      readBuffer.flip();
+      frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+          .setConnectionId(connectionId)
+          .setSegment(ByteString.copyFrom(readBuffer))
+          .setState(SocketDataInfo.State.CONTINUE)
+          .build().toByteString());
+    }
+  }
+
+  /**
+   * Writes queued segments until the queue is empty or the channel will take no more.
+   */
+  private void flush() throws IOException {
+    while (true) {
+      if (writing == null) {
+        final SocketDataInfo socketDataInfo = queue.poll();
+        if (socketDataInfo == null) {
+          return;
+        }
+        if (socketDataInfo.getState() == SocketDataInfo.State.CLOSE) {
+          LOG.debug("Closing connection " + connectionId);
+          close(null);
+          return;
+        }
+        writing = socketDataInfo.getSegment().asReadOnlyByteBuffer();
+        writingSize = writing.remaining();
+      }
+      socketChannel.write(writing);
+      if (writing.hasRemaining()) {
+        return;
+      }
+      writing = null;
+      if (receiveWindow != null) {
+        sendWindowUpdate(receiveWindow.consumed(writingSize));
+      }
+    }
+  }
+
+  /**
+   * Reads while there is credit and input left; writes while there is output pending.
+   */
+  private void updateInterest() {
+    if (!key.isValid()) {
+      return;
+    }
+    int interestOps = 0;
+    if (!inputDone && (sendWindow == null || sendWindow.getCredit() > 0)) {
+      interestOps |= SelectionKey.OP_READ;
+    }
+    if (writing != null || !queue.isEmpty()) {
+      interestOps |= SelectionKey.OP_WRITE;
+    }
+    key.interestOps(interestOps);
+  }
+
+  private void close(final IOException cause) {
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      socketChannel.close();
+    } catch (IOException e) {
+      LOG.debug("Close failed for connection " + connectionId, e);
+    }
+    closed(cause);
+  }
+
+  private void sendClose() {
+    frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+        .setConnectionId(connectionId)
+        .setState(SocketDataInfo.State.CLOSE)
+        .build().toByteString());
+  }
+
+  private void sendWindowUpdate(final long update) {
+    if (update > 0) {
+      frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+          .setConnectionId(connectionId)
+          .setState(SocketDataInfo.State.CONTINUE)
+          .setWindowUpdate(update)
+          .build().toByteString());
+    }
+  }
+
+  public void setSocketChannel(final SocketChannel socketChannel) {
+    this.socketChannel = socketChannel;
+  }
+
+  public void setConnectionId(final long connectionId) {
+    this.connectionId = connectionId;
+  }
+
+  public void setFrameSender(final FrameSender frameSender) {
+    this.frameSender = frameSender;
+  }
+
+  public void setConnectorStateCallback(final ConnectorStateCallback connectorStateCallback) {
+    this.connectorStateCallback = connectorStateCallback;
+  }
+
+  public BlockingQueue<SocketDataInfo> getQueue() {
+    return queue;
+  }
+
+  /**
+   * Enables flow control for this connection.
+   *
+   * @param sendWindow credit for data read from the channel.
+   * @param receiveWindow the window incoming segments are accounted against.
+   */
+  public void setWindows(final FlowControlWindow sendWindow,
+      final FlowControlWindow receiveWindow) {
+    this.sendWindow = sendWindow;
+    this.receiveWindow = receiveWindow;
+  }
+}
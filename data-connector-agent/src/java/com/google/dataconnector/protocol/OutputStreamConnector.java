@@ -17,6 +17,7 @@
 package com.google.dataconnector.protocol;
 
 import com.google.common.base.Preconditions;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
 import com.google.inject.Inject;
 
@@ -31,7 +32,8 @@ import java.util.concurrent.BlockingQueue;
  * sockets over the SDC Frame Protocol.  A queue is watched to wait for SocketDataInfo protocol
  * buffers and when one is received, {@link OutputStreamConnector} writes its segment contents
  * onto the wire.  If a CLOSE SocketDataInfo is received, the underlying output stream is closed
- * and the {@link ConnectorStateCallback#close(int)} is fired.
+ * and the {@link ConnectorStateCallback#close(int)} is fired.  If a {@link FlowControlWindow} is
+ * set, credit for written segments is handed back to the otherside as window updates.
  *
  * @author rayc@google.com (Ray Colline)
  *
@@ -44,6 +46,8 @@ public class OutputStreamConnector extends Thread {
   private OutputStream outputStream;
   private long connectionId;
   private ConnectorStateCallback connectorStateCallback;
+  private FlowControlWindow receiveWindow;
+  private FrameSender frameSender;
 
   // local fields
   private final BlockingQueue<SocketDataInfo> queue;
@@ -74,6 +78,9 @@ public class OutputStreamConnector extends Thread {
         } else if (socketDataInfo.getState() == SocketDataInfo.State.CONTINUE) {
           LOG.debug("frame = " + socketDataInfo.toString());
           outputStream.write(socketDataInfo.getSegment().toByteArray());
+          if (receiveWindow != null) {
+            sendWindowUpdate(receiveWindow.consumed(socketDataInfo.getSegment().size()));
+          }
         }
       }
     } catch (InterruptedException e) {
@@ -89,6 +96,16 @@ public class OutputStreamConnector extends Thread {
     }
   }
 
+  private void sendWindowUpdate(final long update) {
+    if (update > 0) {
+      frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+          .setConnectionId(connectionId)
+          .setState(SocketDataInfo.State.CONTINUE)
+          .setWindowUpdate(update)
+          .build().toByteString());
+    }
+  }
+
   public void setOutputStream(final OutputStream outputStream) {
     this.outputStream = outputStream;
   }
@@ -104,4 +121,16 @@ public class OutputStreamConnector extends Thread {
   public void setConnectorStateCallback(final ConnectorStateCallback connectorStateCallback) {
     this.connectorStateCallback = connectorStateCallback;
   }
+
+  /**
+   * Enables flow control for this connection.
+   *
+   * @param receiveWindow the window incoming segments are accounted against.
+   * @param frameSender the sender used to return credit to the otherside.
+   */
+  public void setReceiveWindow(final FlowControlWindow receiveWindow,
+      final FrameSender frameSender) {
+    this.receiveWindow = receiveWindow;
+    this.frameSender = frameSender;
+  }
 }
@@ -0,0 +1,244 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.dataconnector.util.Stoppable;
+import com.google.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Moves {@link Dispatchable#dispatch(FrameInfo)} off the thread reading the tunnel.  Frames are
+ * handed to a fixed set of worker threads, each with its own queue, chosen by the frame's stream
+ * so that frames for one connection, session or request are dispatched in order while different
+ * streams are dispatched in parallel.  Registration and health check frames are still
+ * dispatched inline: they are cheap, and frames read after a registration response may rely on
+ * its effects, such as the negotiated flow control window.
+ * <p>
+ * Workers are started on first use, sized by {@link LocalConf#getDispatchThreads()}; with 0
+ * threads frames are dispatched inline as before.  A {@link FramingException} thrown by a
+ * dispatcher on a worker is rethrown to the reader on its next call, which ends the connection
+ * just as an inline failure would.  Each connection has its own dispatcher, so a failure only
+ * ends the connection it came from.
+ * <p>
+ * A reader with a thread of its own may wait for a backed up worker, which in turn stops reading
+ * the tunnel.  A reader on an {@link EventLoop} serving other channels must not wait, and uses
+ * {@link #offer} to pause reading instead.
+ */
+public class PartitionedDispatcher implements Stoppable {
+
+  private static final Logger LOG = Logger.getLogger(PartitionedDispatcher.class);
+
+  static final int PARTITION_QUEUE_SIZE = 1000;
+
+  // Injected dependencies
+  private final LocalConf localConf;
+  private final ShutdownManager shutdownManager;
+
+  // Local fields
+  private Partition[] partitions;
+  private boolean started = false;
+  private volatile FramingException failure;
+  private long fetchCount = 0; // only touched by the reading thread.
+
+  @Inject
+  public PartitionedDispatcher(final LocalConf localConf, final ShutdownManager shutdownManager) {
+    this.localConf = localConf;
+    this.shutdownManager = shutdownManager;
+  }
+
+  /**
+   * Dispatches the frame on the worker for its stream, waiting if that worker is backed up.  Only
+   * for a thread reading this connection alone.
+   *
+   * @param dispatchable the handler for the frame.
+   * @param frameInfo the frame.
+   * @throws FramingException if this or an earlier dispatch failed.
+   */
+  public void dispatch(final Dispatchable dispatchable, final FrameInfo frameInfo)
+      throws FramingException {
+    if (failure != null) {
+      throw failure;
+    }
+    final Partition[] current = getPartitions();
+    if (current == null || isInline(frameInfo.getType())) {
+      dispatchable.dispatch(frameInfo);
+      return;
+    }
+    try {
+      partitionFor(current, frameInfo).queue.put(new Task(dispatchable, frameInfo));
+    } catch (InterruptedException e) {
+      throw new FramingException("Interrupted while dispatching", e);
+    }
+  }
+
+  /**
+   * Dispatches the frame on the worker for its stream without waiting.
+   *
+   * @param dispatchable the handler for the frame.
+   * @param frameInfo the frame.
+   * @param onSpace if the frame is refused, run on the worker once its queue is half empty.  It
+   *     may also run when there was room all along, so it must only try again.
+   * @return false if the worker is backed up and the frame was not taken.
+   * @throws FramingException if this or an earlier dispatch failed.
+   */
+  public boolean offer(final Dispatchable dispatchable, final FrameInfo frameInfo,
+      final Runnable onSpace) throws FramingException {
+    if (failure != null) {
+      throw failure;
+    }
+    final Partition[] current = getPartitions();
+    if (current == null || isInline(frameInfo.getType())) {
+      dispatchable.dispatch(frameInfo);
+      return true;
+    }
+    final Partition partition = partitionFor(current, frameInfo);
+    final Task task = new Task(dispatchable, frameInfo);
+    if (partition.queue.offer(task)) {
+      return true;
+    }
+    partition.waiter = onSpace;
+    // The worker may have emptied its queue before it could see the waiter.
+    if (partition.queue.offer(task)) {
+      partition.waiter = null;
+      return true;
+    }
+    return false;
+  }
+
+  private Partition partitionFor(final Partition[] current, final FrameInfo frameInfo) {
+    return current[(partitionKey(frameInfo).hashCode() & Integer.MAX_VALUE) % current.length];
+  }
+
+  private static boolean isInline(final FrameInfo.Type type) {
+    return type == FrameInfo.Type.REGISTRATION || type == FrameInfo.Type.HEALTH_CHECK;
+  }
+
+  /**
+   * Picks the key frames are ordered by.
+   *
+   * @return the partition key for the frame.
+   */
+  String partitionKey(final FrameInfo frameInfo) {
+    switch (frameInfo.getType()) {
+      case FETCH_REQUEST:
+        // Every fetch request is self contained so they need not be ordered at all.
+        return "fetch:" + fetchCount++;
+      case SOCKET_SESSION:
+        // The session is inside the encrypted payload, so keep these frames in order on one
+        // worker.  It only queues the data; each session's writer does the socket IO.
+        return frameInfo.getType().toString();
+      default:
+        return PrioritySendQueue.streamKey(frameInfo);
+    }
+  }
+
+  /**
+   * @return the running partitions, or null to dispatch inline.
+   */
+  private synchronized Partition[] getPartitions() {
+    if (!started) {
+      started = true;
+      final Integer threads = localConf.getDispatchThreads();
+      if (threads != null && threads > 0) {
+        partitions = new Partition[threads];
+        for (int i = 0; i < threads; i++) {
+          partitions[i] = new Partition("Dispatcher-" + i);
+          partitions[i].start();
+        }
+        shutdownManager.addStoppable(this);
+        LOG.info("Started " + threads + " dispatch threads.");
+      }
+    }
+    return partitions;
+  }
+
+  /**
+   * Stops the workers and forgets any failure.  Frames still queued are dropped.
+   */
+  @Override
+  public synchronized void shutdown() {
+    if (partitions == null) {
+      return;
+    }
+    for (final Partition partition : partitions) {
+      partition.queue.clear();
+      partition.interrupt();
+    }
+    partitions = null;
+    started = false;
+    failure = null;
+  }
+
+  /**
+   * A frame waiting for dispatch.
+   */
+  private static class Task {
+    final Dispatchable dispatchable;
+    final FrameInfo frameInfo;
+
+    Task(final Dispatchable dispatchable, final FrameInfo frameInfo) {
+      this.dispatchable = dispatchable;
+      this.frameInfo = frameInfo;
+    }
+  }
+
+  /**
+   * A worker thread and the queue of frames it dispatches in order.
+   */
+  private class Partition extends Thread {
+    final BlockingQueue<Task> queue = new LinkedBlockingQueue<Task>(PARTITION_QUEUE_SIZE);
+    // Run once the queue has room, after an offer was refused.
+    volatile Runnable waiter;
+
+    Partition(final String name) {
+      setName(name);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Task task = queue.take();
+          try {
+            task.dispatchable.dispatch(task.frameInfo);
+          } catch (FramingException e) {
+            LOG.warn(getName() + ": Dispatch failed.", e);
+            failure = e;
+          } catch (RuntimeException e) {
+            LOG.warn(getName() + ": Dispatch failed.", e);
+            failure = new FramingException(e);
+          }
+          final Runnable onSpace = waiter;
+          if (onSpace != null && queue.size() <= PARTITION_QUEUE_SIZE / 2) {
+            waiter = null;
+            onSpace.run();
+          }
+        }
+      } catch (InterruptedException e) {
+        LOG.debug(getName() + ": Stopped.");
+      }
+    }
+  }
+}
@@ -0,0 +1,700 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.common.base.Preconditions;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@link FrameSender} queue.  Frames are sorted into lanes by {@link FrameInfo.Type}:
+ * <ul>
+ * <li>{@link Priority#CONTROL} frames (health checks, authorization and registration) are always
+ * sent first and are never refused for lack of space, so a full queue of data cannot delay a
+ * health check long enough for the server to drop the tunnel.</li>
+ * <li>{@link Priority#INTERACTIVE} (fetch replies and socket sessions) and {@link Priority#BULK}
+ * (SOCKS socket data) share the rest of the bandwidth by deficit round robin over payload bytes,
+ * weighted by each lane's quantum.  Frame types without a lane of their own are sent as
+ * interactive.</li>
+ * <li>{@link Priority#SHUTDOWN} frames, which stop the sender, go out only once the data lanes
+ * are empty, so queued data is not dropped.</li>
+ * </ul>
+ * Inside each data lane, streams take turns by deficit round robin as well, so one bulk download
+ * cannot starve the other tunneled connections.  A SOCKS connection is keyed by the
+ * {@code connectionId} read from its frames; compressed payloads are keyed by their inflated
+ * leading fields, so compressed and uncompressed frames of a stream stay in one stream.  The
+ * payload of an encrypted frame cannot be looked into, so its sender names the stream, such as a
+ * socket session or a streamed fetch reply, with {@link #put(FrameInfo, String)} or
+ * {@link #offer(FrameInfo, String)}; encrypted frames queued without one share one stream.
+ * Frames of a stream keep their order.  The capacity bounds the number of queued data frames.
+ */
+public class PrioritySendQueue extends AbstractQueue<FrameInfo>
+    implements BlockingQueue<FrameInfo> {
+
+  private static final Logger LOG = Logger.getLogger(PrioritySendQueue.class);
+
+  static final int INTERACTIVE_QUANTUM = 64 * 1024;
+  static final int BULK_QUANTUM = 16 * 1024;
+  static final int STREAM_QUANTUM = 16 * 1024;
+
+  static final String ENCRYPTED_STREAM = "encrypted";
+
+  // Bytes of a compressed payload inflated to find its stream; room for any socket handle.
+  private static final int STREAM_KEY_HEAD_BYTES = 4 * 1024;
+
+  // How many frames are sent between logging the lane gauges.
+  private static final int LOG_STATS_EVERY = 10000;
+  // How many of the streams with the most bytes queued are logged per data lane.
+  private static final int LOG_TOP_STREAMS = 3;
+
+  // Protobuf tag layout, which WireFormat keeps package-private.
+  private static final int TAG_TYPE_BITS = 3;
+
+  /**
+   * Send priority of a frame.
+   */
+  public enum Priority {
+    CONTROL,
+    INTERACTIVE,
+    BULK,
+    SHUTDOWN;
+
+    /**
+     * @return the lane frames of this type are sent on.
+     */
+    public static Priority forType(final FrameInfo.Type type) {
+      switch (type) {
+        case REGISTRATION:
+        case HEALTH_CHECK:
+        case AUTHORIZATION:
+          return CONTROL;
+        case SOCKET_DATA:
+          return BULK;
+        case SHUTDOWN_QUEUE:
+          return SHUTDOWN;
+        case FETCH_REQUEST:
+        case SOCKET_SESSION:
+        default:
+          return INTERACTIVE;
+      }
+    }
+  }
+
+  // Local fields
+  private final int capacity;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Lane[] lanes = new Lane[Priority.values().length];
+  private int dataCount = 0;
+  private int currentDataLane = Priority.INTERACTIVE.ordinal();
+  private boolean quantumGranted = false;
+  private long dequeuedCount = 0;
+
+  public PrioritySendQueue(final int capacity) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    this.capacity = capacity;
+    lanes[Priority.CONTROL.ordinal()] = new FifoLane(0);
+    lanes[Priority.INTERACTIVE.ordinal()] = new FairLane(INTERACTIVE_QUANTUM, STREAM_QUANTUM);
+    lanes[Priority.BULK.ordinal()] = new FairLane(BULK_QUANTUM, STREAM_QUANTUM);
+    lanes[Priority.SHUTDOWN.ordinal()] = new FifoLane(0);
+  }
+
+  /**
+   * Returns the stream a data frame belongs to, read from the leading fields of the payload
+   * without parsing the whole message.  SOCKET_DATA frames carry a {@code SocketDataInfo} whose
+   * first field is the connection id.  Only the start of a compressed payload is inflated.
+   *
+   * @param frameInfo the frame.
+   * @return a key identifying the frame's stream.
+   */
+  static String streamKey(final FrameInfo frameInfo) {
+    if (frameInfo.hasSessionId()) {
+      return ENCRYPTED_STREAM;
+    }
+    final CodedInputStream input = FrameCompressor.decompressHead(frameInfo.getCompression(),
+        frameInfo.getPayload(), STREAM_KEY_HEAD_BYTES).newCodedInput();
+    try {
+      if (frameInfo.getType() == FrameInfo.Type.SOCKET_DATA &&
+          input.readTag() == ((1 << TAG_TYPE_BITS) | WireFormat.WIRETYPE_VARINT)) {
+        return "connection:" + input.readInt64();
+      }
+    } catch (IOException e) {
+      // Fall through and treat it as unkeyed.
+    }
+    return frameInfo.getType().toString();
+  }
+
+  /**
+   * Per stream gauges.
+   *
+   * @return the serialized bytes queued for each stream in a data lane.
+   */
+  public Map<String, Long> getQueuedBytesByStream(final Priority priority) {
+    lock.lock();
+    try {
+      final Map<String, Long> queuedBytes = new HashMap<String, Long>();
+      final Lane lane = lanes[priority.ordinal()];
+      if (lane instanceof FairLane) {
+        for (final Stream stream : ((FairLane) lane).streams.values()) {
+          queuedBytes.put(stream.key, stream.bytes);
+        }
+      }
+      return queuedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of frames waiting in a lane.
+   */
+  public int getLaneDepth(final Priority priority) {
+    lock.lock();
+    try {
+      return lanes[priority.ordinal()].size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of serialized frame bytes waiting in a lane.
+   */
+  public long getLaneBytes(final Priority priority) {
+    lock.lock();
+    try {
+      return lanes[priority.ordinal()].bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(final FrameInfo frameInfo) {
+    return offer(frameInfo, null);
+  }
+
+  /**
+   * Like {@link #offer(FrameInfo)} but queues a data frame on the given stream rather than the
+   * one read from its payload.
+   *
+   * @param frameInfo the frame.
+   * @param stream the key of the frame's stream, or null to read it from the payload.
+   * @return false if the queue is full.
+   */
+  public boolean offer(final FrameInfo frameInfo, final String stream) {
+    Preconditions.checkNotNull(frameInfo);
+    final String key = keyOf(frameInfo, stream);
+    lock.lock();
+    try {
+      if (isData(frameInfo) && dataCount >= capacity) {
+        return false;
+      }
+      enqueue(frameInfo, key);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void put(final FrameInfo frameInfo) throws InterruptedException {
+    put(frameInfo, null);
+  }
+
+  /**
+   * Like {@link #put(FrameInfo)} but queues a data frame on the given stream rather than the
+   * one read from its payload.
+   *
+   * @param frameInfo the frame.
+   * @param stream the key of the frame's stream, or null to read it from the payload.
+   */
+  public void put(final FrameInfo frameInfo, final String stream) throws InterruptedException {
+    Preconditions.checkNotNull(frameInfo);
+    final String key = keyOf(frameInfo, stream);
+    lock.lockInterruptibly();
+    try {
+      if (isData(frameInfo)) {
+        while (dataCount >= capacity) {
+          notFull.await();
+        }
+      }
+      enqueue(frameInfo, key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(final FrameInfo frameInfo, final long timeout, final TimeUnit unit)
+      throws InterruptedException {
+    Preconditions.checkNotNull(frameInfo);
+    final String key = keyOf(frameInfo, null);
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      if (isData(frameInfo)) {
+        while (dataCount >= capacity) {
+          if (nanos <= 0) {
+            return false;
+          }
+          nanos = notFull.awaitNanos(nanos);
+        }
+      }
+      enqueue(frameInfo, key);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public FrameInfo poll() {
+    lock.lock();
+    try {
+      return size() == 0 ? null : dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public FrameInfo take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (size() == 0) {
+        notEmpty.await();
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public FrameInfo poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (size() == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the head of the highest priority non-empty lane.  Between the two data lanes this
+   * is not necessarily the frame {@link #poll()} would return, as that depends on the round
+   * robin state.
+   */
+  @Override
+  public FrameInfo peek() {
+    lock.lock();
+    try {
+      for (final Lane lane : lanes) {
+        if (lane.size() > 0) {
+          return lane.peek();
+        }
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      int size = 0;
+      for (final Lane lane : lanes) {
+        size += lane.size();
+      }
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      return capacity - dataCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(final Collection<? super FrameInfo> collection) {
+    return drainTo(collection, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(final Collection<? super FrameInfo> collection, final int maxElements) {
+    Preconditions.checkArgument(collection != this);
+    lock.lock();
+    try {
+      int drained = 0;
+      while (drained < maxElements && size() > 0) {
+        collection.add(dequeue());
+        drained++;
+      }
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns an iterator over a snapshot of the queue in lane order.
+   */
+  @Override
+  public Iterator<FrameInfo> iterator() {
+    lock.lock();
+    try {
+      final List<FrameInfo> snapshot = new ArrayList<FrameInfo>();
+      for (final Lane lane : lanes) {
+        lane.addTo(snapshot);
+      }
+      return Collections.unmodifiableList(snapshot).iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      final StringBuilder builder = new StringBuilder("PrioritySendQueue[");
+      for (final Priority priority : Priority.values()) {
+        final Lane lane = lanes[priority.ordinal()];
+        builder.append(priority).append('=').append(lane.size()).append('/')
+            .append(lane.bytes).append("B ");
+      }
+      return builder.append(']').toString();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static boolean isData(final FrameInfo frameInfo) {
+    final Priority priority = Priority.forType(frameInfo.getType());
+    return priority == Priority.INTERACTIVE || priority == Priority.BULK;
+  }
+
+  /**
+   * @return the stream key of a data frame, the given one or else worked out before taking the
+   *     lock, or null.
+   */
+  private static String keyOf(final FrameInfo frameInfo, final String stream) {
+    if (!isData(frameInfo)) {
+      return null;
+    }
+    return (stream != null) ? stream : streamKey(frameInfo);
+  }
+
+  /**
+   * Adds a frame to its lane.  Must be called with the lock held.
+   */
+  private void enqueue(final FrameInfo frameInfo, final String key) {
+    lanes[Priority.forType(frameInfo.getType()).ordinal()].add(frameInfo, key);
+    if (isData(frameInfo)) {
+      dataCount++;
+    }
+    notEmpty.signal();
+  }
+
+  /**
+   * Removes the next frame to send, logging the lane and busiest stream gauges every
+   * {@link #LOG_STATS_EVERY} frames.  Must be called with the lock held and the queue not empty.
+   */
+  private FrameInfo dequeue() {
+    final FrameInfo frameInfo = nextFrame();
+    if (++dequeuedCount % LOG_STATS_EVERY == 0) {
+      logStats();
+    }
+    return frameInfo;
+  }
+
+  private void logStats() {
+    final StringBuilder stats = new StringBuilder("Send queue: sent=").append(dequeuedCount);
+    for (final Priority priority : Priority.values()) {
+      stats.append(", ").append(priority.name().toLowerCase()).append("=")
+          .append(getLaneDepth(priority)).append(" frames/")
+          .append(getLaneBytes(priority)).append(" bytes");
+    }
+    for (final Priority priority : new Priority[] { Priority.INTERACTIVE, Priority.BULK }) {
+      final List<Map.Entry<String, Long>> streams =
+          new ArrayList<Map.Entry<String, Long>>(getQueuedBytesByStream(priority).entrySet());
+      if (streams.isEmpty()) {
+        continue;
+      }
+      Collections.sort(streams, new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b) {
+          return b.getValue().compareTo(a.getValue());
+        }
+      });
+      stats.append("; top ").append(priority.name().toLowerCase()).append(" streams of ")
+          .append(streams.size()).append(":");
+      for (final Map.Entry<String, Long> stream :
+          streams.subList(0, Math.min(LOG_TOP_STREAMS, streams.size()))) {
+        stats.append(" ").append(stream.getKey()).append("=").append(stream.getValue());
+      }
+    }
+    LOG.info(stats);
+  }
+
+  /**
+   * Picks the next frame by priority and round robin and removes it from its lane.
+   */
+  private FrameInfo nextFrame() {
+    final Lane control = lanes[Priority.CONTROL.ordinal()];
+    if (control.size() > 0) {
+      return control.poll();
+    }
+    if (dataCount == 0) {
+      return lanes[Priority.SHUTDOWN.ordinal()].poll();
+    }
+
+    // Deficit round robin between the data lanes.  Each visit to a backlogged lane grants it
+    // one quantum of credit which it spends on whole frames; idle lanes bank nothing.
+    while (true) {
+      final Lane lane = lanes[currentDataLane];
+      if (lane.size() > 0) {
+        if (!quantumGranted) {
+          lane.deficit += lane.quantum;
+          quantumGranted = true;
+        }
+        final int frameSize = lane.peek().getSerializedSize();
+        if (frameSize <= lane.deficit) {
+          lane.deficit -= frameSize;
+          final FrameInfo frameInfo = lane.poll();
+          if (lane.size() == 0) {
+            lane.deficit = 0;
+          }
+          dataCount--;
+          notFull.signal();
+          return frameInfo;
+        }
+      } else {
+        lane.deficit = 0;
+      }
+      currentDataLane = currentDataLane == Priority.BULK.ordinal() ?
+          Priority.INTERACTIVE.ordinal() : Priority.BULK.ordinal();
+      quantumGranted = false;
+    }
+  }
+
+  /**
+   * One priority lane.  Not thread safe; guarded by the queue lock.
+   */
+  abstract static class Lane {
+    final int quantum;
+    long deficit = 0;
+    long bytes = 0;
+
+    Lane(final int quantum) {
+      this.quantum = quantum;
+    }
+
+    /**
+     * @param key the frame's stream, null for control frames.
+     */
+    abstract void add(FrameInfo frameInfo, String key);
+
+    abstract FrameInfo peek();
+
+    abstract FrameInfo poll();
+
+    abstract int size();
+
+    abstract void addTo(List<FrameInfo> list);
+  }
+
+  /**
+   * A lane that sends frames in arrival order.
+   */
+  static class FifoLane extends Lane {
+    private final LinkedList<FrameInfo> frames = new LinkedList<FrameInfo>();
+
+    FifoLane(final int quantum) {
+      super(quantum);
+    }
+
+    @Override
+    void add(final FrameInfo frameInfo, final String key) {
+      frames.add(frameInfo);
+      bytes += frameInfo.getSerializedSize();
+    }
+
+    @Override
+    FrameInfo peek() {
+      return frames.peek();
+    }
+
+    @Override
+    FrameInfo poll() {
+      final FrameInfo frameInfo = frames.poll();
+      if (frameInfo != null) {
+        bytes -= frameInfo.getSerializedSize();
+      }
+      return frameInfo;
+    }
+
+    @Override
+    int size() {
+      return frames.size();
+    }
+
+    @Override
+    void addTo(final List<FrameInfo> list) {
+      list.addAll(frames);
+    }
+  }
+
+  /**
+   * The frames queued for one stream.
+   */
+  static class Stream {
+    final String key;
+    final LinkedList<FrameInfo> frames = new LinkedList<FrameInfo>();
+    long bytes = 0;
+    long deficit = 0;
+    boolean quantumGranted = false;
+
+    Stream(final String key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * A lane that round robins between streams by deficit round robin over serialized bytes.
+   * The stream at the head of {@code activeStreams} is the one currently being served.
+   */
+  static class FairLane extends Lane {
+    private final int streamQuantum;
+    private final Map<String, Stream> streams = new HashMap<String, Stream>();
+    private final LinkedList<Stream> activeStreams = new LinkedList<Stream>();
+    private int size = 0;
+
+    FairLane(final int quantum, final int streamQuantum) {
+      super(quantum);
+      this.streamQuantum = streamQuantum;
+    }
+
+    @Override
+    void add(final FrameInfo frameInfo, final String key) {
+      Stream stream = streams.get(key);
+      if (stream == null) {
+        stream = new Stream(key);
+        streams.put(key, stream);
+        activeStreams.add(stream);
+      }
+      final int frameSize = frameInfo.getSerializedSize();
+      stream.frames.add(frameInfo);
+      stream.bytes += frameSize;
+      bytes += frameSize;
+      size++;
+    }
+
+    /**
+     * Finds the stream allowed to send next.  This only moves round robin state forward until a
+     * stream has enough credit for its head frame, so repeated calls pick the same stream.
+     */
+    private Stream select() {
+      while (true) {
+        final Stream stream = activeStreams.getFirst();
+        if (!stream.quantumGranted) {
+          stream.deficit += streamQuantum;
+          stream.quantumGranted = true;
+        }
+        if (stream.frames.getFirst().getSerializedSize() <= stream.deficit) {
+          return stream;
+        }
+        stream.quantumGranted = false;
+        activeStreams.addLast(activeStreams.removeFirst());
+      }
+    }
+
+    @Override
+    FrameInfo peek() {
+      return size == 0 ? null : select().frames.getFirst();
+    }
+
+    @Override
+    FrameInfo poll() {
+      if (size == 0) {
+        return null;
+      }
+      final Stream stream = select();
+      final FrameInfo frameInfo = stream.frames.removeFirst();
+      final int frameSize = frameInfo.getSerializedSize();
+      stream.deficit -= frameSize;
+      stream.bytes -= frameSize;
+      bytes -= frameSize;
+      size--;
+      if (stream.frames.isEmpty()) {
+        // Idle streams bank no credit.
+        activeStreams.removeFirst();
+        streams.remove(stream.key);
+      }
+      return frameInfo;
+    }
+
+    @Override
+    int size() {
+      return size;
+    }
+
+    @Override
+    void addTo(final List<FrameInfo> list) {
+      for (final Stream stream : activeStreams) {
+        list.addAll(stream.frames);
+      }
+    }
+  }
+}
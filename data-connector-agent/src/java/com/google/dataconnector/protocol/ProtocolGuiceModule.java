@@ -38,7 +38,7 @@ public class ProtocolGuiceModule extends AbstractModule {
 
   @Provides
   public BlockingQueue<FrameInfo> getFrameInfoBlockingQueue() {
-    return new LinkedBlockingQueue<FrameInfo>(SEND_QUEUE_SIZE);
+    return new PrioritySendQueue(SEND_QUEUE_SIZE);
   }
 
   @Provides
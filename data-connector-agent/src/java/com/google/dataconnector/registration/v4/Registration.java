@@ -19,6 +19,7 @@ package com.google.dataconnector.registration.v4;
 import com.google.common.base.Preconditions;
 import com.google.dataconnector.client.HealthCheckHandler;
 import com.google.dataconnector.protocol.Dispatchable;
+import com.google.dataconnector.protocol.FlowControl;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.FramingException;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
@@ -32,6 +33,7 @@ import com.google.dataconnector.util.LocalConf;
 import com.google.dataconnector.util.Pair;
 import com.google.dataconnector.util.RegistrationException;
 import com.google.dataconnector.util.SdcKeysManager;
+import com.google.dataconnector.util.SessionEncryption;
 import com.google.inject.Inject;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -69,21 +71,28 @@ public class Registration implements Dispatchable {
   private final ResourceRuleUrlUtil resourceRuleUrlUtil;
   private final SdcKeysManager sdcKeysManager;
   private final ResourceRuleParser resourceRuleParser;
+  private final FlowControl flowControl;
   
   // runtime dependencies
   private HealthCheckHandler healthCheckHandler;
+  private FrameSender frameSender;
+
+  // Local fields
+  private volatile String sessionId;
 
   @Inject
   public Registration(final LocalConf localConf,
       final FileUtil fileUtil, 
       final ResourceRuleUrlUtil resourceRuleUrlUtil, 
       final SdcKeysManager sdcKeysManager, 
-      final ResourceRuleParser resourceRuleParser) {
+      final ResourceRuleParser resourceRuleParser,
+      final FlowControl flowControl) {
     this.localConf = localConf;
     this.fileUtil = fileUtil;
     this.resourceRuleUrlUtil = resourceRuleUrlUtil;
     this.sdcKeysManager = sdcKeysManager;
     this.resourceRuleParser = resourceRuleParser;
+    this.flowControl = flowControl;
   }
 
   /**
@@ -114,6 +123,7 @@ public class Registration implements Dispatchable {
    * @throws RegistrationException if registration fails or there is a communication error.
    */
   public void sendRegistrationInfo(final FrameSender frameSender) throws RegistrationException {
+    this.frameSender = frameSender;
     try {
       // prepare registration request
       final RegistrationRequestV4.Builder regRequestBuilder = RegistrationRequestV4.newBuilder()
@@ -123,12 +133,28 @@ public class Registration implements Dispatchable {
           .setHealthCheckPort(65535); 
            
       // set resources xml in the protobuf
-      regRequestBuilder.setResourcesXml(fileUtil.readFile(localConf.getRulesFile()));
+      final String resourcesXml = fileUtil.readFile(localConf.getRulesFile());
+      regRequestBuilder.setResourcesXml(resourcesXml);
 
-      // set resource keys in the protobuf
-      final List<ResourceKey> resourceKeyList = createResourceKeys(regRequestBuilder);
+      // set resource keys in the protobuf.  Reconnecting with unchanged rules reuses the keys
+      // rather than parsing the rules and creating keys again.
+      final String rules = localConf.getAgentId() + "\n" + resourcesXml;
+      List<ResourceKey> resourceKeyList = sdcKeysManager.getCachedResourceKeys(rules);
+      if (resourceKeyList == null) {
+        resourceKeyList = createResourceKeys(regRequestBuilder);
+        sdcKeysManager.cacheResourceKeys(rules, resourceKeyList);
+      }
       regRequestBuilder.addAllResourceKey(resourceKeyList);
 
+      // offer a flow control window; it is only used once the server agrees to it.  The window
+      // agreed to is kept by this connection's frame sender.
+      if (flowControl.getRequestedWindow() > 0) {
+        regRequestBuilder.setFlowControlWindow(flowControl.getRequestedWindow());
+      }
+
+      // offer the session encryption algorithms we support; the server picks one.
+      regRequestBuilder.addAllKeyAlgo(SessionEncryption.getSupportedAlgorithms());
+
       // finalize the building of the RegRequest
       final RegistrationRequestV4 regRequest = regRequestBuilder.build();
 
@@ -137,7 +163,7 @@ public class Registration implements Dispatchable {
       frameSender.sendFrame(FrameInfo.Type.REGISTRATION, regRequest.toByteString());
 
       // store the resource keys
-      sdcKeysManager.storeSecretKeys(regRequest.getResourceKeyList());
+      sdcKeysManager.storeSecretKeys(frameSender, regRequest.getResourceKeyList());
     } catch (IOException e) {
       throw new RegistrationException(e);
     }
@@ -179,6 +205,7 @@ public class Registration implements Dispatchable {
   private void processRegistrationResponse(final FrameInfo frameInfo) throws
       RegistrationException {
     Preconditions.checkNotNull(healthCheckHandler);
+    Preconditions.checkNotNull(frameSender);
     try {
       final RegistrationResponseV4 regResponse = RegistrationResponseV4.parseFrom(
           frameInfo.getPayload());
@@ -199,7 +226,16 @@ public class Registration implements Dispatchable {
           this.sdcKeysManager.storeSessionKey(
               serverSuppliedConf.getSessionId(),
               serverSuppliedConf.getKeyAlgo(), 
-              serverSuppliedConf.getKeyBytes().toByteArray());
+              serverSuppliedConf.getKeyBytes().toByteArray(),
+              frameSender.getCompressor());
+          sessionId = serverSuppliedConf.getSessionId();
+        }
+
+        if (serverSuppliedConf.hasFlowControlWindow()) {
+          frameSender.setFlowControlWindow(
+              flowControl.negotiate(serverSuppliedConf.getFlowControlWindow()));
+          LOG.info("Using flow control window of " + frameSender.getFlowControlWindow() +
+              " bytes");
         }
       }
     } catch (InvalidProtocolBufferException e) {
@@ -209,6 +245,13 @@ public class Registration implements Dispatchable {
     }
   }
 
+  /**
+   * @return the id of the session the server set up for this connection, or null if none.
+   */
+  public String getSessionId() {
+    return sessionId;
+  }
+
   public void setHealthCheckHandler(HealthCheckHandler healthCheckHandler) {
     this.healthCheckHandler = Preconditions.checkNotNull(healthCheckHandler);
   }
@@ -17,6 +17,7 @@
 package com.google.dataconnector.registration.v4;
 
 import com.google.dataconnector.util.FileUtil;
+import com.google.dataconnector.util.Pair;
 import com.google.dataconnector.util.RegistrationException;
 import com.google.inject.Inject;
 
@@ -45,6 +46,9 @@ public class ResourceRuleParser {
   private static final Logger LOG = Logger.getLogger(ResourceRuleParser.class);
   private static final String AGENT_ID_TAG = "agentid";
   private static final String URL_TAG = "url";
+  private static final String URL_MATCH_TAG = "urlmatch";
+  private static final String CACHEABLE_TAG = "cacheable";
+  private static final String URL_EXACT = "URLEXACT";
   private static final String[] DEPRECATED_AGENT_ID_TAGS = new String[] {"clientid"};
   private static final String[] DEPRECATED_URL_TAGS = new String[] {"pattern"};
 
@@ -69,12 +73,48 @@ public class ResourceRuleParser {
   public List<String> parseResourcesFile(final String resourcesFileName, final String thisAgentId)
       throws RegistrationException, FileNotFoundException,
       XMLStreamException, FactoryConfigurationError {
+    final List<String> urlList = new ArrayList<String>();
+    for (final ParsedRule rule : parseRules(resourcesFileName, thisAgentId)) {
+      urlList.add(rule.url);
+    }
+    return urlList;
+  }
+
+  /** parse the resource rules xml file and return the URLs of the resources that belong to THIS
+   * agent and whose rule has {@code <cacheable>true</cacheable>}, so their fetch replies may be
+   * cached by the agent.
+   *
+   * @param resourcesFileName the resources xml file to be parsed
+   * @param thisAgentId this agent's id
+   * @return list of URLs, each paired with true if the rule's urlMatch is URLEXACT
+   * @throws RegistrationException thrown if a resource rule is missing url or agentid element
+   * @throws FileNotFoundException thrown if the resources xml file is not found
+   * @throws XMLStreamException thrown if there is any parsing error
+   * @throws FactoryConfigurationError thrown if there is any parsing error
+   */
+  public List<Pair<String, Boolean>> parseCacheableResources(final String resourcesFileName,
+      final String thisAgentId) throws RegistrationException, FileNotFoundException,
+      XMLStreamException, FactoryConfigurationError {
+    final List<Pair<String, Boolean>> cacheableList = new ArrayList<Pair<String, Boolean>>();
+    for (final ParsedRule rule : parseRules(resourcesFileName, thisAgentId)) {
+      if (rule.cacheable) {
+        cacheableList.add(Pair.of(rule.url, URL_EXACT.equalsIgnoreCase(rule.urlMatch)));
+      }
+    }
+    return cacheableList;
+  }
+
+  private List<ParsedRule> parseRules(final String resourcesFileName, final String thisAgentId)
+      throws RegistrationException, FileNotFoundException,
+      XMLStreamException, FactoryConfigurationError {
     final FileInputStream fileInputStream = fileUtil.getFileInputStream(resourcesFileName);
     final XMLStreamReader xmlStreamReader =
       XMLInputFactory.newInstance().createXMLStreamReader(fileInputStream);
     String url = null;
     String agentId = null;
-    final List<String> urlList = new ArrayList<String>();
+    String urlMatch = null;
+    boolean cacheable = false;
+    final List<ParsedRule> ruleList = new ArrayList<ParsedRule>();
     while (xmlStreamReader.hasNext()) {
       switch (xmlStreamReader.next()) {
         case XMLStreamConstants.START_ELEMENT:
@@ -84,15 +124,21 @@ public class ResourceRuleParser {
               DEPRECATED_URL_TAGS);
           final boolean agentIdFound = equalsTagButWarnIfLegacy(currentTag, AGENT_ID_TAG,
               DEPRECATED_AGENT_ID_TAGS);
+          final boolean urlMatchFound = URL_MATCH_TAG.equalsIgnoreCase(currentTag);
+          final boolean cacheableFound = CACHEABLE_TAG.equalsIgnoreCase(currentTag);
 
-          if (urlFound || agentIdFound) {
+          if (urlFound || agentIdFound || urlMatchFound || cacheableFound) {
             if (xmlStreamReader.next() == XMLStreamConstants.CHARACTERS) {
               // can't tolerate anything other than CHARACTERS element
               final String tagValue = xmlStreamReader.getText();
               if (urlFound) {
                 url = tagValue;
-              } else {
+              } else if (agentIdFound) {
                 agentId = tagValue;
+              } else if (urlMatchFound) {
+                urlMatch = tagValue.trim();
+              } else {
+                cacheable = Boolean.parseBoolean(tagValue.trim());
               }
             }
           }
@@ -103,16 +149,18 @@ public class ResourceRuleParser {
             ensurePresenceOfAgentIdAndUrl(url, agentId);
             if (agentId.equals(thisAgentId) || agentId.equalsIgnoreCase("all")) {
               // this url is a resource served by this agent.
-              urlList.add(url);
+              ruleList.add(new ParsedRule(url, urlMatch, cacheable));
             }
             url = null;
             agentId = null;
+            urlMatch = null;
+            cacheable = false;
           }
           break;
       }
     }
     xmlStreamReader.close();
-    return urlList;
+    return ruleList;
   }
 
   private void ensurePresenceOfAgentIdAndUrl(final String url, final String agentId)
@@ -146,4 +194,19 @@ public class ResourceRuleParser {
     }
     return false;
   }
+
+  /**
+   * The parts of a rule the agent needs.
+   */
+  private static class ParsedRule {
+    final String url;
+    final String urlMatch;
+    final boolean cacheable;
+
+    ParsedRule(final String url, final String urlMatch, final boolean cacheable) {
+      this.url = url;
+      this.urlMatch = urlMatch;
+      this.cacheable = cacheable;
+    }
+  }
 }
@@ -0,0 +1,112 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The agent wide pool that runs blocking work: socket connectors, resource fetches and socket
+ * session readers.  By default work runs on a bounded set of platform threads.  With
+ * {@link LocalConf#getUseVirtualThreads()} set, every task gets its own virtual thread instead
+ * and the thread cap is lifted, so idle connections cost a few KB of heap rather than a thread.
+ * <p>
+ * The mode is read on first use since the configuration is only populated after injection.
+ * Virtual threads need Java 21 or later; on older runtimes the pool stays on platform threads.
+ */
+public class AgentThreadPoolExecutor extends ThreadPoolExecutor {
+
+  private static final Logger LOG = Logger.getLogger(AgentThreadPoolExecutor.class);
+
+  // Injected dependencies
+  private final LocalConf localConf;
+
+  // Local fields
+  private volatile boolean modeApplied = false;
+
+  /**
+   * @param localConf the agent configuration.
+   * @param corePoolSize platform threads kept around when idle.
+   * @param maxPoolSize the platform thread cap.
+   */
+  public AgentThreadPoolExecutor(final LocalConf localConf, final int corePoolSize,
+      final int maxPoolSize) {
+    super(corePoolSize, maxPoolSize, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    this.localConf = localConf;
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    if (!modeApplied) {
+      applyMode();
+    }
+    super.execute(command);
+  }
+
+  /**
+   * Switches the pool to virtual threads if configured.  Runs before the first task so no
+   * platform workers have been started yet.
+   */
+  private synchronized void applyMode() {
+    if (modeApplied) {
+      return;
+    }
+    if (Boolean.TRUE.equals(localConf.getUseVirtualThreads())) {
+      final ThreadFactory virtualThreadFactory = newVirtualThreadFactory();
+      if (virtualThreadFactory == null) {
+        LOG.warn("Virtual threads are not supported by this JVM, using platform threads.");
+      } else {
+        setThreadFactory(virtualThreadFactory);
+        setMaximumPoolSize(Integer.MAX_VALUE);
+        // Idle virtual threads are cheap to make and not worth keeping.
+        setCorePoolSize(0);
+        setKeepAliveTime(1L, TimeUnit.SECONDS);
+        LOG.info("Running agent tasks on virtual threads.");
+      }
+    }
+    modeApplied = true;
+  }
+
+  /**
+   * Looks up {@code Thread.ofVirtual().name(prefix, 0).factory()} reflectively so the agent
+   * still builds and runs on JVMs without virtual threads.
+   *
+   * @return a virtual thread factory or null if the JVM does not have them.
+   */
+  static ThreadFactory newVirtualThreadFactory() {
+    try {
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      final Method name = builderClass.getMethod("name", String.class, long.class);
+      final Object namedBuilder = name.invoke(builder, "agent-virtual-", 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(namedBuilder);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (Exception e) {
+      // Preview builds that reject the call at runtime.
+      LOG.debug("Could not create virtual thread factory", e);
+      return null;
+    }
+  }
+}
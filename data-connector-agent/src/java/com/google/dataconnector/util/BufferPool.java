@@ -0,0 +1,114 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import com.google.inject.Singleton;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable heap {@link ByteBuffer}s in power of two size classes.  Their backing array
+ * can be handed straight to {@link com.google.protobuf.CodedInputStream}.  Every buffer must be
+ * given back with {@link #release(ByteBuffer)} once the caller no longer references it or its
+ * contents.
+ */
+@Singleton
+public class BufferPool {
+
+  static final int MIN_BUFFER_SIZE = 1024;
+  static final int MAX_BUFFER_SIZE = 2 * 1024 * 1024;
+  static final int MAX_POOLED_PER_CLASS = 16;
+
+  // Local fields
+  private final SizeClass[] sizeClasses = newSizeClasses();
+
+  /**
+   * Returns a cleared heap buffer with capacity of at least size bytes.
+   *
+   * @param size the minimum capacity.
+   * @return a buffer limited to size bytes.
+   */
+  public ByteBuffer acquire(final int size) {
+    final int index = indexFor(size);
+    if (index < 0) {
+      // Too big to pool.
+      return ByteBuffer.allocate(size);
+    }
+    final SizeClass sizeClass = sizeClasses[index];
+    ByteBuffer buffer = sizeClass.buffers.poll();
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(MIN_BUFFER_SIZE << index);
+    } else {
+      sizeClass.count.decrementAndGet();
+      buffer.clear();
+    }
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool.  Buffers that are direct or not one of our size classes, or
+   * that would overfill their class, are left for the garbage collector.
+   *
+   * @param buffer the buffer to release.
+   */
+  public void release(final ByteBuffer buffer) {
+    final int index = indexFor(buffer.capacity());
+    if (index < 0 || (MIN_BUFFER_SIZE << index) != buffer.capacity() || buffer.isDirect()) {
+      return;
+    }
+    final SizeClass sizeClass = sizeClasses[index];
+    if (sizeClass.count.incrementAndGet() > MAX_POOLED_PER_CLASS) {
+      sizeClass.count.decrementAndGet();
+      return;
+    }
+    sizeClass.buffers.add(buffer);
+  }
+
+  /**
+   * @return the size class index for the given size or -1 if it is too big to pool.
+   */
+  static int indexFor(final int size) {
+    if (size > MAX_BUFFER_SIZE) {
+      return -1;
+    }
+    int index = 0;
+    while ((MIN_BUFFER_SIZE << index) < size) {
+      index++;
+    }
+    return index;
+  }
+
+  private static SizeClass[] newSizeClasses() {
+    final SizeClass[] sizeClasses = new SizeClass[indexFor(MAX_BUFFER_SIZE) + 1];
+    for (int i = 0; i < sizeClasses.length; i++) {
+      sizeClasses[i] = new SizeClass();
+    }
+    return sizeClasses;
+  }
+
+  /**
+   * The free list for one buffer size.
+   */
+  private static class SizeClass {
+    final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    final AtomicInteger count = new AtomicInteger();
+  }
+}
@@ -30,9 +30,7 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Properties;
-import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import javax.net.SocketFactory;
 
@@ -64,9 +62,8 @@ public class ClientGuiceModule extends AbstractModule {
   }
 
   @Provides @Singleton
-  public ThreadPoolExecutor getThreadPoolExecutor() {
-    return new ThreadPoolExecutor(50, MAX_THREADS, 60L, TimeUnit.SECONDS,
-        new SynchronousQueue<Runnable>());
+  public ThreadPoolExecutor getThreadPoolExecutor(final LocalConf localConf) {
+    return new AgentThreadPoolExecutor(localConf, 50, MAX_THREADS);
   }
 
   /**
@@ -86,6 +86,52 @@ public class LocalConf {
   @Flag(help = "Resources File Watcher Thread sleep timer. default is 1 min")
   private int fileWatcherThreadSleepTimer = 1;
 
+  @Flag(help = "Use the non-blocking NIO transport for the tunnel connection.")
+  private Boolean useNioTransport = false;
+  @Flag(help = "Number of event loop threads servicing non-blocking connections.")
+  private Integer eventLoopThreads = 2;
+  @Flag(help = "Maximum bytes of frames coalesced into one write to the tunnel. 0 disables.")
+  private Integer frameBatchMaxBytes = 64 * 1024;
+  @Flag(help = "Microseconds to wait for more frames before writing a partial batch.")
+  private Integer frameBatchLingerMicros = 0;
+  @Flag(help = "Per stream flow control window in bytes offered to the server. 0 disables.")
+  private Integer flowControlWindow = 256 * 1024;
+  @Flag(help = "Service local SOCKS connections on the event loop threads instead of two " +
+      "threads per connection.")
+  private Boolean useNioSocks = false;
+  @Flag(help = "Run connector, fetch and socket session work on virtual threads (Java 21+).")
+  private Boolean useVirtualThreads = false;
+  @Flag(help = "Threads dispatching received frames, partitioned by stream. 0 dispatches on " +
+      "the thread reading the tunnel.")
+  private Integer dispatchThreads = 0;
+  @Flag(help = "Maximum pooled HTTP connections kept by the HttpClient fetch strategy.")
+  private Integer httpMaxConnections = 100;
+  @Flag(help = "Maximum pooled HTTP connections to any one host and port.")
+  private Integer httpMaxConnectionsPerRoute = 20;
+  @Flag(help = "Seconds an idle pooled HTTP connection is kept open. 0 disables keep-alive.")
+  private Integer httpIdleConnectionSeconds = 30;
+  @Flag(help = "I/O threads per reactor of the non-blocking AsyncHttp fetch strategy.")
+  private Integer asyncHttpThreads = 2;
+  @Flag(help = "Bytes of fetch replies cached in memory for resource rules marked cacheable. " +
+      "0 disables the cache.")
+  private Integer responseCacheBytes = 16 * 1024 * 1024;
+  @Flag(help = "Directory for cached fetch replies evicted from memory. Unset keeps the cache " +
+      "in memory only.")
+  private String responseCacheDir;
+  @Flag(help = "Bytes of fetch replies cached in the responseCacheDir directory.")
+  private Integer responseCacheDiskBytes = 256 * 1024 * 1024;
+  @Flag(help = "Offer to compress frame payloads exchanged with the server.")
+  private Boolean frameCompression = true;
+  @Flag(help = "Frame payloads smaller than this many bytes are not compressed.")
+  private Integer frameCompressionMinBytes = 512;
+  @Flag(help = "Parallel tunnel connections kept to the server. Each is authorized and " +
+      "registered on its own, and losing one only fails the requests it carries.")
+  private Integer tunnelConnections = 1;
+  @Flag(help = "Seconds requests in flight on a tunnel connection get to finish before it is " +
+      "closed, when its health check fails or the agent stops. A failed connection is first " +
+      "replaced by a new one. 0, the default, closes at once.")
+  private Integer drainSeconds = 0;
+
   // Config File Only
   private String socksProperties =
       "iddleTimeout = 60000\n" + // 10 minutes
@@ -271,4 +317,156 @@ public class LocalConf {
   public void setFileWatcherThreadSleepTimer(final int fileWatcherThreadSleepTimer) {
     this.fileWatcherThreadSleepTimer = fileWatcherThreadSleepTimer;
   }
+
+  public Boolean getUseNioTransport() {
+    return useNioTransport;
+  }
+
+  public void setUseNioTransport(final Boolean useNioTransport) {
+    this.useNioTransport = useNioTransport;
+  }
+
+  public Integer getEventLoopThreads() {
+    return eventLoopThreads;
+  }
+
+  public void setEventLoopThreads(final Integer eventLoopThreads) {
+    this.eventLoopThreads = eventLoopThreads;
+  }
+
+  public Integer getFrameBatchMaxBytes() {
+    return frameBatchMaxBytes;
+  }
+
+  public void setFrameBatchMaxBytes(final Integer frameBatchMaxBytes) {
+    this.frameBatchMaxBytes = frameBatchMaxBytes;
+  }
+
+  public Integer getFrameBatchLingerMicros() {
+    return frameBatchLingerMicros;
+  }
+
+  public void setFrameBatchLingerMicros(final Integer frameBatchLingerMicros) {
+    this.frameBatchLingerMicros = frameBatchLingerMicros;
+  }
+
+  public Integer getFlowControlWindow() {
+    return flowControlWindow;
+  }
+
+  public void setFlowControlWindow(final Integer flowControlWindow) {
+    this.flowControlWindow = flowControlWindow;
+  }
+
+  public Boolean getUseNioSocks() {
+    return useNioSocks;
+  }
+
+  public void setUseNioSocks(final Boolean useNioSocks) {
+    this.useNioSocks = useNioSocks;
+  }
+
+  public Boolean getUseVirtualThreads() {
+    return useVirtualThreads;
+  }
+
+  public void setUseVirtualThreads(final Boolean useVirtualThreads) {
+    this.useVirtualThreads = useVirtualThreads;
+  }
+
+  public Integer getDispatchThreads() {
+    return dispatchThreads;
+  }
+
+  public void setDispatchThreads(final Integer dispatchThreads) {
+    this.dispatchThreads = dispatchThreads;
+  }
+
+  public Integer getHttpMaxConnections() {
+    return httpMaxConnections;
+  }
+
+  public void setHttpMaxConnections(final Integer httpMaxConnections) {
+    this.httpMaxConnections = httpMaxConnections;
+  }
+
+  public Integer getHttpMaxConnectionsPerRoute() {
+    return httpMaxConnectionsPerRoute;
+  }
+
+  public void setHttpMaxConnectionsPerRoute(final Integer httpMaxConnectionsPerRoute) {
+    this.httpMaxConnectionsPerRoute = httpMaxConnectionsPerRoute;
+  }
+
+  public Integer getHttpIdleConnectionSeconds() {
+    return httpIdleConnectionSeconds;
+  }
+
+  public void setHttpIdleConnectionSeconds(final Integer httpIdleConnectionSeconds) {
+    this.httpIdleConnectionSeconds = httpIdleConnectionSeconds;
+  }
+
+  public Integer getAsyncHttpThreads() {
+    return asyncHttpThreads;
+  }
+
+  public void setAsyncHttpThreads(final Integer asyncHttpThreads) {
+    this.asyncHttpThreads = asyncHttpThreads;
+  }
+
+  public Integer getResponseCacheBytes() {
+    return responseCacheBytes;
+  }
+
+  public void setResponseCacheBytes(final Integer responseCacheBytes) {
+    this.responseCacheBytes = responseCacheBytes;
+  }
+
+  public String getResponseCacheDir() {
+    return responseCacheDir;
+  }
+
+  public void setResponseCacheDir(final String responseCacheDir) {
+    this.responseCacheDir = responseCacheDir;
+  }
+
+  public Integer getResponseCacheDiskBytes() {
+    return responseCacheDiskBytes;
+  }
+
+  public void setResponseCacheDiskBytes(final Integer responseCacheDiskBytes) {
+    this.responseCacheDiskBytes = responseCacheDiskBytes;
+  }
+
+  public Boolean getFrameCompression() {
+    return frameCompression;
+  }
+
+  public void setFrameCompression(final Boolean frameCompression) {
+    this.frameCompression = frameCompression;
+  }
+
+  public Integer getFrameCompressionMinBytes() {
+    return frameCompressionMinBytes;
+  }
+
+  public void setFrameCompressionMinBytes(final Integer frameCompressionMinBytes) {
+    this.frameCompressionMinBytes = frameCompressionMinBytes;
+  }
+
+  public Integer getTunnelConnections() {
+    return tunnelConnections;
+  }
+
+  public void setTunnelConnections(final Integer tunnelConnections) {
+    this.tunnelConnections = tunnelConnections;
+  }
+
+  public Integer getDrainSeconds() {
+    return drainSeconds;
+  }
+
+  public void setDrainSeconds(final Integer drainSeconds) {
+    this.drainSeconds = drainSeconds;
+  }
 }
@@ -182,6 +182,18 @@ public class LocalConfValidator {
       errors.append("'socksProperties' required\n");
     }
 
+    // tunnelConnections
+    final Integer tunnelConnections = localConf.getTunnelConnections();
+    if (tunnelConnections == null || tunnelConnections < 1) {
+      errors.append("invalid 'tunnelConnections': " + tunnelConnections + "\n");
+    }
+
+    // drainSeconds
+    final Integer drainSeconds = localConf.getDrainSeconds();
+    if (drainSeconds == null || drainSeconds < 0) {
+      errors.append("invalid 'drainSeconds': " + drainSeconds + "\n");
+    }
+
     // Check for errors and throw
     if (errors.length() > 0) {
       throw new LocalConfException(errors.toString());
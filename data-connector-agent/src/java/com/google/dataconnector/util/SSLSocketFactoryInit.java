@@ -23,13 +23,19 @@ import com.google.inject.Singleton;
 
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 
 import javax.net.ssl.SSLContext;
@@ -49,9 +55,17 @@ public class SSLSocketFactoryInit {
   /** injected dependencies */
   private final FileUtil fileUtil;
 
+  /** local fields */
+  private SSLContext sslContext;
+  // The flags and files the context was set up from.  Holds a salted hash of the keystore
+  // password rather than the password itself, as it is kept for as long as the agent runs.
+  private String sslContextConf;
+  private final byte[] passwordSalt = new byte[16];
+
   @Inject
   public SSLSocketFactoryInit(final FileUtil fileUtil) {
     this.fileUtil = fileUtil;
+    new SecureRandom().nextBytes(passwordSalt);
   }
 
   /**
@@ -68,8 +82,23 @@ public class SSLSocketFactoryInit {
    * @return SSLSocketFactory configured for use.
    */
   public SSLSocketFactory getSslSocketFactory(final LocalConf localConf) {
-    LOG.info("Using SSL for client connections.");
+    final SSLContext context = getSslContext(localConf);
+    return context == null ? null : context.getSocketFactory();
+  }
 
+  /**
+   * sets up our own local SSL context with keystore and password set by our flags.  The
+   * non-blocking transport uses this directly to create {@link javax.net.ssl.SSLEngine}s.
+   *
+   * <p>The context is kept and handed out again while the flags and the trusted certificates
+   * file stay the same.  Its client session cache is what lets a reconnect to the same server
+   * resume the TLS session, by session ticket or id, instead of doing a full handshake.  A
+   * keystore or default trust store file changed on disk is read again on the next call.
+   *
+   * @param localConf the configuration object for the client.
+   * @return SSLContext configured for use or null if the context could not be set up.
+   */
+  public synchronized SSLContext getSslContext(final LocalConf localConf) {
     // The following two are required ONLY if the certificate of the server
     // does not map to the default Java CAs. In practice, this will only happen, most
     // likely, when connecting with testing/staging servers with test certificates.
@@ -81,18 +110,31 @@ public class SSLSocketFactoryInit {
       // {@link LocalConfValidator} makes sure of that.
       password = localConf.getSslKeyStorePassword().toCharArray();
     }
+    final boolean allowUnverifiedCertificates = localConf.getAllowUnverifiedCertificates();
+
+    final String conf = keystorePath + "\n" + hashPassword(password) + "\n" +
+        allowUnverifiedCertificates + "\n" +
+        fileStamp(keystorePath != null ? keystorePath : getDefaultTrustStorePath());
+    if (sslContext != null && conf.equals(sslContextConf)) {
+      return sslContext;
+    }
+    LOG.info("Using SSL for client connections.");
 
     try {
-      final SSLContext context = SSLContext.getInstance("TLSv1");
+      // Negotiates the highest version both sides support, TLSv1.2 or later by default.
+      final SSLContext context = SSLContext.getInstance("TLS");
       if (keystorePath != null) { // The customer specified their own keystore.
-        initializeSslEngineWithCustomKeystore(localConf, password, keystorePath, context);
+        initializeSslEngineWithCustomKeystore(allowUnverifiedCertificates, password,
+            keystorePath, context);
       } else {
-        initializeSslEngineWithDefaultKeystore(localConf, context);
+        initializeSslEngineWithDefaultKeystore(allowUnverifiedCertificates, context);
       }
       if (context.getSocketFactory() == null) {
         throw new GeneralSecurityException("socketFactory not created");
       }
-      return context.getSocketFactory();
+      sslContext = context;
+      sslContextConf = conf;
+      return context;
     } catch (GeneralSecurityException e) {
       LOG.fatal("SSL setup error", e);
     } catch (IOException e) {
@@ -101,13 +143,54 @@ public class SSLSocketFactoryInit {
     return null;
   }
 
+  /**
+   * @return a salted hash of the keystore password, or an empty string if there is none.
+   */
+  private String hashPassword(final char[] password) {
+    if (password == null) {
+      return "";
+    }
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(passwordSalt);
+      digest.update(Charset.forName("UTF-8").encode(CharBuffer.wrap(password)));
+      return new BigInteger(1, digest.digest()).toString(16);
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM has SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the path, last modified time and length of a file, which change when it is
+   *     replaced or edited.
+   */
+  private String fileStamp(final String path) {
+    final File file = fileUtil.openFile(path);
+    return path + " " + file.lastModified() + " " + file.length();
+  }
+
+  /**
+   * @return the trust store the JVM uses when no keystore is given, as found by JSSE.
+   */
+  private String getDefaultTrustStorePath() {
+    final String trustStore = System.getProperty("javax.net.ssl.trustStore");
+    if (trustStore != null) {
+      return trustStore;
+    }
+    final String security = System.getProperty("java.home") + File.separator + "lib" +
+        File.separator + "security" + File.separator;
+    return fileUtil.openFile(security + "jssecacerts").exists() ? security + "jssecacerts" :
+        security + "cacerts";
+  }
+
   /**
    * Use the JVM default as trusted store. This would be located somewhere around
    * jdk.../jre/lib/security/cacerts, and will contain widely used CAs.
    */
-  private void initializeSslEngineWithDefaultKeystore(final LocalConf localConf, 
+  private void initializeSslEngineWithDefaultKeystore(final boolean allowUnverifiedCertificates,
       final SSLContext context) throws KeyManagementException {
-    if (!localConf.getAllowUnverifiedCertificates()) {
+    if (!allowUnverifiedCertificates) {
       context.init(null, null, null);
     } else {
       // Use bogus trust all manager
@@ -118,12 +201,12 @@ public class SSLSocketFactoryInit {
   /**
    * use the customer supplied keystore.
    */
-  private void initializeSslEngineWithCustomKeystore(final LocalConf localConf,
+  private void initializeSslEngineWithCustomKeystore(final boolean allowUnverifiedCertificates,
       final char[] password, final String keystorePath, final SSLContext context) throws
       KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
       FileNotFoundException, KeyManagementException {
     // Load with our trusted certs and setup the trust manager.
-    if (!localConf.getAllowUnverifiedCertificates()) {
+    if (!allowUnverifiedCertificates) {
       KeyStore keyStore = KeyStore.getInstance("JKS");
       keyStore.load(fileUtil.getFileInputStream(keystorePath), password);
       final TrustManagerFactory tmf = TrustManagerFactory.getInstance("PKIX");
@@ -20,7 +20,10 @@ package com.google.dataconnector.util;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.dataconnector.protocol.FrameCompressor;
+import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.proto.SdcFrame.ResourceKey;
 import com.google.inject.Singleton;
 
@@ -30,6 +33,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
@@ -48,22 +52,83 @@ public class SdcKeysManager {
   // HashMap that stores all the layer 4 rules associated with their unique key.
   private Multimap<String, Pair<String, Integer>> keysMap = HashMultimap.create();
 
-  private SessionEncryption sessionEncryption;
+  // Resource keys registered over each tunnel connection; keysMap holds them all.
+  private final Map<FrameSender, List<ResourceKey>> tunnelKeys = Maps.newHashMap();
+
+  // The resource keys last created and the rules they were created for.
+  private String cachedRules;
+  private List<ResourceKey> cachedResourceKeys;
+
+  // Session keys by session id, as each tunnel connection registers its own session.
+  private final ConcurrentHashMap<String, SessionEncryption> sessionEncryptions =
+      new ConcurrentHashMap<String, SessionEncryption>();
+  // The most recently stored session key.
+  private volatile SessionEncryption sessionEncryption;
   
+  /**
+   * Sets the session specific encryption key, as generated by the cloud server, for messages
+   * encrypted without compression.
+   * @param sessionId The session id.
+   * @param algorithm The algorithm.
+   * @param encryptionKey The encryption key.
+   */
+  public final void storeSessionKey(String sessionId,
+      String algorithm, byte[] encryptionKey) throws AgentConfigurationException {
+    storeSessionKey(sessionId, algorithm, encryptionKey, null);
+  }
+
   /**
    * Sets the session specific encryption key, as generated by the cloud server.
    * @param sessionId The session id.
    * @param algorithm The algorithm.
    * @param encryptionKey The encryption key.
+   * @param compressor The compressor negotiated by the tunnel connection the session belongs
+   *     to, or null to encrypt messages as is.
    */
   public final synchronized void storeSessionKey(String sessionId,
-      String algorithm, byte[] encryptionKey) throws AgentConfigurationException {
-    sessionEncryption = new SessionEncryption(sessionId, algorithm, encryptionKey);
+      String algorithm, byte[] encryptionKey, FrameCompressor compressor)
+      throws AgentConfigurationException {
+    SessionEncryption encryption = new SessionEncryption(sessionId, algorithm, encryptionKey);
+    encryption.setCompressor(compressor);
+    sessionEncryptions.put(sessionId, encryption);
+    sessionEncryption = encryption;
+  }
+
+  /**
+   * Forgets the key of a session whose tunnel connection is gone.
+   * @param sessionId The session id, or null if the connection never got a session key.
+   */
+  public final synchronized void removeSessionKey(String sessionId) {
+    if (sessionId == null || sessionEncryptions.remove(sessionId) == null) {
+      return;
+    }
+    if (sessionEncryption != null && sessionId.equals(sessionEncryption.getSessionId())) {
+      sessionEncryption = null;
+      for (SessionEncryption encryption : sessionEncryptions.values()) {
+        sessionEncryption = encryption;
+      }
+    }
   }
 
   public final SessionEncryption getSessionEncryption() {
     return sessionEncryption;
   }
+
+  /**
+   * Returns the encryption for the given session, or the most recent one if that session is
+   * not known, which then turns away frames of the unknown session.
+   * @param sessionId The session id, may be null.
+   * @return The session encryption, or null if there is none.
+   */
+  public final SessionEncryption getSessionEncryption(String sessionId) {
+    if (sessionId != null) {
+      SessionEncryption encryption = sessionEncryptions.get(sessionId);
+      if (encryption != null) {
+        return encryption;
+      }
+    }
+    return sessionEncryption;
+  }
   
   public final boolean hasSessionEncryption() {
     return sessionEncryption != null;
@@ -80,15 +145,45 @@ public class SdcKeysManager {
    * @param resourceKeysList
    */
   public synchronized void storeSecretKeys(final List<ResourceKey> resourceKeysList) {
+    storeSecretKeys(null, resourceKeysList);
+  }
+
+  /**
+   * stores the secretkeys registered over a tunnel connection, replacing those it registered
+   * before.  Keys registered over other connections are kept.
+   *
+   * @param tunnel the frame sender of the connection, may be null.
+   * @param resourceKeysList
+   */
+  public synchronized void storeSecretKeys(final FrameSender tunnel,
+      final List<ResourceKey> resourceKeysList) {
+    tunnelKeys.put(tunnel, resourceKeysList);
+    rebuildKeysMap();
+  }
+
+  /**
+   * removes the secretkeys registered over a tunnel connection that is gone.
+   *
+   * @param tunnel the frame sender of the connection.
+   */
+  public synchronized void removeSecretKeys(final FrameSender tunnel) {
+    if (tunnelKeys.remove(tunnel) != null) {
+      rebuildKeysMap();
+    }
+  }
+
+  private void rebuildKeysMap() {
     // remove existing keys
     LOG.debug("clearing keys and about to store new set of keys received");
     keysMap.clear();
 
     // store the keys
-    for (final ResourceKey resourceKey : resourceKeysList) {
-      final Pair<String, Integer> p = Pair.of(resourceKey.getIp(), resourceKey.getPort());
-      LOG.info("Adding rule for " + p);
-      keysMap.put(String.valueOf(resourceKey.getKey()), p);
+    for (final List<ResourceKey> resourceKeys : tunnelKeys.values()) {
+      for (final ResourceKey resourceKey : resourceKeys) {
+        final Pair<String, Integer> p = Pair.of(resourceKey.getIp(), resourceKey.getPort());
+        LOG.info("Adding rule for " + p);
+        keysMap.put(String.valueOf(resourceKey.getKey()), p);
+      }
     }
 
     // print the keys
@@ -97,6 +192,29 @@ public class SdcKeysManager {
     }
   }
 
+  /**
+   * returns the resource keys created for the given rules, so registering again with the same
+   * rules, such as after a reconnect, reuses them.
+   *
+   * @param rules the agent id and resource rules the keys are for.
+   * @return the keys, or null if none were created for these rules.
+   */
+  public synchronized List<ResourceKey> getCachedResourceKeys(final String rules) {
+    return rules.equals(cachedRules) ? cachedResourceKeys : null;
+  }
+
+  /**
+   * keeps the resource keys created for the given rules, replacing any kept before.
+   *
+   * @param rules the agent id and resource rules the keys are for.
+   * @param resourceKeysList the keys.
+   */
+  public synchronized void cacheResourceKeys(final String rules,
+      final List<ResourceKey> resourceKeysList) {
+    cachedRules = rules;
+    cachedResourceKeys = resourceKeysList;
+  }
+
   synchronized boolean checkKeyIpPort(final String key, final String ip, final int port) {
     LOG.debug("checking key for ip: " + ip + ", port: " + port);
     return keysMap.containsEntry(key, Pair.of(ip, port));
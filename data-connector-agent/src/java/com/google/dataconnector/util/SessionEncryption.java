@@ -3,6 +3,8 @@
 package com.google.dataconnector.util;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.dataconnector.protocol.FrameCompressor;
 import com.google.dataconnector.protocol.FramingException;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.protobuf.ByteString;
@@ -11,32 +13,102 @@ import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Support for session encryption of fetch and socket protocol. This class 
  * encapsulates the server-generated session encryption key and decrypts fetch
  * and socket messages from the server.
+ * <p>
+ * The agent offers the algorithms it supports, in order of preference, when it
+ * registers and the server picks one.  With an AEAD algorithm such as AES-GCM
+ * every frame is encrypted with its own nonce, which is sent ahead of the
+ * ciphertext, and is authenticated as well as encrypted.  DES is only kept for
+ * servers that predate the negotiation.
  * 
  * @author dchung@google.com (David Chung)
  *
  */
 public class SessionEncryption {
 
+  /** AES in Galois/Counter mode, the preferred algorithm. */
+  public static final String AES_GCM = "AES/GCM/NoPadding";
+
+  /** ChaCha20-Poly1305, for hosts without AES instructions. */
+  public static final String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+
+  /** The algorithm used by servers that do not negotiate one. */
+  public static final String LEGACY_ALGO = "DES";
+
   /**
    * Default algorithm for session encryption.  For local testing.  This is
    * determined by the server.
    */
-  public static final String JCE_ALGO = "DES";
+  public static final String JCE_ALGO = AES_GCM;
+
+  /** Length of the nonce sent ahead of each AEAD encrypted payload. */
+  static final int NONCE_LENGTH = 12;
+
+  private static final int TAG_BITS = 128;
+
+  /**
+   * Bytes of ciphertext gathered before they are copied out.  Payloads that fit are copied once;
+   * larger ones are held twice while the chunks are joined.
+   */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  // Plain text is passed to the cipher in slices small enough that their output fits a chunk.
+  private static final int SLICE_SIZE = 8 * 1024;
+
+  // Per thread buffers are kept up to this size; larger ones are dropped after use.
+  private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+
+  // Set on the first byte of every nonce this agent sends.  The server's nonces never have it,
+  // so the two directions sharing a key can never use the same nonce, and incoming payloads with
+  // it are refused.  See ServerSuppliedConf.keyAlgo in sdc_frame.proto.
+  static final byte AGENT_NONCE_DIRECTION = 1;
+
+  // The first byte of the nonces sent by the server's view of a session, see forServer().
+  static final byte SERVER_NONCE_DIRECTION = 0;
+
+  // Ciphertext is built up in a reused buffer on each thread.
+  private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[CHUNK_SIZE];
+    }
+  };
+
+  // Plain text is decrypted into a reused buffer on each thread.
+  private static final ThreadLocal<byte[]> DECRYPTED = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[CHUNK_SIZE];
+    }
+  };
+
+  private static final List<String> PREFERRED_ALGORITHMS =
+      ImmutableList.of(AES_GCM, CHACHA20_POLY1305, LEGACY_ALGO);
 
   private static final Logger LOG = Logger.getLogger(SessionEncryption.class);
 
@@ -44,8 +116,29 @@ public class SessionEncryption {
   private final String sessionId;
   private final String algorithm;
   private final byte[] encryptionKey;
-  private final Cipher decryptingCipher;
-  private final Cipher encryptingCipher;
+  private final SecretKeySpec keySpec;
+  private final boolean aead;
+  // The first byte of the nonces this side sends, and so never of those it receives.
+  private final byte nonceDirection;
+  // Nonces are a prefix, whose first byte marks them as the agent's, and a counter, so this agent
+  // never repeats one.  The rest of the prefix is random in case the key is ever reused.
+  private final byte[] noncePrefix = new byte[NONCE_LENGTH - 8];
+  private final AtomicLong nonceCounter = new AtomicLong();
+  // Cipher instances are not thread safe and frames are encrypted and decrypted on many threads,
+  // so each thread gets its own pair.  AEAD ciphers are initialized with each frame's nonce.
+  private final ThreadLocal<Cipher> decryptingCipher = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher(Cipher.DECRYPT_MODE);
+    }
+  };
+  private final ThreadLocal<Cipher> encryptingCipher = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher(Cipher.ENCRYPT_MODE);
+    }
+  };
+  private volatile FrameCompressor compressor;
   
   SessionEncryption() 
   throws AgentConfigurationException {
@@ -54,16 +147,24 @@ public class SessionEncryption {
 
   SessionEncryption(String sessionId, String algorithm, byte[] encryptionKey) 
     throws AgentConfigurationException {
+    this(sessionId, algorithm, encryptionKey, AGENT_NONCE_DIRECTION);
+  }
+
+  private SessionEncryption(String sessionId, String algorithm, byte[] encryptionKey,
+      byte nonceDirection) throws AgentConfigurationException {
     Preconditions.checkNotNull(encryptionKey);
     this.sessionId = sessionId;
     this.algorithm = algorithm;
     this.encryptionKey = encryptionKey;
+    this.keySpec = new SecretKeySpec(this.encryptionKey, getKeyAlgorithm(this.algorithm));
+    this.aead = isAead(this.algorithm);
+    this.nonceDirection = nonceDirection;
+    new SecureRandom().nextBytes(noncePrefix);
+    noncePrefix[0] = nonceDirection;
     try {
-      SecretKeySpec spec = new SecretKeySpec(this.encryptionKey, this.algorithm);
-      this.decryptingCipher = Cipher.getInstance(this.algorithm);
-      this.decryptingCipher.init(Cipher.DECRYPT_MODE, spec);
-      this.encryptingCipher = Cipher.getInstance(this.algorithm);
-      this.encryptingCipher.init(Cipher.ENCRYPT_MODE, spec);
+      // Fail now rather than on first use if the algorithm or key is unusable.
+      Cipher.getInstance(this.algorithm).init(Cipher.DECRYPT_MODE, keySpec,
+          aead ? newParameterSpec(new byte[NONCE_LENGTH]) : null);
     } catch (NoSuchAlgorithmException e) {
       LOG.fatal("No support for session encryption! ", e);
       throw new AgentConfigurationException(e);
@@ -73,7 +174,72 @@ public class SessionEncryption {
     } catch (InvalidKeyException e) {
       LOG.fatal("No support for session encryption! ", e);
       throw new AgentConfigurationException(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      LOG.fatal("No support for session encryption! ", e);
+      throw new AgentConfigurationException(e);
+    }
+  }
+
+  /**
+   * @return the algorithms this JVM supports, in the order the agent prefers them, to offer the
+   *     server at registration.
+   */
+  public static List<String> getSupportedAlgorithms() {
+    List<String> supported = new ArrayList<String>();
+    for (String algorithm : PREFERRED_ALGORITHMS) {
+      try {
+        Cipher.getInstance(algorithm);
+        supported.add(algorithm);
+      } catch (GeneralSecurityException e) {
+        LOG.debug("Session encryption with " + algorithm + " not supported: " + e);
+      }
     }
+    return supported;
+  }
+
+  /**
+   * @return the name of the key algorithm for a cipher transformation, such as "AES" for
+   *     "AES/GCM/NoPadding".
+   */
+  static String getKeyAlgorithm(String algorithm) {
+    if (CHACHA20_POLY1305.equalsIgnoreCase(algorithm)) {
+      return "ChaCha20";
+    }
+    int slash = algorithm.indexOf('/');
+    return slash < 0 ? algorithm : algorithm.substring(0, slash);
+  }
+
+  private static boolean isAead(String algorithm) {
+    return CHACHA20_POLY1305.equalsIgnoreCase(algorithm) ||
+        algorithm.toUpperCase().contains("/GCM/");
+  }
+
+  private AlgorithmParameterSpec newParameterSpec(byte[] nonce) {
+    if (CHACHA20_POLY1305.equalsIgnoreCase(algorithm)) {
+      return new IvParameterSpec(nonce);
+    }
+    return new GCMParameterSpec(TAG_BITS, nonce);
+  }
+
+  private Cipher newCipher(int mode) {
+    try {
+      Cipher cipher = Cipher.getInstance(this.algorithm);
+      if (!aead) {
+        cipher.init(mode, keySpec);
+      }
+      return cipher;
+    } catch (GeneralSecurityException e) {
+      // Already checked in the constructor.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The same session as the server sees it: it decrypts what this agent encrypts and encrypts
+   * with nonces this agent accepts.  For testing.
+   */
+  public SessionEncryption forServer() throws AgentConfigurationException {
+    return new SessionEncryption(sessionId, algorithm, encryptionKey, SERVER_NONCE_DIRECTION);
   }
 
   public String getSessionId() {
@@ -87,36 +253,189 @@ public class SessionEncryption {
   public byte[] getEncryptionKey() {
     return this.encryptionKey;
   }
+
+  /**
+   * Sets the compressor for messages before they are encrypted, or null to send them as is.
+   */
+  public void setCompressor(FrameCompressor compressor) {
+    this.compressor = compressor;
+  }
+
+  public FrameCompressor getCompressor() {
+    return this.compressor;
+  }
   
   public ByteString encrypt(ByteString payload) 
     throws AgentConfigurationException {
-    String message = "no encrypting cipher";
-    if (encryptingCipher != null) {
+    Encryptor encryptor = newEncryptor(payload.size());
+    encryptor.write(payload.asReadOnlyByteBuffer());
+    return encryptor.finish();
+  }
+
+  /**
+   * Starts encrypting a payload, so it can be encrypted a chunk at a time as it is
+   * serialized rather than copied whole first.  The encryptor must be used on the thread that
+   * created it, and before another is created there.  One that is not finished may be dropped.
+   *
+   * @param length the most bytes that will be written.
+   * @return the encryptor.
+   */
+  public Encryptor newEncryptor(int length) throws AgentConfigurationException {
+    Cipher cipher = encryptingCipher.get();
+    byte[] nonce = null;
+    try {
+      if (aead) {
+        nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(noncePrefix, 0, nonce, 0, noncePrefix.length);
+        long counter = nonceCounter.getAndIncrement();
+        for (int i = NONCE_LENGTH - 1; i >= noncePrefix.length; i--) {
+          nonce[i] = (byte) counter;
+          counter >>>= 8;
+        }
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec, newParameterSpec(nonce));
+      } else {
+        // Resets a cipher left part way by a dropped encryptor.
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec);
+      }
+    } catch (GeneralSecurityException e) {
+      throw new AgentConfigurationException("Unable to encrypt: " + e.getMessage());
+    }
+    return new Encryptor(cipher, nonce, length);
+  }
+
+  /**
+   * Encrypts what is written to it a slice at a time into a reused chunk buffer, so the plain
+   * text is never held whole.  Payloads of up to {@link #CHUNK_SIZE} are copied out once.
+   * Larger ones are copied out a chunk at a time and the chunks joined at the end, so for a
+   * moment the ciphertext is held twice: protobuf's ByteString can only be built by copying.
+   */
+  public static class Encryptor extends OutputStream {
+    private final Cipher cipher;
+    private final int maxLength;
+    private final List<ByteString> chunks = new ArrayList<ByteString>();
+    private byte[] chunk = CHUNK.get();
+    private int position;
+    private int written = 0;
+
+    private Encryptor(Cipher cipher, byte[] nonce, int maxLength) {
+      this.cipher = cipher;
+      this.maxLength = maxLength;
+      position = nonce == null ? 0 : nonce.length;
+      if (nonce != null) {
+        System.arraycopy(nonce, 0, chunk, 0, position);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      checkLength(len);
+      try {
+        while (len > 0) {
+          int slice = Math.min(len, SLICE_SIZE);
+          makeRoom(cipher.getOutputSize(slice));
+          position += cipher.update(b, off, slice, chunk, position);
+          off += slice;
+          len -= slice;
+        }
+      } catch (ShortBufferException e) {
+        throw new IOException("Unable to encrypt: " + e);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    void write(ByteBuffer input) throws AgentConfigurationException {
       try {
-        byte[] encrypted = encryptingCipher.doFinal(payload.toByteArray());
-        return ByteString.copyFrom(encrypted);
-      } catch (BadPaddingException e) {
-        message = e.getMessage();
-      } catch (IllegalBlockSizeException e) {
-        message = e.getMessage();
+        checkLength(input.remaining());
+        while (input.hasRemaining()) {
+          ByteBuffer slice = input.duplicate();
+          slice.limit(slice.position() + Math.min(slice.remaining(), SLICE_SIZE));
+          makeRoom(cipher.getOutputSize(slice.remaining()));
+          position += cipher.update(slice,
+              ByteBuffer.wrap(chunk, position, chunk.length - position));
+          input.position(slice.position());
+        }
+      } catch (ShortBufferException e) {
+        throw new AgentConfigurationException("Unable to encrypt: " + e.getMessage());
+      } catch (IOException e) {
+        throw new AgentConfigurationException("Unable to encrypt: " + e.getMessage());
+      }
+    }
+
+    private void checkLength(int len) throws IOException {
+      if (written + len > maxLength) {
+        throw new IOException("More written than the encryptor was started with: " +
+            (written + len) + " > " + maxLength);
+      }
+      written += len;
+    }
+
+    /**
+     * Copies the chunk out if the next output might not fit in it.
+     */
+    private void makeRoom(int needed) {
+      if (chunk.length - position >= needed) {
+        return;
       }
-    } 
-    throw new AgentConfigurationException("Unable to encrypt: " + message);
+      chunks.add(ByteString.copyFrom(chunk, 0, position));
+      position = 0;
+      if (chunk.length < needed) {
+        chunk = new byte[needed];
+      }
+    }
+
+    /**
+     * @return the encrypted payload, with the nonce ahead of it for AEAD algorithms.
+     */
+    public ByteString finish() throws AgentConfigurationException {
+      try {
+        makeRoom(cipher.getOutputSize(0));
+        position += cipher.doFinal(chunk, position);
+      } catch (GeneralSecurityException e) {
+        throw new AgentConfigurationException("Unable to encrypt: " + e.getMessage());
+      }
+      chunks.add(ByteString.copyFrom(chunk, 0, position));
+      return chunks.size() == 1 ? chunks.get(0) : ByteString.copyFrom(chunks);
+    }
   }
   
   public ByteString decrypt(ByteString payload) 
     throws AgentConfigurationException {
-    String message = "no decrypting cipher";
-    if (decryptingCipher != null) {
-      try {
-        byte[] decrypted = decryptingCipher.doFinal(payload.toByteArray());
-        return ByteString.copyFrom(decrypted);
-      } catch (BadPaddingException e) {
-        message = e.getMessage();
-      } catch (IllegalBlockSizeException e) {
-        message = e.getMessage();
+    String message;
+    try {
+      Cipher cipher = decryptingCipher.get();
+      ByteBuffer input = payload.asReadOnlyByteBuffer();
+      if (aead) {
+        if (payload.size() < NONCE_LENGTH) {
+          throw new AgentConfigurationException("Unable to decrypt: payload has no nonce");
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        input.get(nonce);
+        if (nonce[0] == nonceDirection) {
+          // Sent in this direction, so replayed or reflected rather than from the other side.
+          throw new AgentConfigurationException(
+              "Unable to decrypt: payload has a nonce sent in this direction");
+        }
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, newParameterSpec(nonce));
+      }
+      // AEAD ciphers release nothing until the tag checks out, so the plain text is decrypted
+      // whole into a reused buffer and copied out once.
+      int outputSize = cipher.getOutputSize(input.remaining());
+      byte[] decrypted = DECRYPTED.get();
+      if (decrypted.length < outputSize) {
+        decrypted = new byte[outputSize];
+        if (outputSize <= MAX_RETAINED_BUFFER) {
+          DECRYPTED.set(decrypted);
+        }
       }
-    } 
+      int length = cipher.doFinal(input, ByteBuffer.wrap(decrypted));
+      return ByteString.copyFrom(decrypted, 0, length);
+    } catch (GeneralSecurityException e) {
+      message = e.getMessage();
+    }
     throw new AgentConfigurationException("Unable to decrypt: " + message);
   }
   
@@ -153,26 +472,59 @@ public class SessionEncryption {
       LOG.warn("Cannot decrypt message for fetch protocol:" + e);
       return null;
     }
-    return p.parse(decrypted);
+    return p.parse(FrameCompressor.decompress(frameInfo.getCompression(), decrypted));
   }
 
   public <M extends GeneratedMessage> FrameInfo toFrameInfo(FrameInfo.Type type, M reply) {
+    return toFrameInfo(type, reply, true);
+  }
+
+  /**
+   * Encrypts the message into a frame.
+   *
+   * @param type The frame type.
+   * @param reply The message.
+   * @param compressible False if the message is known not to compress, such as a fetch reply
+   *     with an image body, so no time is spent trying.
+   * @return The frame or null if the message could not be encrypted.
+   */
+  public <M extends GeneratedMessage> FrameInfo toFrameInfo(FrameInfo.Type type, M reply,
+      boolean compressible) {
+    FrameInfo.Compression compression = FrameInfo.Compression.NONE;
     ByteString encrypted = null;
     try {
       long start = System.currentTimeMillis();
-      encrypted = encrypt(reply.toByteString());
+      FrameCompressor frameCompressor = compressor;
+      if (compressible && frameCompressor != null) {
+        // Deflate as it is serialized, straight into the cipher.
+        Encryptor encryptor = newEncryptor(reply.getSerializedSize());
+        if (frameCompressor.compress(reply, encryptor)) {
+          compression = frameCompressor.getCompression();
+          encrypted = encryptor.finish();
+        }
+      }
+      if (encrypted == null) {
+        // Serialize straight into the cipher.
+        Encryptor encryptor = newEncryptor(reply.getSerializedSize());
+        reply.writeTo(encryptor);
+        encrypted = encryptor.finish();
+      }
       long dt = System.currentTimeMillis() - start;
       
       LOG.debug("Encrypted payload " + encrypted.size() + " bytes in " + dt + " msec.");
     } catch (AgentConfigurationException e) {
       LOG.warn("Cannot encrypt message for fetch protocol:", e);
       return null;
+    } catch (IOException e) {
+      LOG.warn("Cannot encrypt message for fetch protocol:", e);
+      return null;
     }
 
     FrameInfo frame = (FrameInfo.newBuilder()
         .setType(type)
         .setPayload(encrypted)
         .setSessionId(getSessionId())
+        .setCompression(compression)
         .build());
     return frame;
   }
@@ -183,7 +535,7 @@ public class SessionEncryption {
    */
   public static byte[] newKeyBytes() {
     try {
-      KeyGenerator kg = KeyGenerator.getInstance(JCE_ALGO);
+      KeyGenerator kg = KeyGenerator.getInstance(getKeyAlgorithm(JCE_ALGO));
       return kg.generateKey().getEncoded();
     } catch (NoSuchAlgorithmException e) {
     }
@@ -22,6 +22,7 @@ import com.google.inject.Singleton;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -64,7 +65,7 @@ public class ShutdownManager {
    * @param group A group identifier to support shutting down in separate 
    * phases.
    */
-  public void addStoppable(Stoppable stoppable, String group) {
+  public synchronized void addStoppable(Stoppable stoppable, String group) {
     if (!stoppableGroups.containsKey(group)) {
       stoppableGroups.put(group, new ArrayList<Pair<String, Stoppable>>());
     }
@@ -79,7 +80,11 @@ public class ShutdownManager {
    * defensive calls to shutdown.
    */
   public void shutdownAll() {
-    for (String group : stoppableGroups.keySet()) {
+    final List<String> groups;
+    synchronized (this) {
+      groups = new ArrayList<String>(stoppableGroups.keySet());
+    }
+    for (String group : groups) {
       shutdownGroup(group);
     }
   }
@@ -92,20 +97,48 @@ public class ShutdownManager {
    * @param groupName The group to shutdown.
    */
   public void shutdownGroup(String groupName) {
-    if (!stoppableGroups.containsKey(groupName)) {
+    // We are a singleton therefore we must clean up any references we have attempted to shutdown
+    // so they get GCed.  Stoppables are called without holding our lock as they may be adding
+    // others from their own threads.
+    final List<Pair<String, Stoppable>> stoppables;
+    synchronized (this) {
+      stoppables = stoppableGroups.remove(groupName);
+    }
+    if (stoppables == null) {
       return;
     }
     
-    for (Pair<String, Stoppable> stoppablePair : stoppableGroups.get(groupName)) {
-      try {
-        LOG.info("Issuing shutdown for " + stoppablePair.first());
-        stoppablePair.second().shutdown();
-      } catch (RuntimeException e) {
-        LOG.warn("Stop failed for " + stoppablePair.first(), e);
+    for (Pair<String, Stoppable> stoppablePair : stoppables) {
+      shutdown(stoppablePair);
+    }
+  }
+
+  /**
+   * Issues a shutdown to a single stoppable, in whatever group, and stops managing it.  This
+   * lets one part of the agent, such as one of several tunnel connections, be stopped while the
+   * rest keeps running.
+   * 
+   * @param stoppable The stoppable to shutdown.
+   */
+  public void shutdown(Stoppable stoppable) {
+    synchronized (this) {
+      for (List<Pair<String, Stoppable>> stoppables : stoppableGroups.values()) {
+        for (Iterator<Pair<String, Stoppable>> it = stoppables.iterator(); it.hasNext();) {
+          if (it.next().second() == stoppable) {
+            it.remove();
+          }
+        }
       }
     }
-    // We are a singleton therefore we must clean up any references we have attempted to shutdown
-    // so they get GCed.
-    stoppableGroups.remove(groupName);
+    shutdown(new Pair<String, Stoppable>(stoppable.getClass().getName(), stoppable));
+  }
+
+  private void shutdown(Pair<String, Stoppable> stoppablePair) {
+    try {
+      LOG.info("Issuing shutdown for " + stoppablePair.first());
+      stoppablePair.second().shutdown();
+    } catch (RuntimeException e) {
+      LOG.warn("Stop failed for " + stoppablePair.first(), e);
+    }
   }
 }
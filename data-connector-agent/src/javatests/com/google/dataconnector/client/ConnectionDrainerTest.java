@@ -0,0 +1,114 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.protocol.FrameSender;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.LocalConf;
+
+import junit.framework.TestCase;
+
+import org.easymock.classextension.EasyMock;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the {@link ConnectionDrainer} class.
+ */
+public class ConnectionDrainerTest extends TestCase {
+
+  private final StringBuilder calls = new StringBuilder();
+
+  /**
+   * Records what the drainer asks of it.
+   */
+  private class FakeConnection extends SdcConnection {
+    private final String name;
+    private final boolean idle;
+
+    FakeConnection(final String name, final boolean idle) {
+      super(null, null, null, null, null, null, null, null, null, null, null, null, null, null,
+          null, null);
+      this.name = name;
+      this.idle = idle;
+    }
+
+    @Override
+    boolean drain(final long deadline) {
+      calls.append(name + " drain " + deadline + ";");
+      return idle;
+    }
+
+    @Override
+    public void shutdown() {
+      calls.append(name + " shutdown;");
+    }
+  }
+
+  public void testConnectionsDrainedWithinOneDeadlineThenClosed() throws Exception {
+    final LocalConf localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setDrainSeconds(5);
+    final ClockUtil clock = EasyMock.createMock(ClockUtil.class);
+    EasyMock.expect(clock.currentTimeMillis()).andReturn(1000L).anyTimes();
+    EasyMock.replay(clock);
+
+    final ConnectionDrainer drainer = new ConnectionDrainer(localConf, clock);
+    drainer.add(new FakeConnection("busy", false));
+    drainer.add(new FakeConnection("idle", true));
+    final SdcConnection closed = new FakeConnection("closed", true);
+    drainer.add(closed);
+    drainer.remove(closed);
+    drainer.drainAndClose();
+    assertEquals("busy drain 6000;idle drain 6000;busy shutdown;idle shutdown;",
+        calls.toString());
+    EasyMock.verify(clock);
+  }
+
+  public void testOpenSocksConnectionsDrainedBeforeClose() throws Exception {
+    final LocalConf localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setDrainSeconds(5);
+    final ClockUtil clock = EasyMock.createMock(ClockUtil.class);
+    EasyMock.expect(clock.currentTimeMillis()).andReturn(1000L).anyTimes();
+    EasyMock.replay(clock);
+    // One socks connection is open until the second check.
+    final AtomicInteger checks = new AtomicInteger();
+    final SocksDataHandler socksDataHandler =
+        new SocksDataHandler(null, null, null, null, null, null) {
+      @Override
+      public int getConnectionCount() {
+        return checks.incrementAndGet() < 2 ? 1 : 0;
+      }
+    };
+
+    final ConnectionDrainer drainer = new ConnectionDrainer(localConf, clock);
+    drainer.add(new SdcConnection(localConf, null, null,
+        new FrameSender(new LinkedBlockingQueue<FrameInfo>(), null), null, null,
+        socksDataHandler, null, new FetchRequestHandler(null, null, null, clock, null),
+        new SocketSessionRequestHandler(null, null, null, clock, null), null, null, null, null,
+        drainer, clock) {
+      @Override
+      public void shutdown() {
+        calls.append("shutdown after " + checks.get() + " checks;");
+      }
+    });
+    drainer.drainAndClose();
+    assertEquals("shutdown after 2 checks;", calls.toString());
+  }
+}
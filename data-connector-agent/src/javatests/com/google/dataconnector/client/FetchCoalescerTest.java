@@ -0,0 +1,82 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Tests for the {@link FetchCoalescer} class.
+ */
+public class FetchCoalescerTest extends TestCase {
+
+  private static final String RESOURCE = "http://intranet.example.com/orgchart.json";
+
+  private FetchCoalescer coalescer;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    coalescer = new FetchCoalescer();
+  }
+
+  private FetchRequest request(final String id, final String cookie) {
+    return FetchRequest.newBuilder().setId(id).setResource(RESOURCE).setStrategy("HttpClient")
+        .addHeaders(MessageHeader.newBuilder().setKey("Cookie").setValue(cookie))
+        .build();
+  }
+
+  public void testIdenticalRequestsShareOneFetch() throws Exception {
+    final FetchRequest leader = request("1", "user=a");
+    final FetchRequest follower = request("2", "user=a");
+    final FetchRequest otherUser = request("3", "user=b");
+    final String key = coalescer.getKey(leader);
+    assertEquals(key, coalescer.getKey(follower));
+    assertFalse(key.equals(coalescer.getKey(otherUser)));
+
+    assertFalse(coalescer.join(key, leader));
+    assertTrue(coalescer.join(key, follower));
+    assertFalse(coalescer.join(coalescer.getKey(otherUser), otherUser));
+    assertEquals(2, coalescer.size());
+
+    final List<FetchRequest> followers = coalescer.finish(key);
+    assertEquals(1, followers.size());
+    assertSame(follower, followers.get(0));
+
+    // Finished: the next request leads a new fetch.
+    assertFalse(coalescer.join(key, request("4", "user=a")));
+    assertTrue(coalescer.finish(key).isEmpty());
+    assertTrue(coalescer.finish(key).isEmpty());
+  }
+
+  public void testOnlyIdempotentRequestsShared() throws Exception {
+    assertNotNull(coalescer.getKey(request("1", "c").toBuilder()
+        .addHeaders(MessageHeader.newBuilder().setKey("x-sdc-http-method").setValue("head"))
+        .build()));
+    assertNull(coalescer.getKey(request("1", "c").toBuilder()
+        .addHeaders(MessageHeader.newBuilder().setKey("x-sdc-http-method").setValue("POST"))
+        .build()));
+    assertNull(coalescer.getKey(request("1", "c").toBuilder()
+        .setContents(ByteString.copyFromUtf8("body")).build()));
+    assertNull(coalescer.getKey(request("1", "c").toBuilder().setStreamed(true).build()));
+  }
+}
@@ -0,0 +1,174 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.protocol.FrameSender;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.dataconnector.util.SdcKeysManager;
+import com.google.dataconnector.util.SessionEncryption;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link FetchReplyStream} class.
+ */
+public class FetchReplyStreamTest extends TestCase {
+
+  private static final String REQUEST_ID = "requestId";
+
+  private SdcKeysManager sdcKeysManager;
+  private BlockingQueue<FrameInfo> sendQueue;
+  private FetchRequestHandler fetchRequestHandler;
+  private FetchReply.Builder replyBuilder;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    sdcKeysManager = new SdcKeysManager();
+    sdcKeysManager.storeSessionKey(UUID.randomUUID().toString(),
+        SessionEncryption.JCE_ALGO, SessionEncryption.newKeyBytes());
+    sendQueue = new LinkedBlockingQueue<FrameInfo>();
+    fetchRequestHandler = new FetchRequestHandler(sdcKeysManager, null, null, null, null);
+    fetchRequestHandler.setFrameSender(new FrameSender(sendQueue, null));
+    replyBuilder = FetchReply.newBuilder().setId(REQUEST_ID);
+  }
+
+  private FetchReply takeReply() throws Exception {
+    final FrameInfo frameInfo = sendQueue.poll();
+    assertNotNull("no reply sent", frameInfo);
+    assertEquals(FrameInfo.Type.FETCH_REQUEST, frameInfo.getType());
+    return FetchReply.parseFrom(
+        sdcKeysManager.getSessionEncryption().forServer().decrypt(frameInfo.getPayload()));
+  }
+
+  public void testChunkedBody() throws Exception {
+    final FetchReplyStream body = new FetchReplyStream(fetchRequestHandler, replyBuilder, 4, 8);
+    replyBuilder.setStatus(200).addHeaders(MessageHeader.newBuilder()
+        .setKey("Content-Type").setValue("text/plain"));
+    body.write(new byte[] { 0, 1, 2, 3, 4, 5 });
+    body.finish(FetchReply.newBuilder().setLatency(7));
+
+    final FetchReply header = takeReply();
+    assertTrue(header.getStreamed());
+    assertEquals(REQUEST_ID, header.getId());
+    assertEquals(200, header.getStatus());
+    assertEquals(1, header.getHeadersCount());
+    assertFalse(header.hasContents());
+
+    final FetchReply first = takeReply();
+    assertEquals(0, first.getChunkSequence());
+    assertEquals(ByteString.copyFrom(new byte[] { 0, 1, 2, 3 }), first.getContents());
+    assertFalse(first.getLastChunk());
+
+    final FetchReply last = takeReply();
+    assertEquals(1, last.getChunkSequence());
+    assertEquals(ByteString.copyFrom(new byte[] { 4, 5 }), last.getContents());
+    assertTrue(last.getLastChunk());
+    assertEquals(200, last.getStatus());
+    assertEquals(7, last.getLatency());
+    assertNull(sendQueue.poll());
+  }
+
+  public void testCopyFlushesAvailableBytes() throws Exception {
+    final FetchReplyStream body = new FetchReplyStream(fetchRequestHandler, replyBuilder);
+    assertEquals(3, FetchReplyStream.copy(new ByteArrayInputStream(new byte[] { 1, 2, 3 }), body));
+
+    assertTrue(takeReply().getStreamed());
+    final FetchReply chunk = takeReply();
+    assertEquals(FetchRequestHandler.StatusCode.OK.getValue(), chunk.getStatus());
+    assertEquals(ByteString.copyFrom(new byte[] { 1, 2, 3 }), chunk.getContents());
+    assertFalse(chunk.getLastChunk());
+  }
+
+  public void testErrorEndsBody() throws Exception {
+    final FetchReplyStream body = new FetchReplyStream(fetchRequestHandler,
+        replyBuilder.setStatus(200));
+    body.write(1);
+    body.finish(FetchReply.newBuilder()
+        .setStatus(FetchRequestHandler.StatusCode.STRATEGY_EXCEPTION.getValue()));
+
+    assertEquals(200, takeReply().getStatus());
+    final FetchReply last = takeReply();
+    assertTrue(last.getLastChunk());
+    assertEquals(FetchRequestHandler.StatusCode.STRATEGY_EXCEPTION.getValue(), last.getStatus());
+    assertEquals(1, last.getContents().size());
+    try {
+      body.write(2);
+      fail("write after finish");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  public void testFastWriterBlocksWhenWindowIsFull() throws Exception {
+    // The frame sender's writes wait for permits, so frames stay queued until released.
+    final Semaphore writes = new Semaphore(0);
+    final FrameSender frameSender = new FrameSender(sendQueue, new ShutdownManager());
+    frameSender.setOutputStream(new OutputStream() {
+      @Override
+      public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+        writes.acquireUninterruptibly();
+      }
+    });
+    fetchRequestHandler.setFrameSender(frameSender);
+    frameSender.start();
+
+    final FetchReplyStream body = new FetchReplyStream(fetchRequestHandler, replyBuilder, 4, 8);
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          body.write(new byte[16]);
+        } catch (IOException e) {
+          // The writer does not finish and the test fails.
+        }
+      }
+    };
+    writer.start();
+    try {
+      // The header is taken by the blocked sender and two chunks fill the window.
+      writer.join(500);
+      assertTrue("writer did not block", writer.isAlive());
+      assertEquals(2, sendQueue.size());
+
+      writes.release(100);
+      writer.join(5000);
+      assertFalse("writer still blocked", writer.isAlive());
+    } finally {
+      writes.release(100);
+      frameSender.shutdown();
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.google.dataconnector.client;
 
 import com.google.dataconnector.client.FetchRequestHandler.StrategyType;
+import com.google.dataconnector.client.fetchrequest.FetchResponseCache;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
@@ -59,13 +60,15 @@ public class FetchRequestHandlerTest extends TestCase {
 	  
 	  FrameInfo frameInfo = FrameInfo.newBuilder()
 	    .setSessionId(sessionId)
-	    .setPayload(sm.getSessionEncryption().encrypt(request.toByteString())).build();
+	    .setPayload(sm.getSessionEncryption().forServer().encrypt(request.toByteString()))
+	    .build();
 
 	  FetchRequestHandler handler = new FetchRequestHandler(
 	      sm,
 	      EasyMock.createMock(ThreadPoolExecutor.class),
 	      EasyMock.createMock(Injector.class),
-	      EasyMock.createMock(ClockUtil.class));
+	      EasyMock.createMock(ClockUtil.class),
+	      EasyMock.createMock(FetchResponseCache.class));
 
 	  FetchRequest parsed = sm.getSessionEncryption().getFrom(frameInfo,
 	      new SessionEncryption.Parse<FetchRequest>() {
@@ -77,7 +80,8 @@ public class FetchRequestHandlerTest extends TestCase {
 
       FrameInfo frameInfo2 = FrameInfo.newBuilder()
         .setSessionId(UUID.randomUUID().toString())
-        .setPayload(sm.getSessionEncryption().encrypt(request.toByteString())).build();
+        .setPayload(sm.getSessionEncryption().forServer().encrypt(request.toByteString()))
+        .build();
 
       FetchRequest parsed2 = sm.getSessionEncryption().getFrom(frameInfo2,
           new SessionEncryption.Parse<FetchRequest>() {
@@ -104,13 +108,15 @@ public class FetchRequestHandlerTest extends TestCase {
           sm,
           EasyMock.createMock(ThreadPoolExecutor.class),
           EasyMock.createMock(Injector.class),
-          EasyMock.createMock(ClockUtil.class));
+          EasyMock.createMock(ClockUtil.class),
+          EasyMock.createMock(FetchResponseCache.class));
       
       FrameInfo frame = sm.getSessionEncryption().toFrameInfo(
           FrameInfo.Type.FETCH_REQUEST, reply);
       
       assertTrue(frame.hasSessionId());
-      assertEquals(reply.toByteString(), sm.getSessionEncryption().decrypt(frame.getPayload()));
+      assertEquals(reply.toByteString(),
+          sm.getSessionEncryption().forServer().decrypt(frame.getPayload()));
     }
 
 	public void testValidateFetchRequest() throws Exception {
@@ -121,7 +127,8 @@ public class FetchRequestHandlerTest extends TestCase {
 		        EasyMock.createMock(SdcKeysManager.class),
 				EasyMock.createMock(ThreadPoolExecutor.class),
 				EasyMock.createMock(Injector.class),
-				EasyMock.createMock(ClockUtil.class));
+				EasyMock.createMock(ClockUtil.class),
+				EasyMock.createMock(FetchResponseCache.class));
 		
 		Exception ex = null;
 		try {
@@ -153,7 +160,8 @@ public class FetchRequestHandlerTest extends TestCase {
 		        EasyMock.createMock(SdcKeysManager.class),
 				EasyMock.createMock(ThreadPoolExecutor.class),
 				EasyMock.createMock(Injector.class),
-				EasyMock.createMock(ClockUtil.class));
+				EasyMock.createMock(ClockUtil.class),
+				EasyMock.createMock(FetchResponseCache.class));
 		
 		ex = null;
 		try {
@@ -169,6 +177,30 @@ public class FetchRequestHandlerTest extends TestCase {
 		assertEquals(StrategyType.HTTP_CLIENT, StrategyType.match("HttpClient"));
 		assertEquals(StrategyType.HTTP_CLIENT, StrategyType.match("Unknown"));
 		assertEquals(StrategyType.URL_CONNECTION, StrategyType.match("URLConnection"));
+		assertEquals(StrategyType.ASYNC_HTTP, StrategyType.match("AsyncHttp"));
 	}
+
+  public void testAbandonedUploadsSweptAsPartsArrive() throws Exception {
+    final long[] now = new long[] { 1000000000000L };
+    FetchRequestHandler handler = new FetchRequestHandler(new SdcKeysManager(), null, null,
+        new ClockUtil() {
+          @Override
+          public long currentTimeMillis() {
+            return now[0];
+          }
+        }, null);
+    FetchRequestUpload active = handler.getUpload("active");
+    active.addChunk(0, ByteString.copyFromUtf8("a"), false);
+    // Its first part never arrives.
+    FetchRequestUpload abandoned = handler.getUpload("abandoned");
+    abandoned.addChunk(1, ByteString.copyFromUtf8("b"), true);
+
+    now[0] += FetchRequestUpload.CHUNK_TIMEOUT_MILLIS + 1;
+    // A part for an upload already started sweeps the others.
+    assertSame(active, handler.getUpload("active"));
+    assertTrue(abandoned.isAbandoned(now[0]));
+    assertNotSame(abandoned, handler.getUpload("abandoned"));
+    assertFalse(active.isAbandoned(now[0]));
+  }
 	
 }
@@ -0,0 +1,116 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests for the {@link FetchRequestUpload} class.
+ */
+public class FetchRequestUploadTest extends TestCase {
+
+  private static ByteString bytes(final int... values) {
+    final byte[] b = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      b[i] = (byte) values[i];
+    }
+    return ByteString.copyFrom(b);
+  }
+
+  private static byte[] readAll(final FetchRequestUpload upload) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[2];
+    int n;
+    while ((n = upload.read(buffer, 0, buffer.length)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  public void testPartsReadInSequence() throws Exception {
+    final FetchRequestUpload upload = new FetchRequestUpload(0);
+    upload.addChunk(2, bytes(5), true);
+    upload.addChunk(1, bytes(3, 4), false);
+    upload.addChunk(0, bytes(0, 1, 2), false);
+    assertEquals(bytes(0, 1, 2, 3, 4, 5), ByteString.copyFrom(readAll(upload)));
+  }
+
+  public void testReaderWaitsForLaterParts() throws Exception {
+    final FetchRequestUpload upload = new FetchRequestUpload(0);
+    upload.addChunk(0, bytes(1), false);
+    final Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        upload.addChunk(1, bytes(2), true);
+      }
+    };
+    sender.start();
+    assertEquals(bytes(1, 2), ByteString.copyFrom(readAll(upload)));
+    sender.join();
+  }
+
+  public void testMissingPartTimesOut() throws Exception {
+    final FetchRequestUpload upload = new FetchRequestUpload(0, 50);
+    upload.addChunk(1, bytes(2), true);
+    try {
+      readAll(upload);
+      fail("did not time out");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  public void testBufferedPartsBounded() throws Exception {
+    final FetchRequestUpload upload = new FetchRequestUpload(0, 50, 4);
+    upload.addChunk(0, bytes(1, 2), false);
+    final byte[] buffer = new byte[2];
+    assertEquals(2, upload.read(buffer, 0, 2));
+    // Read parts no longer count.
+    upload.addChunk(1, bytes(3, 4, 5), false);
+    assertFalse(upload.isAbandoned(0));
+    upload.addChunk(2, bytes(6, 7), true);
+    assertTrue("not failed over the limit", upload.isAbandoned(0));
+    try {
+      readAll(upload);
+      fail("read past the limit");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  public void testAbandoned() throws Exception {
+    final FetchRequestUpload upload = new FetchRequestUpload(0, 50);
+    upload.addChunk(1, bytes(2), false);
+    assertFalse(upload.isAbandoned(10));
+    assertTrue(upload.isAbandoned(100));
+
+    upload.addChunk(0, bytes(1), false);
+    assertFalse(upload.isAbandoned(100));
+    upload.close();
+    assertTrue(upload.isAbandoned(100));
+  }
+}
@@ -23,6 +23,7 @@ import static org.easymock.classextension.EasyMock.createMock;
 import static org.easymock.classextension.EasyMock.replay;
 import static org.easymock.classextension.EasyMock.verify;
 
+import com.google.dataconnector.client.fetchrequest.FetchResponseCache;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.registration.v4.Registration;
 import com.google.dataconnector.util.FileUtil;
@@ -56,6 +57,7 @@ public class ResourcesFileWatcherTest extends TestCase {
   private File fileHandle;
   private FileInputStream fileInputStream;
   private ShutdownManager shutdownManager;
+  private FetchResponseCache responseCache;
 
   @Override
   protected void setUp() throws Exception {
@@ -71,6 +73,7 @@ public class ResourcesFileWatcherTest extends TestCase {
     fileUtil = EasyMock.createMock(FileUtil.class);
     fileInputStream = EasyMock.createMock(FileInputStream.class);
     shutdownManager = EasyMock.createMock(ShutdownManager.class);
+    responseCache = EasyMock.createMock(FetchResponseCache.class);
     shutdownManager.addStoppable(isA(Stoppable.class));
     expectLastCall();
   }
@@ -100,7 +103,7 @@ public class ResourcesFileWatcherTest extends TestCase {
 
     // Test now.
     ResourcesFileWatcher watcher = new ResourcesFileWatcher(localConf, registration,
-        fileUtil, systemUtil, shutdownManager);
+        fileUtil, systemUtil, shutdownManager, responseCache);
     watcher.setFrameSender(frameSender);
     watcher.run();
 
@@ -128,6 +131,7 @@ public class ResourcesFileWatcherTest extends TestCase {
     expect(fileInputStream.read()).andReturn(-1);
 
     registration.sendRegistrationInfo(frameSender);
+    responseCache.reloadRules();
 
     fileInputStream.close();
     EasyMock.expectLastCall();
@@ -140,7 +144,7 @@ public class ResourcesFileWatcherTest extends TestCase {
 
     // Test now.
     ResourcesFileWatcher watcher = new ResourcesFileWatcher(localConf, registration,
-        fileUtil, systemUtil, shutdownManager);
+        fileUtil, systemUtil, shutdownManager, responseCache);
     watcher.setFrameSender(frameSender);
     watcher.run();
 
@@ -177,6 +181,7 @@ public class ResourcesFileWatcherTest extends TestCase {
     expect(fileInputStream.read()).andReturn(-1);
 
     registration.sendRegistrationInfo(frameSender);
+    responseCache.reloadRules();
 
     fileInputStream.close();
     EasyMock.expectLastCall();
@@ -190,7 +195,7 @@ public class ResourcesFileWatcherTest extends TestCase {
 
     // Test now.
     ResourcesFileWatcher watcher = new ResourcesFileWatcher(localConf, registration,
-        fileUtil, systemUtil, shutdownManager);
+        fileUtil, systemUtil, shutdownManager, responseCache);
     watcher.setFrameSender(frameSender);
     watcher.run();
 
@@ -205,6 +210,7 @@ public class ResourcesFileWatcherTest extends TestCase {
     replay(systemUtil);
     replay(fileInputStream);
     replay(shutdownManager);
+    replay(responseCache);
   }
 
   private void verifyAll() {
@@ -215,5 +221,6 @@ public class ResourcesFileWatcherTest extends TestCase {
     verify(systemUtil);
     verify(fileInputStream);
     verify(shutdownManager);
+    verify(responseCache);
   }
 }
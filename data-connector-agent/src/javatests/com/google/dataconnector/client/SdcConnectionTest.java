@@ -17,11 +17,13 @@
 package com.google.dataconnector.client;
 
 import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.client.testing.SelfSignedSslContext;
 import com.google.dataconnector.protocol.FrameReceiver;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Type;
+import com.google.dataconnector.util.ClockUtil;
 import com.google.dataconnector.util.ConnectionException;
 import com.google.dataconnector.util.LocalConf;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -31,13 +33,17 @@ import junit.framework.TestCase;
 import org.easymock.IArgumentMatcher;
 import org.easymock.classextension.EasyMock;
 
-import java.security.Principal;
+import java.net.InetAddress;
+import java.security.cert.X509Certificate;
 
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLSession;
-import javax.security.cert.X509Certificate;
+import javax.net.ssl.SSLSocket;
+import javax.security.auth.x500.X500Principal;
 
 /**
  * Tests for the {@link SdcConnection} class.
@@ -47,7 +53,6 @@ import javax.security.cert.X509Certificate;
 public class SdcConnectionTest extends TestCase {
 
   private static final String EXPECTED_CN = FakeLocalConfGenerator.SDC_SERVER_HOST;
-  private Principal mockPrincipal;
   private X509Certificate mockCert;
   private SSLSession mockSession;
   private LocalConf fakeLocalConf;
@@ -71,7 +76,6 @@ public class SdcConnectionTest extends TestCase {
   
   @Override
   protected void tearDown() throws Exception {
-    mockPrincipal = null;
     mockCert = null;
     mockSession = null;
     super.tearDown();
@@ -93,7 +97,8 @@ public class SdcConnectionTest extends TestCase {
     EasyMock.replay(mockFrameReceiver);
 
     SdcConnection sdcConnection = new SdcConnection(fakeLocalConf, null, mockFrameReceiver,
-        mockFrameSender, null ,null, null, null, null, null, null);
+        mockFrameSender, null, null ,null, null, null, null, null, null, null,
+        null, null, null);
 
     assertTrue(sdcConnection.authorize());
     EasyMock.verify(mockFrameReceiver, mockFrameSender);
@@ -115,12 +120,48 @@ public class SdcConnectionTest extends TestCase {
     EasyMock.replay(mockFrameReceiver);
 
     SdcConnection sdcConnection = new SdcConnection(fakeLocalConf, null, mockFrameReceiver,
-        mockFrameSender, null ,null, null, null, null, null, null);
+        mockFrameSender, null, null ,null, null, null, null, null, null, null,
+        null, null, null);
 
     assertFalse(sdcConnection.authorize());
     EasyMock.verify(mockFrameReceiver, mockFrameSender);
   }
 
+  public void testAuthorizeNegotiatesCompression() throws Exception {
+
+    AuthorizationInfo authInfoResponse = AuthorizationInfo.newBuilder()
+        .setResult(AuthorizationInfo.ResultCode.OK)
+        .addCompression(FrameInfo.Compression.DEFLATE)
+        .build();
+    FrameInfo frameInfoResponse = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.AUTHORIZATION)
+        .setPayload(authInfoResponse.toByteString())
+        .build();
+
+    mockFrameReceiver = EasyMock.createMock(FrameReceiver.class);
+    mockFrameReceiver.readOneFrame();
+    EasyMock.expectLastCall().andReturn(frameInfoResponse).times(2);
+    EasyMock.replay(mockFrameReceiver);
+    EasyMock.reset(mockFrameSender);
+    mockFrameSender.sendFrame(EasyMock.isA(FrameInfo.class));
+    EasyMock.expectLastCall().times(2);
+    EasyMock.replay(mockFrameSender);
+
+    SdcConnection sdcConnection = new SdcConnection(fakeLocalConf, null, mockFrameReceiver,
+        mockFrameSender, null, null ,null, null, null, null, null, null, null,
+        null, null, null);
+
+    assertTrue(sdcConnection.authorize());
+    assertEquals(FrameInfo.Compression.DEFLATE,
+        sdcConnection.getCompressor().getCompression());
+
+    // Not offered, so not used even if the server picks it.
+    fakeLocalConf.setFrameCompression(false);
+    assertTrue(sdcConnection.authorize());
+    assertNull(sdcConnection.getCompressor());
+    EasyMock.verify(mockFrameReceiver, mockFrameSender);
+  }
+
   private FrameInfo matchFrameInfo(String expectedEmail, String expectedPassword,
       Type expectedType) {
     EasyMock.reportMatcher(new AuthFrameInfoMatcher(expectedEmail, expectedPassword,
@@ -176,23 +217,29 @@ public class SdcConnectionTest extends TestCase {
    * @throws SSLPeerUnverifiedException
    */
   private void createMockSession(LdapName expectedLdapName) throws SSLPeerUnverifiedException {
-    mockPrincipal = EasyMock.createMock(Principal.class);
-    mockPrincipal.getName();
-    EasyMock.expectLastCall().andReturn(expectedLdapName.toString());
-    EasyMock.replay(mockPrincipal);
-
     mockCert = EasyMock.createMock(X509Certificate.class);
-    mockCert.getSubjectDN();
-    EasyMock.expectLastCall().andReturn(mockPrincipal);
+    mockCert.getSubjectX500Principal();
+    EasyMock.expectLastCall().andReturn(new X500Principal(expectedLdapName.toString()));
     EasyMock.replay(mockCert);
 
     mockSession = EasyMock.createMock(SSLSession.class);
-    mockSession.getPeerCertificateChain();
+    mockSession.getPeerCertificates();
     EasyMock.expectLastCall().andReturn(new X509Certificate[] { mockCert });
     EasyMock.replay(mockSession);
 
   }
 
+  public void testGetCipherSuites() {
+    final String[] cipherSuites = SdcConnection.getCipherSuites(new String[] {
+        "TLS_RSA_WITH_AES_128_CBC_SHA", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "SSL_RSA_WITH_RC4_128_MD5", "TLS_AES_128_GCM_SHA256" });
+    // Ours, in our order of preference.
+    assertEquals(3, cipherSuites.length);
+    assertEquals("TLS_AES_128_GCM_SHA256", cipherSuites[0]);
+    assertEquals("TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", cipherSuites[1]);
+    assertEquals("TLS_RSA_WITH_AES_128_CBC_SHA", cipherSuites[2]);
+  }
+
   public void testVerifySubjectInCertificateGoodCn() throws InvalidNameException,
       SSLPeerUnverifiedException, ConnectionException {
 
@@ -201,7 +248,7 @@ public class SdcConnectionTest extends TestCase {
 
     // Execute
     SdcConnection sdc = new SdcConnection(fakeLocalConf, null, null, null, null, null, null, null, 
-        null, null, null);
+        null, null, null, null, null, null, null, null);
     sdc.verifySubjectInCertificate(mockSession);
 
     // Verify
@@ -217,7 +264,7 @@ public class SdcConnectionTest extends TestCase {
 
     // Execute
     SdcConnection sdc = new SdcConnection(fakeLocalConf, null, null, null, null, null, null, null, 
-        null, null, null);
+        null, null, null, null, null, null, null, null);
     try {
       sdc.verifySubjectInCertificate(mockSession);
     } catch (ConnectionException e) {
@@ -231,12 +278,12 @@ public class SdcConnectionTest extends TestCase {
 
   public void testVerifySubjectInCertificateNoPeerChain() throws SSLPeerUnverifiedException {
     mockSession = EasyMock.createMock(SSLSession.class);
-    mockSession.getPeerCertificateChain();
+    mockSession.getPeerCertificates();
     EasyMock.expectLastCall().andThrow(new SSLPeerUnverifiedException("Fail"));
     EasyMock.replay(mockSession);
 
     SdcConnection sdc = new SdcConnection(null, null, null, null, null, null, null, null,
-        null, null, null);
+        null, null, null, null, null, null, null, null);
     try {
       sdc.verifySubjectInCertificate(mockSession);
     } catch (ConnectionException e) {
@@ -245,4 +292,79 @@ public class SdcConnectionTest extends TestCase {
       return;
     }
   }
+
+  public void testVerifySubjectInCertificateOverTls13() throws Exception {
+    final SSLContext sslContext = SelfSignedSslContext.create(EXPECTED_CN);
+    final SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory()
+        .createServerSocket(0, 1, InetAddress.getByName(null));
+    final Thread server = new Thread() {
+      @Override
+      public void run() {
+        try {
+          final SSLSocket socket = (SSLSocket) serverSocket.accept();
+          socket.startHandshake();
+          // Hold the connection open until the client closes it.
+          socket.getInputStream().read();
+          socket.close();
+        } catch (Exception e) {
+          // The client's handshake fails.
+        }
+      }
+    };
+    server.setDaemon(true);
+    server.start();
+
+    final SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(
+        serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    try {
+      socket.setEnabledProtocols(new String[] { "TLSv1.3" });
+      socket.startHandshake();
+      assertEquals("TLSv1.3", socket.getSession().getProtocol());
+
+      new SdcConnection(fakeLocalConf, null, null, null, null, null, null, null, null, null,
+          null, null, null, null, null, null).verifySubjectInCertificate(socket.getSession());
+
+      fakeLocalConf.setSdcServerHost("other.example.com");
+      try {
+        new SdcConnection(fakeLocalConf, null, null, null, null, null, null, null, null, null,
+            null, null, null, null, null, null).verifySubjectInCertificate(socket.getSession());
+        fail("Did not recieve ConnectionException");
+      } catch (ConnectionException e) {
+        assertTrue(e.getMessage().startsWith("Wrong server"));
+      }
+    } finally {
+      socket.close();
+      serverSocket.close();
+    }
+  }
+
+  public void testFailureClosesAtOnceByDefault() {
+    final StringBuilder calls = new StringBuilder();
+    final SdcConnection sdc = new SdcConnection(fakeLocalConf, null, null, null, null, null,
+        null, null, null, null, null, null, null, null, null, null) {
+      @Override
+      public void shutdown() {
+        calls.append("shutdown;");
+      }
+    };
+    sdc.handleFailure();
+    assertEquals("shutdown;", calls.toString());
+  }
+
+  public void testDrainGivesUpAtDeadline() {
+    final ClockUtil clock = EasyMock.createMock(ClockUtil.class);
+    EasyMock.expect(clock.currentTimeMillis()).andReturn(1000L);
+    EasyMock.expect(clock.currentTimeMillis()).andReturn(2000L);
+    EasyMock.replay(clock);
+
+    final SdcConnection sdc = new SdcConnection(fakeLocalConf, null, null, null, null, null,
+        null, null, null, null, null, null, null, null, null, clock) {
+      @Override
+      boolean isIdle() {
+        return false;
+      }
+    };
+    assertFalse(sdc.drain(1500L));
+    EasyMock.verify(clock);
+  }
 }
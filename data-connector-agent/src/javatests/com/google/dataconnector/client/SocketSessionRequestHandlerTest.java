@@ -0,0 +1,244 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.client.socketsession.SocketSessionManager;
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.protocol.EventLoopGroup;
+import com.google.dataconnector.protocol.FrameSender;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionVerb;
+import com.google.dataconnector.util.BufferPool;
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.SdcKeysManager;
+import com.google.dataconnector.util.SessionEncryption;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link SocketSessionRequestHandler} class.
+ */
+public class SocketSessionRequestHandlerTest extends TestCase {
+
+  private static final ByteString HANDLE = ByteString.copyFromUtf8("session-1");
+
+  private ServerSocket serverSocket;
+  private ThreadPoolExecutor threadPoolExecutor;
+  private EventLoopGroup eventLoopGroup;
+  private SdcKeysManager sdcKeysManager;
+  private BlockingQueue<FrameInfo> sendQueue;
+  private SocketSessionRequestHandler handler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+    threadPoolExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    sdcKeysManager = new SdcKeysManager();
+    sdcKeysManager.storeSessionKey("session", SessionEncryption.JCE_ALGO,
+        SessionEncryption.newKeyBytes());
+    final LocalConf localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    eventLoopGroup = new EventLoopGroup(localConf, new ShutdownManager());
+    final SocketSessionManager sessionManager = new SocketSessionManager(new ClockUtil(),
+        eventLoopGroup, new BufferPool());
+    sendQueue = new LinkedBlockingQueue<FrameInfo>();
+    handler = new SocketSessionRequestHandler(sdcKeysManager, sessionManager, null,
+        new ClockUtil(), threadPoolExecutor);
+    handler.setFrameSender(new FrameSender(sendQueue, null));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    threadPoolExecutor.shutdownNow();
+    eventLoopGroup.shutdown();
+    serverSocket.close();
+    super.tearDown();
+  }
+
+  private void dispatch(final SocketSessionVerb verb) throws Exception {
+    final SocketSessionRequest request = SocketSessionRequest.newBuilder()
+        .setVerb(verb)
+        .setSocketHandle(HANDLE)
+        .setHostname("localhost")
+        .setPort(serverSocket.getLocalPort())
+        .build();
+    handler.dispatch(sdcKeysManager.getSessionEncryption().forServer().toFrameInfo(
+        FrameInfo.Type.SOCKET_SESSION, request));
+  }
+
+  private SocketSessionReply takeReply() throws Exception {
+    final FrameInfo frameInfo = sendQueue.poll(5, TimeUnit.SECONDS);
+    assertNotNull("no reply sent", frameInfo);
+    return parseReply(frameInfo);
+  }
+
+  /**
+   * Decrypts the frame as a reply.
+   *
+   * @throws InvalidProtocolBufferException if it holds SocketSessionData instead.
+   */
+  private SocketSessionReply parseReply(final FrameInfo frameInfo) throws Exception {
+    assertTrue(frameInfo.hasSessionId());
+    return sdcKeysManager.getSessionEncryption(frameInfo.getSessionId()).forServer().getFrom(
+        frameInfo,
+        new SessionEncryption.Parse<SocketSessionReply>() {
+          @Override
+          public SocketSessionReply parse(final ByteString s)
+              throws InvalidProtocolBufferException {
+            return SocketSessionReply.parseFrom(s);
+          }
+        });
+  }
+
+  /**
+   * @return the next reply, skipping data the session's socket reader sent meanwhile.
+   */
+  private SocketSessionReply takeReplySkippingData() throws Exception {
+    while (true) {
+      final FrameInfo frameInfo = sendQueue.poll(5, TimeUnit.SECONDS);
+      assertNotNull("no reply sent", frameInfo);
+      try {
+        return parseReply(frameInfo);
+      } catch (InvalidProtocolBufferException e) {
+        // SocketSessionData.
+      }
+    }
+  }
+
+  public void testCreateAndConnectOffDispatchThread() throws Exception {
+    // Hold up the pool so we can see dispatch return before the reply is sent.
+    final CountDownLatch release = new CountDownLatch(1);
+    threadPoolExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          // Done.
+        }
+      }
+    });
+    dispatch(SocketSessionVerb.CREATE);
+    assertNull(sendQueue.poll(100, TimeUnit.MILLISECONDS));
+    release.countDown();
+
+    SocketSessionReply reply = takeReply();
+    assertEquals(SocketSessionVerb.CREATE, reply.getVerb());
+    assertEquals(SocketSessionReply.Status.OK, reply.getStatus());
+    assertTrue(reply.getLatency() >= 100);
+
+    dispatch(SocketSessionVerb.CONNECT);
+    reply = takeReply();
+    assertEquals(SocketSessionVerb.CONNECT, reply.getVerb());
+    assertEquals(SocketSessionReply.Status.OK, reply.getStatus());
+    final Socket peer = serverSocket.accept();
+
+    dispatch(SocketSessionVerb.CLOSE);
+    // The CLOSE from the socket's reader may come first.
+    boolean closeReplied = false;
+    for (int i = 0; i < 2 && !closeReplied; i++) {
+      final FrameInfo frameInfo = sendQueue.poll(5, TimeUnit.SECONDS);
+      assertNotNull("no reply sent", frameInfo);
+      try {
+        closeReplied = parseReply(frameInfo).getVerb() ==
+            SocketSessionVerb.CLOSE;
+      } catch (InvalidProtocolBufferException e) {
+        // SocketSessionData.
+      }
+    }
+    assertTrue(closeReplied);
+    peer.close();
+  }
+
+  public void testCloseWaitsForConnect() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    threadPoolExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          // Done.
+        }
+      }
+    });
+    dispatch(SocketSessionVerb.CREATE);
+    dispatch(SocketSessionVerb.CONNECT);
+    dispatch(SocketSessionVerb.CLOSE);
+    assertNull(sendQueue.poll(100, TimeUnit.MILLISECONDS));
+    release.countDown();
+
+    assertEquals(SocketSessionVerb.CREATE, takeReplySkippingData().getVerb());
+    SocketSessionReply reply = takeReplySkippingData();
+    assertEquals(SocketSessionVerb.CONNECT, reply.getVerb());
+    assertEquals(SocketSessionReply.Status.OK, reply.getStatus());
+    final Socket peer = serverSocket.accept();
+    reply = takeReplySkippingData();
+    assertEquals(SocketSessionVerb.CLOSE, reply.getVerb());
+    assertEquals(SocketSessionReply.Status.OK, reply.getStatus());
+    peer.close();
+  }
+
+  public void testConnectWithoutSessionFails() throws Exception {
+    dispatch(SocketSessionVerb.CONNECT);
+    assertEquals(SocketSessionReply.Status.CANNOT_CONNECT, takeReply().getStatus());
+  }
+
+  public void testSessionDataIsEncrypted() throws Exception {
+    dispatch(SocketSessionVerb.CREATE);
+    assertEquals(SocketSessionVerb.CREATE, takeReply().getVerb());
+    dispatch(SocketSessionVerb.CONNECT);
+    assertEquals(SocketSessionReply.Status.OK, takeReply().getStatus());
+    final Socket peer = serverSocket.accept();
+    peer.getOutputStream().write("secret".getBytes("US-ASCII"));
+    peer.getOutputStream().flush();
+
+    final FrameInfo frameInfo = sendQueue.poll(5, TimeUnit.SECONDS);
+    assertNotNull("no data sent", frameInfo);
+    assertTrue(frameInfo.hasSessionId());
+    assertFalse(frameInfo.getPayload().toStringUtf8().contains("secret"));
+    final SocketSessionData data = sdcKeysManager.getSessionEncryption(
+        frameInfo.getSessionId()).forServer().getFrom(frameInfo,
+        new SessionEncryption.Parse<SocketSessionData>() {
+          @Override
+          public SocketSessionData parse(final ByteString s)
+              throws InvalidProtocolBufferException {
+            return SocketSessionData.parseFrom(s);
+          }
+        });
+    assertEquals(HANDLE, data.getSocketHandle());
+    assertEquals(ByteString.copyFromUtf8("secret"), data.getData());
+    peer.close();
+  }
+}
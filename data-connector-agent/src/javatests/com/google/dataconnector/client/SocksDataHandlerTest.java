@@ -68,6 +68,7 @@ public class SocksDataHandlerTest extends TestCase {
     super.setUp();
 
     fakeLocalConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    fakeLocalConf.setUseNioSocks(false);
     // 2nd order dependency mocks that isnt important to define behavior
     socket = EasyMock.createNiceMock(Socket.class);
     EasyMock.replay(socket);
@@ -141,7 +142,7 @@ public class SocksDataHandlerTest extends TestCase {
         .build();
 
     SocksDataHandler socksDataHandler = new SocksDataHandler(fakeLocalConf,
-        socketFactory, localHostAddress, threadPoolExecutor, injector);
+        socketFactory, localHostAddress, threadPoolExecutor, injector, null);
     socksDataHandler.setFrameSender(frameSender);
     socksDataHandler.dispatch(mockFrame);
 
@@ -175,7 +176,7 @@ public class SocksDataHandlerTest extends TestCase {
 
     // Execute.
     SocksDataHandler socksDataHandler = new SocksDataHandler(fakeLocalConf,
-        socketFactory, localHostAddress, threadPoolExecutor, injector);
+        socketFactory, localHostAddress, threadPoolExecutor, injector, null);
     socksDataHandler.setFrameSender(frameSender);
     socksDataHandler.dispatch(mockFrame);
     socksDataHandler.dispatch(continuingFrame);
@@ -195,7 +196,7 @@ public class SocksDataHandlerTest extends TestCase {
         .setPayload(ByteString.copyFrom(new byte[] { 0, 0, 0, 0, 0 })) // Invalid pb.
         .build();
 
-    SocksDataHandler socksDataHandler = new SocksDataHandler(null, null, null, null, null);
+    SocksDataHandler socksDataHandler = new SocksDataHandler(null, null, null, null, null, null);
     socksDataHandler.setFrameSender(frameSender);
     try {
       socksDataHandler.dispatch(mockFrame);
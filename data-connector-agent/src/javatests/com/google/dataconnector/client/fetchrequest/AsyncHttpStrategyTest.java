@@ -0,0 +1,199 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.fetchrequest;
+
+import com.google.dataconnector.client.FetchRequestHandler.FetchCallback;
+import com.google.dataconnector.client.StrategyException;
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.client.testing.SelfSignedSslContext;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Tests for the {@link AsyncHttpStrategy} class against a local server.
+ */
+public class AsyncHttpStrategyTest extends TestCase {
+
+  private ShutdownManager shutdownManager;
+  private ServerSocket serverSocket;
+  private AsyncHttpStrategy asyncHttpStrategy;
+  private BlockingQueue<String> requestLines;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    shutdownManager = new ShutdownManager();
+    asyncHttpStrategy = new AsyncHttpStrategy(new AsyncHttpClient(
+        new FakeLocalConfGenerator().getFakeLocalConf(), shutdownManager));
+    serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+    requestLines = new LinkedBlockingQueue<String>();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    serverSocket.close();
+    shutdownManager.shutdownAll();
+    super.tearDown();
+  }
+
+  /**
+   * Answers one request with a fixed response.
+   */
+  private void serveOnce(final String response) {
+    serveOnce(response, null);
+  }
+
+  /**
+   * Answers one request with a fixed response, over SSL if a context is given.
+   */
+  private void serveOnce(final String response, final SSLContext sslContext) {
+    final Thread server = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Socket socket = serverSocket.accept();
+          if (sslContext != null) {
+            socket = sslContext.getSocketFactory().createSocket(socket, null, false);
+          }
+          final BufferedReader reader =
+              new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+          requestLines.put(reader.readLine());
+          String line;
+          while ((line = reader.readLine()) != null && line.length() > 0) {
+            // Skip the headers.
+          }
+          final OutputStream out = socket.getOutputStream();
+          out.write(response.getBytes("US-ASCII"));
+          out.flush();
+          socket.close();
+        } catch (Exception e) {
+          // The test fails waiting for the reply.
+        }
+      }
+    };
+    server.setDaemon(true);
+    server.start();
+  }
+
+  private String resource(final String path) {
+    return "http://localhost:" + serverSocket.getLocalPort() + path;
+  }
+
+  public void testCallbackGetsReply() throws Exception {
+    serveOnce("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nX-Test: a\r\n\r\nhi");
+    final FetchRequest request = FetchRequest.newBuilder()
+        .setId("test1").setStrategy("AsyncHttp").setResource(resource("/report?id=1"))
+        .build();
+
+    final BlockingQueue<Object> outcome = new LinkedBlockingQueue<Object>();
+    asyncHttpStrategy.start(request, new FetchCallback() {
+      @Override
+      public void completed(FetchReply.Builder replyBuilder) {
+        outcome.add(replyBuilder);
+      }
+
+      @Override
+      public void failed(StrategyException e) {
+        outcome.add(e);
+      }
+    });
+
+    final Object result = outcome.poll(10, TimeUnit.SECONDS);
+    assertTrue("unexpected outcome " + result, result instanceof FetchReply.Builder);
+    final FetchReply.Builder replyBuilder = (FetchReply.Builder) result;
+    assertEquals(200, replyBuilder.getStatus());
+    assertEquals(ByteString.copyFromUtf8("hi"), replyBuilder.getContents());
+    boolean foundHeader = false;
+    for (MessageHeader header : replyBuilder.getHeadersList()) {
+      foundHeader |= "X-Test".equals(header.getKey()) && "a".equals(header.getValue());
+    }
+    assertTrue(foundHeader);
+    assertEquals("GET /report?id=1 HTTP/1.1", requestLines.poll(1, TimeUnit.SECONDS));
+  }
+
+  public void testProcessWaitsForReply() throws Exception {
+    serveOnce("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+    final FetchReply.Builder replyBuilder = FetchReply.newBuilder();
+    asyncHttpStrategy.process(FetchRequest.newBuilder()
+        .setId("test2").setResource(resource("")).build(), replyBuilder);
+    assertEquals(404, replyBuilder.getStatus());
+    assertFalse(replyBuilder.hasContents());
+    assertEquals("GET / HTTP/1.1", requestLines.poll(1, TimeUnit.SECONDS));
+  }
+
+  public void testConnectFailure() throws Exception {
+    final int port = serverSocket.getLocalPort();
+    serverSocket.close();
+    try {
+      asyncHttpStrategy.process(FetchRequest.newBuilder()
+          .setId("test3").setResource(new URL("http", "localhost", port, "/").toString())
+          .build(), FetchReply.newBuilder());
+      fail("did not receive StrategyException");
+    } catch (StrategyException e) {
+      // Expected.
+    }
+  }
+
+  public void testHttpsChecksHostName() throws Exception {
+    final SSLContext sslContext = SelfSignedSslContext.create("localhost");
+    asyncHttpStrategy = new AsyncHttpStrategy(new AsyncHttpClient(
+        new FakeLocalConfGenerator().getFakeLocalConf(), shutdownManager, sslContext));
+    serveOnce("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", sslContext);
+    final FetchReply.Builder replyBuilder = FetchReply.newBuilder();
+    asyncHttpStrategy.process(FetchRequest.newBuilder().setId("test4")
+        .setResource("https://localhost:" + serverSocket.getLocalPort() + "/").build(),
+        replyBuilder);
+    assertEquals(200, replyBuilder.getStatus());
+    assertEquals(ByteString.copyFromUtf8("ok"), replyBuilder.getContents());
+  }
+
+  public void testHttpsRejectsCertificateForWrongHost() throws Exception {
+    final SSLContext sslContext = SelfSignedSslContext.create("wrong.example.com");
+    asyncHttpStrategy = new AsyncHttpStrategy(new AsyncHttpClient(
+        new FakeLocalConfGenerator().getFakeLocalConf(), shutdownManager, sslContext));
+    serveOnce("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n", sslContext);
+    try {
+      asyncHttpStrategy.process(FetchRequest.newBuilder().setId("test5")
+          .setResource("https://localhost:" + serverSocket.getLocalPort() + "/").build(),
+          FetchReply.newBuilder());
+      fail("did not receive StrategyException");
+    } catch (StrategyException e) {
+      // Expected.
+    }
+    assertNull(requestLines.poll(1, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,310 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.fetchrequest;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.dataconnector.registration.v4.ResourceRuleParser;
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.FileUtil;
+import com.google.dataconnector.util.LocalConf;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.io.File;
+import java.util.Date;
+
+/**
+ * Tests for the {@link FetchResponseCache} class.
+ *
+ * This is a "LargeTest" as it writes files.
+ */
+public class FetchResponseCacheTest extends TestCase {
+
+  private static final String CACHED_URL = "http://intranet.example.com/orgchart.json";
+  private static final String EXACT_URL = "http://static.example.com/app.js";
+
+  private final FileUtil fileUtil = new FileUtil();
+  private String rulesFile;
+  private File cacheDir;
+  private LocalConf localConf;
+  private long now;
+  private FetchResponseCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final String suffix = "." + System.currentTimeMillis();
+    rulesFile = "/tmp/resourceRules.xml" + suffix;
+    cacheDir = new File("/tmp/responseCache" + suffix);
+    fileUtil.writeFile(rulesFile, "<resourceRules>" +
+        "<rule><agentId>all</agentId><url>http://intranet.example.com</url>" +
+        "  <urlMatch>HOSTPORT</urlMatch><cacheable>true</cacheable></rule>" +
+        "<rule><agentId>all</agentId><url>" + EXACT_URL + "</url>" +
+        "  <urlMatch>URLEXACT</urlMatch><cacheable>true</cacheable></rule>" +
+        "<rule><agentId>all</agentId><url>http://private.example.com</url>" +
+        "  <urlMatch>HOSTPORT</urlMatch></rule>" +
+        "</resourceRules>");
+    localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setRulesFile(rulesFile);
+    now = 1000000000000L;
+    cache = new FetchResponseCache(localConf, new ResourceRuleParser(fileUtil), fileUtil,
+        new ClockUtil() {
+          @Override
+          public long currentTimeMillis() {
+            return now;
+          }
+        });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    fileUtil.deleteFile(rulesFile);
+    final File[] files = cacheDir.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    cacheDir.delete();
+    super.tearDown();
+  }
+
+  private FetchRequest request(final String id, final String resource) {
+    return FetchRequest.newBuilder().setId(id).setResource(resource).build();
+  }
+
+  private FetchReply.Builder reply(final String id, final int status, final String body) {
+    return FetchReply.newBuilder().setId(id).setStatus(status)
+        .setContents(ByteString.copyFromUtf8(body));
+  }
+
+  private static MessageHeader header(final String key, final String value) {
+    return MessageHeader.newBuilder().setKey(key).setValue(value).build();
+  }
+
+  private static String getHeader(final FetchRequest request, final String key) {
+    for (final MessageHeader h : request.getHeadersList()) {
+      if (key.equals(h.getKey())) {
+        return h.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static String getHeader(final FetchReply reply, final String key) {
+    for (final MessageHeader h : reply.getHeadersList()) {
+      if (key.equals(h.getKey())) {
+        return h.getValue();
+      }
+    }
+    return null;
+  }
+
+  public void testFreshReplyServedFromCache() throws Exception {
+    final FetchRequest first = request("1", CACHED_URL);
+    FetchResponseCache.Lookup lookup = cache.lookup(first);
+    assertNull(lookup.getHit());
+    assertSame(first, lookup.getRequest());
+    cache.update(lookup, reply("1", 200, "org chart")
+        .addHeaders(header("Cache-Control", "max-age=60")));
+
+    now += 30 * 1000;
+    lookup = cache.lookup(request("2", CACHED_URL));
+    final FetchReply hit = lookup.getHit();
+    assertNotNull(hit);
+    assertEquals("2", hit.getId());
+    assertEquals("org chart", hit.getContents().toStringUtf8());
+    assertEquals(FetchResponseCache.HIT,
+        getHeader(hit, FetchResponseCache.CACHE_STATUS_HEADER));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    // Stale with no validators: fetched again.
+    now += 31 * 1000;
+    assertNull(cache.lookup(request("3", CACHED_URL)).getHit());
+  }
+
+  public void testStaleReplyRevalidated() throws Exception {
+    FetchResponseCache.Lookup lookup = cache.lookup(request("1", EXACT_URL));
+    cache.update(lookup, reply("1", 200, "app")
+        .addHeaders(header("Cache-Control", "no-cache"))
+        .addHeaders(header("ETag", "\"v1\"")));
+
+    lookup = cache.lookup(request("2", EXACT_URL));
+    assertNull(lookup.getHit());
+    assertEquals("\"v1\"", getHeader(lookup.getRequest(), "If-None-Match"));
+
+    final FetchReply revalidated = cache.update(lookup, reply("2", 304, "")
+        .addHeaders(header("Cache-Control", "max-age=60"))).build();
+    assertEquals(200, revalidated.getStatus());
+    assertEquals("2", revalidated.getId());
+    assertEquals("app", revalidated.getContents().toStringUtf8());
+    assertEquals(FetchResponseCache.REVALIDATED,
+        getHeader(revalidated, FetchResponseCache.CACHE_STATUS_HEADER));
+    assertEquals(1, cache.getRevalidatedCount());
+
+    // The 304's max-age now applies.
+    assertNotNull(cache.lookup(request("3", EXACT_URL)).getHit());
+  }
+
+  public void testOnlyCacheableRulesAndRepliesStored() throws Exception {
+    // Rule without cacheable.
+    FetchResponseCache.Lookup lookup = cache.lookup(request("1", "http://private.example.com/"));
+    cache.update(lookup, reply("1", 200, "secret")
+        .addHeaders(header("Cache-Control", "max-age=60")));
+    assertNull(cache.lookup(request("2", "http://private.example.com/")).getHit());
+
+    // Not an exact match.
+    lookup = cache.lookup(request("3", EXACT_URL + "?v=2"));
+    cache.update(lookup, reply("3", 200, "app")
+        .addHeaders(header("Cache-Control", "max-age=60")));
+    assertNull(cache.lookup(request("4", EXACT_URL + "?v=2")).getHit());
+
+    // Private and cookie setting replies.
+    lookup = cache.lookup(request("5", CACHED_URL));
+    cache.update(lookup, reply("5", 200, "mine")
+        .addHeaders(header("Cache-Control", "private, max-age=60")));
+    assertNull(cache.lookup(request("6", CACHED_URL)).getHit());
+    lookup = cache.lookup(request("7", CACHED_URL));
+    cache.update(lookup, reply("7", 200, "mine")
+        .addHeaders(header("Cache-Control", "max-age=60"))
+        .addHeaders(header("Set-Cookie", "session=1")));
+    assertNull(cache.lookup(request("8", CACHED_URL)).getHit());
+
+    // Requests with credentials or cookies, unless the reply is public.
+    for (final String credential : new String[] {"Authorization", "Proxy-Authorization",
+        "Cookie"}) {
+      final FetchRequest withCredential = request("c", CACHED_URL).toBuilder()
+          .addHeaders(header(credential, "alice")).build();
+      cache.update(cache.lookup(withCredential), reply("c", 200, "alice's")
+          .addHeaders(header("Cache-Control", "max-age=60")));
+      assertNull(credential, cache.lookup(request("d", CACHED_URL)).getHit());
+    }
+    final FetchRequest withCookie = request("e", CACHED_URL).toBuilder()
+        .addHeaders(header("Cookie", "session=1")).build();
+    cache.update(cache.lookup(withCookie), reply("e", 200, "everyone's")
+        .addHeaders(header("Cache-Control", "public, max-age=60")));
+    assertNotNull(cache.lookup(request("f", CACHED_URL)).getHit());
+    // A reply that may not be stored replaces it.
+    cache.update(cache.lookup(request("g", CACHED_URL).toBuilder()
+        .addHeaders(header("Cache-Control", "no-cache")).build()), reply("g", 200, "")
+        .addHeaders(header("Cache-Control", "no-store")));
+
+    // POST.
+    final FetchRequest post = request("9", CACHED_URL).toBuilder()
+        .addHeaders(header("x-sdc-http-method", "POST")).build();
+    lookup = cache.lookup(post);
+    cache.update(lookup, reply("9", 200, "posted")
+        .addHeaders(header("Cache-Control", "max-age=60")));
+    assertNull(cache.lookup(post).getHit());
+    assertEquals(0, cache.getMemoryBytes());
+
+    // Disabled.
+    localConf.setResponseCacheBytes(0);
+    lookup = cache.lookup(request("10", CACHED_URL));
+    cache.update(lookup, reply("10", 200, "x").addHeaders(header("Cache-Control", "max-age=60")));
+    assertNull(cache.lookup(request("11", CACHED_URL)).getHit());
+  }
+
+  public void testVaryingRepliesKeyedByRequestHeaders() throws Exception {
+    final FetchRequest english = request("1", CACHED_URL).toBuilder()
+        .addHeaders(header("Accept-Language", "en")).build();
+    final FetchRequest french = request("2", CACHED_URL).toBuilder()
+        .addHeaders(header("Accept-Language", "fr")).build();
+    cache.update(cache.lookup(english), reply("1", 200, "hello")
+        .addHeaders(header("Cache-Control", "max-age=60"))
+        .addHeaders(header("Vary", "Accept-Language")));
+
+    assertNull(cache.lookup(french).getHit());
+    assertEquals("hello", cache.lookup(english).getHit().getContents().toStringUtf8());
+  }
+
+  public void testEvictedRepliesKeptOnDisk() throws Exception {
+    localConf.setResponseCacheBytes(2000);
+    localConf.setResponseCacheDir(cacheDir.getPath());
+    final String body = new String(new char[150]).replace('\0', 'x');
+    for (int i = 0; i < 12; i++) {
+      final FetchRequest request = request("r" + i, CACHED_URL + "?page=" + i);
+      cache.update(cache.lookup(request), reply("r" + i, 200, body)
+          .addHeaders(header("Cache-Control", "max-age=60")));
+    }
+    assertTrue(cache.getMemoryBytes() <= 2000);
+    assertTrue(cache.getEvictionCount() > 0);
+    assertTrue(cache.getDiskBytes() > 0);
+
+    final FetchReply fromDisk = cache.lookup(request("again", CACHED_URL + "?page=0")).getHit();
+    assertNotNull(fromDisk);
+    assertEquals(body, fromDisk.getContents().toStringUtf8());
+  }
+
+  public void testRulesReadAgainOnlyWhenReloaded() throws Exception {
+    cache.update(cache.lookup(request("1", CACHED_URL)), reply("1", 200, "org chart")
+        .addHeaders(header("Cache-Control", "max-age=60")));
+    fileUtil.writeFile(rulesFile, "<resourceRules>" +
+        "<rule><agentId>all</agentId><url>http://intranet.example.com</url>" +
+        "  <urlMatch>HOSTPORT</urlMatch></rule>" +
+        "</resourceRules>");
+    assertNotNull(cache.lookup(request("2", CACHED_URL)).getHit());
+
+    cache.reloadRules();
+    assertEquals(0, cache.getMemoryBytes());
+    final FetchResponseCache.Lookup lookup = cache.lookup(request("3", CACHED_URL));
+    assertNull(lookup.getHit());
+    cache.update(lookup, reply("3", 200, "org chart")
+        .addHeaders(header("Cache-Control", "max-age=60")));
+    assertNull(cache.lookup(request("4", CACHED_URL)).getHit());
+  }
+
+  public void testFreshness() throws Exception {
+    final String date = DateUtils.formatDate(new Date(now));
+    FetchReply reply = reply("1", 200, "")
+        .addHeaders(header("Date", date))
+        .addHeaders(header("Expires", DateUtils.formatDate(new Date(now + 120 * 1000))))
+        .build();
+    assertEquals(now + 120 * 1000, FetchResponseCache.getFreshUntilMillis(reply, now));
+
+    reply = reply.toBuilder().addHeaders(header("Cache-Control", "max-age=10"))
+        .addHeaders(header("Age", "4")).build();
+    assertEquals(now + 6 * 1000, FetchResponseCache.getFreshUntilMillis(reply, now));
+
+    reply = reply("1", 200, "")
+        .addHeaders(header("Date", date))
+        .addHeaders(header("Last-Modified", DateUtils.formatDate(new Date(now - 1000 * 1000))))
+        .build();
+    assertEquals(now + 100 * 1000, FetchResponseCache.getFreshUntilMillis(reply, now));
+
+    reply = reply("1", 200, "").addHeaders(header("Expires", "0")).build();
+    assertEquals(now, FetchResponseCache.getFreshUntilMillis(reply, now));
+  }
+
+  public void testRuleMatching() throws Exception {
+    assertTrue(FetchResponseCache.matches("http://intranet.example.com", false,
+        "http://intranet.example.com:80/a/b?c"));
+    assertFalse(FetchResponseCache.matches("http://intranet.example.com", false,
+        "https://intranet.example.com/"));
+    assertFalse(FetchResponseCache.matches("http://intranet.example.com:8080", false,
+        "http://intranet.example.com/"));
+    assertTrue(FetchResponseCache.matches(EXACT_URL, true, EXACT_URL));
+    assertFalse(FetchResponseCache.matches(EXACT_URL, true, EXACT_URL + "?x"));
+  }
+}
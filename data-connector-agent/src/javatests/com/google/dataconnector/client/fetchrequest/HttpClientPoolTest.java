@@ -0,0 +1,156 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.fetchrequest;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ShutdownManager;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link HttpClientPool} class.
+ */
+public class HttpClientPoolTest extends TestCase {
+
+  private LocalConf localConf;
+  private ShutdownManager shutdownManager;
+  private HttpClientPool httpClientPool;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    shutdownManager = new ShutdownManager();
+    httpClientPool = new HttpClientPool(localConf, shutdownManager);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    shutdownManager.shutdownAll();
+    super.tearDown();
+  }
+
+  public void testSharedClientUsesConfiguredLimits() throws Exception {
+    localConf.setHttpMaxConnections(7);
+    final DefaultHttpClient httpClient = httpClientPool.getHttpClient();
+    assertSame(httpClient, httpClientPool.getHttpClient());
+    assertEquals(7, ConnManagerParams.getMaxTotalConnections(httpClient.getParams()));
+    assertEquals(HttpClientPool.CONNECTION_REQUEST_TIMEOUT_MILLIS,
+        ConnManagerParams.getTimeout(httpClient.getParams()));
+    assertEquals(0, httpClientPool.getConnectionsInPool());
+    assertTrue(httpClientPool.isKeepAlive());
+
+    shutdownManager.shutdownAll();
+    assertNotSame(httpClient, httpClientPool.getHttpClient());
+  }
+
+  public void testKeepAliveLimitedByIdleTimeout() throws Exception {
+    final HttpClientPool.IdleLimitedKeepAliveStrategy strategy =
+        new HttpClientPool.IdleLimitedKeepAliveStrategy(30000);
+    final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    assertEquals(30000, strategy.getKeepAliveDuration(response, new BasicHttpContext()));
+
+    response.setHeader("Keep-Alive", "timeout=5");
+    assertEquals(5000, strategy.getKeepAliveDuration(response, new BasicHttpContext()));
+
+    response.setHeader("Keep-Alive", "timeout=300");
+    assertEquals(30000, strategy.getKeepAliveDuration(response, new BasicHttpContext()));
+  }
+
+  public void testKeepAliveDisabled() throws Exception {
+    localConf.setHttpIdleConnectionSeconds(0);
+    assertFalse(httpClientPool.isKeepAlive());
+  }
+
+  private static void fetch(final DefaultHttpClient httpClient, final String uri)
+      throws Exception {
+    final HttpResponse response = httpClient.execute(new HttpGet(uri));
+    if (response.getEntity() != null) {
+      response.getEntity().consumeContent();
+    }
+  }
+
+  public void testCookiesNotSharedBetweenFetches() throws Exception {
+    final ServerSocket serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+    final BlockingQueue<List<String>> requests = new LinkedBlockingQueue<List<String>>();
+    final Thread server = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 2; i++) {
+            final Socket socket = serverSocket.accept();
+            final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            final List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+              lines.add(line);
+            }
+            requests.put(lines);
+            final OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\nSet-Cookie: SESSION=userA; Path=/\r\n" +
+                "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+            socket.close();
+          }
+        } catch (Exception e) {
+          // The test fails waiting for the request.
+        }
+      }
+    };
+    server.setDaemon(true);
+    server.start();
+
+    try {
+      final DefaultHttpClient httpClient = httpClientPool.getHttpClient();
+      final String base = "http://localhost:" + serverSocket.getLocalPort();
+      fetch(httpClient, base + "/login");
+      assertNotNull(requests.poll(5, TimeUnit.SECONDS));
+      fetch(httpClient, base + "/other");
+      final List<String> second = requests.poll(5, TimeUnit.SECONDS);
+      assertNotNull(second);
+      for (final String header : second) {
+        assertFalse(header, header.toLowerCase().startsWith("cookie"));
+      }
+    } finally {
+      serverSocket.close();
+    }
+  }
+}
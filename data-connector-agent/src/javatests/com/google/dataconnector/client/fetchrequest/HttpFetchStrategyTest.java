@@ -16,12 +16,18 @@
  */
 package com.google.dataconnector.client.fetchrequest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.easymock.classextension.EasyMock;
 
 import junit.framework.TestCase;
@@ -30,6 +36,8 @@ import com.google.dataconnector.client.StrategyException;
 import com.google.dataconnector.client.fetchrequest.HttpFetchStrategy;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.protobuf.ByteString;
 
 /**
  * Test case for HttpClient fetch.
@@ -60,16 +68,18 @@ public class HttpFetchStrategyTest extends TestCase {
     final HttpResponse resp = EasyMock.createMock(HttpResponse.class);
     final HttpEntity ent = EasyMock.createMock(HttpEntity.class);
     final StatusLine st = EasyMock.createMock(StatusLine.class);
-    ent.writeTo((OutputStream)EasyMock.anyObject());
+    EasyMock.expect(ent.getContent()).andReturn(new ByteArrayInputStream(new byte[0]));
+    ent.consumeContent();
     EasyMock.expect(st.getStatusCode()).andReturn(status);
     EasyMock.expect(resp.getStatusLine()).andReturn(st);
     EasyMock.expect(resp.getEntity()).andReturn(ent);
     EasyMock.expect(resp.getAllHeaders()).andReturn(headers);
-    EasyMock.replay(st, resp);
+    EasyMock.replay(st, resp, ent);
     
-    HttpFetchStrategy s = new HttpFetchStrategy() {
+    HttpFetchStrategy s = new HttpFetchStrategy(null) {
         @Override
-        HttpResponse getHttpResponse(FetchRequest request) throws StrategyException {
+        HttpResponse getHttpResponse(FetchRequest request, HttpRequestBase httpMethod)
+            throws StrategyException {
           // Mock the response
           return resp;
         }
@@ -81,5 +91,85 @@ public class HttpFetchStrategyTest extends TestCase {
     assertEquals(status, builder.getStatus());
     assertFalse("The mock has no contents.", builder.hasContents());
     assertEquals(headers.length, builder.getHeadersCount());
+    EasyMock.verify(ent);
+  }
+
+  /**
+   * Tests the request body is sent from the request contents or the upload.
+   * @throws Exception
+   */
+  public void testPostEntity() throws Exception {
+    FetchRequest ar = FetchRequest.newBuilder()
+        .setId("test1").setStrategy("HttpClient").setResource("http://www.google.com")
+        .addHeaders(MessageHeader.newBuilder().setKey("x-sdc-http-method").setValue("POST"))
+        .setContents(ByteString.copyFromUtf8("a=b"))
+        .build();
+
+    HttpFetchStrategy s = new HttpFetchStrategy(null);
+    HttpPost post = (HttpPost) s.getMethod(ar);
+    assertTrue(post.getEntity().isRepeatable());
+    assertEquals(3, post.getEntity().getContentLength());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    post.getEntity().writeTo(out);
+    assertEquals("a=b", out.toString("UTF-8"));
+
+    s.setUpload(new ByteArrayInputStream(new byte[] { 1, 2 }));
+    post = (HttpPost) s.getMethod(ar);
+    assertTrue(post.getEntity().isChunked());
+    assertEquals(-1, post.getEntity().getContentLength());
+  }
+
+  /**
+   * Tests the connection is aborted, not left leased, when the body cannot be written out.
+   * @throws Exception
+   */
+  public void testAbortWhenBodyNotConsumed() throws Exception {
+    FetchRequest ar = FetchRequest.newBuilder()
+        .setId("test1").setStrategy("HttpClient").setResource("http://www.google.com")
+        .build();
+
+    final HttpResponse resp = EasyMock.createMock(HttpResponse.class);
+    final HttpEntity ent = EasyMock.createMock(HttpEntity.class);
+    final StatusLine st = EasyMock.createMock(StatusLine.class);
+    EasyMock.expect(ent.getContent()).andReturn(new ByteArrayInputStream(new byte[] { 1, 2 }));
+    EasyMock.expect(st.getStatusCode()).andReturn(200);
+    EasyMock.expect(resp.getStatusLine()).andReturn(st);
+    EasyMock.expect(resp.getEntity()).andReturn(ent);
+    EasyMock.expect(resp.getAllHeaders()).andReturn(new Header[0]);
+    EasyMock.replay(st, resp, ent);
+
+    final boolean[] aborted = new boolean[1];
+    HttpFetchStrategy s = new HttpFetchStrategy(null) {
+        @Override
+        HttpRequestBase getMethod(FetchRequest request) {
+          return new HttpGet(request.getResource()) {
+            @Override
+            public void abort() {
+              aborted[0] = true;
+              super.abort();
+            }
+          };
+        }
+
+        @Override
+        HttpResponse getHttpResponse(FetchRequest request, HttpRequestBase httpMethod) {
+          return resp;
+        }
+      };
+    OutputStream failing = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Reply already finished");
+      }
+    };
+    try {
+      s.process(ar, FetchReply.newBuilder(), failing);
+      fail("did not receive StrategyException");
+    } catch (StrategyException e) {
+      // Expected.
+    }
+    assertTrue(aborted[0]);
+    // The body was neither consumed nor the connection released.
+    EasyMock.verify(ent);
   }
 }
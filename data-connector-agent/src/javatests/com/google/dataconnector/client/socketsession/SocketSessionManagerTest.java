@@ -0,0 +1,259 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.socketsession;
+
+import com.google.dataconnector.client.SocketSessionRequestHandler.Sink;
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.protocol.EventLoopGroup;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionVerb;
+import com.google.dataconnector.util.BufferPool;
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for the {@link SocketSessionManager} class.
+ */
+public class SocketSessionManagerTest extends TestCase {
+
+  private static final ByteString HANDLE = ByteString.copyFromUtf8("session-1");
+
+  private ServerSocket serverSocket;
+  private LocalConf localConf;
+  private EventLoopGroup eventLoopGroup;
+  private SocketSessionManager manager;
+  private BlockingQueue<SocketSessionData> toCloud;
+  private Sink<SocketSessionData> receiver;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+    localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    eventLoopGroup = new EventLoopGroup(localConf, new ShutdownManager());
+    manager = new SocketSessionManager(new ClockUtil(), eventLoopGroup, new BufferPool());
+    toCloud = new LinkedBlockingQueue<SocketSessionData>();
+    receiver = new Sink<SocketSessionData>() {
+      @Override
+      public boolean receive(SocketSessionData data, Runnable onSpace) {
+        toCloud.add(data);
+        return true;
+      }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    eventLoopGroup.shutdown();
+    serverSocket.close();
+    super.tearDown();
+  }
+
+  private InetSocketAddress endpoint() {
+    return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+  }
+
+  private SocketSessionReply connectReply() {
+    return SocketSessionReply.newBuilder().setSocketHandle(HANDLE)
+        .setVerb(SocketSessionVerb.CONNECT).setStatus(SocketSessionReply.Status.OK)
+        .setHostname("localhost").build();
+  }
+
+  public void testQueuedWritesFlushedBeforeClose() throws Exception {
+    assertTrue(manager.createSession(receiver, HANDLE, endpoint(), 0));
+    assertTrue(manager.connect(HANDLE));
+    assertFalse("connected twice", manager.connect(HANDLE));
+    final Socket peer = serverSocket.accept();
+    manager.notifySent(HANDLE, connectReply());
+
+    final StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      final String chunk = "chunk " + i + ";";
+      expected.append(chunk);
+      assertTrue(manager.write(HANDLE, chunk.getBytes("UTF-8"), -1));
+    }
+    // Segments out of order are put back in order, and repeats dropped.
+    final int offset = expected.length();
+    assertTrue(manager.write(HANDLE, "world".getBytes("UTF-8"), offset + 6));
+    assertTrue(manager.write(HANDLE, "hello ".getBytes("UTF-8"), offset));
+    assertTrue(manager.write(HANDLE, "hello".getBytes("UTF-8"), offset));
+    expected.append("hello world");
+    assertTrue(manager.close(HANDLE));
+    assertFalse("closed twice", manager.close(HANDLE));
+    assertFalse("written after close", manager.write(HANDLE, new byte[] { 1 }, 0));
+
+    final InputStream input = peer.getInputStream();
+    final StringBuilder written = new StringBuilder();
+    int b;
+    while ((b = input.read()) != -1) {
+      written.append((char) b);
+    }
+    assertEquals(expected.toString(), written.toString());
+
+    // Closing the socket ends the input forwarder, which confirms the close to the cloud.
+    SocketSessionData data;
+    do {
+      data = toCloud.poll(5, TimeUnit.SECONDS);
+      assertNotNull("no CLOSE sent", data);
+    } while (!data.getClose());
+    peer.close();
+  }
+
+  public void testInputSentOnceConnectReplied() throws Exception {
+    manager.createSession(receiver, HANDLE, endpoint(), 0);
+    assertTrue(manager.connect(HANDLE));
+    final Socket peer = serverSocket.accept();
+    peer.getOutputStream().write("hello".getBytes("UTF-8"));
+    assertNull("read before the connect reply", toCloud.poll(100, TimeUnit.MILLISECONDS));
+
+    manager.notifySent(HANDLE, connectReply());
+    final StringBuilder received = new StringBuilder();
+    while (received.length() < 5) {
+      final SocketSessionData data = toCloud.poll(5, TimeUnit.SECONDS);
+      assertNotNull("no data sent", data);
+      assertEquals(received.length(), data.getStreamOffset());
+      received.append(data.getData().toStringUtf8());
+    }
+    assertEquals("hello", received.toString());
+
+    // The endpoint closing its side is passed on.
+    peer.shutdownOutput();
+    final SocketSessionData close = toCloud.poll(5, TimeUnit.SECONDS);
+    assertTrue(close.getClose());
+    assertEquals(5, close.getStreamOffset());
+    assertTrue(manager.close(HANDLE));
+    peer.close();
+  }
+
+  public void testReadsLimitedBySendWindow() throws Exception {
+    manager.createSession(receiver, HANDLE, endpoint(), 4);
+    assertTrue(manager.connect(HANDLE));
+    final Socket peer = serverSocket.accept();
+    manager.notifySent(HANDLE, connectReply());
+
+    peer.getOutputStream().write(new byte[] { 1, 2, 3, 4, 5, 6 });
+    int received = 0;
+    while (received < 4) {
+      final SocketSessionData data = toCloud.poll(5, TimeUnit.SECONDS);
+      assertNotNull("no data sent", data);
+      received += data.getData().size();
+    }
+    assertEquals(4, received);
+    assertNull(toCloud.poll(100, TimeUnit.MILLISECONDS));
+
+    manager.grant(HANDLE, 10);
+    assertEquals(2, toCloud.poll(5, TimeUnit.SECONDS).getData().size());
+    peer.close();
+  }
+
+  public void testReadsStopWhileTunnelBackedUp() throws Exception {
+    final AtomicInteger refused = new AtomicInteger();
+    final AtomicReference<Runnable> waiter = new AtomicReference<Runnable>();
+    final Sink<SocketSessionData> backedUp = new Sink<SocketSessionData>() {
+      @Override
+      public boolean receive(SocketSessionData data, Runnable onSpace) {
+        if (waiter.get() == null) {
+          refused.incrementAndGet();
+          waiter.set(onSpace);
+          return false;
+        }
+        toCloud.add(data);
+        return true;
+      }
+    };
+    manager.createSession(backedUp, HANDLE, endpoint(), 0);
+    assertTrue(manager.connect(HANDLE));
+    final Socket peer = serverSocket.accept();
+    manager.notifySent(HANDLE, connectReply());
+
+    peer.getOutputStream().write("hello".getBytes("UTF-8"));
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (refused.get() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, refused.get());
+    // Nothing more is read until the tunnel has room.
+    peer.getOutputStream().write(" world".getBytes("UTF-8"));
+    assertNull(toCloud.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(1, refused.get());
+
+    waiter.get().run();
+    final StringBuilder received = new StringBuilder();
+    while (received.length() < 11) {
+      final SocketSessionData data = toCloud.poll(5, TimeUnit.SECONDS);
+      assertNotNull("no data sent after the tunnel drained", data);
+      assertEquals(received.length(), data.getStreamOffset());
+      received.append(data.getData().toStringUtf8());
+    }
+    assertEquals("hello world", received.toString());
+    assertTrue(manager.close(HANDLE));
+    peer.close();
+  }
+
+  public void testSessionsOfLostTunnelClosed() throws Exception {
+    final Sink<SocketSessionData> otherTunnel = new Sink<SocketSessionData>() {
+      @Override
+      public boolean receive(SocketSessionData data, Runnable onSpace) {
+        return true;
+      }
+    };
+    final ByteString otherHandle = ByteString.copyFromUtf8("session-2");
+    manager.createSession(receiver, HANDLE, endpoint(), 0);
+    manager.createSession(otherTunnel, otherHandle, endpoint(), 0);
+    assertTrue(manager.connect(HANDLE));
+    final Socket peer = serverSocket.accept();
+    manager.notifySent(HANDLE, connectReply());
+    assertEquals(1, manager.countSessions(receiver));
+    assertEquals(1, manager.countSessions(otherTunnel));
+
+    manager.closeSessions(receiver);
+    assertEquals(0, manager.countSessions(receiver));
+    assertEquals(-1, peer.getInputStream().read());
+    assertFalse("closed twice", manager.close(HANDLE));
+    assertTrue("other tunnel's session closed", manager.connect(otherHandle));
+    serverSocket.accept().close();
+    peer.close();
+  }
+
+  public void testUnknownSessions() throws Exception {
+    assertFalse(manager.connect(HANDLE));
+    assertFalse(manager.write(HANDLE, new byte[] { 1 }, 0));
+    assertFalse(manager.close(HANDLE));
+
+    // Created but never connected.
+    manager.createSession(receiver, HANDLE, endpoint(), 0);
+    assertFalse(manager.write(HANDLE, new byte[] { 1 }, 0));
+    assertFalse(manager.close(HANDLE));
+    assertFalse(manager.connect(HANDLE));
+  }
+}
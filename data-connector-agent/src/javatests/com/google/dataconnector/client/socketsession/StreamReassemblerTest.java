@@ -0,0 +1,93 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.socketsession;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the {@link StreamReassembler} class.
+ */
+public class StreamReassemblerTest extends TestCase {
+
+  private StreamReassembler reassembler;
+  private List<byte[]> writable;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    reassembler = new StreamReassembler(10);
+    writable = new ArrayList<byte[]>();
+  }
+
+  private int offer(final long offset, final String data) {
+    return reassembler.offer(offset, data.getBytes(), writable);
+  }
+
+  private String written() {
+    final StringBuilder sb = new StringBuilder();
+    for (final byte[] data : writable) {
+      sb.append(new String(data));
+    }
+    writable.clear();
+    return sb.toString();
+  }
+
+  public void testInOrder() throws Exception {
+    assertEquals(3, offer(0, "abc"));
+    assertEquals(3, offer(-1, "def"));
+    assertEquals("abcdef", written());
+    assertEquals(6, reassembler.getNextOffset());
+  }
+
+  public void testOutOfOrderHeldUntilGapFilled() throws Exception {
+    assertEquals(3, offer(6, "ghi"));
+    assertEquals(3, offer(3, "def"));
+    assertEquals("", written());
+    assertEquals(6, reassembler.getBufferedBytes());
+
+    assertEquals(3, offer(0, "abc"));
+    assertEquals("abcdefghi", written());
+    assertEquals(0, reassembler.getBufferedBytes());
+    assertEquals(9, reassembler.getNextOffset());
+  }
+
+  public void testDuplicatesAndOverlapsDropped() throws Exception {
+    offer(0, "abcd");
+    assertEquals(0, offer(0, "ab"));
+    assertEquals(2, offer(2, "cdef"));
+    assertEquals("abcdef", written());
+
+    // Overlapping held segments.
+    assertEquals(3, offer(8, "ijk"));
+    assertEquals(1, offer(7, "hij"));
+    assertEquals(0, offer(9, "j"));
+    assertEquals(4, reassembler.getBufferedBytes());
+    assertEquals(3, offer(9, "jklmn"));
+    assertEquals(1, offer(5, "fgh"));
+    assertEquals("ghijklmn", written());
+  }
+
+  public void testHeldBytesBounded() throws Exception {
+    assertEquals(8, offer(2, "cdefghij"));
+    assertEquals(-1, offer(20, "uvw"));
+    assertEquals(2, offer(0, "ab"));
+    assertEquals("abcdefghij", written());
+  }
+}
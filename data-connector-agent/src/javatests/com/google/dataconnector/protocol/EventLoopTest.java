@@ -0,0 +1,99 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link EventLoop} class.
+ */
+public class EventLoopTest extends TestCase {
+
+  private static final String CLOSED_BY_SHUTDOWN = "closed by shutdown";
+
+  private EventLoop eventLoop;
+  private Pipe pipe;
+  private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+  /**
+   * Records the callbacks it gets.
+   */
+  private final ChannelHandler handler = new ChannelHandler() {
+    @Override
+    public void registered(final SelectionKey key) {
+      events.add("registered");
+    }
+
+    @Override
+    public void ready(final SelectionKey key) {
+    }
+
+    @Override
+    public void closed(final IOException cause) {
+      events.add(cause == null ? CLOSED_BY_SHUTDOWN : cause.getMessage());
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    eventLoop = new EventLoop("test-loop");
+    eventLoop.start();
+    pipe = Pipe.open();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    eventLoop.shutdown();
+    pipe.sink().close();
+    pipe.source().close();
+    super.tearDown();
+  }
+
+  public void testRegisteredChannelsClosedOnShutdown() throws Exception {
+    eventLoop.register(pipe.source(), SelectionKey.OP_READ, handler);
+    assertEquals("registered", events.poll(5, TimeUnit.SECONDS));
+    eventLoop.shutdown();
+    assertEquals(CLOSED_BY_SHUTDOWN, events.poll(5, TimeUnit.SECONDS));
+    assertFalse(pipe.source().isOpen());
+  }
+
+  public void testWorkRefusedAfterShutdown() throws Exception {
+    eventLoop.shutdown();
+    eventLoop.join(5000);
+    assertFalse(eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        events.add("ran");
+      }
+    }));
+
+    // A registration that can never happen closes the channel rather than leaving its
+    // handler waiting.
+    eventLoop.register(pipe.source(), SelectionKey.OP_READ, handler);
+    assertEquals("test-loop is shut down.", events.poll());
+    assertFalse(pipe.source().isOpen());
+    assertTrue(events.isEmpty());
+  }
+}
@@ -0,0 +1,116 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.util.LocalConf;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the {@link FlowControlWindow} and {@link FlowControl} classes.
+ */
+public class FlowControlWindowTest extends TestCase {
+
+  public void testAcquireLimitedByCredit() throws Exception {
+    final FlowControlWindow window = new FlowControlWindow(100);
+    assertEquals(60, window.acquire(60));
+    assertEquals(40, window.acquire(60));
+    window.giveBack(10);
+    assertEquals(10, window.acquire(60));
+    window.grant(25);
+    assertEquals(25, window.acquire(60));
+    assertEquals(0, window.getCredit());
+  }
+
+  public void testAcquireWaitsForGrant() throws Exception {
+    final FlowControlWindow window = new FlowControlWindow(10);
+    window.acquire(10);
+    final AtomicInteger acquired = new AtomicInteger(-1);
+    final Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          acquired.set(window.acquire(100));
+        } catch (InterruptedException e) {
+          // fall through, test fails below.
+        }
+      }
+    };
+    sender.start();
+    window.grant(30);
+    sender.join(5000);
+    assertEquals(30, acquired.get());
+  }
+
+  public void testCloseWakesSender() throws Exception {
+    final FlowControlWindow window = new FlowControlWindow(10);
+    window.acquire(10);
+    final AtomicInteger acquired = new AtomicInteger(-1);
+    final Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          acquired.set(window.acquire(100));
+        } catch (InterruptedException e) {
+          // fall through, test fails below.
+        }
+      }
+    };
+    sender.start();
+    window.close();
+    sender.join(5000);
+    assertEquals(0, acquired.get());
+  }
+
+  public void testReceiveSideBatchesUpdates() {
+    final FlowControlWindow window = new FlowControlWindow(100);
+    assertTrue(window.reserve(30));
+    assertEquals(0, window.consumed(30));
+    assertTrue(window.reserve(70));
+    assertFalse(window.reserve(1));
+    assertEquals(100, window.consumed(70));
+    assertEquals(100, window.getCredit());
+  }
+
+  public void testNegotiation() {
+    final LocalConf localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setFlowControlWindow(1000);
+    final FlowControl flowControl = new FlowControl(localConf);
+    assertEquals(0, flowControl.negotiate(0));
+    assertNull(FlowControl.newWindow(0));
+
+    assertEquals(500, flowControl.negotiate(500));
+    assertEquals(1000, flowControl.negotiate(5000));
+    assertEquals(1000, FlowControl.newWindow(1000).getCredit());
+
+    localConf.setFlowControlWindow(0);
+    assertEquals(0, flowControl.negotiate(5000));
+  }
+
+  public void testWindowKeptPerConnection() {
+    final FrameSender first = new FrameSender(null, null);
+    final FrameSender second = new FrameSender(null, null);
+    assertNull(first.newFlowControlWindow());
+
+    first.setFlowControlWindow(500);
+    assertEquals(500, first.newFlowControlWindow().getCredit());
+    assertNull(second.newFlowControlWindow());
+  }
+}
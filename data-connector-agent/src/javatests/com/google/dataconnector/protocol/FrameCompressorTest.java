@@ -0,0 +1,143 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Tests for the {@link FrameCompressor} class.
+ */
+public class FrameCompressorTest extends TestCase {
+
+  private FrameCompressor compressor;
+  private ByteString text;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    compressor = new FrameCompressor(FrameInfo.Compression.DEFLATE, 512);
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      sb.append("<tr><td>employee ").append(i).append("</td><td>engineering</td></tr>\n");
+    }
+    text = ByteString.copyFromUtf8(sb.toString());
+  }
+
+  public void testCompressRoundTrip() throws Exception {
+    final ByteString compressed = compressor.compress(text);
+    assertNotNull(compressed);
+    assertTrue(compressed.size() < text.size() / 4);
+    assertEquals(text, FrameCompressor.decompress(FrameInfo.Compression.DEFLATE, compressed));
+    assertSame(compressed, FrameCompressor.decompress(FrameInfo.Compression.NONE, compressed));
+  }
+
+  public void testHeadInflated() throws Exception {
+    final ByteString payload = text;
+    final byte[] bytes = payload.toByteArray();
+    final ByteString compressed = compressor.compress(payload);
+    assertNotNull(compressed);
+    assertEquals(ByteString.copyFrom(bytes, 0, 100), FrameCompressor.decompressHead(
+        FrameInfo.Compression.DEFLATE, compressed, 100));
+    assertEquals(payload, FrameCompressor.decompressHead(
+        FrameInfo.Compression.DEFLATE, compressed, 2 * payload.size()));
+    assertSame(payload, FrameCompressor.decompressHead(FrameInfo.Compression.NONE, payload, 10));
+
+    // A truncated payload gives what could be inflated.
+    final ByteString head = FrameCompressor.decompressHead(FrameInfo.Compression.DEFLATE,
+        ByteString.copyFrom(compressed.toByteArray(), 0, compressed.size() / 2), payload.size());
+    assertTrue(head.size() > 0);
+    assertTrue(head.size() < payload.size());
+    assertEquals(ByteString.copyFrom(bytes, 0, head.size()), head);
+  }
+
+  public void testMessageCompressedAsSerialized() throws Exception {
+    final FetchReply reply = FetchReply.newBuilder().setId("1").setStatus(200)
+        .setContents(text).build();
+    final ByteString compressed = compressor.compress(reply);
+    assertNotNull(compressed);
+    assertEquals(compressor.compress(reply.toByteString()), compressed);
+    assertEquals(reply, FetchReply.parseFrom(
+        FrameCompressor.decompress(FrameInfo.Compression.DEFLATE, compressed)));
+
+    final byte[] random = new byte[64 * 1024];
+    new Random(1).nextBytes(random);
+    assertNull(compressor.compress(reply.toBuilder().setContents(ByteString.copyFrom(random))
+        .build()));
+  }
+
+  public void testMessageCompressedIntoStream() throws Exception {
+    final FetchReply reply = FetchReply.newBuilder().setId("1").setStatus(200)
+        .setContents(text).build();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertTrue(compressor.compress(reply, out));
+    assertEquals(reply, FetchReply.parseFrom(FrameCompressor.decompress(
+        FrameInfo.Compression.DEFLATE, ByteString.copyFrom(out.toByteArray()))));
+
+    // Gives up once the output passes seven eighths of the message.
+    final byte[] random = new byte[64 * 1024];
+    new Random(1).nextBytes(random);
+    final FetchReply incompressible = reply.toBuilder()
+        .setContents(ByteString.copyFrom(random)).build();
+    out.reset();
+    assertFalse(compressor.compress(incompressible, out));
+    assertTrue(out.size() <= incompressible.getSerializedSize() * 7 / 8);
+  }
+
+  public void testSmallOrIncompressiblePayloadsSentAsIs() throws Exception {
+    assertNull(compressor.compress(ByteString.copyFromUtf8("short")));
+
+    final byte[] random = new byte[4096];
+    new Random(1).nextBytes(random);
+    assertNull(compressor.compress(ByteString.copyFrom(random)));
+
+    assertNull(new FrameCompressor(FrameInfo.Compression.NONE, 0).compress(text));
+  }
+
+  public void testFrameCompressedAndInflated() throws Exception {
+    final FrameInfo frame = FrameInfo.newBuilder().setType(FrameInfo.Type.FETCH_REQUEST)
+        .setSequence(3).setPayload(text).build();
+    final FrameInfo compressed = compressor.compress(frame);
+    assertEquals(FrameInfo.Compression.DEFLATE, compressed.getCompression());
+    assertTrue(compressed.getPayload().size() < text.size());
+    assertEquals(frame, FrameCompressor.decompress(compressed));
+
+    // Encrypted session frames and authorization are left alone.
+    final FrameInfo session = frame.toBuilder().setSessionId("7").build();
+    assertSame(session, compressor.compress(session));
+    final FrameInfo authorization = frame.toBuilder().setType(FrameInfo.Type.AUTHORIZATION)
+        .build();
+    assertSame(authorization, compressor.compress(authorization));
+  }
+
+  public void testTruncatedPayloadRejected() throws Exception {
+    final ByteString compressed = compressor.compress(text);
+    try {
+      FrameCompressor.decompress(FrameInfo.Compression.DEFLATE,
+          ByteString.copyFrom(compressed.toByteArray(), 0, compressed.size() / 2));
+      fail("Expected FramingException");
+    } catch (FramingException expected) {
+      // expected
+    }
+  }
+}
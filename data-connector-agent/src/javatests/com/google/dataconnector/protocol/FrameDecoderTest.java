@@ -0,0 +1,156 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for the {@link FrameDecoder} class.
+ */
+public class FrameDecoderTest extends TestCase {
+
+  private FrameInfo expectedFrameInfo1;
+  private FrameInfo expectedFrameInfo2;
+  private byte[] wireBytes;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    final AuthorizationInfo authorizationInfo = AuthorizationInfo.newBuilder()
+       .setEmail("foo@joonix.net")
+       .setPassword("password")
+       .build();
+    expectedFrameInfo1 = FrameInfo.newBuilder()
+       .setType(FrameInfo.Type.AUTHORIZATION)
+       .setSequence(0)
+       .setPayload(authorizationInfo.toByteString())
+       .build();
+    expectedFrameInfo2 = FrameInfo.newBuilder().mergeFrom(expectedFrameInfo1)
+        .setSequence(1)
+        .build();
+
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    writeFrame(bos, 0, expectedFrameInfo1.toByteArray());
+    writeFrame(bos, 1, expectedFrameInfo2.toByteArray());
+    wireBytes = bos.toByteArray();
+  }
+
+  private void writeFrame(final ByteArrayOutputStream bos, final long sequence,
+      final byte[] payload) throws IOException {
+    final DataOutputStream dataOutputStream = new DataOutputStream(bos);
+    bos.write('*');
+    bos.write(FrameReceiver.MAGIC);
+    dataOutputStream.writeLong(sequence);
+    dataOutputStream.writeInt(payload.length);
+    bos.write(payload);
+  }
+
+  public void testDecodeWholeBuffer() throws Exception {
+    final FrameDecoder frameDecoder = new FrameDecoder();
+    final ByteBuffer buffer = ByteBuffer.wrap(wireBytes);
+    assertEquals(expectedFrameInfo1, frameDecoder.decode(buffer));
+    assertEquals(expectedFrameInfo2, frameDecoder.decode(buffer));
+    assertNull(frameDecoder.decode(buffer));
+  }
+
+  public void testDecodeOneByteAtATime() throws Exception {
+    final FrameDecoder frameDecoder = new FrameDecoder();
+    final AtomicLong counter = new AtomicLong();
+    frameDecoder.setByteCounter(counter);
+    final ByteBuffer buffer = ByteBuffer.allocate(wireBytes.length);
+    final List<FrameInfo> frames = new ArrayList<FrameInfo>();
+    for (final byte b : wireBytes) {
+      buffer.put(b);
+      buffer.flip();
+      final FrameInfo frameInfo = frameDecoder.decode(buffer);
+      if (frameInfo != null) {
+        frames.add(frameInfo);
+      }
+      buffer.compact();
+    }
+    assertEquals(2, frames.size());
+    assertEquals(expectedFrameInfo1, frames.get(0));
+    assertEquals(expectedFrameInfo2, frames.get(1));
+    assertEquals(wireBytes.length, counter.get());
+  }
+
+  public void testBadStartByte() throws Exception {
+    wireBytes[0] = '#';
+    try {
+      new FrameDecoder().decode(ByteBuffer.wrap(wireBytes));
+    } catch (FramingException e) {
+      assertEquals("Unexpected frame start read", e.getMessage());
+      return;
+    }
+    fail("did not receive FramingException");
+  }
+
+  public void testBadMagic() throws Exception {
+    wireBytes[3] = 'x';
+    try {
+      new FrameDecoder().decode(ByteBuffer.wrap(wireBytes));
+    } catch (FramingException e) {
+      assertEquals("Unexpected frame magic read", e.getMessage());
+      return;
+    }
+    fail("did not receive FramingException");
+  }
+
+  public void testBadSequence() throws Exception {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    writeFrame(bos, 0, expectedFrameInfo1.toByteArray());
+    writeFrame(bos, 5, expectedFrameInfo2.toByteArray());
+    final FrameDecoder frameDecoder = new FrameDecoder();
+    final ByteBuffer buffer = ByteBuffer.wrap(bos.toByteArray());
+    frameDecoder.decode(buffer);
+    try {
+      frameDecoder.decode(buffer);
+    } catch (FramingException e) {
+      assertEquals("Unexpected sequence number. Expected: 1 got:5", e.getMessage());
+      return;
+    }
+    fail("did not receive FramingException");
+  }
+
+  public void testBadPayloadLength() throws Exception {
+    final ByteBuffer buffer = ByteBuffer.allocate(FrameReceiver.HEADER_SIZE);
+    buffer.put(FrameReceiver.FRAME_START);
+    buffer.put(FrameReceiver.MAGIC);
+    buffer.putLong(0);
+    buffer.putInt(FrameReceiver.MAX_FRAME_SIZE + 1);
+    buffer.flip();
+    try {
+      new FrameDecoder().decode(buffer);
+    } catch (FramingException e) {
+      assertEquals("Payload length invalid.", e.getMessage());
+      return;
+    }
+    fail("did not receive FramingException");
+  }
+}
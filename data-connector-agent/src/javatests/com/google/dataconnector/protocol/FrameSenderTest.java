@@ -18,6 +18,9 @@ package com.google.dataconnector.protocol;
 
 import com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
 
 import junit.framework.TestCase;
 
@@ -26,9 +29,13 @@ import org.easymock.classextension.EasyMock;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for the {@link FrameSender} class.
@@ -64,6 +71,25 @@ public class FrameSenderTest extends TestCase {
     assertEquals(expectedFrameInfo1, actualFrameInfo);
   }
 
+  public void testOfferFrameRunsWaiterOnceHalfEmpty() throws Exception {
+    queue = new LinkedBlockingQueue<FrameInfo>(2);
+    FrameSender frameSender = new FrameSender(queue, null);
+    final AtomicInteger resumed = new AtomicInteger();
+    final Runnable onSpace = new Runnable() {
+      @Override
+      public void run() {
+        resumed.incrementAndGet();
+      }
+    };
+    assertTrue(frameSender.offerFrame(expectedFrameInfo1, onSpace));
+    assertTrue(frameSender.offerFrame(expectedFrameInfo1, onSpace));
+    assertFalse(frameSender.offerFrame(expectedFrameInfo1, onSpace));
+    assertEquals(0, resumed.get());
+    assertEquals(expectedFrameInfo1, frameSender.pollFrame());
+    assertEquals(1, resumed.get());
+    assertTrue(frameSender.offerFrame(expectedFrameInfo1, onSpace));
+  }
+
   public void testSendFrameTypePayload() throws Exception {
     queue = new LinkedBlockingQueue<FrameInfo>();
     FrameSender frameSender = new FrameSender(queue, null);
@@ -105,4 +131,89 @@ public class FrameSenderTest extends TestCase {
     assertEquals(expectedFrameInfo1, actualFrameInfo);
     
   }
+
+  public void testWriteFramesIsOneWrite() throws Exception {
+    final FrameInfo frame0 = FrameInfo.newBuilder(expectedFrameInfo1).setSequence(0).build();
+    final FrameInfo frame1 = FrameInfo.newBuilder(expectedFrameInfo1).setSequence(1).build();
+    final List<byte[]> writes = new ArrayList<byte[]>();
+    FrameSender frameSender = new FrameSender(queue, null);
+    frameSender.setOutputStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+        writes.add(new byte[] { (byte) b });
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        writes.add(Arrays.copyOfRange(b, off, off + len));
+      }
+    });
+    frameSender.writeFrames(Arrays.asList(frame0, frame1));
+    assertEquals(1, writes.size());
+
+    FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new ByteArrayInputStream(writes.get(0)));
+    assertEquals(frame0, frameReceiver.readOneFrame());
+    assertEquals(frame1, frameReceiver.readOneFrame());
+  }
+
+  public void testRunBatchesQueuedFrames() throws Exception {
+    queue = new LinkedBlockingQueue<FrameInfo>();
+    bos = new ByteArrayOutputStream();
+    FrameSender frameSender = new FrameSender(queue, new ShutdownManager());
+    frameSender.setOutputStream(bos);
+    frameSender.setBatchMaxBytes(64 * 1024);
+    frameSender.sendFrame(expectedFrameInfo1);
+    frameSender.sendFrame(expectedFrameInfo1);
+    frameSender.sendFrame(FrameInfo.newBuilder().setType(FrameInfo.Type.SHUTDOWN_QUEUE).build());
+    frameSender.run();
+
+    FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    assertEquals(0, frameReceiver.readOneFrame().getSequence());
+    assertEquals(1, frameReceiver.readOneFrame().getSequence());
+  }
+
+  public void testCompressedDataKeepsConnectionOrder() throws Exception {
+    queue = new PrioritySendQueue(2000);
+    FrameSender frameSender = new FrameSender(queue, null);
+    frameSender.setCompressor(new FrameCompressor(FrameInfo.Compression.DEFLATE, 512));
+    // Enough compressed segments to use up more than one round of the stream's credit, then a
+    // CLOSE too small to be compressed.
+    final int segments = 1000;
+    for (int i = 0; i < segments; i++) {
+      frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+          .setConnectionId(7)
+          .setState(SocketDataInfo.State.CONTINUE)
+          .setSegment(ByteString.copyFrom(new byte[4096]))
+          .build().toByteString());
+    }
+    frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+        .setConnectionId(7)
+        .setState(SocketDataInfo.State.CLOSE)
+        .build().toByteString());
+
+    for (int i = 0; i < segments; i++) {
+      final FrameInfo frameInfo = queue.take();
+      assertEquals(FrameInfo.Compression.DEFLATE, frameInfo.getCompression());
+      assertEquals(SocketDataInfo.State.CONTINUE, SocketDataInfo.parseFrom(
+          FrameCompressor.decompress(frameInfo).getPayload()).getState());
+    }
+    assertEquals(SocketDataInfo.State.CLOSE,
+        SocketDataInfo.parseFrom(queue.take().getPayload()).getState());
+  }
+
+  public void testStreamKeyPassedToPrioritySendQueue() throws Exception {
+    final PrioritySendQueue priorityQueue = new PrioritySendQueue(10);
+    FrameSender frameSender = new FrameSender(priorityQueue, null);
+    final FrameInfo encrypted = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_SESSION)
+        .setSessionId("1")
+        .setPayload(ByteString.copyFromUtf8("sealed"))
+        .build();
+    frameSender.sendFrame(encrypted, "session:a", null);
+    assertTrue(frameSender.offerFrame(encrypted, "session:b", null));
+    assertEquals(2, priorityQueue.getQueuedBytesByStream(
+        PrioritySendQueue.Priority.INTERACTIVE).size());
+  }
 }
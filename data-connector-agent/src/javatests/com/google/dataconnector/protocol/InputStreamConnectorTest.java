@@ -129,7 +129,7 @@ public class InputStreamConnectorTest extends TestCase {
    */
   public static class MockConnectionRemover implements ConnectorStateCallback {
 
-    private boolean callbackFired = false;
+    private volatile boolean callbackFired = false;
 
     @Override
     public void close(final long connectionId) {
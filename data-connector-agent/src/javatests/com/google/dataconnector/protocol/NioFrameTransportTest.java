@@ -0,0 +1,237 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.client.testing.SelfSignedSslContext;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Tests for the {@link NioFrameTransport} class over a loopback TLS connection.
+ */
+public class NioFrameTransportTest extends TestCase {
+
+  private SSLContext sslContext;
+  private SSLServerSocket serverSocket;
+  private EventLoopGroup eventLoopGroup;
+  private BlockingQueue<FrameInfo> sendQueue;
+  private BlockingQueue<FrameInfo> dispatched;
+  private FrameSender frameSender;
+  private NioFrameTransport transport;
+  // The server's end, set up by the thread accepting it.
+  private final BlockingQueue<SSLSocket> accepted = new LinkedBlockingQueue<SSLSocket>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    sslContext = SelfSignedSslContext.create("localhost");
+    serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0,
+        50, InetAddress.getByName(null));
+    eventLoopGroup = new EventLoopGroup(new FakeLocalConfGenerator().getFakeLocalConf(),
+        new ShutdownManager());
+
+    sendQueue = new LinkedBlockingQueue<FrameInfo>();
+    dispatched = new LinkedBlockingQueue<FrameInfo>();
+    frameSender = new FrameSender(sendQueue, null);
+    final FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.registerDispatcher(FrameInfo.Type.HEALTH_CHECK, new Dispatchable() {
+      @Override
+      public void dispatch(final FrameInfo frameInfo) {
+        dispatched.add(frameInfo);
+      }
+    });
+    transport = new NioFrameTransport(eventLoopGroup);
+    transport.setFrameReceiver(frameReceiver);
+    transport.setFrameSender(frameSender);
+
+    // The client's connect blocks on the handshake, so the server's end runs on its own thread.
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          final SSLSocket socket = (SSLSocket) serverSocket.accept();
+          socket.startHandshake();
+          accepted.add(socket);
+        } catch (Exception e) {
+          // The test fails waiting for the socket.
+        }
+      }
+    }.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    transport.shutdown();
+    eventLoopGroup.shutdown();
+    serverSocket.close();
+    super.tearDown();
+  }
+
+  private static FrameInfo frame(final ByteString payload) {
+    return FrameInfo.newBuilder().setType(FrameInfo.Type.HEALTH_CHECK).setPayload(payload)
+        .build();
+  }
+
+  private static ByteString randomBytes(final int size) {
+    final byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return ByteString.copyFrom(bytes);
+  }
+
+  /**
+   * Shuts the transport down on another thread, as shutdown waits for the server to close.
+   */
+  private Thread shutdownInBackground() {
+    final Thread stopper = new Thread() {
+      @Override
+      public void run() {
+        transport.shutdown();
+      }
+    };
+    stopper.start();
+    return stopper;
+  }
+
+  private static void assertClosedByClient(final FrameReceiver serverReceiver) {
+    try {
+      serverReceiver.readOneFrame();
+      fail("connection still open");
+    } catch (FramingException expected) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Connects the transport and returns the server's end of the connection.
+   */
+  private SSLSocket connect() throws Exception {
+    transport.connect(sslContext, new InetSocketAddress(serverSocket.getInetAddress(),
+        serverSocket.getLocalPort()), sslContext.getDefaultSSLParameters().getCipherSuites(),
+        5000);
+    final SSLSocket server = accepted.poll(5, TimeUnit.SECONDS);
+    assertNotNull("server did not accept", server);
+    return server;
+  }
+
+  public void testFramesBothWays() throws Exception {
+    final SSLSocket server = connect();
+    final FrameSender serverSender = new FrameSender(null, null);
+    serverSender.setOutputStream(server.getOutputStream());
+    final FrameReceiver serverReceiver = new FrameReceiver();
+    serverReceiver.setInputStream(server.getInputStream());
+    transport.start();
+
+    // Held for readOneFrame until dispatching starts.
+    serverSender.writeOneFrame(frame(ByteString.copyFromUtf8("hello")));
+    assertEquals(ByteString.copyFromUtf8("hello"), transport.readOneFrame().getPayload());
+    frameSender.sendFrame(frame(ByteString.copyFromUtf8("hi")));
+    assertEquals(ByteString.copyFromUtf8("hi"), serverReceiver.readOneFrame().getPayload());
+
+    final Thread dispatcher = new Thread() {
+      @Override
+      public void run() {
+        try {
+          transport.startDispatching();
+        } catch (FramingException expected) {
+          // Returns once the connection is closed.
+        }
+      }
+    };
+    dispatcher.start();
+    // Larger than the engine's buffers, so records span reads and the buffers grow.
+    final ByteString large = randomBytes(256 * 1024);
+    serverSender.writeOneFrame(frame(large));
+    serverSender.writeOneFrame(frame(ByteString.copyFromUtf8("after")));
+    assertEquals(large, dispatched.poll(5, TimeUnit.SECONDS).getPayload());
+    assertEquals(ByteString.copyFromUtf8("after"),
+        dispatched.poll(5, TimeUnit.SECONDS).getPayload());
+
+    frameSender.sendFrame(frame(large));
+    assertEquals(large, serverReceiver.readOneFrame().getPayload());
+
+    final Thread stopper = shutdownInBackground();
+    assertClosedByClient(serverReceiver);
+    server.close();
+    stopper.join(5000);
+    dispatcher.join(5000);
+    assertFalse("still dispatching after shutdown", dispatcher.isAlive());
+  }
+
+  public void testQueuedFramesSentBeforeShutdown() throws Exception {
+    final SSLSocket server = connect();
+    final FrameReceiver serverReceiver = new FrameReceiver();
+    serverReceiver.setInputStream(server.getInputStream());
+    transport.start();
+
+    // More than the socket buffers hold, all queued before shutting down.
+    for (int i = 0; i < 100; i++) {
+      frameSender.sendFrame(frame(randomBytes(10000 + i)));
+    }
+    final Thread stopper = shutdownInBackground();
+    for (int i = 0; i < 100; i++) {
+      final FrameInfo frameInfo = serverReceiver.readOneFrame();
+      assertEquals(i, frameInfo.getSequence());
+      assertEquals(randomBytes(10000 + i), frameInfo.getPayload());
+    }
+    assertClosedByClient(serverReceiver);
+    assertTrue("closed before the server", stopper.isAlive());
+    server.close();
+    stopper.join(5000);
+    assertFalse("shutdown did not return", stopper.isAlive());
+    try {
+      transport.readOneFrame();
+      fail("transport open after shutdown");
+    } catch (FramingException expected) {
+      // Expected.
+    }
+  }
+
+  public void testSendQueueShutdownClosesAfterQueuedFrames() throws Exception {
+    final SSLSocket server = connect();
+    final FrameReceiver serverReceiver = new FrameReceiver();
+    serverReceiver.setInputStream(server.getInputStream());
+
+    frameSender.sendFrame(frame(ByteString.copyFromUtf8("last")));
+    frameSender.sendFrame(FrameInfo.newBuilder().setType(FrameInfo.Type.SHUTDOWN_QUEUE)
+        .build());
+    transport.start();
+    assertEquals(ByteString.copyFromUtf8("last"), serverReceiver.readOneFrame().getPayload());
+    assertClosedByClient(serverReceiver);
+    server.close();
+    try {
+      transport.readOneFrame();
+      fail("transport open after the queue shut down");
+    } catch (FramingException expected) {
+      // Expected.
+    }
+  }
+}
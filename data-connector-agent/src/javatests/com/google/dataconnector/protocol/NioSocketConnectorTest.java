@@ -0,0 +1,131 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.InputStreamConnectorTest.MockConnectionRemover;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link NioSocketConnector} class.
+ */
+public class NioSocketConnectorTest extends TestCase {
+
+  private static final long CONNECTION_ID = 0;
+
+  private EventLoop eventLoop;
+  private Socket peer;
+  private BlockingQueue<FrameInfo> sendQueue;
+  private BlockingQueue<SocketDataInfo> outputQueue;
+  private MockConnectionRemover connectionRemover;
+  private NioSocketConnector nioSocketConnector;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+    final SocketChannel socketChannel = SocketChannel.open(
+        serverSocketChannel.socket().getLocalSocketAddress());
+    peer = serverSocketChannel.accept().socket();
+    serverSocketChannel.close();
+
+    eventLoop = new EventLoop("test-loop");
+    eventLoop.start();
+    sendQueue = new LinkedBlockingQueue<FrameInfo>();
+    outputQueue = new LinkedBlockingQueue<SocketDataInfo>();
+    connectionRemover = new MockConnectionRemover();
+
+    nioSocketConnector = new NioSocketConnector(outputQueue);
+    nioSocketConnector.setConnectionId(CONNECTION_ID);
+    nioSocketConnector.setSocketChannel(socketChannel);
+    nioSocketConnector.setFrameSender(new FrameSender(sendQueue, null));
+    nioSocketConnector.setConnectorStateCallback(connectionRemover);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    eventLoop.shutdown();
+    peer.close();
+    super.tearDown();
+  }
+
+  private SocketDataInfo takeSocketDataInfo() throws Exception {
+    final FrameInfo frameInfo = sendQueue.poll(5, TimeUnit.SECONDS);
+    assertNotNull("no frame sent", frameInfo);
+    assertEquals(FrameInfo.Type.SOCKET_DATA, frameInfo.getType());
+    return SocketDataInfo.parseFrom(frameInfo.getPayload());
+  }
+
+  public void testBothDirections() throws Exception {
+    nioSocketConnector.start(eventLoop);
+
+    peer.getOutputStream().write(new byte[] { 1, 2, 3 });
+    final SocketDataInfo received = takeSocketDataInfo();
+    assertEquals(SocketDataInfo.State.CONTINUE, received.getState());
+    assertEquals(ByteString.copyFrom(new byte[] { 1, 2, 3 }), received.getSegment());
+
+    outputQueue.put(SocketDataInfo.newBuilder()
+        .setConnectionId(CONNECTION_ID)
+        .setState(SocketDataInfo.State.CONTINUE)
+        .setSegment(ByteString.copyFrom(new byte[] { 4, 5 }))
+        .build());
+    outputQueue.put(SocketDataInfo.newBuilder()
+        .setConnectionId(CONNECTION_ID)
+        .setState(SocketDataInfo.State.CLOSE)
+        .build());
+    nioSocketConnector.wakeup();
+
+    final InputStream peerInput = peer.getInputStream();
+    assertEquals(4, peerInput.read());
+    assertEquals(5, peerInput.read());
+    assertEquals(-1, peerInput.read());
+    assertEquals(SocketDataInfo.State.CLOSE, takeSocketDataInfo().getState());
+    // The callback fires on the event loop just after the CLOSE frame is sent.
+    for (int i = 0; i < 50 && !connectionRemover.isCallbackFired(); i++) {
+      Thread.sleep(100);
+    }
+    assertTrue(connectionRemover.isCallbackFired());
+  }
+
+  public void testReadsLimitedBySendWindow() throws Exception {
+    final FlowControlWindow sendWindow = new FlowControlWindow(4);
+    nioSocketConnector.setWindows(sendWindow, null);
+    nioSocketConnector.start(eventLoop);
+
+    peer.getOutputStream().write(new byte[] { 1, 2, 3, 4, 5, 6 });
+    assertEquals(4, takeSocketDataInfo().getSegment().size());
+    assertNull(sendQueue.poll(100, TimeUnit.MILLISECONDS));
+
+    sendWindow.grant(10);
+    nioSocketConnector.wakeup();
+    assertEquals(2, takeSocketDataInfo().getSegment().size());
+  }
+}
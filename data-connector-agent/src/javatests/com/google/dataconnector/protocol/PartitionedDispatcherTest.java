@@ -0,0 +1,221 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link PartitionedDispatcher} class.
+ */
+public class PartitionedDispatcherTest extends TestCase {
+
+  private static final int THREADS = 2;
+
+  private LocalConf localConf;
+  private ShutdownManager shutdownManager;
+  private PartitionedDispatcher partitionedDispatcher;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setDispatchThreads(THREADS);
+    shutdownManager = new ShutdownManager();
+    partitionedDispatcher = new PartitionedDispatcher(localConf, shutdownManager);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    shutdownManager.shutdownAll();
+    super.tearDown();
+  }
+
+  private static FrameInfo socketData(final long connectionId, final int index) {
+    return FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(SocketDataInfo.State.CONTINUE)
+            .setSegment(ByteString.copyFrom(new byte[] { (byte) index }))
+            .build().toByteString())
+        .build();
+  }
+
+  private int partitionOf(final FrameInfo frameInfo) {
+    return (partitionedDispatcher.partitionKey(frameInfo).hashCode() & Integer.MAX_VALUE) %
+        THREADS;
+  }
+
+  public void testInlineWithoutThreads() throws Exception {
+    localConf.setDispatchThreads(0);
+    final List<Thread> threads = new ArrayList<Thread>();
+    partitionedDispatcher.dispatch(new Dispatchable() {
+      @Override
+      public void dispatch(final FrameInfo frameInfo) {
+        threads.add(Thread.currentThread());
+      }
+    }, socketData(1, 0));
+    assertEquals(Collections.singletonList(Thread.currentThread()), threads);
+  }
+
+  public void testSlowStreamDoesNotBlockOthers() throws Exception {
+    // Find a connection that lands on a different worker than connection 1.
+    long otherConnection = 2;
+    while (partitionOf(socketData(otherConnection, 0)) == partitionOf(socketData(1, 0))) {
+      otherConnection++;
+    }
+    final long fastConnection = otherConnection;
+
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch fastDone = new CountDownLatch(3);
+    final List<Integer> slowOrder = Collections.synchronizedList(new ArrayList<Integer>());
+    final Dispatchable dispatchable = new Dispatchable() {
+      @Override
+      public void dispatch(final FrameInfo frameInfo) throws FramingException {
+        try {
+          final SocketDataInfo socketDataInfo = SocketDataInfo.parseFrom(frameInfo.getPayload());
+          if (socketDataInfo.getConnectionId() == fastConnection) {
+            fastDone.countDown();
+          } else {
+            release.await();
+            slowOrder.add((int) socketDataInfo.getSegment().byteAt(0));
+          }
+        } catch (Exception e) {
+          throw new FramingException(e);
+        }
+      }
+    };
+
+    for (int i = 0; i < 3; i++) {
+      partitionedDispatcher.dispatch(dispatchable, socketData(1, i));
+      partitionedDispatcher.dispatch(dispatchable, socketData(fastConnection, i));
+    }
+    assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+    assertTrue(slowOrder.isEmpty());
+
+    release.countDown();
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (slowOrder.size() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(3, slowOrder.size());
+    assertEquals(Integer.valueOf(0), slowOrder.get(0));
+    assertEquals(Integer.valueOf(1), slowOrder.get(1));
+    assertEquals(Integer.valueOf(2), slowOrder.get(2));
+  }
+
+  public void testFailureRethrown() throws Exception {
+    final CountDownLatch failed = new CountDownLatch(1);
+    partitionedDispatcher.dispatch(new Dispatchable() {
+      @Override
+      public void dispatch(final FrameInfo frameInfo) throws FramingException {
+        failed.countDown();
+        throw new FramingException("bad frame");
+      }
+    }, socketData(1, 0));
+    assertTrue(failed.await(5, TimeUnit.SECONDS));
+    Thread.sleep(50);
+
+    try {
+      partitionedDispatcher.dispatch(null, socketData(1, 1));
+      fail("did not receive FramingException");
+    } catch (FramingException e) {
+      assertEquals("bad frame", e.getMessage());
+    }
+  }
+
+  public void testOfferRefusedWhileBackedUp() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final Dispatchable blocked = new Dispatchable() {
+      @Override
+      public void dispatch(final FrameInfo frameInfo) throws FramingException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new FramingException(e);
+        }
+      }
+    };
+    final CountDownLatch space = new CountDownLatch(1);
+    final Runnable onSpace = new Runnable() {
+      @Override
+      public void run() {
+        space.countDown();
+      }
+    };
+    // The worker holds one frame and its queue the rest.
+    int offered = 0;
+    while (partitionedDispatcher.offer(blocked, socketData(1, offered), onSpace)) {
+      offered++;
+      assertTrue("never refused", offered <= PartitionedDispatcher.PARTITION_QUEUE_SIZE + 1);
+    }
+    assertTrue(offered >= PartitionedDispatcher.PARTITION_QUEUE_SIZE);
+    assertEquals(1, space.getCount());
+
+    release.countDown();
+    assertTrue(space.await(5, TimeUnit.SECONDS));
+    assertTrue(partitionedDispatcher.offer(blocked, socketData(1, 0), onSpace));
+  }
+
+  public void testFailureClearedByShutdown() throws Exception {
+    final CountDownLatch failed = new CountDownLatch(1);
+    partitionedDispatcher.dispatch(new Dispatchable() {
+      @Override
+      public void dispatch(final FrameInfo frameInfo) throws FramingException {
+        failed.countDown();
+        throw new FramingException("bad frame");
+      }
+    }, socketData(1, 0));
+    assertTrue(failed.await(5, TimeUnit.SECONDS));
+    Thread.sleep(50);
+
+    partitionedDispatcher.shutdown();
+    final List<Thread> threads = new ArrayList<Thread>();
+    localConf.setDispatchThreads(0);
+    partitionedDispatcher.dispatch(new Dispatchable() {
+      @Override
+      public void dispatch(final FrameInfo frameInfo) {
+        threads.add(Thread.currentThread());
+      }
+    }, socketData(1, 1));
+    assertEquals(1, threads.size());
+  }
+
+  public void testRegistrationDispatchedInline() throws Exception {
+    final List<Thread> threads = new ArrayList<Thread>();
+    partitionedDispatcher.dispatch(new Dispatchable() {
+      @Override
+      public void dispatch(final FrameInfo frameInfo) {
+        threads.add(Thread.currentThread());
+      }
+    }, FrameInfo.newBuilder().setType(FrameInfo.Type.REGISTRATION).build());
+    assertEquals(Collections.singletonList(Thread.currentThread()), threads);
+  }
+}
@@ -0,0 +1,200 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.PrioritySendQueue.Priority;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link PrioritySendQueue} class.
+ */
+public class PrioritySendQueueTest extends TestCase {
+
+  private static FrameInfo frame(final FrameInfo.Type type, final int payloadSize) {
+    return FrameInfo.newBuilder()
+        .setType(type)
+        .setPayload(ByteString.copyFrom(new byte[payloadSize]))
+        .build();
+  }
+
+  public void testControlFramesGoFirst() throws Exception {
+    final PrioritySendQueue queue = new PrioritySendQueue(10);
+    final FrameInfo data = frame(FrameInfo.Type.SOCKET_DATA, 100);
+    final FrameInfo healthCheck = frame(FrameInfo.Type.HEALTH_CHECK, 10);
+    queue.put(data);
+    queue.put(healthCheck);
+    assertSame(healthCheck, queue.take());
+    assertSame(data, queue.take());
+    assertNull(queue.poll());
+  }
+
+  public void testShutdownSentAfterData() throws Exception {
+    final PrioritySendQueue queue = new PrioritySendQueue(2);
+    final FrameInfo reply = frame(FrameInfo.Type.FETCH_REQUEST, 100);
+    final FrameInfo data = frame(FrameInfo.Type.SOCKET_DATA, 100);
+    final FrameInfo shutdown = frame(FrameInfo.Type.SHUTDOWN_QUEUE, 0);
+    final FrameInfo healthCheck = frame(FrameInfo.Type.HEALTH_CHECK, 10);
+    queue.put(reply);
+    queue.put(data);
+    // Never refused for lack of space.
+    assertTrue(queue.offer(shutdown));
+    queue.put(healthCheck);
+    assertEquals(PrioritySendQueue.Priority.SHUTDOWN,
+        PrioritySendQueue.Priority.forType(FrameInfo.Type.SHUTDOWN_QUEUE));
+    assertSame(healthCheck, queue.take());
+    assertSame(reply, queue.take());
+    assertSame(data, queue.take());
+    assertSame(shutdown, queue.take());
+    assertNull(queue.poll());
+  }
+
+  public void testControlFramesIgnoreCapacity() throws Exception {
+    final PrioritySendQueue queue = new PrioritySendQueue(1);
+    assertTrue(queue.offer(frame(FrameInfo.Type.SOCKET_DATA, 10)));
+    assertFalse(queue.offer(frame(FrameInfo.Type.SOCKET_DATA, 10)));
+    assertFalse(queue.offer(frame(FrameInfo.Type.FETCH_REQUEST, 10), 1, TimeUnit.MILLISECONDS));
+    assertTrue(queue.offer(frame(FrameInfo.Type.HEALTH_CHECK, 10)));
+    assertEquals(0, queue.remainingCapacity());
+    assertEquals(2, queue.size());
+  }
+
+  public void testDataLanesShareByQuantum() throws Exception {
+    final PrioritySendQueue queue = new PrioritySendQueue(100);
+    final int frameSize = PrioritySendQueue.BULK_QUANTUM - 100;
+    for (int i = 0; i < 20; i++) {
+      queue.put(frame(FrameInfo.Type.SOCKET_DATA, frameSize));
+    }
+    for (int i = 0; i < 20; i++) {
+      queue.put(frame(FrameInfo.Type.SOCKET_SESSION, frameSize));
+    }
+    assertEquals(20, queue.getLaneDepth(Priority.BULK));
+    assertTrue(queue.getLaneBytes(Priority.INTERACTIVE) > 20 * frameSize);
+
+    // With both lanes backlogged interactive gets four frames for every bulk frame.
+    int interactive = 0;
+    int bulk = 0;
+    for (int i = 0; i < 20; i++) {
+      if (queue.take().getType() == FrameInfo.Type.SOCKET_DATA) {
+        bulk++;
+      } else {
+        interactive++;
+      }
+    }
+    assertEquals(16, interactive);
+    assertEquals(4, bulk);
+  }
+
+  public void testOrderKeptWithinLane() throws Exception {
+    final PrioritySendQueue queue = new PrioritySendQueue(100);
+    for (int i = 0; i < 10; i++) {
+      queue.put(frame(FrameInfo.Type.SOCKET_DATA, i));
+    }
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, queue.take().getPayload().size());
+    }
+    assertEquals(0, queue.getLaneBytes(Priority.BULK));
+  }
+
+  public void testPollTimesOut() throws Exception {
+    final PrioritySendQueue queue = new PrioritySendQueue(1);
+    assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+  }
+
+  private static FrameInfo socketData(final long connectionId, final int segmentSize) {
+    return FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(SocketDataInfo.State.CONTINUE)
+            .setSegment(ByteString.copyFrom(new byte[segmentSize]))
+            .build().toByteString())
+        .build();
+  }
+
+  public void testStreamKey() throws Exception {
+    assertEquals("connection:42", PrioritySendQueue.streamKey(socketData(42, 10)));
+
+    final FrameCompressor compressor = new FrameCompressor(FrameInfo.Compression.DEFLATE, 0);
+    assertEquals("connection:42", PrioritySendQueue.streamKey(
+        compressor.compress(socketData(42, 1024))));
+
+    final FrameInfo encrypted = FrameInfo.newBuilder(socketData(42, 10)).setSessionId("1").build();
+    assertEquals(PrioritySendQueue.ENCRYPTED_STREAM, PrioritySendQueue.streamKey(encrypted));
+  }
+
+  private static FrameInfo encryptedSession(final int payloadSize) {
+    return FrameInfo.newBuilder(frame(FrameInfo.Type.SOCKET_SESSION, payloadSize))
+        .setSessionId("1")
+        .build();
+  }
+
+  public void testEncryptedFramesQueuedOnGivenStream() throws Exception {
+    final PrioritySendQueue queue = new PrioritySendQueue(100);
+    // Session a's frames queue first; its payloads are encrypted so only the sender knows them
+    // apart from session b's.
+    for (int i = 0; i < 10; i++) {
+      queue.put(encryptedSession(64 * 1024), "session:a");
+    }
+    queue.put(encryptedSession(100), "session:b");
+    assertTrue(queue.offer(encryptedSession(100), "session:b"));
+
+    final Map<String, Long> gauges = queue.getQueuedBytesByStream(Priority.INTERACTIVE);
+    assertEquals(2, gauges.size());
+    assertTrue(gauges.get("session:a") > 10 * 64 * 1024);
+    assertFalse(gauges.containsKey(PrioritySendQueue.ENCRYPTED_STREAM));
+
+    // Session b is not stuck behind session a's large frames.
+    assertTrue(queue.take().getPayload().size() < 1024);
+    assertTrue(queue.take().getPayload().size() < 1024);
+    assertFalse(queue.getQueuedBytesByStream(Priority.INTERACTIVE).containsKey("session:b"));
+  }
+
+  public void testGivenStreamIgnoredForControlFrames() throws Exception {
+    final PrioritySendQueue queue = new PrioritySendQueue(10);
+    queue.put(frame(FrameInfo.Type.HEALTH_CHECK, 10), "session:a");
+    assertEquals(1, queue.getLaneDepth(Priority.CONTROL));
+    assertEquals(FrameInfo.Type.HEALTH_CHECK, queue.take().getType());
+  }
+
+  public void testConnectionsShareBulkLane() throws Exception {
+    final PrioritySendQueue queue = new PrioritySendQueue(100);
+    // A bulk download queues first, then a small interactive connection.
+    for (int i = 0; i < 10; i++) {
+      queue.put(socketData(1, 64 * 1024));
+    }
+    queue.put(socketData(2, 100));
+    queue.put(socketData(2, 100));
+
+    final Map<String, Long> gauges = queue.getQueuedBytesByStream(Priority.BULK);
+    assertEquals(2, gauges.size());
+    assertTrue(gauges.get("connection:1") > 10 * 64 * 1024);
+
+    // Connection 2's small frames fit its quantum, connection 1 needs several rounds of credit
+    // for each 64k segment, so connection 2 is not stuck behind the download.
+    assertTrue(queue.take().getPayload().size() < 1024);
+    assertTrue(queue.take().getPayload().size() < 1024);
+    assertFalse(queue.getQueuedBytesByStream(Priority.BULK).containsKey("connection:2"));
+    assertEquals(10, queue.getLaneDepth(Priority.BULK));
+  }
+}
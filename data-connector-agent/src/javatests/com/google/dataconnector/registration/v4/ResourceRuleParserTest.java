@@ -17,6 +17,7 @@
 package com.google.dataconnector.registration.v4;
 
 import com.google.dataconnector.util.FileUtil;
+import com.google.dataconnector.util.Pair;
 import com.google.dataconnector.util.RegistrationException;
 
 import junit.framework.TestCase;
@@ -172,6 +173,45 @@ public class ResourceRuleParserTest extends TestCase {
     assertEquals(0, urlList.size());
   }
 
+  public void testParseCacheableResources() throws RegistrationException, XMLStreamException,
+      FactoryConfigurationError, IOException {
+    // 3 resources for this agent, 2 of them cacheable.
+    String resourceXml = "<resourceRules> " +
+        "<rule> " +
+        "  <agentId>" + TEST_AGENTID + "</agentId>" +
+        "  <url>" + HTTP_PATTERN + "</url>" +
+        "  <urlMatch>HOSTPORT</urlMatch>" +
+        "  <cacheable>true</cacheable>" +
+        "</rule> " +
+        "<rule> " +
+        "  <agentId>" + TEST_AGENTID_ALL + "</agentId>" +
+        "  <cacheable>true</cacheable>" +
+        "  <url>" + URL_EXACT_PATTERN + "</url>" +
+        "  <urlMatch>URLEXACT</urlMatch>" +
+        "</rule> " +
+        "<rule> " +
+        "  <agentId>" + TEST_AGENTID + "</agentId>" +
+        "  <url>" + HTTPS_PATTERN + "</url>" +
+        "  <cacheable>false</cacheable>" +
+        "</rule> " +
+        "<rule> " +
+        "  <agentId>" + TEST_AGENTID_NOTME + "</agentId>" +
+        "  <url>" + SOCKET_PATTERN + "</url>" +
+        "  <cacheable>true</cacheable>" +
+        "</rule> " +
+        "</resourceRules> " ;
+    fileUtil.writeFile(TEST_FILE_NAME, resourceXml);
+
+    // test
+    ResourceRuleParser resourceRuleParser = new ResourceRuleParser(fileUtil);
+    assertEquals(3, resourceRuleParser.parseResourcesFile(TEST_FILE_NAME, TEST_AGENTID).size());
+    List<Pair<String, Boolean>> cacheableList =
+        resourceRuleParser.parseCacheableResources(TEST_FILE_NAME, TEST_AGENTID);
+    assertEquals(2, cacheableList.size());
+    assertEquals(Pair.of(HTTP_PATTERN, false), cacheableList.get(0));
+    assertEquals(Pair.of(URL_EXACT_PATTERN, true), cacheableList.get(1));
+  }
+
   public void testParseResourcesFileWithNoAgentidFor1Resource()
       throws XMLStreamException,
       FactoryConfigurationError, IOException {
@@ -0,0 +1,78 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link AgentThreadPoolExecutor} class.
+ */
+public class AgentThreadPoolExecutorTest extends TestCase {
+
+  private static boolean jvmHasVirtualThreads() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  public void testPlatformThreadsByDefault() throws Exception {
+    final LocalConf localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    final AgentThreadPoolExecutor executor = new AgentThreadPoolExecutor(localConf, 1, 5);
+    try {
+      assertEquals(Boolean.TRUE, executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return true;
+        }
+      }).get(5, TimeUnit.SECONDS));
+      assertEquals(5, executor.getMaximumPoolSize());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testVirtualThreadMode() throws Exception {
+    final LocalConf localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setUseVirtualThreads(true);
+    final AgentThreadPoolExecutor executor = new AgentThreadPoolExecutor(localConf, 1, 5);
+    try {
+      assertEquals(Boolean.TRUE, executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return true;
+        }
+      }).get(5, TimeUnit.SECONDS));
+      // Older JVMs fall back to the bounded platform pool.
+      if (jvmHasVirtualThreads()) {
+        assertEquals(Integer.MAX_VALUE, executor.getMaximumPoolSize());
+      } else {
+        assertNull(AgentThreadPoolExecutor.newVirtualThreadFactory());
+        assertEquals(5, executor.getMaximumPoolSize());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for the {@link BufferPool} class.
+ */
+public class BufferPoolTest extends TestCase {
+
+  public void testSizeClasses() {
+    assertEquals(0, BufferPool.indexFor(1));
+    assertEquals(0, BufferPool.indexFor(BufferPool.MIN_BUFFER_SIZE));
+    assertEquals(1, BufferPool.indexFor(BufferPool.MIN_BUFFER_SIZE + 1));
+    assertEquals(-1, BufferPool.indexFor(BufferPool.MAX_BUFFER_SIZE + 1));
+  }
+
+  public void testAcquireReleaseReuses() {
+    final BufferPool bufferPool = new BufferPool();
+    final ByteBuffer buffer = bufferPool.acquire(3000);
+    assertEquals(4096, buffer.capacity());
+    assertEquals(3000, buffer.limit());
+    assertTrue(buffer.hasArray());
+    buffer.put((byte) 1);
+    bufferPool.release(buffer);
+
+    final ByteBuffer reused = bufferPool.acquire(2049);
+    assertSame(buffer, reused);
+    assertEquals(0, reused.position());
+    assertEquals(2049, reused.limit());
+  }
+
+  public void testDirectBuffersNotPooled() {
+    final BufferPool bufferPool = new BufferPool();
+    final ByteBuffer direct = ByteBuffer.allocateDirect(BufferPool.MIN_BUFFER_SIZE);
+    bufferPool.release(direct);
+    final ByteBuffer buffer = bufferPool.acquire(100);
+    assertNotSame(direct, buffer);
+    assertTrue(buffer.hasArray());
+  }
+
+  public void testOversizedNotPooled() {
+    final BufferPool bufferPool = new BufferPool();
+    final ByteBuffer buffer = bufferPool.acquire(BufferPool.MAX_BUFFER_SIZE + 1);
+    assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, buffer.capacity());
+    bufferPool.release(buffer);
+    assertNotSame(buffer, bufferPool.acquire(BufferPool.MAX_BUFFER_SIZE + 1));
+  }
+}
@@ -234,4 +234,32 @@ public class LocalConfValidatorTest extends TestCase {
     }
     fail("did not get LocalConf");
   }
+
+  public void testBadTunnelConnections() {
+    // Setup bad data
+    localConf.setTunnelConnections(0);
+
+    // Test and verify
+    try {
+      localConfValidator.validate(localConf);
+    } catch (LocalConfException e) {
+      assertTrue(e.getMessage().contains("invalid 'tunnelConnections'"));
+      return;
+    }
+    fail("did not get LocalConf");
+  }
+
+  public void testBadDrainSeconds() {
+    // Setup bad data
+    localConf.setDrainSeconds(-1);
+
+    // Test and verify
+    try {
+      localConfValidator.validate(localConf);
+    } catch (LocalConfException e) {
+      assertTrue(e.getMessage().contains("invalid 'drainSeconds'"));
+      return;
+    }
+    fail("did not get LocalConf");
+  }
 }
@@ -20,6 +20,11 @@ import junit.framework.TestCase;
 
 import org.easymock.classextension.EasyMock;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.Field;
+
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
 public class SSLSocketFactoryInitTest extends TestCase {
@@ -42,7 +47,7 @@ public class SSLSocketFactoryInitTest extends TestCase {
     EasyMock.expect(localConf.getAllowUnverifiedCertificates()).andReturn(false);
     EasyMock.replay(localConf);
 
-    SSLSocketFactoryInit sSLSocketFactoryInit = new SSLSocketFactoryInit(null);
+    SSLSocketFactoryInit sSLSocketFactoryInit = new SSLSocketFactoryInit(new FileUtil());
     SSLSocketFactory factory = sSLSocketFactoryInit.getSslSocketFactory(localConf);
     assertNotNull(factory);
 
@@ -55,10 +60,71 @@ public class SSLSocketFactoryInitTest extends TestCase {
     EasyMock.expect(localConf.getAllowUnverifiedCertificates()).andReturn(true);
     EasyMock.replay(localConf);
 
-    SSLSocketFactoryInit sSLSocketFactoryInit = new SSLSocketFactoryInit(null);
+    SSLSocketFactoryInit sSLSocketFactoryInit = new SSLSocketFactoryInit(new FileUtil());
     SSLSocketFactory factory = sSLSocketFactoryInit.getSslSocketFactory(localConf);
     assertNotNull(factory);
 
     EasyMock.verify(localConf);
   }
+
+  public void testSslContextReusedForResumption() {
+    EasyMock.expect(localConf.getSslKeyStoreFile()).andReturn(null).times(3);
+    EasyMock.expect(localConf.getAllowUnverifiedCertificates()).andReturn(false).times(2);
+    EasyMock.expect(localConf.getAllowUnverifiedCertificates()).andReturn(true);
+    EasyMock.replay(localConf);
+
+    SSLSocketFactoryInit sSLSocketFactoryInit = new SSLSocketFactoryInit(new FileUtil());
+    SSLContext context = sSLSocketFactoryInit.getSslContext(localConf);
+    assertNotNull(context);
+    assertSame(context, sSLSocketFactoryInit.getSslContext(localConf));
+    // New flags need a new context.
+    assertNotSame(context, sSLSocketFactoryInit.getSslContext(localConf));
+
+    EasyMock.verify(localConf);
+  }
+
+  private static void write(final File file, final int length) throws Exception {
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[length]);
+    out.close();
+  }
+
+  public void testSslContextRebuiltWhenKeystoreChanges() throws Exception {
+    final File keystore = File.createTempFile("keystore", ".jks");
+    keystore.deleteOnExit();
+    write(keystore, 10);
+    EasyMock.expect(localConf.getSslKeyStoreFile()).andReturn(keystore.getPath()).times(3);
+    EasyMock.expect(localConf.getSslKeyStorePassword()).andReturn("test_password").times(3);
+    EasyMock.expect(localConf.getAllowUnverifiedCertificates()).andReturn(true).times(3);
+    EasyMock.replay(localConf);
+
+    SSLSocketFactoryInit sSLSocketFactoryInit = new SSLSocketFactoryInit(new FileUtil());
+    SSLContext context = sSLSocketFactoryInit.getSslContext(localConf);
+    assertNotNull(context);
+    assertSame(context, sSLSocketFactoryInit.getSslContext(localConf));
+    // A keystore replaced on disk is read again.
+    write(keystore, 20);
+    assertNotSame(context, sSLSocketFactoryInit.getSslContext(localConf));
+
+    EasyMock.verify(localConf);
+  }
+
+  public void testSslContextConfHoldsNoPassword() throws Exception {
+    EasyMock.expect(localConf.getSslKeyStoreFile()).andReturn("test_keystorefile").times(3);
+    EasyMock.expect(localConf.getSslKeyStorePassword()).andReturn("test_password").times(2);
+    EasyMock.expect(localConf.getSslKeyStorePassword()).andReturn("other_password");
+    EasyMock.expect(localConf.getAllowUnverifiedCertificates()).andReturn(true).times(3);
+    EasyMock.replay(localConf);
+
+    SSLSocketFactoryInit sSLSocketFactoryInit = new SSLSocketFactoryInit(new FileUtil());
+    SSLContext context = sSLSocketFactoryInit.getSslContext(localConf);
+    assertSame(context, sSLSocketFactoryInit.getSslContext(localConf));
+    final Field conf = SSLSocketFactoryInit.class.getDeclaredField("sslContextConf");
+    conf.setAccessible(true);
+    assertFalse(((String) conf.get(sSLSocketFactoryInit)).contains("test_password"));
+    // A new password still needs a new context.
+    assertNotSame(context, sSLSocketFactoryInit.getSslContext(localConf));
+
+    EasyMock.verify(localConf);
+  }
 }
@@ -18,12 +18,17 @@ package com.google.dataconnector.util;
 
 
 import com.google.common.collect.Multimap;
+import com.google.dataconnector.protocol.FrameCompressor;
+import com.google.dataconnector.protocol.FrameSender;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.ResourceKey;
 
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Tests for the {@link LocalConfValidator} class.
@@ -67,6 +72,65 @@ public class SdcKeysManagerTest extends TestCase {
     assertFalse(sdcKeysManager.containsKey(" "));
   }
 
+  public void testKeysKeptPerTunnel() {
+    FrameSender tunnel1 = new FrameSender(new LinkedBlockingQueue<FrameInfo>(), null);
+    FrameSender tunnel2 = new FrameSender(new LinkedBlockingQueue<FrameInfo>(), null);
+    SdcKeysManager sdcKeysManager = new SdcKeysManager();
+    sdcKeysManager.storeSecretKeys(tunnel1, Arrays.asList(buildKeyObj("ip1", 1, 111)));
+    sdcKeysManager.storeSecretKeys(tunnel2, Arrays.asList(buildKeyObj("ip1", 1, 211)));
+
+    // registering again over one tunnel only replaces its own keys.
+    sdcKeysManager.storeSecretKeys(tunnel1, Arrays.asList(buildKeyObj("ip1", 1, 112)));
+    assertFalse(sdcKeysManager.containsKey("111"));
+    assertTrue(sdcKeysManager.checkKeyIpPort("112", "ip1", 1));
+    assertTrue(sdcKeysManager.checkKeyIpPort("211", "ip1", 1));
+
+    sdcKeysManager.removeSecretKeys(tunnel2);
+    assertFalse(sdcKeysManager.containsKey("211"));
+    assertTrue(sdcKeysManager.containsKey("112"));
+  }
+
+  public void testResourceKeysCachedForRules() {
+    SdcKeysManager sdcKeysManager = new SdcKeysManager();
+    assertNull(sdcKeysManager.getCachedResourceKeys("rules"));
+    List<ResourceKey> resourceKeysList = Arrays.asList(buildKeyObj("ip1", 1, 111));
+    sdcKeysManager.cacheResourceKeys("rules", resourceKeysList);
+    assertSame(resourceKeysList, sdcKeysManager.getCachedResourceKeys("rules"));
+    assertNull(sdcKeysManager.getCachedResourceKeys("changed rules"));
+  }
+
+  public void testSessionKeysKeptPerSession() throws Exception {
+    SdcKeysManager sdcKeysManager = new SdcKeysManager();
+    assertNull(sdcKeysManager.getSessionEncryption("1"));
+    sdcKeysManager.storeSessionKey("1", SessionEncryption.JCE_ALGO,
+        SessionEncryption.newKeyBytes());
+    sdcKeysManager.storeSessionKey("2", SessionEncryption.JCE_ALGO,
+        SessionEncryption.newKeyBytes());
+    assertEquals("1", sdcKeysManager.getSessionEncryption("1").getSessionId());
+    assertEquals("2", sdcKeysManager.getSessionEncryption("2").getSessionId());
+    // an unknown session gets the latest key, which turns its frames away.
+    assertEquals("2", sdcKeysManager.getSessionEncryption("3").getSessionId());
+    assertEquals("2", sdcKeysManager.getSessionEncryption(null).getSessionId());
+
+    sdcKeysManager.removeSessionKey("2");
+    assertEquals("1", sdcKeysManager.getSessionEncryption().getSessionId());
+    assertEquals("1", sdcKeysManager.getSessionEncryption("2").getSessionId());
+    sdcKeysManager.removeSessionKey(null);
+    sdcKeysManager.removeSessionKey("1");
+    assertFalse(sdcKeysManager.hasSessionEncryption());
+  }
+
+  public void testCompressorKeptPerSession() throws Exception {
+    SdcKeysManager sdcKeysManager = new SdcKeysManager();
+    FrameCompressor compressor = new FrameCompressor(FrameInfo.Compression.DEFLATE, 512);
+    sdcKeysManager.storeSessionKey("1", SessionEncryption.JCE_ALGO,
+        SessionEncryption.newKeyBytes(), compressor);
+    sdcKeysManager.storeSessionKey("2", SessionEncryption.JCE_ALGO,
+        SessionEncryption.newKeyBytes(), null);
+    assertSame(compressor, sdcKeysManager.getSessionEncryption("1").getCompressor());
+    assertNull(sdcKeysManager.getSessionEncryption("2").getCompressor());
+  }
+
   private ResourceKey buildKeyObj(String ip, int port, long key) {
     return ResourceKey.newBuilder().setKey(key).setIp(ip).setPort(port).build();
   }
@@ -2,12 +2,21 @@
 
 package com.google.dataconnector.util;
 
+import com.google.dataconnector.protocol.FrameCompressor;
+import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import junit.framework.TestCase;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
+import javax.crypto.KeyGenerator;
+
 /**
  * Tests for the session level encryption / decryption utilities.
  * 
@@ -28,7 +37,7 @@ public class SessionEncryptionTest extends TestCase {
     
     ByteString input = ByteString.copyFrom(buff);
     ByteString encrypted = se.encrypt(input);
-    ByteString decrypted = se.decrypt(encrypted);
+    ByteString decrypted = se.forServer().decrypt(encrypted);
     
     assertNotSame(input, encrypted);
     assertEquals(input, decrypted);
@@ -37,6 +46,148 @@ public class SessionEncryptionTest extends TestCase {
     assertTrue(same(buff, decrypted.toByteArray()));
   }
 
+  public void testAeadNoncePerFrame() throws Exception {
+    SessionEncryption se = new SessionEncryption();
+    assertEquals(SessionEncryption.AES_GCM, se.getAlgorithm());
+
+    ByteString input = ByteString.copyFromUtf8("the same message");
+    ByteString first = se.encrypt(input);
+    ByteString second = se.encrypt(input);
+    assertFalse(first.equals(second));
+    assertFalse(same(Arrays.copyOf(first.toByteArray(), SessionEncryption.NONCE_LENGTH),
+        Arrays.copyOf(second.toByteArray(), SessionEncryption.NONCE_LENGTH)));
+    // Marked as the agent's, so never the same as one of the server's.
+    assertEquals(SessionEncryption.AGENT_NONCE_DIRECTION, first.byteAt(0));
+
+    // The server holding the key decrypts it.
+    SessionEncryption server = se.forServer();
+    assertEquals(input, server.decrypt(first));
+    assertEquals(input, server.decrypt(second));
+  }
+
+  public void testAeadRejectsNonceFromOwnDirection() throws Exception {
+    SessionEncryption se = new SessionEncryption();
+    ByteString input = ByteString.copyFromUtf8("GET /payroll");
+
+    // The server's frames are accepted.
+    ByteString fromServer = se.forServer().encrypt(input);
+    assertFalse(fromServer.byteAt(0) == SessionEncryption.AGENT_NONCE_DIRECTION);
+    assertEquals(input, se.decrypt(fromServer));
+
+    // One of the agent's own frames reflected back is refused, even though the key is right.
+    ByteString reflected = se.encrypt(input);
+    try {
+      se.decrypt(reflected);
+      fail("Expected AgentConfigurationException");
+    } catch (AgentConfigurationException expected) {
+      // expected
+    }
+    // As is one from another agent holding the same key.
+    SessionEncryption otherAgent = new SessionEncryption(se.getSessionId(), se.getAlgorithm(),
+        se.getEncryptionKey());
+    try {
+      otherAgent.decrypt(reflected);
+      fail("Expected AgentConfigurationException");
+    } catch (AgentConfigurationException expected) {
+      // expected
+    }
+  }
+
+  public void testAeadRejectsTamperedPayload() throws Exception {
+    SessionEncryption se = new SessionEncryption();
+    byte[] encrypted =
+        se.forServer().encrypt(ByteString.copyFromUtf8("GET /payroll")).toByteArray();
+    encrypted[encrypted.length - 1] ^= 1;
+    try {
+      se.decrypt(ByteString.copyFrom(encrypted));
+      fail("Expected AgentConfigurationException");
+    } catch (AgentConfigurationException expected) {
+      // expected
+    }
+    try {
+      se.decrypt(ByteString.copyFrom(new byte[4]));
+      fail("Expected AgentConfigurationException");
+    } catch (AgentConfigurationException expected) {
+      // expected
+    }
+  }
+
+  public void testSupportedAlgorithms() throws Exception {
+    List<String> supported = SessionEncryption.getSupportedAlgorithms();
+    assertEquals(SessionEncryption.AES_GCM, supported.get(0));
+    assertTrue(supported.contains(SessionEncryption.LEGACY_ALGO));
+
+    for (String algorithm : supported) {
+      KeyGenerator kg = KeyGenerator.getInstance(SessionEncryption.getKeyAlgorithm(algorithm));
+      SessionEncryption se = new SessionEncryption("id", algorithm,
+          kg.generateKey().getEncoded());
+      ByteString input = ByteString.copyFromUtf8("payload for " + algorithm);
+      assertEquals(input, se.forServer().decrypt(se.encrypt(input)));
+    }
+  }
+
+  public void testMessageEncryptedAsSerialized() throws Exception {
+    SessionEncryption se = new SessionEncryption();
+    byte[] body = new byte[256 * 1024];
+    new Random(1).nextBytes(body);
+    FetchReply reply = FetchReply.newBuilder().setId("1").setStatus(200)
+        .setContents(ByteString.copyFrom(body)).build();
+
+    SessionEncryption server = se.forServer();
+    FrameInfo frame = se.toFrameInfo(FrameInfo.Type.FETCH_REQUEST, reply);
+    assertEquals(se.getSessionId(), frame.getSessionId());
+    assertEquals(reply.toByteString(), server.decrypt(frame.getPayload()));
+
+    // Written in chunks, the same as encrypting the whole.
+    SessionEncryption.Encryptor encryptor = se.newEncryptor(body.length);
+    for (int i = 0; i < body.length; i += 1000) {
+      encryptor.write(body, i, Math.min(1000, body.length - i));
+    }
+    assertEquals(ByteString.copyFrom(body), server.decrypt(encryptor.finish()));
+
+    // Larger than the retained decrypt buffer, then small again.
+    byte[] large = new byte[2 * 1024 * 1024];
+    new Random(2).nextBytes(large);
+    assertEquals(ByteString.copyFrom(large),
+        server.decrypt(se.encrypt(ByteString.copyFrom(large))));
+    assertEquals(ByteString.copyFromUtf8("small"),
+        server.decrypt(se.encrypt(ByteString.copyFromUtf8("small"))));
+  }
+
+  public void testEncryptorRejectsMoreThanStarted() throws Exception {
+    SessionEncryption.Encryptor encryptor = new SessionEncryption().newEncryptor(10);
+    try {
+      encryptor.write(new byte[100]);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  public void testCompressedBeforeEncryption() throws Exception {
+    SessionEncryption se = new SessionEncryption();
+    se.setCompressor(new FrameCompressor(FrameInfo.Compression.DEFLATE, 512));
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      sb.append("<tr><td>employee ").append(i).append("</td></tr>\n");
+    }
+    FetchReply reply = FetchReply.newBuilder().setId("1").setStatus(200)
+        .setContents(ByteString.copyFromUtf8(sb.toString())).build();
+    FrameInfo frame = se.toFrameInfo(FrameInfo.Type.FETCH_REQUEST, reply);
+    assertEquals(FrameInfo.Compression.DEFLATE, frame.getCompression());
+    assertTrue(frame.getPayload().size() < reply.getSerializedSize() / 2);
+    assertEquals(reply, se.forServer().getFrom(frame, new SessionEncryption.Parse<FetchReply>() {
+      public FetchReply parse(ByteString s) throws InvalidProtocolBufferException {
+        return FetchReply.parseFrom(s);
+      }
+    }));
+
+    // Known incompressible replies are sent as is.
+    assertEquals(FrameInfo.Compression.NONE,
+        se.toFrameInfo(FrameInfo.Type.FETCH_REQUEST, reply, false).getCompression());
+  }
+
   private boolean same(byte[] a, byte[] b) {
     if (a.length != b.length) return false;
     boolean same = true;
@@ -72,6 +72,24 @@ public class ShutdownManagerTest extends TestCase {
     assertEquals(1, stoppable1.getTotalShutdownCalls());
   }
   
+  public void testShutdownOneStoppable() {
+    // Setup
+    MockStoppable stoppable1 = new MockStoppable();
+    MockStoppable stoppable2 = new MockStoppable();
+    
+    ShutdownManager shutdownManager = new ShutdownManager();
+    shutdownManager.addStoppable(stoppable1);
+    shutdownManager.addStoppable(stoppable2, GROUP1);
+    
+    // Execute
+    shutdownManager.shutdown(stoppable2);
+    shutdownManager.shutdownAll(); // stoppable2 is no longer managed.
+    
+    // Verify
+    assertEquals(1, stoppable1.getTotalShutdownCalls());
+    assertEquals(1, stoppable2.getTotalShutdownCalls());
+  }
+  
   /**
    * Mock stoppable implementation that records whether shutdown was actually called.
    * 